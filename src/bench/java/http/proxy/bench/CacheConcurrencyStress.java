@@ -0,0 +1,282 @@
+package http.proxy.bench;
+
+import http.proxy.cache.CacheManager;
+import http.proxy.cache.CachedResponse;
+import http.proxy.logger.Logger;
+import http.proxy.utils.Headers;
+import http.proxy.utils.Request;
+import http.proxy.utils.Response;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Нагрузочная проверка кэша: попадания читаются без блокировки, пока другие потоки
+ * вставляют новые версии, удаляют ключи по адресу и префиксу и ужимают кэш.
+ * <p>
+ * Каждый ответ несет номер ключа и версию в заголовке X-Version и в теле. Читатель
+ * отправляет найденный ответ в канал, как SocketHandler, и сверяет отправленные байты
+ * с ответом, собранным заново по номеру и версии: заголовок, тело и сами байты должны
+ * принадлежать одной версии одного ключа. Еще читатель проверяет, что заголовки записи
+ * изменить нельзя. Любое расхождение - ошибка, процесс завершается с кодом 1.
+ * Запуск: gradle cacheConcurrencyStress или
+ * java -cp build/classes/java/main:build/classes/java/bench http.proxy.bench.CacheConcurrencyStress [секунд] [читателей]
+ */
+public final class CacheConcurrencyStress {
+
+    private static final int KEYS = 2_000;
+    private static final String PREFIX = "http://origin.example.com/stress/";
+    private static final String[] ENCODINGS = {"gzip", "br", "identity"};
+    private static final int MAX_REPORTED = 10;
+
+    private static final AtomicBoolean running = new AtomicBoolean(true);
+    private static final AtomicLong errors = new AtomicLong();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong writes = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        final int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+        final int readers = (args.length > 1) ? Integer.parseInt(args[1])
+                : Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        final CacheManager cm = new CacheManager(Long.MAX_VALUE, 3600);
+        cm.registerLogger(new SilentLogger());
+        for (int i = 0; i < KEYS; i++) {
+            put(cm, i, 0, ENCODINGS[i % ENCODINGS.length]);
+        }
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            threads.add(new Thread(() -> read(cm), "reader-" + i));
+        }
+        threads.add(new Thread(() -> write(cm), "writer"));
+        threads.add(new Thread(() -> purge(cm), "purger"));
+        threads.add(new Thread(() -> shrink(cm), "shrinker"));
+        final long started = System.nanoTime();
+        for (Thread thread : threads) thread.start();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running.set(false);
+        for (Thread thread : threads) thread.join();
+        final double elapsed = (System.nanoTime() - started) / 1e9;
+        System.out.println(String.format("%d readers, %.1f s: %d hits (%.0f/s), %d misses, %d writes, %d entries, %d errors",
+                readers, elapsed, hits.get(), hits.get() / elapsed, misses.get(), writes.get(), cm.usage()[1], errors.get()));
+        System.exit(errors.get() == 0 ? 0 : 1);
+    }
+
+    private static void read(final CacheManager cm) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final VerifyingChannel channel = new VerifyingChannel();
+        while (running.get()) {
+            final int id = random.nextInt(KEYS);
+            final String encoding = ENCODINGS[random.nextInt(ENCODINGS.length)];
+            final CachedResponse response;
+            try {
+                response = cm.getResponse(request(id, encoding));
+            } catch (Exception e) {
+                error("getResponse failed: " + e);
+                continue;
+            }
+            if (response == null) {
+                misses.incrementAndGet();
+                continue;
+            }
+            hits.incrementAndGet();
+            verify(response, id, encoding, channel);
+        }
+    }
+
+    private static void verify(final CachedResponse response,
+                               final int id,
+                               final String encoding,
+                               final VerifyingChannel channel
+    ) {
+        final Headers headers = response.getHeaders();
+        final String version = headers.get("X-Version");
+        if (version == null || !encoding.equals(headers.get("Content-Encoding"))) {
+            error("Wrong variant for " + id + " " + encoding + ": " + headers.get("Content-Encoding") + " " + version);
+            return;
+        }
+        final byte[] expected = response(id, Integer.parseInt(version), encoding);
+        try {
+            channel.reset();
+            final long written = response.writeTo(channel);
+            if (written != expected.length || !channel.matches(expected)) {
+                error("Sent bytes differ from version " + version + " of " + id);
+            }
+        } catch (Exception e) {
+            error("writeTo failed: " + e);
+        }
+        try {
+            headers.add("X-Mutated", "1");
+            error("Cached headers are writable");
+        } catch (UnsupportedOperationException e) {
+            /** Так и должно быть*/
+        }
+    }
+
+    /**
+     * Вставляет новые версии ключей, в том числе уже лежащих в кэше
+     */
+    private static void write(final CacheManager cm) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        int version = 1;
+        while (running.get()) {
+            final int id = random.nextInt(KEYS);
+            try {
+                put(cm, id, version++, ENCODINGS[random.nextInt(ENCODINGS.length)]);
+                writes.incrementAndGet();
+            } catch (Exception e) {
+                error("put failed: " + e);
+            }
+        }
+    }
+
+    private static void purge(final CacheManager cm) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running.get()) {
+            if (random.nextInt(100) == 0) {
+                cm.purgePrefix(PREFIX + random.nextInt(10));
+            } else {
+                cm.purge(PREFIX + random.nextInt(KEYS));
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Время от времени ужимает кэш вдвое и возвращает размер: вытеснение пачками
+     */
+    private static void shrink(final CacheManager cm) {
+        while (running.get()) {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            }
+            cm.setMaxSize(cm.usage()[0] / 2);
+            cm.setMaxSize(Long.MAX_VALUE);
+        }
+    }
+
+    private static void put(final CacheManager cm, final int id, final int version, final String encoding)
+            throws Exception {
+        final Request request = request(id, encoding);
+        final Response response = new Response(request);
+        response.read(new ByteArrayInputStream(response(id, version, encoding)));
+        cm.put(request, new CachedResponse(response));
+        /** Буфер уходит обратно в пул, и его перезапишут следующие ответы*/
+        response.release();
+    }
+
+    private static Request request(final int id, final String encoding) throws Exception {
+        final Headers headers = new Headers();
+        headers.add("Host", "origin.example.com");
+        headers.add("Accept-Encoding", encoding);
+        return Request.create("GET", PREFIX + id, headers, null, 0);
+    }
+
+    /**
+     * Ответ версии version: длина и содержимое тела зависят от ключа и версии
+     */
+    private static byte[] response(final int id, final int version, final String encoding) {
+        final String line = id + ":" + version + ":" + encoding + "\n";
+        final StringBuilder body = new StringBuilder();
+        final int repeats = 1 + (id * 7 + version) % 64;
+        for (int i = 0; i < repeats; i++) body.append(line);
+        final String head = "HTTP/1.1 200 OK\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "Content-Encoding: " + encoding + "\r\n" +
+                "Content-Length: " + body.length() + "\r\n" +
+                "Cache-Control: max-age=3600\r\n" +
+                "Vary: Accept-Encoding\r\n" +
+                "X-Version: " + version + "\r\n" +
+                "\r\n";
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(head.getBytes(StandardCharsets.ISO_8859_1));
+        out.writeBytes(body.toString().getBytes(StandardCharsets.ISO_8859_1));
+        return out.toByteArray();
+    }
+
+    private static void error(final String message) {
+        if (errors.incrementAndGet() <= MAX_REPORTED) System.err.println(message);
+    }
+
+    /**
+     * Канал, который собирает записанные байты, как сокет клиента. Пишет не больше
+     * 1000 байт за вызов, чтобы ответы уходили несколькими записями
+     */
+    private static final class VerifyingChannel implements GatheringByteChannel {
+
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+        void reset() {
+            written.reset();
+        }
+
+        boolean matches(final byte[] expected) {
+            return Arrays.equals(written.toByteArray(), expected);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long total = 0;
+            for (int i = offset; i < offset + length && total < 1000; i++) {
+                total += write(srcs[i], (int) (1000 - total));
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return write(src, 1000);
+        }
+
+        private int write(final ByteBuffer src, final int max) {
+            final int n = Math.min(src.remaining(), max);
+            for (int i = 0; i < n; i++) written.write(src.get());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class SilentLogger implements Logger {
+        @Override
+        public void log(Level level, Socket socket, String method, String url, boolean isRequest, String message) {
+        }
+
+        @Override
+        public void log(Level level, Socket socket, String message) {
+        }
+
+        @Override
+        public void log(Level level, String message) {
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package http.proxy.bench;
+
+import http.proxy.cache.CacheManager;
+import http.proxy.cache.CachedResponse;
+import http.proxy.logger.Logger;
+import http.proxy.utils.Headers;
+import http.proxy.utils.ObjectSizes;
+import http.proxy.utils.Request;
+import http.proxy.utils.Response;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Сверка оценки памяти кэша (Weigher) с кучей.
+ * <p>
+ * Для каждого профиля ответов в пустой CacheManager кладется count записей, и прирост кучи
+ * после сборки мусора сравнивается с тем, что кэш считает занятым (usage). Расхождение больше
+ * TOLERANCE процентов - ошибка, процесс завершается с кодом 1. Запуск: gradle cacheWeightCalibration
+ * или java -Xmx1g -cp build/classes/java/main:build/classes/java/bench http.proxy.bench.CacheWeightCalibration
+ */
+public final class CacheWeightCalibration {
+
+    private static final int TOLERANCE = 15;
+    /**
+     * Сколько байт тел кладется в кэш для профиля, чтобы погрешность измерения кучи была мала
+     */
+    private static final long PAYLOAD = 64L << 20;
+    private static final int MAX_ENTRIES = 50_000;
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("Compressed oops: " + ObjectSizes.COMPRESSED_OOPS + ", max heap " +
+                (Runtime.getRuntime().maxMemory() >> 20) + " MB");
+        boolean failed = false;
+        failed |= !calibrate("no body (HEAD, redirect)", 301, 0, false, false);
+        failed |= !calibrate("200 B body", 200, 200, false, false);
+        failed |= !calibrate("200 B body, Vary", 200, 200, true, false);
+        failed |= !calibrate("4 KB body", 200, 4 << 10, false, false);
+        failed |= !calibrate("64 KB body", 200, 64 << 10, false, false);
+        failed |= !calibrate("4 KB shared body", 200, 4 << 10, false, true);
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * @param shared у всех ответов одно тело (хранится один раз)
+     * @return уложилась ли оценка в TOLERANCE
+     */
+    private static boolean calibrate(final String name,
+                                     final int code,
+                                     final int bodyLength,
+                                     final boolean vary,
+                                     final boolean shared
+    ) throws Exception {
+        final int count = (int) Math.min(MAX_ENTRIES, PAYLOAD / Math.max(bodyLength, 1));
+        /** Первый проход прогревает BufferPool и классы, чтобы они не попали в измерение*/
+        fill(code, bodyLength, vary, shared, Math.min(count, 100));
+        final long before = usedHeap();
+        final CacheManager cm = fill(code, bodyLength, vary, shared, count);
+        final long after = usedHeap();
+        final long estimated = cm.usage()[0];
+        final long measured = after - before;
+        final double error = 100.0 * (estimated - measured) / measured;
+        final boolean ok = Math.abs(error) <= TOLERANCE;
+        System.out.println(String.format("%-26s %6d entries: estimated %8.1f MB, measured %8.1f MB, %+5.1f%% %s",
+                name, cm.usage()[1], estimated / 1048576.0, measured / 1048576.0, error, ok ? "ok" : "FAIL"));
+        /** cm должен дожить до измерения*/
+        if (cm.usage()[1] != count) throw new IllegalStateException("Not all entries were cached");
+        return ok;
+    }
+
+    private static CacheManager fill(final int code,
+                                     final int bodyLength,
+                                     final boolean vary,
+                                     final boolean shared,
+                                     final int count
+    ) throws Exception {
+        final CacheManager cm = new CacheManager(Long.MAX_VALUE, 3600);
+        cm.registerLogger(new SilentLogger());
+        for (int i = 0; i < count; i++) {
+            final String url = "http://origin.example.com/static/bundle-" + i + ".js?v=" + (i * 31);
+            final Headers requestHeaders = new Headers();
+            requestHeaders.add("Host", "origin.example.com");
+            requestHeaders.add("Accept-Encoding", "gzip, deflate, br");
+            final Request request = Request.create("GET", url, requestHeaders, null, 0);
+            final Response response = new Response(request);
+            response.read(new ByteArrayInputStream(response(code, bodyLength, vary, shared ? 0 : i)));
+            cm.put(request, new CachedResponse(response));
+            response.release();
+        }
+        return cm;
+    }
+
+    private static byte[] response(final int code, final int bodyLength, final boolean vary, final int seed) {
+        final byte[] body = new byte[bodyLength];
+        Arrays.fill(body, (byte) 'a');
+        for (int i = 0; i + 4 <= bodyLength; i += 64) {
+            body[i] = (byte) seed;
+            body[i + 1] = (byte) (seed >>> 8);
+            body[i + 2] = (byte) (seed >>> 16);
+        }
+        final StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(code).append(code == 301 ? " Moved Permanently" : " OK").append("\r\n");
+        head.append("Server: nginx/1.24.0\r\n");
+        head.append("Date: Mon, 19 Oct 2026 12:00:00 GMT\r\n");
+        head.append("Content-Type: application/javascript; charset=utf-8\r\n");
+        head.append("Content-Length: ").append(bodyLength).append("\r\n");
+        head.append("Cache-Control: public, max-age=3600\r\n");
+        head.append("ETag: \"").append(Integer.toHexString(seed * 0x9E3779B9)).append("-5f3a\"\r\n");
+        head.append("Last-Modified: Sun, 18 Oct 2026 09:30:00 GMT\r\n");
+        head.append("X-Request-Id: 4f6c2a9e-").append(seed).append("-8c1d\r\n");
+        if (code == 301) head.append("Location: https://origin.example.com/moved/").append(seed).append("\r\n");
+        if (vary) head.append("Vary: Accept-Encoding\r\n");
+        head.append("\r\n");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (code != 301) out.writeBytes(body);
+        return out.toByteArray();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return MEMORY.getHeapMemoryUsage().getUsed();
+    }
+
+    private static final class SilentLogger implements Logger {
+        @Override
+        public void log(Level level, Socket socket, String method, String url, boolean isRequest, String message) {
+        }
+
+        @Override
+        public void log(Level level, Socket socket, String message) {
+        }
+
+        @Override
+        public void log(Level level, String message) {
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package http.proxy.bench;
+
+import http.proxy.utils.Headers;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static http.proxy.constants.Constants.*;
+
+/**
+ * Скорость Headers против прежней реализации на двух списках с линейным поиском (ListHeaders).
+ * <p>
+ * Три операции на типичном ответе из HEADERS заголовков: сборка через add, поиск заголовков,
+ * которые HttpReader и кэш спрашивают у каждого сообщения (в том числе отсутствующих), и
+ * сериализация в байты: writeTo(ByteBuffer) против toString().getBytes(). Строка message - все
+ * три подряд, как их проходит каждый ответ: индекс дороже при сборке и окупается на поиске
+ * и сериализации. Каждая операция измеряется ROUNDS раз по OPERATIONS вызовов после прогрева,
+ * печатается медиана в нс на вызов.
+ * JMH в сборке нет, поэтому замер простой: результаты складываются в sink, чтобы JIT не выбросил
+ * работу. Запуск: gradle headersBenchmark или
+ * java -cp build/classes/java/main:build/classes/java/bench http.proxy.bench.HeadersBenchmark
+ */
+public final class HeadersBenchmark {
+
+    private static final String[][] HEADERS = {
+            {"Date", "Mon, 19 Oct 2026 17:20:01 GMT"},
+            {"Server", "nginx/1.25.3"},
+            {"Content-Type", "text/html; charset=utf-8"},
+            {"Content-Length", "48213"},
+            {"Connection", "keep-alive"},
+            {"Cache-Control", "public, max-age=600"},
+            {"ETag", "\"5f1c-48213-1a2b3c\""},
+            {"Last-Modified", "Sun, 18 Oct 2026 09:12:44 GMT"},
+            {"Vary", "Accept-Encoding"},
+            {"Content-Encoding", "gzip"},
+            {"Set-Cookie", "session=abc123; Path=/; HttpOnly"},
+            {"Set-Cookie", "theme=dark; Path=/"},
+            {"X-Frame-Options", "SAMEORIGIN"},
+            {"Accept-Ranges", "bytes"},
+    };
+    /**
+     * Заголовки, которые разбор и кэш запрашивают у каждого ответа, последние два отсутствуют
+     */
+    private static final String[] LOOKUPS = {
+            "content-length", "transfer-encoding", "connection", "cache-control", "vary",
+            "content-encoding", "etag", "expires", "age"
+    };
+    private static final int OPERATIONS = 200_000;
+    private static final int WARMUP_ROUNDS = 10;
+    private static final int ROUNDS = 15;
+
+    private static long sink;
+
+    public static void main(String[] args) {
+        final Headers headers = buildHeaders();
+        final ListHeaders list = buildList();
+        final ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+        report("add x" + HEADERS.length,
+                measure(() -> buildList().size()),
+                measure(() -> buildHeaders().size()));
+        report("get x" + LOOKUPS.length,
+                measure(() -> {
+                    int found = 0;
+                    for (String name : LOOKUPS) if (list.get(name) != null) found++;
+                    return found;
+                }),
+                measure(() -> {
+                    int found = 0;
+                    for (String name : LOOKUPS) if (headers.get(name) != null) found++;
+                    return found;
+                }));
+        report("serialize",
+                measure(() -> list.toString().getBytes(StandardCharsets.ISO_8859_1).length),
+                measure(() -> {
+                    buffer.clear();
+                    headers.writeTo(buffer);
+                    return buffer.position();
+                }));
+        report("message",
+                measure(() -> {
+                    final ListHeaders message = buildList();
+                    int found = 0;
+                    for (String name : LOOKUPS) if (message.get(name) != null) found++;
+                    return found + message.toString().getBytes(StandardCharsets.ISO_8859_1).length;
+                }),
+                measure(() -> {
+                    final Headers message = buildHeaders();
+                    int found = 0;
+                    for (String name : LOOKUPS) if (message.get(name) != null) found++;
+                    buffer.clear();
+                    message.writeTo(buffer);
+                    return found + buffer.position();
+                }));
+        if (sink == 42) System.out.println();
+    }
+
+    private static Headers buildHeaders() {
+        final Headers headers = new Headers();
+        for (String[] header : HEADERS) headers.add(header[0], header[1]);
+        return headers;
+    }
+
+    private static ListHeaders buildList() {
+        final ListHeaders headers = new ListHeaders();
+        for (String[] header : HEADERS) headers.add(header[0], header[1]);
+        return headers;
+    }
+
+    private static void report(final String name, final double list, final double indexed) {
+        System.out.println(String.format("%-12s list %7.1f ns, indexed %7.1f ns, x%.1f",
+                name, list, indexed, list / indexed));
+    }
+
+    /**
+     * @return медиана по раундам, нс на вызов
+     */
+    private static double measure(final Operation operation) {
+        final double[] results = new double[ROUNDS];
+        for (int round = -WARMUP_ROUNDS; round < ROUNDS; round++) {
+            final long started = System.nanoTime();
+            long acc = 0;
+            for (int i = 0; i < OPERATIONS; i++) acc += operation.run();
+            final long elapsed = System.nanoTime() - started;
+            sink += acc;
+            if (round >= 0) results[round] = (double) elapsed / OPERATIONS;
+        }
+        Arrays.sort(results);
+        return results[ROUNDS / 2];
+    }
+
+    private interface Operation {
+        int run();
+    }
+
+    /**
+     * Заголовки до индексации: два списка и линейный поиск equalsIgnoreCase
+     */
+    private static final class ListHeaders {
+
+        private final List<String> names = new ArrayList<>();
+        private final List<String> values = new ArrayList<>();
+
+        void add(String name, String value) {
+            names.add(name);
+            values.add(value);
+        }
+
+        String get(String name) {
+            for (int i = 0; i < names.size(); i++) {
+                if (names.get(i).equalsIgnoreCase(name)) return values.get(i);
+            }
+            return null;
+        }
+
+        int size() {
+            return names.size();
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < names.size(); i++) {
+                builder.append(names.get(i))
+                        .append(HEADER_DELIM + SPACE)
+                        .append(values.get(i))
+                        .append(CRLF);
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package http.proxy.bench;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Задержка попаданий в кэш без нагрузки и под потоком промахов.
+ * <p>
+ * Сервер запускается в отдельной JVM с настройками из props.cfg (порты и файлы заменены),
+ * сервером для запросов служит HttpServer внутри бенчмарка: /hit/N - быстрые ответы, которые
+ * попадают в кэш, /slow/N - ответы через SLOW_MILLIS, каждый адрес уникален, поэтому каждый
+ * запрос - промах. Сначала hitClients клиентов измеряют попадания одни, потом то же самое,
+ * пока missClients клиентов без перерыва шлют промахи. Печатаются процентили задержки
+ * попаданий в обеих фазах, промахи и отказы 503 и статистика полос из /stats.
+ * <p>
+ * Промахи идут по HTTP/1.1, попадания - по HTTP/1.1 (h1, новое соединение на запрос) или по
+ * HTTP/2 (h2, одно соединение prior knowledge на клиента), чтобы проверить оба пути ответа из кэша.
+ * <pre>
+ * LaneLatencyBenchmark props.cfg [секунд на фазу] [hitClients] [missClients] [h1|h2] [classpath сервера]
+ * </pre>
+ * Без classpath сервер запускается с classpath бенчмарка. Запуск: gradle laneLatencyBenchmark
+ */
+public final class LaneLatencyBenchmark {
+
+    private static final long SLOW_MILLIS = 200;
+    private static final int HIT_URLS = 16;
+    private static final byte[] BODY = "lane benchmark body\n".getBytes(StandardCharsets.US_ASCII);
+    private static final long START_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: LaneLatencyBenchmark <props.cfg> [seconds] [hitClients] [missClients] [h1|h2] [classpath]");
+            System.exit(2);
+        }
+        final File props = new File(args[0]);
+        final int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+        final int hitClients = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+        final int missClients = (args.length > 3) ? Integer.parseInt(args[3]) : 200;
+        final boolean http2 = (args.length > 4) && "h2".equals(args[4]);
+        final String classpath = (args.length > 5) ? args[5] : System.getProperty("java.class.path");
+
+        final HttpServer origin = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        final ExecutorService originThreads = Executors.newCachedThreadPool();
+        origin.setExecutor(originThreads);
+        origin.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            if (exchange.getRequestURI().getPath().startsWith("/slow/")) {
+                try {
+                    Thread.sleep(SLOW_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=600");
+            exchange.getResponseHeaders().add("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(200, BODY.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(BODY);
+            }
+        });
+        origin.start();
+        final Server server = new Server(props, classpath, origin.getAddress().getPort());
+        try {
+            server.awaitStart();
+            for (int i = 0; i < HIT_URLS; i++) {
+                if (server.get("/hit/" + i) != 200) throw new IOException("Warm-up request failed");
+            }
+            /** Первый прогон - прогрев JIT, его результаты не печатаются*/
+            measureHits(server, hitClients, Math.min(seconds, 3), http2);
+            server.admin("/stats");
+            final String protocol = http2 ? "h2" : "h1";
+            report(protocol + " hits alone", measureHits(server, hitClients, seconds, http2), null);
+            final AtomicBoolean running = new AtomicBoolean(true);
+            final AtomicLong misses = new AtomicLong();
+            final AtomicLong rejected = new AtomicLong();
+            final AtomicLong counter = new AtomicLong();
+            final List<Thread> missThreads = new ArrayList<>();
+            for (int i = 0; i < missClients; i++) {
+                final Thread thread = new Thread(() -> {
+                    while (running.get()) {
+                        try {
+                            final int status = server.get("/slow/" + counter.incrementAndGet());
+                            if (status == 503) rejected.incrementAndGet();
+                            else misses.incrementAndGet();
+                        } catch (IOException e) {
+                            rejected.incrementAndGet();
+                        }
+                    }
+                }, "miss-client-" + i);
+                thread.setDaemon(true);
+                missThreads.add(thread);
+                thread.start();
+            }
+            /** Даем промахам заполнить очереди*/
+            Thread.sleep(1000);
+            final long[] loaded = measureHits(server, hitClients, seconds, http2);
+            final String stats = server.admin("/stats");
+            running.set(false);
+            for (Thread thread : missThreads) thread.join(TimeUnit.SECONDS.toMillis(5));
+            report(protocol + " hits under " + missClients + " miss clients", loaded,
+                    misses.get() + " misses served, " + rejected.get() + " rejected or failed");
+            for (String line : stats.split("\n")) {
+                if (line.contains("_lane_") || line.startsWith("worker_wait") || line.startsWith("upstream_wait")
+                        || line.startsWith("upstream_threads:")) {
+                    System.out.println("  " + line);
+                }
+            }
+        } finally {
+            server.stop();
+            origin.stop(0);
+            originThreads.shutdownNow();
+        }
+    }
+
+    /**
+     * @return задержки попаданий в микросекундах, отсортированные
+     */
+    private static long[] measureHits(final Server server,
+                                      final int clients,
+                                      final int seconds,
+                                      final boolean http2
+    ) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final long[][] samples = new long[clients][];
+        final Thread[] threads = new Thread[clients];
+        final AtomicLong failures = new AtomicLong();
+        for (int c = 0; c < clients; c++) {
+            final int client = c;
+            threads[c] = new Thread(() -> {
+                long[] micros = new long[1024];
+                int count = 0;
+                int i = client;
+                Http2Client h2 = null;
+                while (System.nanoTime() < deadline) {
+                    final long started = System.nanoTime();
+                    final String path = "/hit/" + (i++ % HIT_URLS);
+                    try {
+                        if (http2 && h2 == null) h2 = server.http2();
+                        final int status = http2 ? h2.get(path) : server.get(path);
+                        if (status != 200) failures.incrementAndGet();
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                        if (h2 != null) h2.close();
+                        h2 = null;
+                        continue;
+                    }
+                    if (count == micros.length) micros = Arrays.copyOf(micros, count * 2);
+                    micros[count++] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started);
+                }
+                if (h2 != null) h2.close();
+                samples[client] = Arrays.copyOf(micros, count);
+            }, "hit-client-" + c);
+            threads[c].start();
+        }
+        int total = 0;
+        for (int c = 0; c < clients; c++) {
+            threads[c].join();
+            total += samples[c].length;
+        }
+        final long[] all = new long[total];
+        int offset = 0;
+        for (long[] micros : samples) {
+            System.arraycopy(micros, 0, all, offset, micros.length);
+            offset += micros.length;
+        }
+        if (failures.get() > 0) System.out.println("  " + failures.get() + " hit requests failed");
+        Arrays.sort(all);
+        return all;
+    }
+
+    private static void report(final String name, final long[] micros, final String extra) {
+        if (micros.length == 0) {
+            System.out.println(name + ": no samples");
+            return;
+        }
+        System.out.println(String.format("%-32s %7d hits: p50 %6d us, p90 %6d us, p99 %6d us, max %7d us%s",
+                name, micros.length, at(micros, 50), at(micros, 90), at(micros, 99), micros[micros.length - 1],
+                (extra != null) ? "; " + extra : ""));
+    }
+
+    private static long at(final long[] sorted, final int percent) {
+        return sorted[(int) Math.min(sorted.length - 1, (long) sorted.length * percent / 100)];
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Сервер в отдельной JVM с портами, логом и журналом доступа во временном каталоге
+     */
+    private static final class Server {
+
+        private final File dir;
+        private final Process process;
+        private final int port;
+        private final int adminPort;
+        private final int originPort;
+
+        Server(final File props, final String classpath, final int originPort) throws IOException {
+            this.originPort = originPort;
+            this.dir = Files.createTempDirectory("lane-bench").toFile();
+            final Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(props)) {
+                properties.load(in);
+            }
+            port = freePort();
+            adminPort = freePort();
+            properties.setProperty("port", String.valueOf(port));
+            properties.setProperty("admin_port", String.valueOf(adminPort));
+            properties.setProperty("log_file", new File(dir, "proxy.log").getPath());
+            properties.remove("access_log_file");
+            properties.setProperty("peers", "");
+            properties.setProperty("lazy_init", "false");
+            properties.setProperty("cache_size", String.valueOf(64L << 20));
+            properties.setProperty("lifetime", "600");
+            properties.remove("warmup_urls");
+            final File config = new File(dir, "props.cfg");
+            try (OutputStream out = new FileOutputStream(config)) {
+                properties.store(out, null);
+            }
+            final List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.add("-cp");
+            command.add(classpath);
+            command.add("http.proxy.ServerRunner");
+            command.add(config.getPath());
+            process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File(dir, "stdout.log"))
+                    .start();
+        }
+
+        void awaitStart() throws Exception {
+            final long started = System.nanoTime();
+            while (System.nanoTime() - started < START_TIMEOUT) {
+                if (!process.isAlive()) throw new IOException("Server exited, see " + new File(dir, "stdout.log"));
+                try {
+                    admin("/stats");
+                    return;
+                } catch (IOException e) {
+                    /** Еще не слушает*/
+                }
+                Thread.sleep(10);
+            }
+            throw new IOException("Server did not start in " + TimeUnit.NANOSECONDS.toSeconds(START_TIMEOUT) + " s");
+        }
+
+        int get(final String path) throws IOException {
+            final String url = "http://127.0.0.1:" + originPort + path;
+            final byte[] response = exchange(port, "GET " + url + " HTTP/1.1\r\nHost: 127.0.0.1:" + originPort + "\r\n");
+            final String status = new String(response, 0, Math.min(response.length, 12), StandardCharsets.US_ASCII);
+            if (!status.startsWith("HTTP/1.")) throw new IOException("Bad response " + status);
+            return Integer.parseInt(status.substring(9, 12));
+        }
+
+        Http2Client http2() throws IOException {
+            return new Http2Client(port, "127.0.0.1:" + originPort);
+        }
+
+        String admin(final String path) throws IOException {
+            return new String(exchange(adminPort, "GET " + path + " HTTP/1.1\r\nHost: 127.0.0.1\r\n"),
+                    StandardCharsets.ISO_8859_1);
+        }
+
+        private static byte[] exchange(final int port, final String head) throws IOException {
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                socket.setSoTimeout(30_000);
+                socket.setTcpNoDelay(true);
+                final OutputStream out = socket.getOutputStream();
+                out.write((head + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                return socket.getInputStream().readAllBytes();
+            }
+        }
+
+        void stop() throws InterruptedException, IOException {
+            process.destroy();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) process.destroyForcibly().waitFor();
+            final File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) Files.deleteIfExists(file.toPath());
+            }
+            Files.deleteIfExists(dir.toPath());
+        }
+    }
+
+    /**
+     * Минимальный клиент HTTP/2 с prior knowledge: один запрос за раз, заголовки литералами
+     * без индексации и без Huffman, окно соединения пополняется после каждого DATA
+     */
+    private static final class Http2Client {
+
+        private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        private static final int DATA = 0x0, HEADERS = 0x1, RST_STREAM = 0x3, SETTINGS = 0x4, PING = 0x6,
+                GOAWAY = 0x7, WINDOW_UPDATE = 0x8;
+        private static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4;
+
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final String authority;
+        private int nextStream = 1;
+
+        Http2Client(final int port, final String authority) throws IOException {
+            this.authority = authority;
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(30_000);
+            socket.setTcpNoDelay(true);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+            out.write(PREFACE);
+            frame(SETTINGS, 0, 0, new byte[0]);
+            out.flush();
+        }
+
+        int get(final String path) throws IOException {
+            final int stream = nextStream;
+            nextStream += 2;
+            final ByteArrayOutputStream block = new ByteArrayOutputStream();
+            /** :method GET, :scheme http из статической таблицы*/
+            block.write(0x82);
+            block.write(0x86);
+            literal(block, ":path", path);
+            literal(block, ":authority", authority);
+            frame(HEADERS, END_STREAM | END_HEADERS, stream, block.toByteArray());
+            out.flush();
+            int status = 0;
+            final byte[] header = new byte[9];
+            while (true) {
+                readFully(header);
+                final int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+                final int type = header[3] & 0xff;
+                final int flags = header[4] & 0xff;
+                final int id = (((header[5] & 0x7f) << 24) | ((header[6] & 0xff) << 16)
+                        | ((header[7] & 0xff) << 8) | (header[8] & 0xff));
+                final byte[] payload = new byte[length];
+                readFully(payload);
+                if (type == SETTINGS && (flags & ACK) == 0) {
+                    frame(SETTINGS, ACK, 0, new byte[0]);
+                    out.flush();
+                } else if (type == PING && (flags & ACK) == 0) {
+                    frame(PING, ACK, 0, payload);
+                    out.flush();
+                } else if (type == GOAWAY || (type == RST_STREAM && id == stream)) {
+                    throw new IOException("Stream " + stream + " reset, frame type " + type);
+                } else if (id == stream && type == HEADERS) {
+                    status = status(payload);
+                    if ((flags & END_STREAM) != 0) return status;
+                } else if (id == stream && type == DATA) {
+                    if (length > 0) {
+                        frame(WINDOW_UPDATE, 0, 0, increment(length));
+                        out.flush();
+                    }
+                    if ((flags & END_STREAM) != 0) return status;
+                }
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                /** Соединение уже закрыто*/
+            }
+        }
+
+        /**
+         * :status - первое поле блока: индекс статической таблицы (200 - 0x88)
+         * или литерал с именем по индексу 8
+         */
+        private static int status(final byte[] block) throws IOException {
+            if (block.length > 0 && (block[0] & 0xff) == 0x88) return 200;
+            if (block.length >= 5 && (block[0] & 0xff) == 0x08 && block[1] == 3) {
+                return Integer.parseInt(new String(block, 2, 3, StandardCharsets.US_ASCII));
+            }
+            throw new IOException("Unexpected :status encoding");
+        }
+
+        private static byte[] increment(final int length) {
+            return new byte[]{(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length};
+        }
+
+        private static void literal(final ByteArrayOutputStream block, final String name, final String value) {
+            block.write(0x00);
+            block.write(name.length());
+            block.writeBytes(name.getBytes(StandardCharsets.US_ASCII));
+            block.write(value.length());
+            block.writeBytes(value.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        private void frame(final int type, final int flags, final int stream, final byte[] payload) throws IOException {
+            final int length = payload.length;
+            out.write(new byte[]{(byte) (length >>> 16), (byte) (length >>> 8), (byte) length, (byte) type,
+                    (byte) flags, (byte) (stream >>> 24), (byte) (stream >>> 16), (byte) (stream >>> 8), (byte) stream});
+            out.write(payload);
+        }
+
+        private void readFully(final byte[] buffer) throws IOException {
+            int read = 0;
+            while (read < buffer.length) {
+                final int n = in.read(buffer, read, buffer.length - read);
+                if (n < 0) throw new IOException("Connection closed");
+                read += n;
+            }
+        }
+    }
+}
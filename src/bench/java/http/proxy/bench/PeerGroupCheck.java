@@ -0,0 +1,278 @@
+package http.proxy.bench;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Проверка группы узлов с общим кэшем на localhost.
+ * <p>
+ * Поднимает NODES экземпляров в отдельных JVM с одним списком peers (свои порты, peer_self и
+ * временный каталог у каждого) и сервер для запросов внутри проверки, который считает запросы
+ * по адресам. Проверяется:
+ * <ol>
+ * <li>URLS адресов запрашиваются через разные узлы, затем каждый - через все остальные узлы:
+ * сервер видит каждый адрес ровно один раз, все ответы совпадают с его телом;</li>
+ * <li>сумма cache_entries по узлам равна URLS: ответ хранит только владелец, емкость складывается;</li>
+ * <li>один узел останавливается, и новые адреса через оставшиеся узлы по-прежнему отвечают 200
+ * (по ключам остановленного владельца - напрямую с сервера), быстрее peer_timeout.</li>
+ * </ol>
+ * Любое расхождение - ошибка, процесс завершается с кодом 1.
+ * <pre>
+ * PeerGroupCheck props.cfg [classpath сервера]
+ * </pre>
+ * Запуск: gradle peerGroupCheck
+ */
+public final class PeerGroupCheck {
+
+    private static final int NODES = 3;
+    private static final int URLS = 60;
+    private static final int PEER_TIMEOUT = 5000;
+    private static final long START_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+    private static final Map<String, AtomicInteger> originRequests = new ConcurrentHashMap<>();
+    private static int errors;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: PeerGroupCheck <props.cfg> [classpath]");
+            System.exit(2);
+        }
+        final File props = new File(args[0]);
+        final String classpath = (args.length > 1) ? args[1] : System.getProperty("java.class.path");
+
+        final HttpServer origin = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 256);
+        final ExecutorService originThreads = Executors.newCachedThreadPool();
+        origin.setExecutor(originThreads);
+        origin.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            final String path = exchange.getRequestURI().getPath();
+            originRequests.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+            final byte[] body = body(path);
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=600");
+            exchange.getResponseHeaders().add("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        origin.start();
+        final int originPort = origin.getAddress().getPort();
+
+        final int[] peerPorts = new int[NODES];
+        final StringBuilder peers = new StringBuilder();
+        for (int i = 0; i < NODES; i++) {
+            peerPorts[i] = freePort();
+            if (i > 0) peers.append(',');
+            peers.append("127.0.0.1:").append(peerPorts[i]);
+        }
+        final List<Node> nodes = new ArrayList<>();
+        try {
+            for (int i = 0; i < NODES; i++) {
+                nodes.add(new Node(props, classpath, peers.toString(), "127.0.0.1:" + peerPorts[i]));
+            }
+            for (Node node : nodes) node.awaitStart();
+
+            /** 1. Каждый адрес через один узел, потом через все остальные*/
+            for (int u = 0; u < URLS; u++) {
+                check(nodes.get(u % NODES), originPort, "/object/" + u);
+            }
+            for (int u = 0; u < URLS; u++) {
+                for (int n = 1; n < NODES; n++) {
+                    check(nodes.get((u + n) % NODES), originPort, "/object/" + u);
+                }
+            }
+            int fetchedTwice = 0;
+            for (int u = 0; u < URLS; u++) {
+                final AtomicInteger count = originRequests.get("/object/" + u);
+                if (count == null || count.get() != 1) fetchedTwice++;
+            }
+            if (fetchedTwice > 0) error(fetchedTwice + " of " + URLS + " objects reached the origin more than once");
+            System.out.println(String.format("%d objects through %d nodes: %d origin requests (expected %d)",
+                    URLS, NODES, total(), URLS));
+
+            /** 2. Ответ хранится только у владельца*/
+            long entries = 0;
+            for (Node node : nodes) {
+                final long nodeEntries = node.stat("cache_entries");
+                System.out.println("  " + node.self + " cache_entries: " + nodeEntries);
+                entries += nodeEntries;
+            }
+            if (entries != URLS) error("Nodes hold " + entries + " entries in total, expected " + URLS);
+
+            /** 3. Один узел остановлен, оставшиеся отвечают*/
+            final Node stopped = nodes.remove(NODES - 1);
+            stopped.stop();
+            final int before = total();
+            final long started = System.nanoTime();
+            long slowest = 0;
+            for (int u = 0; u < URLS; u++) {
+                final long requestStarted = System.nanoTime();
+                check(nodes.get(u % nodes.size()), originPort, "/after-stop/" + u);
+                slowest = Math.max(slowest, System.nanoTime() - requestStarted);
+            }
+            final long slowestMillis = TimeUnit.NANOSECONDS.toMillis(slowest);
+            System.out.println(String.format("%s stopped: %d objects through %d nodes in %d ms, slowest %d ms, " +
+                            "%d origin requests", stopped.self, URLS, nodes.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), slowestMillis, total() - before));
+            if (slowestMillis >= PEER_TIMEOUT) error("A request waited for the stopped owner: " + slowestMillis + " ms");
+        } finally {
+            for (Node node : nodes) node.stop();
+            origin.stop(0);
+            originThreads.shutdownNow();
+        }
+        System.out.println(errors == 0 ? "OK" : errors + " errors");
+        System.exit(errors == 0 ? 0 : 1);
+    }
+
+    private static void check(final Node node, final int originPort, final String path) {
+        try {
+            final String response = node.get(originPort, path);
+            if (!response.startsWith("HTTP/1.1 200")) {
+                error(path + " via " + node.self + ": " + response.substring(0, response.indexOf('\r')));
+            } else if (!response.endsWith(new String(body(path), StandardCharsets.ISO_8859_1))) {
+                error(path + " via " + node.self + ": wrong body");
+            }
+        } catch (IOException e) {
+            error(path + " via " + node.self + ": " + e);
+        }
+    }
+
+    private static byte[] body(final String path) {
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 50; i++) body.append(path).append(' ').append(i).append('\n');
+        return body.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static int total() {
+        int total = 0;
+        for (AtomicInteger count : originRequests.values()) total += count.get();
+        return total;
+    }
+
+    private static void error(final String message) {
+        errors++;
+        System.err.println(message);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Узел группы в отдельной JVM с портами, логом и настройками во временном каталоге
+     */
+    private static final class Node {
+
+        private final File dir;
+        private final Process process;
+        private final String self;
+        private final int port;
+        private final int adminPort;
+
+        Node(final File props, final String classpath, final String peers, final String self) throws IOException {
+            this.self = self;
+            this.dir = Files.createTempDirectory("peer-check").toFile();
+            final Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(props)) {
+                properties.load(in);
+            }
+            port = freePort();
+            adminPort = freePort();
+            properties.setProperty("port", String.valueOf(port));
+            properties.setProperty("admin_port", String.valueOf(adminPort));
+            properties.setProperty("log_file", new File(dir, "proxy.log").getPath());
+            properties.setProperty("peers", peers);
+            properties.setProperty("peer_self", self);
+            properties.setProperty("peer_timeout", String.valueOf(PEER_TIMEOUT));
+            properties.setProperty("lazy_init", "false");
+            properties.setProperty("cache_size", String.valueOf(64L << 20));
+            properties.setProperty("lifetime", "600");
+            properties.remove("access_log_file");
+            properties.remove("warmup_urls");
+            final File config = new File(dir, "props.cfg");
+            try (OutputStream out = new FileOutputStream(config)) {
+                properties.store(out, null);
+            }
+            final List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.add("-cp");
+            command.add(classpath);
+            command.add("http.proxy.ServerRunner");
+            command.add(config.getPath());
+            process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File(dir, "stdout.log"))
+                    .start();
+        }
+
+        void awaitStart() throws Exception {
+            final long started = System.nanoTime();
+            while (System.nanoTime() - started < START_TIMEOUT) {
+                if (!process.isAlive()) throw new IOException("Node exited, see " + new File(dir, "stdout.log"));
+                try {
+                    exchange(adminPort, "GET /stats HTTP/1.1\r\nHost: 127.0.0.1\r\n");
+                    return;
+                } catch (IOException e) {
+                    /** Еще не слушает*/
+                }
+                Thread.sleep(10);
+            }
+            throw new IOException("Node did not start in " + TimeUnit.NANOSECONDS.toSeconds(START_TIMEOUT) + " s");
+        }
+
+        String get(final int originPort, final String path) throws IOException {
+            return exchange(port, "GET http://127.0.0.1:" + originPort + path + " HTTP/1.1\r\n" +
+                    "Host: 127.0.0.1:" + originPort + "\r\n");
+        }
+
+        long stat(final String name) throws IOException {
+            final String stats = exchange(adminPort, "GET /stats HTTP/1.1\r\nHost: 127.0.0.1\r\n");
+            for (String line : stats.split("\n")) {
+                if (line.startsWith(name + ":")) return Long.parseLong(line.substring(name.length() + 1).trim());
+            }
+            throw new IOException("No " + name + " in /stats of " + self);
+        }
+
+        private static String exchange(final int port, final String head) throws IOException {
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                socket.setSoTimeout(30_000);
+                final OutputStream out = socket.getOutputStream();
+                out.write((head + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                return new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+            }
+        }
+
+        void stop() throws InterruptedException, IOException {
+            process.destroy();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) process.destroyForcibly().waitFor();
+            final File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) Files.deleteIfExists(file.toPath());
+            }
+            Files.deleteIfExists(dir.toPath());
+        }
+    }
+}
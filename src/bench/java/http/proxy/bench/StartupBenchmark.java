@@ -0,0 +1,243 @@
+package http.proxy.bench;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Время до первого ответа: сервер запускается из jar в отдельной JVM, и от запуска процесса
+ * до первого ответа 200 через прокси проходит столько-то миллисекунд.
+ * <p>
+ * Сервер запускается с настройками из props.cfg, в которых заменены порты и файлы; сервером
+ * для запросов служит HttpServer внутри бенчмарка. Режимы:
+ * <pre>
+ * measure jar props.cfg runs [archive]  - runs запусков без архива и, если он задан, с архивом AppCDS
+ * train jar props.cfg classlist         - обучающий запуск: сервер с -XX:DumpLoadedClassList
+ *                                         обслуживает промах, попадание, HEAD, POST и /stats
+ * </pre>
+ * Архив из списка классов собирает задача cdsArchive в build.gradle.
+ */
+public final class StartupBenchmark {
+
+    private static final long START_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+    private static final byte[] BODY = "startup benchmark\n".getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4 || !("measure".equals(args[0]) || "train".equals(args[0]))) {
+            System.err.println("Usage: StartupBenchmark measure <jar> <props.cfg> <runs> [archive]");
+            System.err.println("       StartupBenchmark train <jar> <props.cfg> <classlist>");
+            System.exit(2);
+        }
+        final File jar = new File(args[1]).getAbsoluteFile();
+        final File props = new File(args[2]);
+        final HttpServer origin = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        origin.createContext("/", exchange -> {
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=600");
+            exchange.getResponseHeaders().add("Content-Type", "text/plain");
+            exchange.getRequestBody().readAllBytes();
+            final boolean head = "HEAD".equals(exchange.getRequestMethod());
+            exchange.sendResponseHeaders(200, head ? -1 : BODY.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                if (!head) out.write(BODY);
+            }
+        });
+        origin.start();
+        try {
+            if ("train".equals(args[0])) {
+                train(jar, props, new File(args[3]).getAbsoluteFile(), origin.getAddress().getPort());
+            } else {
+                final int runs = Integer.parseInt(args[3]);
+                final File archive = (args.length > 4) ? new File(args[4]).getAbsoluteFile() : null;
+                measure(jar, props, runs, archive, origin.getAddress().getPort());
+            }
+        } finally {
+            origin.stop(0);
+        }
+    }
+
+    private static void measure(final File jar,
+                                final File props,
+                                final int runs,
+                                final File archive,
+                                final int originPort
+    ) throws Exception {
+        report("default CDS", run(jar, props, runs, Collections.emptyList(), originPort));
+        if (archive == null) return;
+        if (!archive.isFile()) throw new IOException("No archive " + archive + ", run gradle cdsArchive");
+        /** Xshare:on - если архив не подходит к jar, JVM не запустится, а не отработает молча без него*/
+        report("AppCDS", run(jar, props, runs,
+                Arrays.asList("-XX:SharedArchiveFile=" + archive, "-Xshare:on"), originPort));
+    }
+
+    private static long[] run(final File jar,
+                              final File props,
+                              final int runs,
+                              final List<String> jvmOptions,
+                              final int originPort
+    ) throws Exception {
+        final long[] millis = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            final Instance instance = new Instance(jar, props, jvmOptions, originPort);
+            try {
+                millis[i] = TimeUnit.NANOSECONDS.toMillis(instance.firstResponse());
+            } finally {
+                instance.stop();
+            }
+        }
+        return millis;
+    }
+
+    private static void train(final File jar, final File props, final File classList, final int originPort)
+            throws Exception {
+        final File parent = classList.getParentFile();
+        if (parent != null) Files.createDirectories(parent.toPath());
+        final Instance instance = new Instance(
+                jar, props, Collections.singletonList("-XX:DumpLoadedClassList=" + classList), originPort
+        );
+        try {
+            System.out.println("First response in " + TimeUnit.NANOSECONDS.toMillis(instance.firstResponse()) + " ms");
+            /** Путь, которым проходит обычный трафик: промах и попадание, HEAD, POST, статистика*/
+            for (int i = 0; i < 20; i++) {
+                instance.proxy("GET", "/train/" + (i % 5), null);
+                instance.proxy("HEAD", "/train/" + (i % 5), null);
+                instance.proxy("POST", "/train/post", BODY);
+            }
+            if (instance.adminPort > 0) instance.admin("/stats");
+        } finally {
+            instance.stop();
+        }
+        if (!classList.isFile() || classList.length() == 0) throw new IOException("JVM did not write " + classList);
+        System.out.println("Class list written to " + classList);
+    }
+
+    private static void report(final String name, final long[] millis) {
+        final long[] sorted = millis.clone();
+        Arrays.sort(sorted);
+        long sum = 0;
+        for (long value : sorted) sum += value;
+        System.out.println(String.format("%-12s first response: median %d ms, min %d ms, max %d ms, mean %d ms (%d runs)",
+                name, sorted[sorted.length / 2], sorted[0], sorted[sorted.length - 1], sum / sorted.length, sorted.length));
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Запущенный сервер с отдельными портами, логом и журналом доступа во временном каталоге
+     */
+    private static final class Instance {
+
+        private final File dir;
+        private final Process process;
+        private final long started;
+        private final int port;
+        private final int adminPort;
+        private final int originPort;
+
+        Instance(final File jar, final File props, final List<String> jvmOptions, final int originPort)
+                throws IOException {
+            this.originPort = originPort;
+            this.dir = Files.createTempDirectory("startup-bench").toFile();
+            final Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(props)) {
+                properties.load(in);
+            }
+            port = freePort();
+            adminPort = freePort();
+            properties.setProperty("port", String.valueOf(port));
+            properties.setProperty("admin_port", String.valueOf(adminPort));
+            properties.setProperty("log_file", new File(dir, "proxy.log").getPath());
+            properties.setProperty("access_log_file", new File(dir, "access.bin").getPath());
+            properties.setProperty("access_log_size", String.valueOf(1 << 20));
+            properties.setProperty("peers", "");
+            properties.remove("warmup_urls");
+            final File config = new File(dir, "props.cfg");
+            try (OutputStream out = new FileOutputStream(config)) {
+                properties.store(out, null);
+            }
+            final List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.addAll(jvmOptions);
+            command.add("-jar");
+            command.add(jar.getPath());
+            command.add(config.getPath());
+            started = System.nanoTime();
+            process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File(dir, "stdout.log"))
+                    .start();
+        }
+
+        /**
+         * Ждет первого ответа 200 через прокси
+         *
+         * @return наносекунды от запуска процесса
+         */
+        long firstResponse() throws Exception {
+            while (System.nanoTime() - started < START_TIMEOUT) {
+                if (!process.isAlive()) throw new IOException("Server exited, see " + new File(dir, "stdout.log"));
+                try {
+                    if (proxy("GET", "/", null) == 200) return System.nanoTime() - started;
+                } catch (IOException e) {
+                    /** Еще не слушает*/
+                }
+                Thread.sleep(1);
+            }
+            throw new IOException("No response in " + TimeUnit.NANOSECONDS.toSeconds(START_TIMEOUT) + " s");
+        }
+
+        int proxy(final String method, final String path, final byte[] body) throws IOException {
+            final String url = "http://127.0.0.1:" + originPort + path;
+            return exchange(port, method + " " + url + " HTTP/1.1\r\nHost: 127.0.0.1:" + originPort + "\r\n", body);
+        }
+
+        int admin(final String path) throws IOException {
+            return exchange(adminPort, "GET " + path + " HTTP/1.1\r\nHost: 127.0.0.1\r\n", null);
+        }
+
+        private static int exchange(final int port, final String head, final byte[] body) throws IOException {
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                socket.setSoTimeout(10_000);
+                final OutputStream out = socket.getOutputStream();
+                final String length = (body != null) ? "Content-Length: " + body.length + "\r\n" : "";
+                out.write((head + length + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                if (body != null) out.write(body);
+                out.flush();
+                final byte[] response = socket.getInputStream().readAllBytes();
+                final String status = new String(response, 0, Math.min(response.length, 12), StandardCharsets.US_ASCII);
+                if (!status.startsWith("HTTP/1.")) throw new IOException("Bad response " + status);
+                return Integer.parseInt(status.substring(9, 12));
+            }
+        }
+
+        void stop() throws InterruptedException, IOException {
+            /** SIGTERM: отрабатывают shutdown hooks, и JVM дописывает список классов*/
+            process.destroy();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) process.destroyForcibly().waitFor();
+            final File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) Files.deleteIfExists(file.toPath());
+            }
+            Files.deleteIfExists(dir.toPath());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package http.proxy;
+
+import http.proxy.executor.AdaptiveExecutor;
+import http.proxy.limit.FairExecutor;
+import http.proxy.logger.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Поток, принимающий соединения с одного слушающего сокета, и его группа рабочих потоков.
+ * <p>
+ * Если акцепторов несколько, у каждого свой сокет на том же порту (SO_REUSEPORT), и новые
+ * соединения между ними распределяет ядро. Каждый акцептор отдает сокеты только в свой пул,
+ * поэтому очереди и блокировки пулов не делятся между акцепторами.
+ * <p>
+ * Ошибка accept (например, закончились файловые дескрипторы) не должна превращаться
+ * в цикл, который крутит процессор и засыпает лог: после ошибки поток ждет,
+ * удваивая паузу до MAX_BACKOFF, и сбрасывает ее после первого удачного accept.
+ */
+final class Acceptor implements Runnable {
+
+    private static final long MIN_BACKOFF = 5;
+    private static final long MAX_BACKOFF = 1000;
+
+    private final int index;
+    private final ServerSocketChannel channel;
+    private final AdaptiveExecutor workers;
+    /**
+     * null, если fair_scheduling выключен
+     */
+    private final FairExecutor fairWorkers;
+    private final ProxyServer server;
+    private final Logger logger;
+
+    Acceptor(final int index,
+             final ServerSocketChannel channel,
+             final AdaptiveExecutor workers,
+             final boolean fair,
+             final ProxyServer server,
+             final Logger logger
+    ) {
+        this.index = index;
+        this.channel = channel;
+        this.workers = workers;
+        this.fairWorkers = fair ? new FairExecutor(workers) : null;
+        this.server = server;
+        this.logger = logger;
+    }
+
+    @Override
+    public void run() {
+        long backoff = 0;
+        while (channel.isOpen()) {
+            Socket socket = null;
+            try {
+                socket = channel.accept().socket();
+                backoff = 0;
+                socket.setSoTimeout(server.getSoTimeout());
+                final InetAddress client = socket.getInetAddress();
+                if (fairWorkers != null) {
+                    fairWorkers.execute(client, server.newHandler(socket));
+                } else {
+                    workers.execute(server.newHandler(socket));
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                backoff = (backoff == 0) ? MIN_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+                logger.log(Logger.Level.EXCEPTION, socket, "Something went wrong when accepting a socket (acceptor " +
+                        index + ", retry in " + backoff + " ms): " + e.getMessage());
+                closeQuietly(socket);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    AdaptiveExecutor getWorkers() {
+        return workers;
+    }
+
+    private static void closeQuietly(final Socket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
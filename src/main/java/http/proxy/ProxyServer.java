@@ -1,56 +1,433 @@
 package http.proxy;
 
+import http.proxy.admin.AdminServer;
 import http.proxy.cache.CacheManager;
+import http.proxy.cache.NegativeCache;
+import http.proxy.cache.StaleCache;
+import http.proxy.cache.UrlNormalizer;
+import http.proxy.executor.AdaptiveExecutor;
+import http.proxy.executor.Lanes;
+import http.proxy.jfr.JfrEvents;
+import http.proxy.limit.FairExecutor;
+import http.proxy.limit.RateLimits;
+import http.proxy.limit.TokenBucketLimiter;
+import http.proxy.logger.BinaryAccessLog;
 import http.proxy.logger.Logger;
+import http.proxy.peer.Peer;
+import http.proxy.peer.PeerGroup;
+import http.proxy.prefetch.Prefetcher;
+import http.proxy.upstream.CircuitBreakers;
+import http.proxy.upstream.Connector;
+import http.proxy.upstream.HedgingExecutor;
+import http.proxy.upstream.Upstream;
+import http.proxy.utils.ProxyServerPropertiesReader;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Proxy сервер
- * Хранит в себе ExecutorService с размером 10.
- * Это значит, что 10 задач могут выполняться параллельно или конкуретно (в
- * зависимости от количества ядер процессора)
- * Executor сервис получает на выполнение Runnable, помещает его в очередь
+ * Хранит в себе пулы потоков: рабочие (обработка клиентских сокетов) и для запросов к серверам.
+ * Пул получает на выполнение Runnable, помещает его в очередь
  * и выполняет, когда один из потоков освобождается
  * <p>
- * Здесь используется FixedThreadPool - это значит, что создается фиксированное количество потоков,
- * которые переиспользуются для выполнения новых задач
+ * Пулы - AdaptiveExecutor: размер меняется между *_threads_min и *_threads_max по тому,
+ * сколько задачи ждут в очереди и сколько времени проводят в блокировке (медленные серверы
+ * требуют больше потоков, ответы из кэша - меньше). Без границ размер фиксирован
  * <p>
  * В качестве задачи в нашем случаем выступает SocketHandler, который реализует Runnable
+ * <p>
+ * Сокеты принимаются через ServerSocketChannel (в блокирующем режиме), чтобы у каждого
+ * клиентского сокета был канал и ответы можно было отправлять gathering-записью
+ * <p>
+ * Если в настройках задан список peers, сервер работает в группе узлов с общим кэшем (PeerGroup)
+ * <p>
+ * Соединения принимают acceptors потоков (Acceptor), у каждого свой сокет на порту
+ * (SO_REUSEPORT) и своя группа рабочих потоков, worker_threads делится между группами поровну.
+ * <p>
+ * По умолчанию задачи в пулы ставятся через FairExecutor: клиенты (по адресу) обслуживаются
+ * по кругу, а не в порядке FIFO. Частоту запросов клиента и запросов к хосту сервера можно
+ * ограничить (client_rate, host_rate), сверх ограничения клиент получает 429
+ * <p>
+ * Запросы к хосту, который отвечает ошибками или слишком медленно, отклоняются сразу
+ * (CircuitBreakers), а клиент получает устаревший ответ из StaleCache, если он есть
+ * <p>
+ * После разбора запроса попадания в кэш и промахи идут разными полосами (Lanes): попадание
+ * отправляется сразу в потоке, который разобрал запрос, промах уходит в пул запросов к серверам,
+ * число промахов ограничено miss_lane_limit. Поэтому всплеск промахов не задерживает попадания
+ * <p>
+ * Если задан admin_port, размеры пулов, таймаут сокета и параметры кэша можно
+ * менять на ходу через AdminServer
  */
 public final class ProxyServer {
 
-    private final ExecutorService executorService;
-    private final ExecutorService onResponseExecutorService;
+    private final List<Acceptor> acceptors = new ArrayList<>();
+    private final AdaptiveExecutor onResponseExecutorService;
+    private final Lanes lanes;
     private final CacheManager cacheManager;
-    private final ServerSocket serverSocket;
+    /**
+     * Группа узлов запускается в init, при lazy_init - после открытия слушающих сокетов,
+     * поэтому до запуска здесь null
+     */
+    private volatile PeerGroup peerGroup;
+    private final Prefetcher prefetcher;
+    private final RateLimits rateLimits;
+    /**
+     * null, если hedge_enabled выключен
+     */
+    private final HedgingExecutor hedging;
+    /**
+     * null, если breaker_enabled выключен
+     */
+    private final CircuitBreakers breakers;
+    /**
+     * Подключение к серверам вместе с автоматами и хеджированием, общее для всех обработчиков
+     */
+    private final Upstream upstream;
+    /**
+     * Справедливое представление пула запросов к серверам: задачи разных клиентов
+     * выполняются по кругу. null, если fair_scheduling выключен и задачи идут в пул
+     * в порядке FIFO. Пулы рабочих потоков свои у каждого Acceptor
+     */
+    private final FairExecutor fairUpstream;
+    /**
+     * null, если access_log_file не указан
+     */
+    private final BinaryAccessLog accessLog;
+    private final long poolAdjustInterval;
+    private final long poolTargetWait;
     private final Logger logger;
-    private final int soTimeout = 30000; //30 секунд, разрешенное время бездействия входного потока сокета
+    /**
+     * Разрешенное время бездействия входного потока сокета, по умолчанию 30 секунд.
+     * Меняется через AdminServer и действует на новые соединения
+     */
+    private volatile int soTimeout;
 
-    ProxyServer(final int port, final int cacheSize, final int lifetime, final Logger logger) throws IOException {
-        executorService = Executors.newFixedThreadPool(10);
-        onResponseExecutorService = Executors.newFixedThreadPool(10);
-        cacheManager = new CacheManager(cacheSize, lifetime);
-        serverSocket = new ServerSocket(port);
+    ProxyServer(final ProxyServerPropertiesReader props, final Logger logger) throws IOException {
         this.logger = logger;
+        poolAdjustInterval = props.getPoolAdjustInterval();
+        poolTargetWait = props.getPoolTargetWait();
+        onResponseExecutorService = newPool(
+                "upstream", props.getUpstreamThreads(), props.getUpstreamThreadsMin(), props.getUpstreamThreadsMax()
+        );
+        lanes = new Lanes(props.getMissLaneLimit());
+        soTimeout = props.getSoTimeout();
+        fairUpstream = props.isFairScheduling() ? new FairExecutor(onResponseExecutorService) : null;
+        rateLimits = new RateLimits(
+                (props.getClientRate() > 0)
+                        ? new TokenBucketLimiter(props.getClientRate(), props.getClientBurst(), props.getLimiterSlots())
+                        : null,
+                (props.getHostRate() > 0)
+                        ? new TokenBucketLimiter(props.getHostRate(), props.getHostBurst(), props.getLimiterSlots())
+                        : null
+        );
+        hedging = props.isHedgeEnabled()
+                ? new HedgingExecutor(
+                props.getHedgePercentile(),
+                props.getHedgeBudgetPercent(),
+                props.getHedgeBurst(),
+                props.getHedgeMinDelay(),
+                props.getHedgeMinSamples(),
+                logger)
+                : null;
+        breakers = props.isBreakerEnabled()
+                ? new CircuitBreakers(
+                props.getBreakerWindow(),
+                props.getBreakerMinCalls(),
+                props.getBreakerErrorPercent(),
+                props.getBreakerSlowCall(),
+                props.getBreakerOpenTime(),
+                props.getBreakerProbes(),
+                logger)
+                : null;
+        upstream = new Upstream(
+                new Connector(
+                        props.getConnectStagger(),
+                        props.getConnectTimeout(),
+                        props.getConnectFailureTtl()
+                ),
+                breakers,
+                hedging
+        );
+        cacheManager = new CacheManager(props.getCacheSize(), props.getLifetime());
+        accessLog = (props.getAccessLogFile() != null)
+                ? new BinaryAccessLog(
+                props.getAccessLogFile(),
+                props.getAccessLogSize(),
+                props.getAccessLogFiles(),
+                logger)
+                : null;
+        if (accessLog != null) {
+            /** Закрытый сегмент обрезается до записанной длины*/
+            Runtime.getRuntime().addShutdownHook(new Thread(accessLog::close, "access-log-close"));
+        }
+        createAcceptors(props);
         cacheManager.registerLogger(logger);
+        if (props.getNegativeCacheSize() > 0) {
+            cacheManager.registerNegativeCache(new NegativeCache(
+                    props.getNegativeCacheSize(),
+                    props.getNegativeTtlNotFound(),
+                    props.getNegativeTtlServerError(),
+                    props.getNegativeTtlFailure()
+            ));
+        }
+        if (props.getStaleCacheSize() > 0) {
+            cacheManager.registerStaleCache(new StaleCache(props.getStaleCacheSize(), props.getStaleTtl()));
+        }
+        cacheManager.registerUrlNormalizer(new UrlNormalizer(
+                props.isCacheKeySortQuery(),
+                props.isCacheKeyStripQuery(),
+                props.getCacheKeyIgnoredParams()
+        ));
+        prefetcher = (props.isWarmUpEnabled() || props.isPrefetchSubresources())
+                ? new Prefetcher(
+                cacheManager,
+                onResponseExecutorService,
+                upstream,
+                props.getPrefetchRate(),
+                props.getPrefetchQueue(),
+                props.isPrefetchSubresources(),
+                props.isPrefetchSameHost(),
+                logger)
+                : null;
+        if (prefetcher != null) cacheManager.registerListener(prefetcher);
     }
 
-    public void start() {
-        while (true) {
-            Socket socket = null;
+    /**
+     * Запускает необязательные подсистемы: регистрацию событий JFR, AdminServer, узел группы
+     * с общим кэшем и прогрев кэша.
+     * Без них сервер уже может отвечать: до запуска группы запросы выполняются локально,
+     * до прогрева - идут на серверы
+     *
+     * @param warmUpUrls адреса для прогрева
+     */
+    public void init(final ProxyServerPropertiesReader props, final List<String> warmUpUrls) throws IOException {
+        final long started = System.nanoTime();
+        JfrEvents.preload();
+        if (props.getAdminPort() > 0) {
+            new AdminServer(props.getAdminHost(), props.getAdminPort(), this, cacheManager, logger).start();
+        }
+        peerGroup = createPeerGroup(props);
+        warmUp(warmUpUrls, props.getWarmUpTimeout());
+        logger.log(Logger.Level.INFO, "Initialized in " +
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+    }
+
+    /**
+     * init в фоновом потоке: слушающие сокеты уже открыты, и клиенты не ждут прогрева
+     * и подключения к группе. Ошибка запуска подсистемы не останавливает сервер
+     */
+    public void initLazily(final ProxyServerPropertiesReader props, final List<String> warmUpUrls) {
+        final Thread thread = new Thread(() -> {
             try {
-                socket = serverSocket.accept();
-                socket.setSoTimeout(soTimeout);
-                executorService.submit(new SocketHandler(socket, logger, cacheManager, onResponseExecutorService));
-            } catch (IOException e) {
-                logger.log(Logger.Level.EXCEPTION, socket, "Something went wrong when accepting a socket");
+                init(props, warmUpUrls);
+            } catch (IOException | RuntimeException e) {
+                logger.log(Logger.Level.EXCEPTION, "Initialization failed, running without it: " + e);
+            }
+        }, "init");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Открывает слушающие сокеты. Они открываются в конструкторе, до init: соединения,
+     * пришедшие раньше, чем заработают акцепторы, ждут в очереди accept
+     */
+    private void createAcceptors(final ProxyServerPropertiesReader props) throws IOException {
+        final int count = props.getAcceptors();
+        if (count < 1) throw new IllegalArgumentException("acceptors must be positive: " + count);
+        final InetSocketAddress address = new InetSocketAddress(props.getPort());
+        final boolean reusePort = count > 1 && supportsReusePort();
+        if (count > 1 && !reusePort)
+            logger.log(Logger.Level.WARNING, "SO_REUSEPORT is not supported, " + count + " acceptors share one socket");
+        ServerSocketChannel shared = null;
+        for (int i = 0; i < count; i++) {
+            ServerSocketChannel channel = shared;
+            if (channel == null) {
+                channel = ServerSocketChannel.open();
+                if (reusePort) channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channel.bind(address, props.getAcceptBacklog());
+                if (count > 1 && !reusePort) shared = channel;
             }
+            final AdaptiveExecutor workers = newPool(
+                    (count == 1) ? "worker" : "worker-" + i,
+                    threadsPerGroup(props.getWorkerThreads(), count),
+                    threadsPerGroup(props.getWorkerThreadsMin(), count),
+                    threadsPerGroup(props.getWorkerThreadsMax(), count)
+            );
+            acceptors.add(new Acceptor(i, channel, workers, props.isFairScheduling(), this, logger));
+        }
+    }
+
+    private static boolean supportsReusePort() throws IOException {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    /**
+     * Потоки делятся между группами поровну с округлением вверх,
+     * чтобы в каждой группе был хотя бы один поток
+     */
+    private static int threadsPerGroup(final int threads, final int groups) {
+        return Math.max(1, (threads + groups - 1) / groups);
+    }
+
+    /**
+     * Обработчик нового клиентского сокета, вызывается из Acceptor
+     */
+    SocketHandler newHandler(final Socket socket) throws IOException {
+        if (fairUpstream != null) {
+            return new SocketHandler(
+                    socket, logger, cacheManager, peerGroup, rateLimits, fairUpstream.forKey(socket.getInetAddress()),
+                    upstream, lanes, accessLog
+            );
+        }
+        return new SocketHandler(
+                socket, logger, cacheManager, peerGroup, rateLimits, onResponseExecutorService, upstream, lanes, accessLog
+        );
+    }
+
+    private AdaptiveExecutor newPool(final String name, final int threads, final int min, final int max) {
+        return new AdaptiveExecutor(name, threads, min, max, poolAdjustInterval, poolTargetWait, logger);
+    }
+
+    /**
+     * Фиксирует размер рабочих пулов
+     *
+     * @param threads количество потоков, обрабатывающих клиентские сокеты, во всех группах вместе
+     */
+    public void setWorkerThreads(final int threads) {
+        setWorkerThreadBounds(threads, threads);
+    }
+
+    /**
+     * @param min нижняя граница рабочих потоков во всех группах вместе
+     * @param max верхняя граница рабочих потоков во всех группах вместе
+     */
+    public void setWorkerThreadBounds(final int min, final int max) {
+        if (min < 1 || max < min) throw new IllegalArgumentException("Pool bounds must satisfy 1 <= min <= max");
+        for (Acceptor acceptor : acceptors) {
+            acceptor.getWorkers().setBounds(threadsPerGroup(min, acceptors.size()), threadsPerGroup(max, acceptors.size()));
+        }
+    }
+
+    /**
+     * Фиксирует размер пула запросов к серверам
+     *
+     * @param threads количество потоков для запросов к серверам
+     */
+    public void setUpstreamThreads(final int threads) {
+        onResponseExecutorService.setPoolSize(threads);
+    }
+
+    public void setUpstreamThreadBounds(final int min, final int max) {
+        onResponseExecutorService.setBounds(min, max);
+    }
+
+    /**
+     * @param soTimeout таймаут чтения клиентского сокета в миллисекундах, для новых соединений
+     */
+    public void setSoTimeout(final int soTimeout) {
+        if (soTimeout < 0) throw new IllegalArgumentException("soTimeout must not be negative: " + soTimeout);
+        this.soTimeout = soTimeout;
+        logger.log(Logger.Level.INFO, "Socket timeout: " + soTimeout + " ms");
+    }
+
+    /**
+     * @return пулы рабочих потоков, по одному на Acceptor
+     */
+    public List<AdaptiveExecutor> getWorkerExecutors() {
+        final List<AdaptiveExecutor> executors = new ArrayList<>(acceptors.size());
+        for (Acceptor acceptor : acceptors) {
+            executors.add(acceptor.getWorkers());
+        }
+        return executors;
+    }
+
+    /**
+     * @return текущее количество рабочих потоков во всех группах
+     */
+    public int getWorkerThreads() {
+        int threads = 0;
+        for (Acceptor acceptor : acceptors) {
+            threads += acceptor.getWorkers().getPoolSize();
+        }
+        return threads;
+    }
+
+    public AdaptiveExecutor getUpstreamExecutor() {
+        return onResponseExecutorService;
+    }
+
+    public Lanes getLanes() {
+        return lanes;
+    }
+
+    /**
+     * @return хеджирование запросов или null, если оно выключено
+     */
+    public HedgingExecutor getHedging() {
+        return hedging;
+    }
+
+    /**
+     * @return автоматы хостов или null, если они выключены
+     */
+    public CircuitBreakers getBreakers() {
+        return breakers;
+    }
+
+    public int getSoTimeout() {
+        return soTimeout;
+    }
+
+    private PeerGroup createPeerGroup(final ProxyServerPropertiesReader props) throws IOException {
+        if (props.getPeers().isEmpty()) return null;
+        if (props.getPeerSelf() == null) throw new IllegalArgumentException("peer_self is required when peers are set");
+        final List<Peer> peers = new ArrayList<>();
+        for (String address : props.getPeers()) {
+            peers.add(Peer.parse(address));
+        }
+        final PeerGroup group = new PeerGroup(
+                peers,
+                Peer.parse(props.getPeerSelf()),
+                props.getPeerTimeout(),
+                cacheManager,
+                onResponseExecutorService,
+                upstream,
+                logger
+        );
+        group.start();
+        return group;
+    }
+
+    /**
+     * Прогрев кэша. Без lazy_init идет до приема соединений, и соединения, пришедшие
+     * за это время, ждут в очереди ServerSocketChannel
+     *
+     * @param urls    адреса для загрузки
+     * @param timeout сколько секунд ждать, потом сервер стартует с тем, что успело загрузиться
+     */
+    public void warmUp(final List<String> urls, final int timeout) {
+        if (prefetcher != null) prefetcher.warmUp(urls, timeout, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Запускает акцепторы. Первый работает в вызывающем потоке, поэтому метод не возвращается
+     */
+    public void start() {
+        for (int i = 1; i < acceptors.size(); i++) {
+            final Thread thread = new Thread(acceptors.get(i), "acceptor-" + i);
+            thread.start();
         }
+        acceptors.get(0).run();
     }
 
 }
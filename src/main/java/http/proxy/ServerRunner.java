@@ -3,9 +3,13 @@ package http.proxy;
 import http.proxy.logger.FileOutLogger;
 import http.proxy.logger.Logger;
 import http.proxy.logger.STDOutLogger;
+import http.proxy.prefetch.WarmUpList;
+import http.proxy.utils.BufferPool;
 import http.proxy.utils.ProxyServerPropertiesReader;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public final class ServerRunner {
 
@@ -14,6 +18,10 @@ public final class ServerRunner {
             throw new IllegalArgumentException("You have to specify the path to the configuration file");
 
         final ProxyServerPropertiesReader props = new ProxyServerPropertiesReader(args[0]);
+        /** Адреса для прогрева читаем до создания логгера: FileOutLogger очищает файл лога*/
+        final List<String> warmUpUrls = new ArrayList<>();
+        final List<String> warmUpErrors = new ArrayList<>();
+        readWarmUpUrls(props, warmUpUrls, warmUpErrors);
         Logger logger;
 
         /** Если указан путь к файлу лога, то используем логер в файл*/
@@ -29,6 +37,12 @@ public final class ServerRunner {
             logger = new STDOutLogger();
         }
 
+        /** Отладочный режим пула буферов: ищем буферы, которые не вернули в пул*/
+        if (props.isBufferLeakDetection()) {
+            BufferPool.enableLeakDetection(logger);
+            logger.log(Logger.Level.INFO, "Buffer leak detection enabled");
+        }
+
         logger.log(Logger.Level.INFO, "Server started on port: " + props.getPort());
         logger.log(Logger.Level.INFO, "Cache lifetime: " +
                 props.getLifetime() +
@@ -37,12 +51,16 @@ public final class ServerRunner {
                 " bytes"
         );
         try {
-            final ProxyServer proxyServer = new ProxyServer(
-                    props.getPort(),
-                    props.getCacheSize(),
-                    props.getLifetime(),
-                    logger
-            );
+            final ProxyServer proxyServer = new ProxyServer(props, logger);
+            for (String error : warmUpErrors) {
+                logger.log(Logger.Level.WARNING, error);
+            }
+            /** Без lazy_init соединения ждут в очереди accept, пока не запустится все*/
+            if (props.isLazyInit()) {
+                proxyServer.initLazily(props, warmUpUrls);
+            } else {
+                proxyServer.init(props, warmUpUrls);
+            }
             proxyServer.start();
         } catch (IOException e) {
             e.printStackTrace();
@@ -50,4 +68,26 @@ public final class ServerRunner {
         }
     }
 
+    private static void readWarmUpUrls(final ProxyServerPropertiesReader props,
+                                       final List<String> urls,
+                                       final List<String> errors
+    ) {
+        if (props.getWarmUpUrls() != null) {
+            try {
+                urls.addAll(WarmUpList.readUrls(props.getWarmUpUrls()));
+            } catch (IOException e) {
+                errors.add("Can't read warm-up urls " + props.getWarmUpUrls() + ": " + e.getMessage());
+            }
+        }
+        if (props.getWarmUpTopN() > 0 && props.getWarmUpAccessLog() != null) {
+            try {
+                for (String url : WarmUpList.topUrls(props.getWarmUpAccessLog(), props.getWarmUpTopN())) {
+                    if (!urls.contains(url)) urls.add(url);
+                }
+            } catch (IOException e) {
+                errors.add("Can't read access log " + props.getWarmUpAccessLog() + ": " + e.getMessage());
+            }
+        }
+    }
+
 }
@@ -1,11 +1,25 @@
 package http.proxy;
 
 import http.proxy.cache.CacheManager;
+import http.proxy.limit.RateLimits;
+import http.proxy.peer.PeerGroup;
+import http.proxy.cache.CachedResponse;
+import http.proxy.cache.Validators;
 import http.proxy.exceptions.BadRequestException;
+import http.proxy.exceptions.CircuitOpenException;
 import http.proxy.exceptions.MethodNotAllowedException;
 import http.proxy.exceptions.RequestTimeoutException;
+import http.proxy.executor.Lane;
+import http.proxy.executor.Lanes;
+import http.proxy.http2.Http2Connection;
+import http.proxy.jfr.ClientWriteEvent;
+import http.proxy.jfr.RequestParseEvent;
+import http.proxy.logger.BinaryAccessLog;
 import http.proxy.logger.Logger;
+import http.proxy.upstream.Upstream;
+import http.proxy.utils.BufferPool;
 import http.proxy.utils.Callback;
+import http.proxy.utils.Headers;
 import http.proxy.utils.Request;
 import http.proxy.utils.Response;
 
@@ -14,13 +28,19 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.concurrent.ExecutorService;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
 
 import static http.proxy.constants.Constants.*;
 
 /**
  * Класс для обработки сокетов. Читает запрос из сокета
  * выполняет его, записывает в сокет ответ и закрывает его.
+ * <p>
+ * После разбора запрос идет по одной из полос (Lanes): на попадание в кэш рабочий поток
+ * отвечает сразу, а промах целиком (узел группы, сервер) уходит в пул запросов к серверам,
+ * если в полосе промахов есть место. Рабочий поток при этом сразу свободен для следующего клиента.
  */
 public final class SocketHandler implements Runnable {
 
@@ -29,55 +49,264 @@ public final class SocketHandler implements Runnable {
     private InputStream is;
     private OutputStream os;
     private Logger l;
-    private ExecutorService es;
+    private Executor es;
+    private Upstream upstream;
+    private PeerGroup peers;
+    private RateLimits limits;
+    private Lanes lanes;
+    private BinaryAccessLog accessLog;
+    /**
+     * Когда сокет принят (обработчик создается в потоке Acceptor) и когда разобран запрос:
+     * по ним считается ожидание в полосе попаданий
+     */
+    private final long accepted = System.nanoTime();
+    private long parsed;
+    /**
+     * Для двоичного журнала доступа: запрос, начало обработки и время ответа сервера
+     */
+    private String method;
+    private String url;
+    private long bytesIn;
+    private long started;
+    private long upstreamStarted;
+    private long upstreamNanos = -1;
 
+    /**
+     * @param peerGroup       группа узлов с общим кэшем или null, если узел работает один
+     * @param rateLimits      ограничения частоты запросов клиента и запросов к серверам
+     * @param executorService пул для запросов к серверам (или его представление для этого клиента)
+     * @param upstream        подключение к серверам, автоматы хостов и хеджирование
+     * @param lanes           полосы попаданий и промахов
+     * @param accessLog       двоичный журнал доступа или null, если он выключен
+     */
     public SocketHandler(final Socket socket,
                          final Logger logger,
                          final CacheManager cacheManager,
-                         final ExecutorService executorService
+                         final PeerGroup peerGroup,
+                         final RateLimits rateLimits,
+                         final Executor executorService,
+                         final Upstream upstream,
+                         final Lanes lanes,
+                         final BinaryAccessLog accessLog
     ) throws IOException {
         this.socket = socket;
         is = socket.getInputStream();
         os = socket.getOutputStream();
         l = logger;
         cm = cacheManager;
+        peers = peerGroup;
+        limits = rateLimits;
         es = executorService;
+        this.upstream = upstream;
+        this.lanes = lanes;
+        this.accessLog = accessLog;
     }
 
-    private void writeResponse(final String string, final byte[] body) {
+    /**
+     * Записывает ответ в двоичный журнал доступа, если он включен
+     */
+    private void access(final int status, final String source, final long bytesOut) {
+        if (accessLog == null) return;
+        accessLog.log(socket, method, url, status, source, bytesIn, bytesOut,
+                System.nanoTime() - started, upstreamNanos);
+    }
+
+    /**
+     * Записывает в сокет короткий ответ без тела (ответы об ошибках).
+     * Строка кодируется в буфер из пула
+     */
+    private void writeResponse(final int code, final String string) {
+        final byte[] buffer = BufferPool.lease(string.length());
+        final ClientWriteEvent event = new ClientWriteEvent();
+        event.begin();
+        long written = 0;
         try {
-            os.write(string.getBytes());
-            if (body != null) {
-                os.write(body);
+            for (int i = 0; i < string.length(); i++) {
+                buffer[i] = (byte) string.charAt(i);
             }
+            os.write(buffer, 0, string.length());
             os.flush();
+            written = string.length();
             socket.close();
+            event.source = "proxy";
+            event.bytes = string.length();
+            event.commit();
         } catch (IOException e) {
             /** Если при записи происзошла ошибка (сокет неожиданно закрылся )*/
             l.log(Logger.Level.EXCEPTION, socket, VERY_BAD_EXCEPTION + SPACE + e.getMessage());
+        } finally {
+            BufferPool.release(buffer);
         }
+        access(code, "proxy", written);
+    }
+
+    /**
+     * Записывает ответ, который не будет кэшироваться, прямо из его буфера.
+     * Заголовки кодируются в буфер из пула, после записи оба буфера возвращаются в пул
+     */
+    private void writeResponse(final Response response) {
+        final int headLength = response.headLength();
+        final byte[] head = BufferPool.lease(headLength);
+        final ClientWriteEvent event = new ClientWriteEvent();
+        event.begin();
+        long written = 0;
+        try {
+            final ByteBuffer headBuffer = ByteBuffer.wrap(head, 0, headLength);
+            response.writeHead(headBuffer);
+            headBuffer.flip();
+            final ByteBuffer bodyBuffer = (response.getBody() != null)
+                    ? ByteBuffer.wrap(response.getBody(), 0, response.getBodyLength())
+                    : ByteBuffer.allocate(0);
+            final SocketChannel channel = socket.getChannel();
+            if (channel != null) {
+                final ByteBuffer[] buffers = {headBuffer, bodyBuffer};
+                while (headBuffer.hasRemaining() || bodyBuffer.hasRemaining()) {
+                    channel.write(buffers);
+                }
+            } else {
+                os.write(head, 0, headLength);
+                os.write(bodyBuffer.array(), 0, bodyBuffer.remaining());
+                os.flush();
+            }
+            written = headLength + response.getBodyLength();
+            socket.close();
+            event.source = "origin";
+            event.bytes = written;
+            event.commit();
+        } catch (IOException e) {
+            l.log(Logger.Level.EXCEPTION, socket, VERY_BAD_EXCEPTION + SPACE + e.getMessage());
+        } finally {
+            BufferPool.release(head);
+            access(response.getCode(), "origin", written);
+            response.release();
+        }
+    }
+
+    /**
+     * Записывает готовый ответ в сокет. Если сокет получен из ServerSocketChannel,
+     * то заголовки и тело уходят одной gathering-записью, иначе через OutputStream
+     *
+     * @param source откуда ответ (cache или origin), для события ClientWrite
+     */
+    private void writeResponse(final CachedResponse response, final String source) {
+        final ClientWriteEvent event = new ClientWriteEvent();
+        event.begin();
+        long written = 0;
+        try {
+            final SocketChannel channel = socket.getChannel();
+            if (channel != null) {
+                written = response.writeTo(channel);
+            } else {
+                written = response.writeTo(os);
+                os.flush();
+            }
+            socket.close();
+            event.source = source;
+            event.bytes = written;
+            event.commit();
+        } catch (IOException e) {
+            l.log(Logger.Level.EXCEPTION, socket, VERY_BAD_EXCEPTION + SPACE + e.getMessage());
+        }
+        access(response.getCode(), source, written);
+    }
+
+    /**
+     * Записывает только заголовки закэшированного ответа (ответ на HEAD)
+     */
+    private void writeHead(final CachedResponse response) {
+        final ClientWriteEvent event = new ClientWriteEvent();
+        event.begin();
+        long written = 0;
+        try {
+            final SocketChannel channel = socket.getChannel();
+            if (channel != null) {
+                final ByteBuffer buffer = ByteBuffer.wrap(response.getHead());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } else {
+                os.write(response.getHead());
+                os.flush();
+            }
+            written = response.getHead().length;
+            socket.close();
+            event.source = "cache";
+            event.bytes = written;
+            event.commit();
+        } catch (IOException e) {
+            l.log(Logger.Level.EXCEPTION, socket, VERY_BAD_EXCEPTION + SPACE + e.getMessage());
+        }
+        access(response.getCode(), "cache", written);
+    }
+
+    /**
+     * 304: версия клиента совпадает с закэшированной, тело не отправляем
+     */
+    private void writeNotModified(final CachedResponse response) {
+        final StringBuilder string = new StringBuilder(firstLine(NOT_MODIFIED_CODE, NOT_MODIFIED));
+        Validators.notModifiedHeaders(response).forEach((name, value) ->
+                string.append(name).append(HEADER_DELIM).append(SPACE).append(value).append(CRLF)
+        );
+        string.append(CONNECTION + HEADER_DELIM + SPACE + CLOSE + CRLF + CRLF);
+        writeResponse(NOT_MODIFIED_CODE, string.toString());
     }
 
     @Override
     public void run() {
+        started = System.nanoTime();
         try {
             /**Создаем экземпляр Request, который сразу же и считает
              * данные из входного потока (inputStream)*/
             Request request = new Request();
-            request.read(is);
+            final RequestParseEvent parse = new RequestParseEvent();
+            parse.begin();
+            request.read(is, os);
+            parse.end();
+            parsed = System.nanoTime();
+            method = request.getMethod();
+            url = request.getUrl();
+            bytesIn = request.getBodyLength();
+            if (parse.shouldCommit()) {
+                parse.method = request.getMethod();
+                parse.url = request.getUrl();
+                parse.commit();
+            }
+            /** Клиент хочет HTTP/2: дальше соединением занимается Http2Connection*/
+            if (request.isHttp2Preface()) {
+                new Http2Connection(socket, is, os, l, cm, peers, limits, es, upstream, lanes, accessLog).serve();
+                return;
+            }
+            if (Http2Connection.isUpgrade(request)) {
+                l.log(Logger.Level.INFO, socket, request.getMethod(), request.getUrl(), true, "h2c upgrade");
+                new Http2Connection(socket, is, os, l, cm, peers, limits, es, upstream, lanes, accessLog).serveUpgrade(request);
+                return;
+            }
             l.log(Logger.Level.INFO, socket, request.getMethod(), request.getUrl(), true, null);
-            /** Пытаем взять значение из кэша, если его там нет, то получим null*/
-            final Response response = cm.getResponse(request.getUrl());
+            if (!limits.allowClient(socket.getInetAddress())) {
+                request.release();
+                writeTooManyRequests("client");
+                return;
+            }
+            /** Пытаем взять значение из кэша, если его там нет, то получим null.
+             * В кэше лежат ответы на GET, поэтому из него отвечаем только на GET и HEAD*/
+            final boolean head = HEAD_METHOD.equalsIgnoreCase(request.getMethod());
+            final CachedResponse response = (head || GET_METHOD.equalsIgnoreCase(request.getMethod()))
+                    ? cm.getResponse(request)
+                    : null;
             if (response != null) {
-                /**Получили ответ, создает StandardCallBack, который запишет ответ в сокет*/
-                new StandardCallback(l, socket, os, true).onSuccess(null, response);
-
-            } else request.execute(es, new StandardCallback(l, socket, os, false));
+                /** Полоса попаданий: отвечаем сразу в этом потоке. Ожидание - очередь рабочего
+                 * пула до начала обработки и путь от разбора до записи, без чтения самого запроса*/
+                lanes.hit().recordWait((started - accepted) + (System.nanoTime() - parsed));
+                writeCached(request, response, head, request.getHeaders());
+            } else {
+                dispatchMiss(request, head);
+            }
 
             /** Ловим исключения, которыем могут возникнуть при создании Request
              * И отправляем клиенту соответвующие заголовки*/
         } catch (RequestTimeoutException | BadRequestException e) {
             StringBuilder resp = new StringBuilder();
+            final int code = (e instanceof RequestTimeoutException) ? REQUEST_TIMEOUT_CODE : BAD_REQUEST_CODE;
             if (e instanceof RequestTimeoutException) {
                 resp.append(firstLine(REQUEST_TIMEOUT_CODE, REQUEST_TIMEOUT));
                 l.log(Logger.Level.EXCEPTION, socket, REQUEST_TIMEOUT + SPACE + e.getMessage());
@@ -86,7 +315,7 @@ public final class SocketHandler implements Runnable {
                 l.log(Logger.Level.EXCEPTION, socket, BAD_REQUEST + SPACE + e.getMessage());
             }
             resp.append(CONNECTION + HEADER_DELIM + SPACE + CLOSE);
-            writeResponse(resp.toString(), null);
+            writeResponse(code, resp.toString());
         } catch (MethodNotAllowedException e) {
             /** Получили ошибку о том, что метод не поддерживается, сообщаем об этом клиенту и отправляем
              * в заголовке Allow спиок доступных методов*/
@@ -102,8 +331,110 @@ public final class SocketHandler implements Runnable {
                     SPACE +
                     e.getAllowedMethods().toString() +
                     CRLF + CONNECTION + HEADER_DELIM + SPACE + CLOSE + CRLF;
-            writeResponse(string, null);
+            writeResponse(METHOD_NOT_ALLOWED_CODE, string);
+        }
+    }
+
+    /**
+     * Ответ из кэша или от узла группы уже закодирован, просто отправляем его.
+     * Если у клиента та же версия, отвечаем 304, на HEAD отправляем только заголовки
+     *
+     * @param conditions условные заголовки клиента: заголовки запроса или снятые с него takeConditions
+     */
+    private void writeCached(final Request request,
+                             final CachedResponse response,
+                             final boolean head,
+                             final Headers conditions
+    ) {
+        request.release();
+        if (Validators.isNotModified(response, conditions)) {
+            l.log(Logger.Level.INFO, socket, CACHE_NOT_MODIFIED + SPACE + request.getUrl());
+            writeNotModified(response);
+        } else if (head) {
+            writeHead(response);
+        } else {
+            writeResponse(response, "cache");
+        }
+    }
+
+    /**
+     * Полоса промахов. Здесь только проверки без сети, узел группы и сервер опрашиваются
+     * в пуле запросов к серверам. Место в полосе освобождает StandardCallback
+     * или ответ узла группы
+     */
+    private void dispatchMiss(final Request request, final boolean head) {
+        /** Хост недавно был недоступен: сразу отвечаем той же ошибкой*/
+        final Exception failure = cm.getFailure(request);
+        if (failure != null) {
+            request.release();
+            new StandardCallback(l, socket, null, null).onFailure(request, failure);
+            return;
+        }
+        if (!limits.allowHost(request)) {
+            request.release();
+            writeTooManyRequests("origin host");
+            return;
+        }
+        final Lane miss = lanes.miss();
+        if (!miss.tryAcquire()) {
+            request.release();
+            writeMissLaneFull(request, head);
+            return;
         }
+        final Executor timed = miss.timed(es);
+        /** Ответ на GET пойдет в кэш, поэтому нужен полный ответ: условия клиента проверяем сами*/
+        final boolean get = GET_METHOD.equalsIgnoreCase(request.getMethod());
+        final Headers conditions = get ? Validators.takeConditions(request.getHeaders()) : null;
+        final StandardCallback callback = new StandardCallback(l, socket, miss, conditions);
+        if (peers != null && get) {
+            timed.execute(() -> {
+                /** Ключ другого узла группы: берем ответ у владельца*/
+                final CachedResponse fromPeer = peers.fetch(request);
+                if (fromPeer != null) {
+                    miss.release();
+                    writeCached(request, fromPeer, false, conditions);
+                } else {
+                    /** Уже в пуле запросов к серверам: второй раз в очередь не ставим*/
+                    upstreamStarted = System.nanoTime();
+                    upstream.executeInline(request, es, callback);
+                }
+            });
+        } else {
+            upstreamStarted = System.nanoTime();
+            upstream.execute(request, timed, callback);
+        }
+    }
+
+    /**
+     * В полосе промахов нет места: устаревший ответ, если он есть, иначе 503
+     */
+    private void writeMissLaneFull(final Request request, final boolean head) {
+        l.log(Logger.Level.WARNING, socket, MISS_LANE_FULL + SPACE + request.getUrl());
+        final CachedResponse stale = (head || GET_METHOD.equalsIgnoreCase(request.getMethod()))
+                ? cm.getStale(request)
+                : null;
+        if (stale != null) {
+            if (head) writeHead(stale);
+            else writeResponse(stale, "cache");
+            return;
+        }
+        writeResponse(SERVICE_UNAVAILABLE_CODE, firstLine(SERVICE_UNAVAILABLE_CODE, SERVICE_UNAVAILABLE) +
+                RETRY_AFTER + HEADER_DELIM + SPACE + "1" + CRLF +
+                CONTENT_LENGTH + HEADER_DELIM + SPACE + "0" + CRLF +
+                CONNECTION + HEADER_DELIM + SPACE + CLOSE + CRLF + CRLF
+        );
+    }
+
+    /**
+     * 429: клиент или сервер, к которому он обращается, превысил ограничение частоты
+     */
+    private void writeTooManyRequests(final String limit) {
+        l.log(Logger.Level.WARNING, socket, TOO_MANY_REQUESTS + " (" + limit + ")");
+        writeResponse(TOO_MANY_REQUESTS_CODE, firstLine(TOO_MANY_REQUESTS_CODE, TOO_MANY_REQUESTS) +
+                RETRY_AFTER + HEADER_DELIM + SPACE + "1" + CRLF +
+                CONTENT_LENGTH + HEADER_DELIM + SPACE + "0" + CRLF +
+                CONNECTION + HEADER_DELIM + SPACE + CLOSE + CRLF + CRLF
+        );
     }
 
     /**
@@ -121,39 +452,69 @@ public final class SocketHandler implements Runnable {
 
         private final Logger l;
         private final Socket socket;
-        private final OutputStream os;
-        private final boolean cached;
+        /**
+         * Полоса, в которой запрос занимает место, или null
+         */
+        private final Lane lane;
+        /**
+         * Условные заголовки, снятые с запроса GET, или null
+         */
+        private final Headers conditions;
 
         /**
-         * @param logger логгер
-         * @param socket сокет
-         * @param os     outputStream для записи ответа
-         * @param cached если true, значени отправляем клиенту кшированный ответ
+         * @param logger     логгер
+         * @param socket     сокет
+         * @param lane       полоса промахов, место в которой освобождается после ответа, или null
+         * @param conditions условные заголовки клиента, снятые с запроса к серверу, или null
          */
-        public StandardCallback(Logger logger, Socket socket, OutputStream os, boolean cached) {
+        public StandardCallback(Logger logger, Socket socket, Lane lane, Headers conditions) {
             this.l = logger;
             this.socket = socket;
-            this.os = os;
-            this.cached = cached;
+            this.lane = lane;
+            this.conditions = conditions;
         }
 
         /**
-         * Если при выполнении запроса или получении ответа от сервера, что-то пошло не так
+         * Если при выполнении запроса или получении ответа от сервера, что-то пошло не так.
+         * Если есть устаревший ответ, клиент получает его вместо ошибки
          *
          * @param request вызов
          * @param e       исключение
          */
         @Override
         public void onFailure(Request request, Exception e) {
-            l.log(Logger.Level.EXCEPTION, socket, e.getClass().getCanonicalName() + SPACE + e.getMessage());
-            if (e instanceof SocketTimeoutException) {
-                writeResponse(firstLine(GATEWAY_TIMEOUT_CODE, GATEWAY_TIMEOUT) +
-                        CONNECTION + HEADER_DELIM + SPACE + CLOSE, null
-                );
-            } else {
-                writeResponse(firstLine(BAD_REQUEST_CODE, BAD_REQUEST) +
-                        CONNECTION + HEADER_DELIM + SPACE + CLOSE, null
-                );
+            try {
+                l.log(Logger.Level.EXCEPTION, socket, e.getClass().getCanonicalName() + SPACE + e.getMessage());
+                cm.putFailure(request, e);
+                if (upstreamStarted != 0) upstreamNanos = System.nanoTime() - upstreamStarted;
+                bytesIn += request.getStreamedLength();
+                final boolean head = HEAD_METHOD.equalsIgnoreCase(request.getMethod());
+                final CachedResponse stale = (head || GET_METHOD.equalsIgnoreCase(request.getMethod()))
+                        ? cm.getStale(request)
+                        : null;
+                if (stale != null) {
+                    if (head) writeHead(stale);
+                    else writeResponse(stale, "cache");
+                } else if (e instanceof CircuitOpenException) {
+                    /** Сервер не опрашивался: автомат хоста разомкнут*/
+                    final CircuitOpenException open = (CircuitOpenException) e;
+                    final int code = open.isTimeout() ? GATEWAY_TIMEOUT_CODE : BAD_GATEWAY_CODE;
+                    writeResponse(code, firstLine(code, open.isTimeout() ? GATEWAY_TIMEOUT : BAD_GATEWAY) +
+                            RETRY_AFTER + HEADER_DELIM + SPACE + open.getRetryAfterSeconds() + CRLF +
+                            CONTENT_LENGTH + HEADER_DELIM + SPACE + "0" + CRLF +
+                            CONNECTION + HEADER_DELIM + SPACE + CLOSE + CRLF + CRLF
+                    );
+                } else if (e instanceof SocketTimeoutException) {
+                    writeResponse(GATEWAY_TIMEOUT_CODE, firstLine(GATEWAY_TIMEOUT_CODE, GATEWAY_TIMEOUT) +
+                            CONNECTION + HEADER_DELIM + SPACE + CLOSE
+                    );
+                } else {
+                    writeResponse(BAD_REQUEST_CODE, firstLine(BAD_REQUEST_CODE, BAD_REQUEST) +
+                            CONNECTION + HEADER_DELIM + SPACE + CLOSE
+                    );
+                }
+            } finally {
+                if (lane != null) lane.release();
             }
         }
 
@@ -166,12 +527,23 @@ public final class SocketHandler implements Runnable {
          */
         @Override
         public void onSuccess(Request request, Response response) {
-            /** Записываем заголовки для отправки клиенту*/
-            writeResponse(response.toString(), response.getBody());
-            if (!cached) {
-                /** Если ответ был кэширован и если он получен методом GET, то кэшируем его*/
+            try {
+                /** Если ответ получен методом GET, то кэшируем его.
+                 * Кодируем заголовки один раз: этот же экземпляр отправляем клиенту и кладем в кэш*/
+                upstreamNanos = System.nanoTime() - upstreamStarted;
+                bytesIn += request.getStreamedLength();
                 if (GET_METHOD.equalsIgnoreCase(request.getMethod())) {
-                    cm.put(request.getUrl(), response);
+                    final CachedResponse cachedResponse = new CachedResponse(response);
+                    response.release();
+                    if (conditions != null && Validators.isNotModified(cachedResponse, conditions)) {
+                        l.log(Logger.Level.INFO, socket, CACHE_NOT_MODIFIED + SPACE + request.getUrl());
+                        writeNotModified(cachedResponse);
+                    } else {
+                        writeResponse(cachedResponse, "origin");
+                    }
+                    cm.put(request, cachedResponse);
+                } else {
+                    writeResponse(response);
                 }
                 l.log(Logger.Level.INFO,
                         socket,
@@ -180,6 +552,8 @@ public final class SocketHandler implements Runnable {
                         false,
                         null
                 );
+            } finally {
+                if (lane != null) lane.release();
             }
         }
     }
@@ -0,0 +1,400 @@
+package http.proxy.admin;
+
+import http.proxy.ProxyServer;
+import http.proxy.cache.CacheManager;
+import http.proxy.cache.CachedResponse;
+import http.proxy.executor.AdaptiveExecutor;
+import http.proxy.executor.Lane;
+import http.proxy.logger.Logger;
+import http.proxy.upstream.CircuitBreakers;
+import http.proxy.upstream.HedgingExecutor;
+import http.proxy.utils.BufferPool;
+import http.proxy.utils.Request;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static http.proxy.constants.Constants.*;
+
+/**
+ * Административный HTTP интерфейс для настройки сервера на ходу.
+ * <p>
+ * Слушает отдельный порт (по умолчанию только 127.0.0.1) в собственном потоке
+ * и обрабатывает соединения по одному, поэтому никак не занимает потоки,
+ * которые обслуживают клиентов. Ответы - простой текст, строки "имя: значение".
+ * <ul>
+ * <li>GET /stats - состояние кэша, пулов потоков, полос попаданий и промахов, BufferPool,
+ * хеджирования и автоматов хостов. Ожидание в полосах (*_lane_wait_*) - за время с прошлого /stats</li>
+ * <li>GET /config - текущие настройки</li>
+ * <li>POST /config?cache_size=..&amp;lifetime=..&amp;worker_threads=..&amp;upstream_threads=..&amp;so_timeout=..
+ * &amp;miss_lane_limit=.. - меняет переданные настройки. При уменьшении cache_size лишнее удаляется пачками.
+ * worker_threads и upstream_threads фиксируют размер пула, границы для подстройки размера
+ * задаются парой *_threads_min и *_threads_max</li>
+ * <li>GET /entries[?limit=N] - содержимое кэша, от самых старых</li>
+ * <li>POST /purge?url=.. - удаляет все варианты по адресу, '*' в адресе - шаблон (http://host/static/*).
+ * POST /purge?prefix=.., ?host=.., ?tag=.. (Surrogate-Key, Cache-Tag) - по префиксу, хосту и тегу,
+ * POST /purge?all=true - весь кэш</li>
+ * </ul>
+ */
+public final class AdminServer implements Runnable {
+
+    private static final int SO_TIMEOUT = 5000;
+    private static final int DEFAULT_ENTRIES_LIMIT = 1000;
+
+    private static final int OK_CODE = 200;
+    private static final int NOT_FOUND_CODE = 404;
+
+    private final ServerSocket serverSocket;
+    private final ProxyServer server;
+    private final CacheManager cm;
+    private final Logger l;
+
+    public AdminServer(final String host,
+                       final int port,
+                       final ProxyServer server,
+                       final CacheManager cm,
+                       final Logger logger
+    ) throws IOException {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(new InetSocketAddress(InetAddress.getByName(host), port));
+        this.server = server;
+        this.cm = cm;
+        this.l = logger;
+    }
+
+    public void start() {
+        final Thread thread = new Thread(this, "admin-server");
+        thread.setDaemon(true);
+        thread.start();
+        l.log(Logger.Level.INFO, "Admin interface started on " + serverSocket.getLocalSocketAddress());
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try (Socket socket = serverSocket.accept()) {
+                socket.setSoTimeout(SO_TIMEOUT);
+                handle(socket);
+            } catch (IOException e) {
+                l.log(Logger.Level.EXCEPTION, "Admin connection failed " + e.getMessage());
+            } catch (RuntimeException e) {
+                /** Ошибка одного запроса не должна останавливать интерфейс до перезапуска*/
+                l.log(Logger.Level.EXCEPTION, "Admin request failed " + e.getClass().getSimpleName() + SPACE + e.getMessage());
+            }
+        }
+    }
+
+    private void handle(final Socket socket) throws IOException {
+        final Request request = new Request();
+        try {
+            request.read(socket.getInputStream());
+        } catch (Exception e) {
+            write(socket.getOutputStream(), BAD_REQUEST_CODE, BAD_REQUEST, BAD_REQUEST + LF);
+            return;
+        } finally {
+            request.release();
+        }
+        l.log(Logger.Level.INFO, socket, request.getMethod(), request.getUrl(), true, "admin");
+
+        final String url = request.getUrl();
+        final int queryStart = url.indexOf('?');
+        final String path = (queryStart < 0) ? url : url.substring(0, queryStart);
+        final boolean post = POST_METHOD.equalsIgnoreCase(request.getMethod());
+
+        final StringBuilder body = new StringBuilder();
+        try {
+            /** URLDecoder бросает IllegalArgumentException на %zz и обрезанные %-последовательности*/
+            final Map<String, String> params = parseQuery((queryStart < 0) ? "" : url.substring(queryStart + 1));
+            switch (path) {
+                case "/stats":
+                    stats(body);
+                    break;
+                case "/config":
+                    if (post) configure(params, body);
+                    config(body);
+                    break;
+                case "/entries":
+                    entries(params, body);
+                    break;
+                case "/purge":
+                    if (!post) {
+                        write(socket.getOutputStream(), METHOD_NOT_ALLOWED_CODE, METHOD_NOT_ALLOWED, "Use POST" + LF);
+                        return;
+                    }
+                    purge(params, body);
+                    break;
+                default:
+                    write(socket.getOutputStream(), NOT_FOUND_CODE, "Not Found", "Unknown path " + path + LF);
+                    return;
+            }
+        } catch (IllegalArgumentException e) {
+            write(socket.getOutputStream(), BAD_REQUEST_CODE, BAD_REQUEST, e.getMessage() + LF);
+            return;
+        }
+        write(socket.getOutputStream(), OK_CODE, "OK", body.toString());
+    }
+
+    private void stats(final StringBuilder body) {
+        final long[] usage = cm.usage();
+        line(body, "cache_size_used", usage[0]);
+        line(body, "cache_size_max", cm.getMaxSize());
+        line(body, "cache_entries", usage[1]);
+        line(body, "cache_hits", cm.getHits());
+        line(body, "cache_misses", cm.getMisses());
+        /** Одинаковые тела хранятся один раз: сколько байт занимали бы копии и сколько сэкономлено*/
+        final long[] dedup = cm.dedupUsage();
+        line(body, "cache_bodies_unique", dedup[2]);
+        line(body, "cache_body_bytes_logical", dedup[1]);
+        line(body, "cache_dedup_hits", dedup[3]);
+        line(body, "cache_dedup_saved_bytes", dedup[1] - dedup[0]);
+        line(body, "cache_dedup_gain_percent", (dedup[0] > 0) ? (dedup[1] - dedup[0]) * 100 / dedup[0] : 0);
+        final long[] negative = cm.negativeUsage();
+        if (negative != null) {
+            line(body, "negative_size_used", negative[0]);
+            line(body, "negative_size_max", negative[1]);
+            line(body, "negative_entries", negative[2]);
+            line(body, "negative_hosts", negative[3]);
+        }
+        final long[] stale = cm.staleUsage();
+        if (stale != null) {
+            line(body, "stale_size_used", stale[0]);
+            line(body, "stale_size_max", stale[1]);
+            line(body, "stale_entries", stale[2]);
+            line(body, "stale_served", stale[3]);
+        }
+        final List<AdaptiveExecutor> workers = server.getWorkerExecutors();
+        for (int i = 0; i < workers.size(); i++) {
+            pool(body, (workers.size() == 1) ? "worker" : "worker_" + i, workers.get(i));
+        }
+        pool(body, "upstream", server.getUpstreamExecutor());
+        lane(body, server.getLanes().hit());
+        lane(body, server.getLanes().miss());
+        line(body, "buffer_pool_outstanding", BufferPool.outstanding());
+        final HedgingExecutor hedging = server.getHedging();
+        if (hedging != null) {
+            line(body, "hedged_requests", hedging.getHedged());
+            line(body, "hedge_wins", hedging.getHedgeWins());
+        }
+        final CircuitBreakers breakers = server.getBreakers();
+        if (breakers != null) {
+            final List<String> open = breakers.getOpenHosts();
+            line(body, "breakers_open", open.size());
+            line(body, "breaker_open_hosts", String.join(",", open));
+            line(body, "breaker_opened", breakers.getOpened());
+            line(body, "breaker_rejected", breakers.getRejected());
+        }
+    }
+
+    private static void pool(final StringBuilder body, final String name, final AdaptiveExecutor executor) {
+        line(body, name + "_threads", executor.getPoolSize());
+        line(body, name + "_threads_min", executor.getMinThreads());
+        line(body, name + "_threads_max", executor.getMaxThreads());
+        line(body, name + "_active", executor.getActiveCount());
+        line(body, name + "_queued", executor.getQueueSize());
+        line(body, name + "_completed", executor.getCompletedTaskCount());
+        line(body, name + "_steals", executor.getSteals());
+        line(body, name + "_resizes", executor.getResizes());
+        line(body, name + "_wait_us", executor.getLastWaitMicros());
+        line(body, name + "_blocked_percent", executor.getLastBlockedPercent());
+    }
+
+    private static void lane(final StringBuilder body, final Lane lane) {
+        final String name = lane.getName() + "_lane";
+        final long[] wait = lane.waitSnapshot();
+        line(body, name + "_served", lane.getServed());
+        line(body, name + "_pending", lane.getPending());
+        line(body, name + "_limit", lane.getLimit());
+        line(body, name + "_rejected", lane.getRejected());
+        line(body, name + "_wait_samples", wait[0]);
+        line(body, name + "_wait_avg_us", wait[1]);
+        line(body, name + "_wait_p50_us", wait[2]);
+        line(body, name + "_wait_p99_us", wait[3]);
+        line(body, name + "_wait_max_us", wait[4]);
+    }
+
+    private void config(final StringBuilder body) {
+        line(body, "cache_size", cm.getMaxSize());
+        line(body, "lifetime", cm.getLifetime());
+        final List<AdaptiveExecutor> workers = server.getWorkerExecutors();
+        final AdaptiveExecutor upstream = server.getUpstreamExecutor();
+        line(body, "worker_threads", server.getWorkerThreads());
+        line(body, "worker_threads_min", workers.get(0).getMinThreads() * workers.size());
+        line(body, "worker_threads_max", workers.get(0).getMaxThreads() * workers.size());
+        line(body, "upstream_threads", upstream.getPoolSize());
+        line(body, "upstream_threads_min", upstream.getMinThreads());
+        line(body, "upstream_threads_max", upstream.getMaxThreads());
+        line(body, "so_timeout", server.getSoTimeout());
+        line(body, "miss_lane_limit", server.getLanes().miss().getLimit());
+    }
+
+    /**
+     * Сначала проверяет все значения, включая диапазон, в котором их можно применить без
+     * приведения типа и переполнения, потом применяет, чтобы ошибка в одном параметре
+     * не оставила настройки примененными наполовину
+     */
+    private void configure(final Map<String, String> params, final StringBuilder body) {
+        final Map<String, Long> values = new LinkedHashMap<>();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            switch (param.getKey()) {
+                case "cache_size":
+                    values.put(param.getKey(), number(param.getKey(), param.getValue(), 0, Long.MAX_VALUE));
+                    break;
+                case "lifetime":
+                    values.put(param.getKey(), number(param.getKey(), param.getValue(), 0, CacheManager.MAX_LIFETIME));
+                    break;
+                case "so_timeout":
+                case "miss_lane_limit":
+                    values.put(param.getKey(), number(param.getKey(), param.getValue(), 0, Integer.MAX_VALUE));
+                    break;
+                case "worker_threads":
+                case "upstream_threads":
+                case "worker_threads_min":
+                case "worker_threads_max":
+                case "upstream_threads_min":
+                case "upstream_threads_max":
+                    values.put(param.getKey(), number(param.getKey(), param.getValue(), 1, Integer.MAX_VALUE));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown setting " + param.getKey());
+            }
+        }
+        final AdaptiveExecutor upstream = server.getUpstreamExecutor();
+        final int workerGroups = server.getWorkerExecutors().size();
+        final AdaptiveExecutor worker = server.getWorkerExecutors().get(0);
+        final int workerMin = bound(values, "worker_threads_min", worker.getMinThreads() * workerGroups);
+        final int workerMax = bound(values, "worker_threads_max", worker.getMaxThreads() * workerGroups);
+        final int upstreamMin = bound(values, "upstream_threads_min", upstream.getMinThreads());
+        final int upstreamMax = bound(values, "upstream_threads_max", upstream.getMaxThreads());
+        if (workerMin > workerMax || upstreamMin > upstreamMax)
+            throw new IllegalArgumentException("*_threads_min must not exceed *_threads_max");
+        for (Map.Entry<String, Long> value : values.entrySet()) {
+            final long v = value.getValue();
+            switch (value.getKey()) {
+                case "cache_size":
+                    line(body, "evicted", cm.setMaxSize(v));
+                    break;
+                case "lifetime":
+                    cm.setLifetime(v);
+                    break;
+                case "worker_threads":
+                    server.setWorkerThreads((int) v);
+                    break;
+                case "upstream_threads":
+                    server.setUpstreamThreads((int) v);
+                    break;
+                case "so_timeout":
+                    server.setSoTimeout((int) v);
+                    break;
+                case "miss_lane_limit":
+                    server.getLanes().miss().setLimit((int) v);
+                    break;
+            }
+        }
+        if (values.containsKey("worker_threads_min") || values.containsKey("worker_threads_max"))
+            server.setWorkerThreadBounds(workerMin, workerMax);
+        if (values.containsKey("upstream_threads_min") || values.containsKey("upstream_threads_max"))
+            server.setUpstreamThreadBounds(upstreamMin, upstreamMax);
+    }
+
+    private void entries(final Map<String, String> params, final StringBuilder body) {
+        final int limit = params.containsKey("limit")
+                ? (int) number("limit", params.get("limit"), 0, Integer.MAX_VALUE)
+                : DEFAULT_ENTRIES_LIMIT;
+        final List<CachedResponse> entries = cm.entries();
+        final long now = System.currentTimeMillis();
+        line(body, "entries", entries.size());
+        for (int i = 0; i < entries.size() && i < limit; i++) {
+            final CachedResponse response = entries.get(i);
+            body.append(response.getCode())
+                    .append(SPACE)
+                    .append(response.getContentLength())
+                    .append(SPACE)
+                    .append((now - response.getCreatedTime()) / 1000)
+                    .append("s ")
+                    .append(cm.keyOf(response.getUrl()))
+                    .append(LF);
+        }
+    }
+
+    private void purge(final Map<String, String> params, final StringBuilder body) {
+        if ("true".equalsIgnoreCase(params.get("all"))) {
+            line(body, "purged", cm.purgeAll());
+        } else if (params.containsKey("url")) {
+            final String url = params.get("url");
+            line(body, "purged", (url.indexOf('*') >= 0) ? cm.purgePattern(url) : cm.purge(url));
+        } else if (params.containsKey("prefix")) {
+            line(body, "purged", cm.purgePrefix(params.get("prefix")));
+        } else if (params.containsKey("host")) {
+            line(body, "purged", cm.purgeHost(params.get("host")));
+        } else if (params.containsKey("tag")) {
+            line(body, "purged", cm.purgeTag(params.get("tag")));
+        } else {
+            throw new IllegalArgumentException("Specify url=..., prefix=..., host=..., tag=... or all=true");
+        }
+    }
+
+    /**
+     * @return граница из запроса или текущая, если ее не передали
+     */
+    private static int bound(final Map<String, Long> values, final String name, final int current) {
+        final Long value = values.get(name);
+        return (value != null) ? value.intValue() : current;
+    }
+
+    /**
+     * @return число из запроса в границах min..max, которые применение значения выдерживает
+     */
+    private static long number(final String name, final String value, final long min, final long max) {
+        final long result;
+        try {
+            result = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad number for " + name + ": " + value);
+        }
+        if (result < min || result > max)
+            throw new IllegalArgumentException(name + " must be in " + min + ".." + max);
+        return result;
+    }
+
+    private static Map<String, String> parseQuery(final String query) throws UnsupportedEncodingException {
+        final Map<String, String> params = new LinkedHashMap<>();
+        for (String param : query.split("&")) {
+            if (param.isEmpty()) continue;
+            final int eq = param.indexOf('=');
+            final String name = (eq < 0) ? param : param.substring(0, eq);
+            final String value = (eq < 0) ? "" : param.substring(eq + 1);
+            params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return params;
+    }
+
+    private static void line(final StringBuilder body, final String name, final long value) {
+        body.append(name).append(HEADER_DELIM).append(SPACE).append(value).append(LF);
+    }
+
+    private static void line(final StringBuilder body, final String name, final String value) {
+        body.append(name).append(HEADER_DELIM).append(SPACE).append(value).append(LF);
+    }
+
+    private static void write(final OutputStream os, final int code, final String message, final String body)
+            throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        final String head = DEFAULT_HTTP_VERSION + SPACE + code + SPACE + message + CRLF +
+                "Content-Type" + HEADER_DELIM + SPACE + "text/plain; charset=utf-8" + CRLF +
+                CONTENT_LENGTH + HEADER_DELIM + SPACE + bytes.length + CRLF +
+                CONNECTION + HEADER_DELIM + SPACE + CLOSE + CRLF + CRLF;
+        os.write(head.getBytes(StandardCharsets.ISO_8859_1));
+        os.write(bytes);
+        os.flush();
+    }
+}
@@ -0,0 +1,192 @@
+package http.proxy.cache;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Тела закэшированных ответов, хранящиеся по содержимому.
+ * <p>
+ * Одинаковые тела (адреса с разными параметрами против кэширования, зеркала CDN, один и тот же
+ * бандл JS по разным адресам) хранятся одним массивом со счетчиком ссылок, и место в кэше
+ * занимает только первая копия. Тело ищется по 64-битному хэшу, а совпадение проверяется
+ * сравнением байт, поэтому коллизия хэша стоит только лишнего сравнения. Хэш с затравкой,
+ * случайной для каждого запуска: сервер не может подобрать тела с одинаковым хэшем.
+ * <p>
+ * Не синхронизирован, все вызовы кроме hash идут под блокировкой Cache.
+ */
+final class BodyStore {
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final long seed = ThreadLocalRandom.current().nextLong();
+    private final Map<Key, Body> bodies = new HashMap<>();
+    /**
+     * Байт в уникальных телах (то, что занято на самом деле)
+     */
+    private long uniqueBytes;
+    /**
+     * Байт во всех телах, как если бы каждая запись хранила свою копию
+     */
+    private long logicalBytes;
+    /**
+     * Память под уникальные тела вместе с массивами и записями хранилища (Weigher.body)
+     */
+    private long uniqueWeight;
+    /**
+     * Сколько раз тело новой записи уже было в хранилище
+     */
+    private long sharedHits;
+
+    /**
+     * Хэш тела, можно вызывать без блокировки
+     */
+    long hash(final byte[] body) {
+        long h = seed ^ body.length;
+        int i = 0;
+        for (; i + 8 <= body.length; i += 8) {
+            long k = (long) LONGS.get(body, i);
+            k *= C1;
+            k = Long.rotateLeft(k, 31);
+            k *= C2;
+            h ^= k;
+            h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+        }
+        for (; i < body.length; i++) {
+            h ^= (body[i] & 0xff);
+            h *= C1;
+        }
+        return mix(h);
+    }
+
+    /**
+     * @return сколько памяти займет тело, если его добавить (0, если такое уже есть)
+     */
+    long charge(final byte[] body, final long hash) {
+        if (body.length == 0 || bodies.containsKey(new Key(body, hash))) return 0;
+        return Weigher.body(body.length);
+    }
+
+    /**
+     * @param body массив, который хранит запись кэша: поиск сравнивает ссылки, а не байты
+     * @return сколько записей ссылается на тело, 0 - его нет в хранилище
+     */
+    int references(final byte[] body, final long hash) {
+        final Body existing = bodies.get(new Key(body, hash));
+        return (existing == null) ? 0 : existing.references;
+    }
+
+    /**
+     * Добавляет ссылку на тело
+     *
+     * @return массив, который нужно хранить в записи: уже имеющаяся копия или сам body
+     */
+    byte[] acquire(final byte[] body, final long hash) {
+        if (body.length == 0) return body;
+        logicalBytes += body.length;
+        final Key key = new Key(body, hash);
+        final Body existing = bodies.get(key);
+        if (existing != null) {
+            existing.references++;
+            sharedHits++;
+            return existing.bytes;
+        }
+        bodies.put(key, new Body(body));
+        uniqueBytes += body.length;
+        uniqueWeight += Weigher.body(body.length);
+        return body;
+    }
+
+    /**
+     * Убирает ссылку на тело, последняя ссылка удаляет его из хранилища
+     */
+    void release(final byte[] body, final long hash) {
+        if (body.length == 0) return;
+        final Key key = new Key(body, hash);
+        final Body existing = bodies.get(key);
+        if (existing == null) return;
+        logicalBytes -= body.length;
+        if (--existing.references == 0) {
+            bodies.remove(key);
+            uniqueBytes -= body.length;
+            uniqueWeight -= Weigher.body(body.length);
+        }
+    }
+
+    void clear() {
+        bodies.clear();
+        uniqueBytes = 0;
+        logicalBytes = 0;
+        uniqueWeight = 0;
+    }
+
+    long getUniqueBytes() {
+        return uniqueBytes;
+    }
+
+    long getUniqueWeight() {
+        return uniqueWeight;
+    }
+
+    long getLogicalBytes() {
+        return logicalBytes;
+    }
+
+    int getBodies() {
+        return bodies.size();
+    }
+
+    long getSharedHits() {
+        return sharedHits;
+    }
+
+    /**
+     * Завершающее перемешивание MurmurHash3
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static final class Key {
+        private final byte[] bytes;
+        private final long hash;
+
+        Key(byte[] bytes, long hash) {
+            this.bytes = bytes;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key other = (Key) o;
+            return hash == other.hash && (bytes == other.bytes || Arrays.equals(bytes, other.bytes));
+        }
+    }
+
+    private static final class Body {
+        private final byte[] bytes;
+        private int references = 1;
+
+        Body(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+}
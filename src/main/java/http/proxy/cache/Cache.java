@@ -1,78 +1,436 @@
 package http.proxy.cache;
 
-import http.proxy.utils.Response;
+import http.proxy.utils.Headers;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static http.proxy.constants.Constants.CACHE_TAG;
+import static http.proxy.constants.Constants.SURROGATE_KEY;
 
 /**
- * Класс для сохранение ответов. Ответы оборнуты в ResponseWrapper
- * для удобной работы с ними.
+ * Класс для сохранение ответов. Ответы хранятся в виде CachedResponse,
+ * уже готовыми к отправке клиенту.
+ * <p>
+ * По одному ключу (нормализованному url) может храниться несколько вариантов
+ * ответа, если сервер прислал заголовок Vary. Вариант выбирается по значениям
+ * перечисленных в Vary заголовков запроса.
+ * <p>
+ * Тела ответов хранятся в BodyStore: одинаковые тела разных записей - один массив.
+ * Размер кэша - это оценка удерживаемой памяти (Weigher): веса вариантов и ключей
+ * плюс уникальные тела.
+ * <p>
+ * Рядом с основной таблицей ведутся индексы для удаления: дерево ключей (UrlIndex) для
+ * префиксов и хостов и теги из Surrogate-Key и Cache-Tag ответа. Тег относится к ключу:
+ * удаление по тегу убирает все варианты ключа. Удаленный по ключу вариант только помечается
+ * в очереди вставки, и очередь сжимается, когда помеченных больше, чем живых.
+ * <p>
+ * Чтение (get, contains) идет без блокировки: ключи лежат в ConcurrentHashMap, а варианты
+ * ключа - в массиве, который не меняется после публикации (при вставке и удалении
+ * варианта массив заменяется новым). Variant и CachedResponse неизменяемы, поэтому
+ * читатель видит либо старый набор вариантов, либо новый, но не промежуточное состояние.
+ * Все изменения и остальные методы вызываются под блокировкой Cache.
  */
 public class Cache {
 
-    private final Map<String, Response> cache = new HashMap<>();
-    private final Deque<String> orderedKeys = new ArrayDeque<>();
+    private static final String[] NO_TAGS = new String[0];
+    private static final Variant[] NO_VARIANTS = new Variant[0];
+
+    private final Map<String, Variant[]> cache = new ConcurrentHashMap<>();
+    private final Deque<Variant> orderedVariants = new ArrayDeque<>();
+    private final BodyStore bodies = new BodyStore();
+    private final UrlIndex index = new UrlIndex();
+    private final Map<String, Set<String>> tagged = new HashMap<>();
+    /**
+     * Живые варианты и удаленные, которые еще лежат в orderedVariants
+     */
+    private int entries;
+    private int dead;
+    /**
+     * Вес вариантов и ключей без тел
+     */
+    private long weight;
+
+    /**
+     * Один вариант ответа по ключу
+     */
+    static final class Variant {
+        final String key;
+        /**
+         * Имена заголовков из Vary ответа и значения этих заголовков в запросе,
+         * по которому был получен ответ (null, если заголовка не было)
+         */
+        final String[] varyNames;
+        final String[] varyValues;
+        final CachedResponse response;
+        /**
+         * Хэш тела для BodyStore, считается до захвата блокировки
+         */
+        final long bodyHash;
+        /**
+         * Теги из Surrogate-Key и Cache-Tag
+         */
+        final String[] tags;
+        /**
+         * Вес без тела и ключа, считается до захвата блокировки
+         */
+        final long weight;
+        /**
+         * Удален из кэша, но еще лежит в очереди вставки. Меняется и читается
+         * под блокировкой Cache, чтение вариантов из кэша его не смотрит
+         */
+        boolean removed;
+
+        Variant(String key, String[] varyNames, String[] varyValues, CachedResponse response, long bodyHash) {
+            this.key = key;
+            this.varyNames = varyNames;
+            this.varyValues = varyValues;
+            this.response = response;
+            this.bodyHash = bodyHash;
+            this.tags = tags(response.getHeaders());
+            this.weight = Weigher.variant(varyNames, varyValues, tags, response);
+        }
+
+        private Variant(Variant source, CachedResponse response) {
+            this.key = source.key;
+            this.varyNames = source.varyNames;
+            this.varyValues = source.varyValues;
+            this.response = response;
+            this.bodyHash = source.bodyHash;
+            this.tags = source.tags;
+            this.weight = source.weight;
+        }
+
+        boolean matches(final Headers requestHeaders) {
+            for (int i = 0; i < varyNames.length; i++) {
+                if (!Objects.equals(varyValues[i], varyValue(requestHeaders, varyNames[i]))) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Теги ответа: Surrogate-Key через пробел, Cache-Tag через запятую
+     */
+    private static String[] tags(final Headers responseHeaders) {
+        final List<String> surrogateKeys = responseHeaders.getAll(SURROGATE_KEY);
+        final List<String> cacheTags = responseHeaders.getAll(CACHE_TAG);
+        if (surrogateKeys.isEmpty() && cacheTags.isEmpty()) return NO_TAGS;
+        final Set<String> tags = new LinkedHashSet<>();
+        for (String value : surrogateKeys) {
+            for (String tag : value.trim().split("\\s+")) {
+                if (!tag.isEmpty()) tags.add(tag);
+            }
+        }
+        for (String value : cacheTags) {
+            for (String tag : value.split(",")) {
+                final String trimmed = tag.trim();
+                if (!trimmed.isEmpty()) tags.add(trimmed);
+            }
+        }
+        return tags.toArray(NO_TAGS);
+    }
+
+    /**
+     * Значение заголовка запроса для сравнения вариантов. Повторяющиеся
+     * заголовки объединяются через запятую, пробелы по краям не учитываются
+     */
+    static String varyValue(final Headers requestHeaders, final String name) {
+        final List<String> values = requestHeaders.getAll(name);
+        if (values.isEmpty()) return null;
+        if (values.size() == 1) return values.get(0).trim();
+        final StringBuilder builder = new StringBuilder();
+        for (String value : values) {
+            if (builder.length() > 0) builder.append(',');
+            builder.append(value.trim());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Кладем вариант ответа в кэш. Если такое же тело уже есть,
+     * вариант хранит ссылку на него, а не свою копию
+     *
+     * @param variant вариант, у которого нет совпадающего варианта в кэше
+     */
+    void put(final Variant variant) {
+        final byte[] body = bodies.acquire(variant.response.getBody(), variant.bodyHash);
+        final Variant stored = (body == variant.response.getBody())
+                ? variant
+                : new Variant(variant, variant.response.withBody(body));
+        orderedVariants.add(stored);
+        final Variant[] variants = cache.get(stored.key);
+        if (variants == null) {
+            cache.put(stored.key, new Variant[]{stored});
+            index.add(stored.key);
+            weight += Weigher.key(stored.key);
+        } else {
+            final Variant[] added = Arrays.copyOf(variants, variants.length + 1);
+            added[variants.length] = stored;
+            cache.put(stored.key, added);
+        }
+        for (String tag : stored.tags) {
+            tagged.computeIfAbsent(tag, t -> new HashSet<>()).add(stored.key);
+        }
+        entries++;
+        weight += stored.weight;
+    }
 
-    private int size;
+    /**
+     * Хэш тела, вызывается без блокировки
+     */
+    long hash(final byte[] body) {
+        return bodies.hash(body);
+    }
 
     /**
-     * Если responseWrapper валидный кладем его в кэш
+     * @return на сколько вырастет размер кэша, если положить этот вариант
+     */
+    long charge(final Variant variant) {
+        return variant.weight
+                + (cache.containsKey(variant.key) ? 0 : Weigher.key(variant.key))
+                + bodies.charge(variant.response.getBody(), variant.bodyHash);
+    }
+
+    /**
+     * @return вес варианта в пустом кэше: больше этого он не займет никогда
+     */
+    static long weigh(final Variant variant) {
+        return variant.weight + Weigher.key(variant.key) + Weigher.body(variant.response.getBody().length);
+    }
+
+    /**
+     * Вызывается без блокировки
+     */
+    boolean contains(final String key) {
+        return cache.containsKey(key);
+    }
+
+    /**
+     * Вызывается без блокировки. CachedResponse не меняется после создания,
+     * поэтому один и тот же экземпляр можно отдавать всем
      *
-     * @param url      url по, которому был получен ответ
-     * @param response ответ, соответвующий данному url
+     * @param key            нормализованный url
+     * @param requestHeaders заголовки запроса, по ним выбирается вариант
+     * @return экземпляр CachedResponse из кэша или null
+     */
+    CachedResponse get(final String key, final Headers requestHeaders) {
+        final Variant[] variants = cache.get(key);
+        if (variants == null) return null;
+        for (Variant variant : variants) {
+            if (variant.matches(requestHeaders)) return variant.response;
+        }
+        return null;
+    }
+
+    /**
+     * Есть ли в кэше вариант с такими же значениями Vary заголовков
      */
-    void put(final String url, final Response response) {
-            orderedKeys.add(url);
-            cache.put(url, response);
-            size += response.getContentLength();
+    boolean containsVariant(final String key, final String[] varyNames, final String[] varyValues) {
+        final Variant[] variants = cache.get(key);
+        if (variants == null) return false;
+        for (Variant variant : variants) {
+            if (Arrays.equals(variant.varyNames, varyNames) && Arrays.equals(variant.varyValues, varyValues))
+                return true;
+        }
+        return false;
     }
 
-    boolean contains(final String url) {
-        return cache.containsKey(url);
+    /**
+     * Удаляет вариант, который уже вынут из очереди вставки
+     */
+    private void remove(final Variant variant) {
+        final Variant[] variants = cache.get(variant.key);
+        if (variants == null) return;
+        final Variant[] remaining = new Variant[variants.length - 1];
+        int count = 0;
+        for (Variant v : variants) {
+            if (v == variant) continue;
+            /** Варианта уже нет среди вариантов ключа*/
+            if (count == remaining.length) return;
+            remaining[count++] = v;
+        }
+        release(variant, remaining);
+        if (remaining.length == 0) {
+            cache.remove(variant.key);
+            index.remove(variant.key);
+            weight -= Weigher.key(variant.key);
+        } else {
+            cache.put(variant.key, remaining);
+        }
     }
 
     /**
-     * Возвращаем копию так как буфер в Response,
-     * который находится внутри ResponseWrapper
-     * можно читать только один раз, а копия из кэша
-     * может запрашивать несколько раз
+     * Удаляет все варианты по ключу
      *
-     * @param url адрес
-     * @return экземпляр Response из кэша
+     * @return сколько вариантов удалено
+     */
+    int remove(final String key) {
+        final Variant[] variants = cache.remove(key);
+        if (variants == null) return 0;
+        for (Variant variant : variants) {
+            release(variant, NO_VARIANTS);
+            variant.removed = true;
+            dead++;
+        }
+        index.remove(key);
+        weight -= Weigher.key(key);
+        /** Сжатие стоит O(n), но делается не чаще, чем удалено столько же вариантов, сколько живых*/
+        if (dead > entries && dead > 64) {
+            orderedVariants.removeIf(variant -> variant.removed);
+            dead = 0;
+        }
+        return variants.length;
+    }
+
+    /**
+     * @param remaining оставшиеся варианты того же ключа: тег снимается с ключа, только если у них его нет
+     */
+    private void release(final Variant variant, final Variant[] remaining) {
+        bodies.release(variant.response.getBody(), variant.bodyHash);
+        weight -= variant.weight;
+        entries--;
+        for (String tag : variant.tags) {
+            if (hasTag(remaining, tag)) continue;
+            final Set<String> keys = tagged.get(tag);
+            if (keys != null && keys.remove(variant.key) && keys.isEmpty()) tagged.remove(tag);
+        }
+    }
+
+    private static boolean hasTag(final Variant[] variants, final String tag) {
+        for (Variant variant : variants) {
+            for (String t : variant.tags) {
+                if (t.equals(tag)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return ключи, которые начинаются с prefix
+     */
+    List<String> keysWithPrefix(final String prefix) {
+        final List<String> keys = new ArrayList<>();
+        index.collect(prefix, keys);
+        return keys;
+    }
+
+    /**
+     * @return ключи, у вариантов которых есть тег
      */
-    Response get(String url) {
-        return cache.get(url);
+    List<String> keysTagged(final String tag) {
+        final Set<String> keys = tagged.get(tag);
+        return (keys == null) ? Collections.emptyList() : new ArrayList<>(keys);
+    }
+
+    void clear() {
+        cache.clear();
+        orderedVariants.clear();
+        bodies.clear();
+        index.clear();
+        tagged.clear();
+        weight = 0;
+        entries = 0;
+        dead = 0;
     }
 
     /**
-     * @param url адрес
+     * @return ответы от самого старого к самому новому
      */
-    private void remove(final String url) {
-        if (cache.containsKey(url)) {
-            size -= cache.get(url).getContentLength();
-            cache.remove(url);
+    List<CachedResponse> responses() {
+        final List<CachedResponse> result = new ArrayList<>(entries);
+        for (Variant variant : orderedVariants) {
+            if (!variant.removed) result.add(variant.response);
         }
+        return result;
     }
 
-    int getSize() {
-        return size;
+    /**
+     * @return оценка занятой памяти в байтах
+     */
+    long getSize() {
+        return weight + bodies.getUniqueWeight();
+    }
+
+    /**
+     * @return {байт в уникальных телах, байт во всех телах без учета общих,
+     * количество уникальных тел, сколько раз тело оказалось общим}
+     */
+    long[] dedupUsage() {
+        return new long[]{bodies.getUniqueBytes(), bodies.getLogicalBytes(), bodies.getBodies(), bodies.getSharedHits()};
+    }
+
+    /**
+     * @return количество вариантов во всем кэше
+     */
+    int getEntries() {
+        return entries;
+    }
+
+    /**
+     * Сколько места освободит удаление limit самых старых вариантов, ничего не удаляя.
+     * Ключ освобождается, если уходят все его варианты, тело - если уходят все ссылки на него
+     *
+     * @return освобождаемый вес в байтах, как его считает getSize()
+     */
+    long evictable(final int limit) {
+        final Map<String, Integer> keys = new HashMap<>();
+        final Map<byte[], Integer> bodyReferences = new IdentityHashMap<>();
+        long freed = 0;
+        int seen = 0;
+        for (Variant variant : orderedVariants) {
+            if (seen == limit) break;
+            if (variant.removed) continue;
+            seen++;
+            freed += variant.weight;
+            final Variant[] variants = cache.get(variant.key);
+            if (variants != null && keys.merge(variant.key, 1, Integer::sum) == variants.length) {
+                freed += Weigher.key(variant.key);
+            }
+            final byte[] body = variant.response.getBody();
+            if (body.length > 0 && bodyReferences.merge(body, 1, Integer::sum)
+                    == bodies.references(body, variant.bodyHash)) {
+                freed += Weigher.body(body.length);
+            }
+        }
+        return freed;
     }
 
     /**
      * Удалить самый первый элемент, то есть тот
      * который дольше всех находится в кэше
      *
-     * @return ключ - соответсвующий удаленному элементу
+     * @return удаленный вариант
      */
-    String removeOldest() {
-        final String first = orderedKeys.pollFirst();
+    Variant removeOldest() {
+        skipRemoved();
+        final Variant first = orderedVariants.pollFirst();
         remove(first);
         return first;
     }
 
+    /**
+     * Убирает из начала очереди варианты, удаленные по ключу
+     */
+    private void skipRemoved() {
+        while (!orderedVariants.isEmpty() && orderedVariants.peekFirst().removed) {
+            orderedVariants.pollFirst();
+            dead--;
+        }
+    }
+
     /**
      * Время, когда был добавлен самый старые элемент в
      * кэше
@@ -80,7 +438,8 @@ public class Cache {
      * @return время в миллисекундах
      */
     long oldestCreatedTime() {
-        return get(orderedKeys.getFirst()).getCreatedTime();
+        skipRemoved();
+        return orderedVariants.getFirst().response.getCreatedTime();
     }
 
     boolean isNotEmpty() {
@@ -0,0 +1,18 @@
+package http.proxy.cache;
+
+import http.proxy.utils.Request;
+
+/**
+ * Получает уведомления о новых элементах кэша.
+ * Вызывается в потоке, который положил ответ в кэш, поэтому не должен
+ * выполнять долгую работу сам, а только ставить ее в очередь
+ */
+public interface CacheListener {
+
+    /**
+     * @param request  запрос, по которому был получен ответ
+     * @param response ответ, который только что попал в кэш
+     */
+    void onInserted(Request request, CachedResponse response);
+
+}
@@ -1,10 +1,23 @@
 package http.proxy.cache;
 
+import http.proxy.jfr.CacheEvictionEvent;
+import http.proxy.jfr.CacheLockEvent;
+import http.proxy.jfr.CacheSweepEvent;
 import http.proxy.logger.Logger;
-import http.proxy.utils.Response;
+import http.proxy.utils.Headers;
+import http.proxy.utils.Request;
 
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 
 import static http.proxy.constants.Constants.*;
 
@@ -14,16 +27,55 @@ import static http.proxy.constants.Constants.*;
  * При инициализации запускает timer.schedule(), который каждые lifetime секунд
  * проверяет кэш на наличие устаревших значений и удаляет их, если таковые находятся.
  * Timer Schedule работает в фоне, не мешяю основному потоку.
- * Все обращения синхронизированы по кэшу, чтобы действия надо кэшем могу выполнять только
- * один поток.
+ * Все изменения синхронизированы по кэшу, чтобы действия надо кэшем могу выполнять только
+ * один поток. Чтение (getResponse, contains) идет без блокировки: записи кэша неизменяемы
+ * и создаются один раз при вставке, поэтому попадания не ждут вставок и чистки.
+ * <p>
+ * Ключ кэша - url запроса, приведенный к каноническому виду через UrlNormalizer.
+ * Если ответ содержит Vary, по одному ключу хранится несколько вариантов,
+ * а ответ с Vary: * не кэшируется совсем.
+ * <p>
+ * Если зарегистрирован NegativeCache, ответы 404, 410, 5xx и недоступные хосты
+ * хранятся в нем с коротким временем жизни и не занимают место основного кэша.
+ * <p>
+ * Если зарегистрирован StaleCache, ответы, устаревшие по lifetime, переходят в него
+ * и отдаются (getStale), когда сервер недоступен.
+ * <p>
+ * Кроме точного адреса ответы можно удалить по префиксу, хосту, шаблону и тегу
+ * (Surrogate-Key, Cache-Tag), не дожидаясь истечения: ключи находятся по индексам Cache
+ * и удаляются пачками.
  */
 public final class CacheManager {
 
-    private long maxSize;
-    private long lifetime;
+    /**
+     * Сколько элементов удаляется за один захват блокировки. Между пачками
+     * блокировка отпускается, чтобы запросы не ждали долгую чистку
+     */
+    private static final int EVICTION_BATCH = 64;
+    /**
+     * Сколько ключей удаляется за один захват блокировки при удалении по префиксу, хосту,
+     * шаблону или тегу: сто тысяч ключей не держат блокировку все время удаления
+     */
+    private static final int PURGE_BATCH = 256;
+    private static final String[] SCHEMES = {"http", "https"};
+    private static final long MIN_LIFETIME = 5;
+    /**
+     * Больше этого lifetime в миллисекундах и сроки чистильщика переполнили бы long
+     */
+    public static final long MAX_LIFETIME = Integer.MAX_VALUE;
+
+    private volatile long maxSize;
+    private volatile long lifetime;
     private Logger logger;
+    private UrlNormalizer urlNormalizer = new UrlNormalizer();
+    private volatile CacheListener listener;
+    private NegativeCache negativeCache;
+    private StaleCache staleCache;
     private final Cache cache;
+    private final Timer timer = new Timer();
     private TimerTask cleaner;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
 
     /**
      * @param maxSize  максимальный размер кэша в байтах
@@ -31,25 +83,145 @@ public final class CacheManager {
      */
     public CacheManager(final long maxSize, final long lifetime) {
         this.cache = new Cache();
-        long minLifeTime = 5;
-        if (lifetime < minLifeTime) {
-            this.lifetime = minLifeTime * 1000;
-        } else {
-            this.lifetime = lifetime * 1000;
-        }
-        if (maxSize > 0) {
-            this.maxSize = maxSize;
-            initCleaner();
-            final Timer timer = new Timer();
-            /** Запускаем чистку кэша по расписанию через каждые lifetime миллисекунд */
-            timer.schedule(cleaner, 0, this.lifetime);
-        }
+        this.maxSize = Math.max(maxSize, 0);
+        setLifetime(lifetime);
     }
 
     public void registerLogger(final Logger logger) {
         this.logger = logger;
     }
 
+    public void registerUrlNormalizer(final UrlNormalizer urlNormalizer) {
+        this.urlNormalizer = urlNormalizer;
+    }
+
+    public void registerListener(final CacheListener listener) {
+        this.listener = listener;
+    }
+
+    public void registerNegativeCache(final NegativeCache negativeCache) {
+        this.negativeCache = negativeCache;
+    }
+
+    public void registerStaleCache(final StaleCache staleCache) {
+        this.staleCache = staleCache;
+    }
+
+    /**
+     * Меняет время жизни элементов и перезапускает чистильщик с новым периодом.
+     * Прежний чистильщик отменяется только после того, как запущен новый:
+     * кэш не остается без чистки, даже если запуск не удался
+     *
+     * @param lifetime время жизни в секундах, не меньше MIN_LIFETIME
+     * @throws IllegalArgumentException lifetime больше MAX_LIFETIME
+     */
+    public void setLifetime(final long lifetime) {
+        if (lifetime > MAX_LIFETIME) throw new IllegalArgumentException("lifetime must not exceed " + MAX_LIFETIME);
+        final long period = Math.max(lifetime, MIN_LIFETIME) * 1000;
+        synchronized (timer) {
+            final TimerTask previous = cleaner;
+            initCleaner();
+            try {
+                /** Запускаем чистку кэша по расписанию через каждые lifetime миллисекунд */
+                timer.schedule(cleaner, 0, period);
+            } catch (RuntimeException e) {
+                cleaner = previous;
+                throw e;
+            }
+            this.lifetime = period;
+            if (previous != null) previous.cancel();
+        }
+    }
+
+    /**
+     * Меняет максимальный размер кэша. При уменьшении лишние элементы удаляются
+     * пачками по EVICTION_BATCH, начиная с самых старых, в вызывающем потоке.
+     * Запросы между пачками продолжают работать с кэшем.
+     *
+     * @param maxSize новый размер в байтах
+     * @return сколько элементов было удалено
+     */
+    public int setMaxSize(final long maxSize) {
+        this.maxSize = Math.max(maxSize, 0);
+        int removed = 0;
+        int batch;
+        do {
+            batch = evictBatch(false);
+            removed += batch;
+        } while (batch == EVICTION_BATCH);
+        if (logger != null)
+            logger.log(Logger.Level.INFO, "Cache resized to " + this.maxSize + " bytes, removed " + removed);
+        return removed;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return время жизни в секундах
+     */
+    public long getLifetime() {
+        return lifetime / 1000;
+    }
+
+    /**
+     * Удаляет не больше EVICTION_BATCH самых старых элементов: устаревших
+     * (expired = true) или тех, что не помещаются в maxSize
+     *
+     * @return сколько элементов удалено
+     */
+    private int evictBatch(final boolean expired) {
+        final CacheLockEvent lock = lockEvent(expired ? "expire" : "evict");
+        synchronized (cache) {
+            lock.commit();
+            int removed = 0;
+            while (removed < EVICTION_BATCH && cache.isNotEmpty()
+                    && (expired
+                    ? System.currentTimeMillis() - cache.oldestCreatedTime() > lifetime
+                    : cache.getSize() > maxSize)
+            ) {
+                final Cache.Variant removedVariant = cache.removeOldest();
+                final String removedUrl = removedVariant.key;
+                if (expired && staleCache != null) staleCache.put(removedVariant);
+                removed++;
+                if (logger != null)
+                    logger.log(Logger.Level.INFO, (expired ? CACHE_OUTDATED : CACHE_NO_SPACE) +
+                            SPACE +
+                            cache.getSize() +
+                            SPACE +
+                            removedUrl
+                    );
+            }
+            if (removed > 0) evicted(expired, removed);
+            return removed;
+        }
+    }
+
+    /**
+     * Событие начинает отсчет ожидания блокировки кэша,
+     * commit() вызывается сразу после входа в synchronized
+     */
+    private static CacheLockEvent lockEvent(final String operation) {
+        final CacheLockEvent event = new CacheLockEvent();
+        event.operation = operation;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Вызывается под блокировкой кэша
+     */
+    private void evicted(final boolean expired, final int removed) {
+        final CacheEvictionEvent event = new CacheEvictionEvent();
+        if (event.shouldCommit()) {
+            event.expired = expired;
+            event.removed = removed;
+            event.sizeAfter = cache.getSize();
+            event.commit();
+        }
+    }
+
     /**
      * Инициализирует чистильшик кэша
      * Через каждые lifetime миллисекунд удаляет из кэша
@@ -59,30 +231,27 @@ public final class CacheManager {
         cleaner = new TimerTask() {
             @Override
             public void run() {
-                /** Выполняем синхронизацию по кэшу, чтобы он не менялся пока идет чистка*/
-                synchronized (cache) {
-                    if (cache.isEmpty()) return;
-                    try {
-                        while (cache.isNotEmpty()
-                                && System.currentTimeMillis() - cache.oldestCreatedTime() > lifetime
-                        ) {
-                            final String removedUrl = cache.removeOldest();
-                            if (logger != null)
-                                logger.log(Logger.Level.INFO, CACHE_OUTDATED +
-                                        SPACE +
-                                        cache.getSize() +
-                                        SPACE +
-                                        removedUrl
-                                );
-                        }
-                    } catch (IllegalStateException e) {
-                        if (logger != null)
-                            logger.log(Logger.Level.EXCEPTION, VERY_BAD_CACHE_EXCEPTION +
-                                    SPACE +
-                                    e.getMessage()
-                            );
-                    }
+                final CacheSweepEvent sweep = new CacheSweepEvent();
+                sweep.begin();
+                try {
+                    /** Чистим пачками, отпуская блокировку кэша между ними*/
+                    int batch;
+                    do {
+                        batch = evictBatch(true);
+                        sweep.removed += batch;
+                        sweep.batches++;
+                        if (batch == EVICTION_BATCH) Thread.yield();
+                    } while (batch == EVICTION_BATCH);
+                    if (negativeCache != null) negativeCache.removeExpired();
+                    if (staleCache != null) staleCache.removeExpired();
+                } catch (IllegalStateException e) {
+                    if (logger != null)
+                        logger.log(Logger.Level.EXCEPTION, VERY_BAD_CACHE_EXCEPTION +
+                                SPACE +
+                                e.getMessage()
+                        );
                 }
+                sweep.commit();
             }
         };
     }
@@ -90,33 +259,78 @@ public final class CacheManager {
     /**
      * Кладем новое значение в кэш, если раньше его там не было.
      * <p>
-     * Ответ и тело ответа передаются отдельно, чтобы было
-     * удобнее копировать кэшированный ответ.
-     * <p>
      * Если в кэше недостатоно места, то будем удалять оттуда
-     * элементы, пока место не появится.
+     * элементы, пока место не появится, но не больше EVICTION_BATCH. Если пачки не хватит,
+     * это видно заранее, и тогда ответ не кэшируется, а из кэша ничего не удаляется.
      * <p>
      * Если всталяемый файл слишком большой для кеша, то вставка
      * не произойдет
      *
-     * @param url      адрес
+     * @param request  запрос, по которому получен ответ (нужен для Vary)
      * @param response ответ
      */
-    public void put(final String url, final Response response) {
+    public void put(final Request request, final CachedResponse response) {
+        if (negativeCache != null && NegativeCache.isNegative(response.getCode())) {
+            final String key = urlNormalizer.normalize(request.getUrl());
+            if (negativeCache.put(key, response) && logger != null)
+                logger.log(Logger.Level.INFO, CACHE_NEGATIVE_INSERTED + SPACE + response.getCode() + SPACE + key);
+            return;
+        }
+        /** 304 и 206 - ответ на условие или диапазон одного клиента, а не сам ресурс*/
+        if (response.getCode() == NOT_MODIFIED_CODE || response.getCode() == PARTIAL_CONTENT_CODE) {
+            if (logger != null)
+                logger.log(Logger.Level.INFO, CACHE_PARTIAL + SPACE + response.getCode() + SPACE + response.getUrl());
+            return;
+        }
+        final String[] varyNames = varyNames(response.getHeaders());
+        if (varyNames == null) {
+            if (logger != null)
+                logger.log(Logger.Level.INFO, CACHE_NOT_CACHEABLE + SPACE + response.getUrl());
+            return;
+        }
+        final String[] varyValues = new String[varyNames.length];
+        for (int i = 0; i < varyNames.length; i++) {
+            varyValues[i] = Cache.varyValue(request.getHeaders(), varyNames[i]);
+        }
+        final String key = urlNormalizer.normalize(request.getUrl());
+        /** Хэш тела и вес считаются до блокировки*/
+        final Cache.Variant variant = new Cache.Variant(key, varyNames, varyValues, response, cache.hash(response.getBody()));
+        final long weight = Cache.weigh(variant);
+
+        final CacheLockEvent lock = lockEvent("put");
         synchronized (cache) {
-            if (cache.contains(url)) return;
-            if (maxSize < response.getContentLength()) {
+            lock.commit();
+            if (cache.containsVariant(key, varyNames, varyValues)) return;
+            if (maxSize < weight) {
                 if (logger != null)
                     logger.log(Logger.Level.WARNING, CACHE_TOO_BIG +
                             SPACE +
-                            response.getContentLength() +
+                            weight +
                             " bytes"
                     );
                 return;
             }
 
-            while (cache.getSize() + response.getContentLength() > maxSize) {
-                final String removedUrl = cache.removeOldest();
+            /** Тело, которое уже есть в кэше, места не занимает. Вес считается один раз:
+             * для повторяющегося тела это сравнение всех его байт*/
+            long charge = cache.charge(variant);
+            /** Место освобождаем не больше чем одной пачкой. Хватит ли ее, проверяем заранее:
+             * если нет (кэш только что уменьшили и он еще не ужался), ответ не кэшируется,
+             * а записи в кэше остаются на месте*/
+            if (cache.getSize() + charge > maxSize
+                    && cache.getSize() - cache.evictable(EVICTION_BATCH) + charge > maxSize) {
+                if (logger != null)
+                    logger.log(Logger.Level.INFO, CACHE_NO_SPACE + SPACE + cache.getSize() + SPACE +
+                            HEADER_DELIM + SPACE + key);
+                return;
+            }
+            int removed = 0;
+            while (cache.getSize() + charge > maxSize && cache.isNotEmpty()) {
+                removed++;
+                final Cache.Variant oldest = cache.removeOldest();
+                /** Ушел последний вариант того же ключа или последняя копия того же тела:
+                 * теперь вставка стоит дороже*/
+                if (oldest.key.equals(key) || oldest.bodyHash == variant.bodyHash) charge = cache.charge(variant);
                 if (logger != null)
                     logger.log(Logger.Level.INFO, CACHE_NO_SPACE +
                             SPACE +
@@ -124,37 +338,340 @@ public final class CacheManager {
                             SPACE +
                             HEADER_DELIM +
                             SPACE +
-                            removedUrl
+                            oldest.key
                     );
             }
-            cache.put(url, response);
+            if (removed > 0) evicted(false, removed);
+            cache.put(variant);
+            if (staleCache != null) staleCache.remove(key);
             logger.log(Logger.Level.INFO,
                     CACHE_INSERTED +
                             SPACE +
-                            response.getUrl()
+                            key
             );
         }
+        /** Слушатель вызывается вне блокировки: он может сам обращаться к кэшу*/
+        if (listener != null) listener.onInserted(request, response);
     }
 
     /**
      * Получить кэшированный ответ из кэша
      *
-     * @param url адрес
-     * @return кэшированный ответ
+     * @param request запрос клиента
+     * @return кэшированный ответ, подходящий по url и Vary заголовкам, или null
      */
-    public Response getResponse(final String url) {
-        synchronized (cache) {
-            if (!contains(url)) return null;
-            logger.log(Logger.Level.INFO, CACHE_RETURNED + SPACE + url);
-            return cache.get(url);
+    public CachedResponse getResponse(final Request request) {
+        final String key = urlNormalizer.normalize(request.getUrl());
+        final CachedResponse response = cache.get(key, request.getHeaders());
+        if (response != null) {
+            hits.incrementAndGet();
+            logger.log(Logger.Level.INFO, CACHE_RETURNED + SPACE + key);
+            return response;
         }
+        final CachedResponse negative = (negativeCache != null) ? negativeCache.get(key) : null;
+        if (negative == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        logger.log(Logger.Level.INFO, CACHE_NEGATIVE_RETURNED + SPACE + negative.getCode() + SPACE + key);
+        return negative;
+    }
+
+    /**
+     * Устаревший ответ для запроса, который не удалось выполнить
+     *
+     * @return ответ, удаленный из кэша по времени жизни не раньше чем stale_ttl назад, или null
+     */
+    public CachedResponse getStale(final Request request) {
+        if (staleCache == null) return null;
+        final String key = urlNormalizer.normalize(request.getUrl());
+        final CachedResponse stale = staleCache.get(key, request.getHeaders());
+        if (stale != null && logger != null) logger.log(Logger.Level.INFO, CACHE_STALE_RETURNED + SPACE + key);
+        return stale;
     }
 
+    /**
+     * Запоминает, что хост недоступен (ошибка DNS или подключения).
+     * Остальные ошибки (например таймаут чтения) не запоминаются
+     *
+     * @param request   запрос, который не удалось выполнить
+     * @param exception ошибка выполнения запроса
+     */
+    public void putFailure(final Request request, final Exception exception) {
+        if (negativeCache == null) return;
+        final String host = hostOf(request);
+        if (host != null && negativeCache.putFailure(host, exception) && logger != null)
+            logger.log(Logger.Level.INFO, CACHE_FAILURE_INSERTED + SPACE + host + SPACE + exception.getClass().getSimpleName());
+    }
 
+    /**
+     * @return запомненная ошибка подключения к хосту запроса или null, если хост не известен как недоступный
+     */
+    public Exception getFailure(final Request request) {
+        if (negativeCache == null) return null;
+        final String host = hostOf(request);
+        final Exception failure = (host != null) ? negativeCache.getFailure(host) : null;
+        if (failure != null && logger != null)
+            logger.log(Logger.Level.INFO, CACHE_FAILURE_RETURNED + SPACE + host);
+        return failure;
+    }
+
+    private static String hostOf(final Request request) {
+        try {
+            return new URL(request.getUrl()).getAuthority().toLowerCase(Locale.ROOT);
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param url адрес запроса
+     * @return ключ, под которым ответ на этот адрес хранится в кэше
+     */
+    public String keyOf(final String url) {
+        return urlNormalizer.normalize(url);
+    }
+
+    /**
+     * @param url адрес, нормализуется так же, как при вставке
+     * @return есть ли по адресу хотя бы один вариант ответа
+     */
     public boolean contains(final String url) {
+        final String key = urlNormalizer.normalize(url);
+        if (cache.contains(key)) return true;
+        return negativeCache != null && negativeCache.contains(key);
+    }
+
+    /**
+     * Удаляет все варианты ответа по адресу
+     *
+     * @param url адрес, нормализуется так же, как при вставке
+     * @return сколько вариантов удалено
+     */
+    public int purge(final String url) {
+        final String key = urlNormalizer.normalize(url);
+        int removed;
+        synchronized (cache) {
+            removed = cache.remove(key);
+        }
+        if (negativeCache != null) removed += negativeCache.remove(key);
+        if (staleCache != null) removed += staleCache.remove(key);
+        if (removed > 0 && logger != null)
+            logger.log(Logger.Level.INFO, CACHE_PURGED + SPACE + key);
+        return removed;
+    }
+
+    /**
+     * Удаляет все ключи, которые начинаются с prefix
+     *
+     * @param prefix начало адреса, например http://host/static/
+     * @return сколько вариантов удалено
+     */
+    public int purgePrefix(final String prefix) {
+        final String normalized = urlNormalizer.normalizePrefix(prefix);
+        final List<String> keys;
         synchronized (cache) {
-            return cache.contains(url);
+            keys = cache.keysWithPrefix(normalized);
+        }
+        final Predicate<String> matches = key -> key.startsWith(normalized);
+        return purgeKeys("prefix " + normalized, keys, matches, variant -> matches.test(variant.key));
+    }
+
+    /**
+     * Удаляет все ответы хоста по http и https
+     *
+     * @param host имя хоста; без порта удаляются ответы на всех портах
+     * @return сколько вариантов удалено
+     */
+    public int purgeHost(final String host) {
+        final List<String> prefixes = new ArrayList<>(4);
+        for (String scheme : SCHEMES) {
+            prefixes.add(urlNormalizer.normalizePrefix(scheme + "://" + host + "/"));
+            if (host.indexOf(':') < 0) prefixes.add(scheme + "://" + host.toLowerCase(Locale.ROOT) + ":");
+        }
+        final List<String> keys = new ArrayList<>();
+        synchronized (cache) {
+            for (String prefix : prefixes) {
+                keys.addAll(cache.keysWithPrefix(prefix));
+            }
+        }
+        final Predicate<String> matches = key -> {
+            for (String prefix : prefixes) {
+                if (key.startsWith(prefix)) return true;
+            }
+            return false;
+        };
+        return purgeKeys("host " + host, keys, matches, variant -> matches.test(variant.key));
+    }
+
+    /**
+     * Удаляет ключи, подходящие под шаблон, в котором '*' - любая последовательность символов.
+     * Кандидаты берутся из дерева по части шаблона до первой '*'
+     *
+     * @param pattern например http://host/static/*.js
+     * @return сколько вариантов удалено
+     */
+    public int purgePattern(final String pattern) {
+        final String normalized = urlNormalizer.normalizePrefix(pattern);
+        final int star = normalized.indexOf('*');
+        if (star < 0) return purge(pattern);
+        final Pattern regex = globToRegex(normalized);
+        final List<String> keys = new ArrayList<>();
+        synchronized (cache) {
+            for (String key : cache.keysWithPrefix(normalized.substring(0, star))) {
+                if (regex.matcher(key).matches()) keys.add(key);
+            }
+        }
+        final Predicate<String> matches = key -> regex.matcher(key).matches();
+        return purgeKeys("pattern " + normalized, keys, matches, variant -> matches.test(variant.key));
+    }
+
+    /**
+     * Удаляет ключи, у ответов которых есть тег в Surrogate-Key или Cache-Tag
+     *
+     * @return сколько вариантов удалено
+     */
+    public int purgeTag(final String tag) {
+        final List<String> keys;
+        synchronized (cache) {
+            keys = cache.keysTagged(tag);
+        }
+        return purgeKeys("tag " + tag, keys, key -> false, variant -> Arrays.asList(variant.tags).contains(tag));
+    }
+
+    /**
+     * Удаляет ключи пачками по PURGE_BATCH, отпуская блокировку кэша между пачками.
+     * Ключ, который за это время вставили заново, тоже удаляется: он попал под удаление
+     *
+     * @param keys     ключи основного кэша
+     * @param negative отбирает ключи в NegativeCache
+     * @param stale    отбирает варианты в StaleCache
+     * @return сколько вариантов удалено
+     */
+    private int purgeKeys(final String what,
+                          final List<String> keys,
+                          final Predicate<String> negative,
+                          final Predicate<Cache.Variant> stale
+    ) {
+        int removed = 0;
+        for (int from = 0; from < keys.size(); from += PURGE_BATCH) {
+            final int to = Math.min(keys.size(), from + PURGE_BATCH);
+            final CacheLockEvent lock = lockEvent("purge");
+            synchronized (cache) {
+                lock.commit();
+                for (int i = from; i < to; i++) {
+                    removed += cache.remove(keys.get(i));
+                }
+            }
+        }
+        if (negativeCache != null) removed += negativeCache.removeIf(negative);
+        if (staleCache != null) removed += staleCache.removeIf(stale);
+        if (logger != null) logger.log(Logger.Level.INFO, CACHE_PURGED + SPACE + what + SPACE + removed);
+        return removed;
+    }
+
+    private static Pattern globToRegex(final String glob) {
+        final StringBuilder regex = new StringBuilder();
+        int start = 0;
+        int star;
+        while ((star = glob.indexOf('*', start)) >= 0) {
+            if (star > start) regex.append(Pattern.quote(glob.substring(start, star)));
+            regex.append(".*");
+            start = star + 1;
+        }
+        if (start < glob.length()) regex.append(Pattern.quote(glob.substring(start)));
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    /**
+     * Очищает кэш целиком
+     *
+     * @return сколько элементов удалено
+     */
+    public int purgeAll() {
+        int removed;
+        synchronized (cache) {
+            removed = cache.getEntries();
+            cache.clear();
+        }
+        if (negativeCache != null) removed += negativeCache.clear();
+        if (staleCache != null) removed += staleCache.clear();
+        if (logger != null) logger.log(Logger.Level.INFO, CACHE_PURGED + " all " + removed);
+        return removed;
+    }
+
+    /**
+     * @return копия списка закэшированных ответов, от самого старого к самому новому
+     */
+    public List<CachedResponse> entries() {
+        synchronized (cache) {
+            return cache.responses();
+        }
+    }
+
+    /**
+     * @return {занятая память в байтах (оценка Weigher), количество элементов}
+     */
+    public long[] usage() {
+        synchronized (cache) {
+            return new long[]{cache.getSize(), cache.getEntries()};
+        }
+    }
+
+    /**
+     * @return {байт в уникальных телах, байт во всех телах без учета общих,
+     * количество уникальных тел, сколько раз тело нового ответа уже было в кэше}
+     */
+    public long[] dedupUsage() {
+        synchronized (cache) {
+            return cache.dedupUsage();
+        }
+    }
+
+    /**
+     * @return {занятый размер в байтах, максимальный размер, количество ответов, количество недоступных хостов}
+     * или null, если NegativeCache не зарегистрирован
+     */
+    public long[] negativeUsage() {
+        if (negativeCache == null) return null;
+        final long[] usage = negativeCache.usage();
+        return new long[]{usage[0], negativeCache.getMaxSize(), usage[1], usage[2]};
+    }
+
+    /**
+     * @return {занятый размер в байтах, максимальный размер, количество ответов, сколько раз ответ ушел клиенту}
+     * или null, если StaleCache не зарегистрирован
+     */
+    public long[] staleUsage() {
+        if (staleCache == null) return null;
+        final long[] usage = staleCache.usage();
+        return new long[]{usage[0], staleCache.getMaxSize(), usage[1], usage[2]};
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Имена заголовков из Vary ответа в нижнем регистре
+     *
+     * @return пустой массив, если Vary нет, null если Vary: * (ответ не кэшируется)
+     */
+    private static String[] varyNames(final Headers responseHeaders) {
+        final List<String> names = new ArrayList<>(2);
+        for (String vary : responseHeaders.getAll(VARY)) {
+            for (String name : vary.split(",")) {
+                final String trimmed = name.trim().toLowerCase(Locale.ROOT);
+                if (trimmed.equals("*")) return null;
+                if (!trimmed.isEmpty() && !names.contains(trimmed)) names.add(trimmed);
+            }
         }
+        return names.toArray(new String[0]);
     }
 
 }
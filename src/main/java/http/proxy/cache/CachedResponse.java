@@ -0,0 +1,133 @@
+package http.proxy.cache;
+
+import http.proxy.utils.Headers;
+import http.proxy.utils.Response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+
+/**
+ * Ответ в том виде, в котором он хранится в кэше и отправляется клиенту.
+ * <p>
+ * Первая строка и заголовки кодируются в байты один раз при создании,
+ * поэтому при попадании в кэш ничего не нужно форматировать заново:
+ * заголовки и тело уходят в сокет одной gathering-записью.
+ * Экземпляр неизменяем и создается один раз при вставке: заголовки - копия только
+ * для чтения (Headers.readOnlyCopy()), тело копируется из буфера ответа, поэтому
+ * после создания буфер Response можно вернуть в пул (response.release()), а заголовки
+ * Response можно менять дальше. Все поля final, так что экземпляр, полученный из кэша
+ * без блокировки, виден любому потоку целиком, и все попадания отдают его одновременно
+ * без синхронизации и копирования. Массивы getHead() и getBody() общие для всех
+ * читателей и только читаются.
+ */
+public final class CachedResponse {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final String url;
+    private final int code;
+    private final Headers headers;
+    private final int contentLength;
+    private final long createdTime;
+    private final byte[] head;
+    private final byte[] body;
+    private final ByteBuffer headBuffer;
+    private final ByteBuffer bodyBuffer;
+
+    public CachedResponse(final Response response) {
+        this.url = response.getUrl();
+        this.code = response.getCode();
+        this.headers = response.getHeaders().readOnlyCopy();
+        this.contentLength = response.getContentLength();
+        this.createdTime = response.getCreatedTime();
+        this.head = response.headBytes();
+        this.body = (response.getBody() != null) ? Arrays.copyOf(response.getBody(), response.getBodyLength()) : EMPTY;
+        this.headBuffer = ByteBuffer.wrap(head).asReadOnlyBuffer();
+        this.bodyBuffer = ByteBuffer.wrap(body).asReadOnlyBuffer();
+    }
+
+    private CachedResponse(final CachedResponse source, final byte[] body) {
+        this.url = source.url;
+        this.code = source.code;
+        this.headers = source.headers;
+        this.contentLength = source.contentLength;
+        this.createdTime = source.createdTime;
+        this.head = source.head;
+        this.body = body;
+        this.headBuffer = source.headBuffer;
+        this.bodyBuffer = ByteBuffer.wrap(body).asReadOnlyBuffer();
+    }
+
+    /**
+     * @param body тело с тем же содержимым из BodyStore
+     * @return тот же ответ, но с общим телом
+     */
+    CachedResponse withBody(final byte[] body) {
+        return new CachedResponse(this, body);
+    }
+
+    /**
+     * Записывает ответ в канал одной gathering-записью
+     *
+     * @param channel канал клиентского сокета
+     * @return количество записанных байт
+     */
+    public long writeTo(final GatheringByteChannel channel) throws IOException {
+        /** Дубликаты нужны, чтобы несколько потоков могли отправлять один и тот же ответ*/
+        final ByteBuffer[] buffers = {headBuffer.duplicate(), bodyBuffer.duplicate()};
+        long written = 0;
+        while (buffers[1].hasRemaining() || buffers[0].hasRemaining()) {
+            written += channel.write(buffers);
+        }
+        return written;
+    }
+
+    /**
+     * Запасной вариант для сокетов, у которых нет канала
+     */
+    public long writeTo(final OutputStream os) throws IOException {
+        os.write(head);
+        if (body.length > 0) os.write(body);
+        return head.length + body.length;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @return заголовки только для чтения
+     */
+    public Headers getHeaders() {
+        return headers;
+    }
+
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    public long getCreatedTime() {
+        return createdTime;
+    }
+
+    /**
+     * @return тело, общее для всех читателей: менять нельзя
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return первая строка и заголовки в закодированном виде, менять нельзя
+     */
+    public byte[] getHead() {
+        return head;
+    }
+}
@@ -0,0 +1,218 @@
+package http.proxy.cache;
+
+import http.proxy.exceptions.ConnectTimeoutException;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Кэш ошибок: ответы 404, 410, 5xx и недоступные хосты (ошибка DNS или подключения).
+ * <p>
+ * Ошибки живут недолго (секунды), поэтому хранятся отдельно от основного кэша и имеют
+ * свой размер: поток ошибок не может вытеснить настоящее содержимое.
+ * Время жизни свое у каждого вида ошибок, 0 - такие ошибки не запоминаются.
+ * <p>
+ * Ответы хранятся по ключу основного кэша без учета Vary, ошибки подключения - по хосту
+ * (host:port). Устаревшие записи удаляются при обращении и при нехватке места.
+ * Все методы синхронизированы: записей мало, а обращения короткие.
+ */
+public final class NegativeCache {
+
+    /**
+     * Сколько недоступных хостов может помнить кэш
+     */
+    private static final int MAX_FAILURES = 1024;
+
+    private final long maxSize;
+    private final long notFoundTtl;
+    private final long serverErrorTtl;
+    private final long failureTtl;
+    private final Map<String, Entry> responses = new LinkedHashMap<>();
+    private final Map<String, Failure> failures = new LinkedHashMap<String, Failure>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Failure> eldest) {
+            return size() > MAX_FAILURES;
+        }
+    };
+    private long size;
+
+    /**
+     * @param maxSize        размер в байтах (заголовки и тело)
+     * @param notFoundTtl    время жизни ответов 404 и 410 в секундах
+     * @param serverErrorTtl время жизни ответов 5xx в секундах
+     * @param failureTtl     время жизни ошибок DNS и подключения в секундах
+     */
+    public NegativeCache(final long maxSize, final long notFoundTtl, final long serverErrorTtl, final long failureTtl) {
+        this.maxSize = Math.max(maxSize, 0);
+        this.notFoundTtl = Math.max(notFoundTtl, 0) * 1000;
+        this.serverErrorTtl = Math.max(serverErrorTtl, 0) * 1000;
+        this.failureTtl = Math.max(failureTtl, 0) * 1000;
+    }
+
+    /**
+     * @return true, если ответ с таким кодом хранится здесь, а не в основном кэше
+     */
+    static boolean isNegative(final int code) {
+        return code == 404 || code == 410 || code >= 500;
+    }
+
+    /**
+     * @return true, если ошибка говорит о недоступности хоста, а не об одном неудачном запросе
+     */
+    static boolean isHostFailure(final Exception e) {
+        return e instanceof UnknownHostException
+                || e instanceof ConnectException
+                || e instanceof NoRouteToHostException
+                || e instanceof ConnectTimeoutException;
+    }
+
+    /**
+     * @return true, если ответ сохранен
+     */
+    synchronized boolean put(final String key, final CachedResponse response) {
+        final long ttl = (response.getCode() >= 500) ? serverErrorTtl : notFoundTtl;
+        final long length = length(response);
+        if (ttl == 0 || length > maxSize) return false;
+        final long now = System.currentTimeMillis();
+        remove(key);
+        final Iterator<Entry> iterator = responses.values().iterator();
+        while (size + length > maxSize && iterator.hasNext()) {
+            size -= iterator.next().length;
+            iterator.remove();
+        }
+        responses.put(key, new Entry(response, length, now + ttl));
+        size += length;
+        return true;
+    }
+
+    synchronized CachedResponse get(final String key) {
+        final Entry entry = responses.get(key);
+        if (entry == null) return null;
+        if (entry.expires <= System.currentTimeMillis()) {
+            remove(key);
+            return null;
+        }
+        return entry.response;
+    }
+
+    synchronized boolean contains(final String key) {
+        return get(key) != null;
+    }
+
+    synchronized int remove(final String key) {
+        final Entry removed = responses.remove(key);
+        if (removed == null) return 0;
+        size -= removed.length;
+        return 1;
+    }
+
+    /**
+     * @param filter отбирает ключи ответов
+     * @return сколько ответов удалено
+     */
+    synchronized int removeIf(final Predicate<String> filter) {
+        int removed = 0;
+        for (Iterator<Map.Entry<String, Entry>> it = responses.entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<String, Entry> entry = it.next();
+            if (!filter.test(entry.getKey())) continue;
+            it.remove();
+            size -= entry.getValue().length;
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * @return сколько записей удалено (ответов и хостов)
+     */
+    synchronized int clear() {
+        final int removed = responses.size() + failures.size();
+        responses.clear();
+        failures.clear();
+        size = 0;
+        return removed;
+    }
+
+    /**
+     * Действующая запись не продлевается: ошибка, которую вернул сам кэш, приходит
+     * сюда снова, и иначе хост никогда не попробовали бы еще раз
+     *
+     * @return true, если ошибка запомнена
+     */
+    synchronized boolean putFailure(final String host, final Exception failure) {
+        if (failureTtl == 0 || !isHostFailure(failure) || getFailure(host) != null) return false;
+        failures.put(host, new Failure(failure, System.currentTimeMillis() + failureTtl));
+        return true;
+    }
+
+    /**
+     * @return запомненная ошибка подключения к хосту или null
+     */
+    synchronized Exception getFailure(final String host) {
+        final Failure failure = failures.get(host);
+        if (failure == null) return null;
+        if (failure.expires <= System.currentTimeMillis()) {
+            failures.remove(host);
+            return null;
+        }
+        return failure.exception;
+    }
+
+    /**
+     * Удаляет устаревшие записи, вызывается чистильщиком основного кэша
+     */
+    synchronized void removeExpired() {
+        final long now = System.currentTimeMillis();
+        final Iterator<Entry> entries = responses.values().iterator();
+        while (entries.hasNext()) {
+            final Entry entry = entries.next();
+            if (entry.expires <= now) {
+                size -= entry.length;
+                entries.remove();
+            }
+        }
+        failures.values().removeIf(failure -> failure.expires <= now);
+    }
+
+    /**
+     * @return {занятый размер в байтах, количество ответов, количество недоступных хостов}
+     */
+    synchronized long[] usage() {
+        return new long[]{size, responses.size(), failures.size()};
+    }
+
+    long getMaxSize() {
+        return maxSize;
+    }
+
+    private static long length(final CachedResponse response) {
+        return response.getHead().length + response.getBody().length;
+    }
+
+    private static final class Entry {
+        private final CachedResponse response;
+        private final long length;
+        private final long expires;
+
+        Entry(CachedResponse response, long length, long expires) {
+            this.response = response;
+            this.length = length;
+            this.expires = expires;
+        }
+    }
+
+    private static final class Failure {
+        private final Exception exception;
+        private final long expires;
+
+        Failure(Exception exception, long expires) {
+            this.exception = exception;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package http.proxy.cache;
+
+import http.proxy.utils.Headers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Устаревшие ответы: то, что чистильщик удалил из основного кэша по времени жизни.
+ * <p>
+ * Клиенту они отдаются, только если сервер недоступен (ошибка запроса или разомкнутый
+ * автомат хоста), как stale-if-error: старый ответ лучше, чем 502. Хранятся staleTtl
+ * после устаревания, в своем размере, и не занимают место основного кэша. Свежий ответ
+ * по тому же ключу удаляет устаревшие варианты.
+ * Все методы синхронизированы, как в NegativeCache.
+ */
+public final class StaleCache {
+
+    private final long maxSize;
+    private final long staleTtl;
+    private final Map<String, List<Entry>> entries = new HashMap<>();
+    /**
+     * В порядке добавления, он же порядок истечения
+     */
+    private final Deque<Entry> order = new ArrayDeque<>();
+    private long size;
+    private long served;
+
+    /**
+     * @param maxSize  размер в байтах, по весу записей (Weigher)
+     * @param staleTtl сколько секунд устаревший ответ можно отдавать
+     */
+    public StaleCache(final long maxSize, final long staleTtl) {
+        this.maxSize = Math.max(maxSize, 0);
+        this.staleTtl = Math.max(staleTtl, 0) * 1000;
+    }
+
+    synchronized void put(final Cache.Variant variant) {
+        /** Тело может быть общим с основным кэшем, но считается целиком: после его вытеснения так и будет*/
+        final long length = Cache.weigh(variant);
+        if (staleTtl == 0 || length > maxSize) return;
+        removeExpired();
+        while (size + length > maxSize && !order.isEmpty()) {
+            unlink(order.pollFirst());
+        }
+        final Entry entry = new Entry(variant, length, System.currentTimeMillis() + staleTtl);
+        entries.computeIfAbsent(variant.key, k -> new ArrayList<>(1)).add(entry);
+        order.add(entry);
+        size += length;
+    }
+
+    /**
+     * @return устаревший вариант, подходящий по Vary, или null
+     */
+    synchronized CachedResponse get(final String key, final Headers requestHeaders) {
+        final List<Entry> variants = entries.get(key);
+        if (variants == null) return null;
+        final long now = System.currentTimeMillis();
+        for (Entry entry : variants) {
+            if (entry.expires > now && entry.variant.matches(requestHeaders)) {
+                served++;
+                return entry.variant.response;
+            }
+        }
+        return null;
+    }
+
+    synchronized int remove(final String key) {
+        final List<Entry> removed = entries.remove(key);
+        if (removed == null) return 0;
+        for (Entry entry : removed) {
+            order.remove(entry);
+            size -= entry.length;
+        }
+        return removed.size();
+    }
+
+    /**
+     * @return сколько вариантов удалено
+     */
+    synchronized int removeIf(final Predicate<Cache.Variant> filter) {
+        int removed = 0;
+        for (Iterator<Entry> it = order.iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            if (!filter.test(entry.variant)) continue;
+            it.remove();
+            unlink(entry);
+            removed++;
+        }
+        return removed;
+    }
+
+    synchronized int clear() {
+        final int removed = order.size();
+        entries.clear();
+        order.clear();
+        size = 0;
+        return removed;
+    }
+
+    /**
+     * Удаляет истекшие записи, вызывается чистильщиком основного кэша
+     */
+    synchronized void removeExpired() {
+        final long now = System.currentTimeMillis();
+        while (!order.isEmpty() && order.peekFirst().expires <= now) {
+            unlink(order.pollFirst());
+        }
+    }
+
+    /**
+     * @return {занятый размер в байтах, количество ответов, сколько раз устаревший ответ ушел клиенту}
+     */
+    synchronized long[] usage() {
+        return new long[]{size, order.size(), served};
+    }
+
+    long getMaxSize() {
+        return maxSize;
+    }
+
+    private void unlink(final Entry entry) {
+        final List<Entry> variants = entries.get(entry.variant.key);
+        if (variants != null && variants.remove(entry) && variants.isEmpty()) entries.remove(entry.variant.key);
+        size -= entry.length;
+    }
+
+    private static final class Entry {
+        private final Cache.Variant variant;
+        private final long length;
+        private final long expires;
+
+        Entry(Cache.Variant variant, long length, long expires) {
+            this.variant = variant;
+            this.length = length;
+            this.expires = expires;
+        }
+    }
+}
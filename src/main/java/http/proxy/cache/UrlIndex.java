@@ -0,0 +1,207 @@
+package http.proxy.cache;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Сжатое префиксное дерево (radix trie) ключей кэша: схема, хост и путь.
+ * <p>
+ * Нужно для удаления по префиксу (http://host/static/), хосту и шаблону без перебора
+ * всего кэша: спуск по дереву стоит длину префикса, а сбор ключей - размер поддерева.
+ * Метка ребра хранится как отрезок строки ключа, через которую ребро было создано,
+ * поэтому дерево не копирует символы ключей. Дети узла упорядочены по первому символу
+ * метки. Удаление склеивает узел с единственным ребенком, и дерево остается сжатым.
+ * <p>
+ * Не синхронизировано, все вызовы идут под блокировкой Cache.
+ */
+final class UrlIndex {
+
+    private final Node root = new Node("", 0, 0);
+    private int size;
+
+    void add(final String key) {
+        Node node = root;
+        int i = 0;
+        while (true) {
+            if (i == key.length()) {
+                if (node.key == null) size++;
+                node.key = key;
+                return;
+            }
+            final int slot = node.find(key.charAt(i));
+            if (slot < 0) {
+                node.insert(-slot - 1, new Node(key, i, key.length())).key = key;
+                size++;
+                return;
+            }
+            final Node child = node.children[slot];
+            final int common = child.commonPrefix(key, i);
+            if (common < child.length()) {
+                /** Ключ расходится с меткой посередине: ребро делится на два*/
+                final Node split = new Node(child.source, child.start, child.start + common);
+                child.start += common;
+                split.insert(0, child);
+                node.children[slot] = split;
+                node = split;
+            } else {
+                node = child;
+            }
+            i += common;
+        }
+    }
+
+    void remove(final String key) {
+        Node parent = null;
+        int parentSlot = -1;
+        Node node = root;
+        int i = 0;
+        while (i < key.length()) {
+            final int slot = node.find(key.charAt(i));
+            if (slot < 0) return;
+            final Node child = node.children[slot];
+            if (child.commonPrefix(key, i) < child.length()) return;
+            parent = node;
+            parentSlot = slot;
+            node = child;
+            i += child.length();
+        }
+        if (node.key == null) return;
+        node.key = null;
+        size--;
+        if (node == root) return;
+        if (node.count == 0) {
+            parent.delete(parentSlot);
+            if (parent != root && parent.key == null && parent.count == 1) merge(parent);
+        } else if (node.count == 1) {
+            merge(node);
+        }
+    }
+
+    /**
+     * Узел без ключа с единственным ребенком забирает его метку и детей
+     */
+    private static void merge(final Node node) {
+        final Node child = node.children[0];
+        if (node.source == child.source && node.end == child.start) {
+            node.end = child.end;
+        } else {
+            final String label = node.label() + child.label();
+            node.source = label;
+            node.start = 0;
+            node.end = label.length();
+        }
+        node.key = child.key;
+        node.children = child.children;
+        node.count = child.count;
+    }
+
+    /**
+     * Добавляет в result все ключи, которые начинаются с prefix
+     */
+    void collect(final String prefix, final List<String> result) {
+        Node node = root;
+        int i = 0;
+        while (i < prefix.length()) {
+            final int slot = node.find(prefix.charAt(i));
+            if (slot < 0) return;
+            node = node.children[slot];
+            final int common = node.commonPrefix(prefix, i);
+            if (common < node.length() && i + common < prefix.length()) return;
+            i += common;
+        }
+        final Deque<Node> stack = new ArrayDeque<>();
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            final Node next = stack.pop();
+            if (next.key != null) result.add(next.key);
+            for (int c = next.count - 1; c >= 0; c--) {
+                stack.push(next.children[c]);
+            }
+        }
+    }
+
+    void clear() {
+        root.children = Node.NONE;
+        root.count = 0;
+        root.key = null;
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static final class Node {
+
+        private static final Node[] NONE = new Node[0];
+
+        /**
+         * Метка ребра, которое ведет в узел: source[start, end)
+         */
+        private String source;
+        private int start;
+        private int end;
+        private Node[] children = NONE;
+        private int count;
+        /**
+         * Ключ, который заканчивается в этом узле, или null
+         */
+        private String key;
+
+        Node(String source, int start, int end) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+        }
+
+        int length() {
+            return end - start;
+        }
+
+        String label() {
+            return source.substring(start, end);
+        }
+
+        /**
+         * @return длина общего начала метки и s начиная с from
+         */
+        int commonPrefix(final String s, final int from) {
+            final int max = Math.min(length(), s.length() - from);
+            int n = 0;
+            while (n < max && source.charAt(start + n) == s.charAt(from + n)) n++;
+            return n;
+        }
+
+        /**
+         * @return номер ребенка, метка которого начинается с c, или -(место вставки + 1)
+         */
+        int find(final char c) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final char m = children[mid].source.charAt(children[mid].start);
+                if (m < c) low = mid + 1;
+                else if (m > c) high = mid - 1;
+                else return mid;
+            }
+            return -(low + 1);
+        }
+
+        Node insert(final int slot, final Node child) {
+            if (count == children.length) children = Arrays.copyOf(children, Math.max(2, count * 2));
+            System.arraycopy(children, slot, children, slot + 1, count - slot);
+            children[slot] = child;
+            count++;
+            return child;
+        }
+
+        void delete(final int slot) {
+            System.arraycopy(children, slot + 1, children, slot, count - slot - 1);
+            children[--count] = null;
+            if (count == 0) children = NONE;
+        }
+    }
+}
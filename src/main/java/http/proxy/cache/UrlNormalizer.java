@@ -0,0 +1,146 @@
+package http.proxy.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Приводит url к каноническому виду, который используется как ключ кэша.
+ * <p>
+ * Всегда: схема и хост в нижнем регистре, порт по умолчанию (80 для http,
+ * 443 для https) убирается, пустой путь заменяется на "/", фрагмент (#...) отбрасывается.
+ * <p>
+ * По настройкам: параметры запроса сортируются по имени, отдельные параметры
+ * (например utm_*) или весь запрос целиком убираются из ключа.
+ */
+public final class UrlNormalizer {
+
+    private static final Comparator<String> BY_NAME = Comparator.comparing(UrlNormalizer::paramName);
+
+    private final boolean sortQuery;
+    private final boolean stripQuery;
+    private final List<String> ignoredParams;
+
+    /**
+     * Нормализация без изменения параметров запроса
+     */
+    public UrlNormalizer() {
+        this(false, false, Collections.emptyList());
+    }
+
+    /**
+     * @param sortQuery     сортировать параметры запроса по имени
+     * @param stripQuery    не учитывать запрос (?...) вообще
+     * @param ignoredParams имена параметров, которые не входят в ключ.
+     *                      Имя, которое заканчивается на '*', задает префикс
+     */
+    public UrlNormalizer(final boolean sortQuery, final boolean stripQuery, final Collection<String> ignoredParams) {
+        this.sortQuery = sortQuery;
+        this.stripQuery = stripQuery;
+        this.ignoredParams = new ArrayList<>(ignoredParams);
+    }
+
+    /**
+     * @param url абсолютный url запроса
+     * @return ключ кэша. Если url не абсолютный, он возвращается как есть
+     */
+    public String normalize(final String url) {
+        final int schemeEnd = url.indexOf("://");
+        if (schemeEnd <= 0) return url;
+        final String scheme = url.substring(0, schemeEnd).toLowerCase(Locale.ROOT);
+
+        final int authorityStart = schemeEnd + 3;
+        int authorityEnd = authorityStart;
+        while (authorityEnd < url.length() && "/?#".indexOf(url.charAt(authorityEnd)) < 0) authorityEnd++;
+        final String authority = normalizeAuthority(scheme, url.substring(authorityStart, authorityEnd));
+
+        int end = url.indexOf('#', authorityEnd);
+        if (end < 0) end = url.length();
+        int queryStart = url.indexOf('?', authorityEnd);
+        if (queryStart > end) queryStart = -1;
+
+        String path = url.substring(authorityEnd, (queryStart < 0) ? end : queryStart);
+        if (path.isEmpty()) path = "/";
+
+        final StringBuilder builder = new StringBuilder(url.length())
+                .append(scheme)
+                .append("://")
+                .append(authority)
+                .append(path);
+        if (queryStart >= 0 && !stripQuery) {
+            final String query = normalizeQuery(url.substring(queryStart + 1, end));
+            if (!query.isEmpty()) builder.append('?').append(query);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Начало адреса для удаления по префиксу или шаблону: схема и хост приводятся
+     * так же, как в ключе, путь и запрос не меняются
+     *
+     * @param prefix начало абсолютного url, например http://Host:80/static/
+     */
+    public String normalizePrefix(final String prefix) {
+        final int schemeEnd = prefix.indexOf("://");
+        if (schemeEnd <= 0) return prefix;
+        final String scheme = prefix.substring(0, schemeEnd).toLowerCase(Locale.ROOT);
+        final int authorityStart = schemeEnd + 3;
+        int authorityEnd = authorityStart;
+        while (authorityEnd < prefix.length() && "/?#".indexOf(prefix.charAt(authorityEnd)) < 0) authorityEnd++;
+        /** Хост может быть не дописан (http://exam), тогда порт не трогаем*/
+        final String authority = (authorityEnd < prefix.length())
+                ? normalizeAuthority(scheme, prefix.substring(authorityStart, authorityEnd))
+                : prefix.substring(authorityStart).toLowerCase(Locale.ROOT);
+        return scheme + "://" + authority + prefix.substring(authorityEnd);
+    }
+
+    private static String normalizeAuthority(final String scheme, final String authority) {
+        final int at = authority.lastIndexOf('@');
+        final String userInfo = (at >= 0) ? authority.substring(0, at + 1) : "";
+        String host = authority.substring(at + 1);
+        String port = null;
+        /** Двоеточие после ']' или единственное двоеточие - это порт (IPv6 адрес в скобках)*/
+        final int colon = host.lastIndexOf(':');
+        if (colon >= 0 && colon > host.lastIndexOf(']')) {
+            port = host.substring(colon + 1);
+            host = host.substring(0, colon);
+        }
+        host = host.toLowerCase(Locale.ROOT);
+        if (port != null && (port.isEmpty() || isDefaultPort(scheme, port))) port = null;
+        return userInfo + host + ((port != null) ? ":" + port : "");
+    }
+
+    private static boolean isDefaultPort(final String scheme, final String port) {
+        return ("http".equals(scheme) && "80".equals(port)) || ("https".equals(scheme) && "443".equals(port));
+    }
+
+    private String normalizeQuery(final String query) {
+        if (!sortQuery && ignoredParams.isEmpty()) return query;
+        final List<String> params = new ArrayList<>();
+        for (String param : query.split("&")) {
+            if (!param.isEmpty() && !isIgnored(paramName(param))) params.add(param);
+        }
+        /** Сортировка устойчивая: значения повторяющихся параметров сохраняют свой порядок*/
+        if (sortQuery) params.sort(BY_NAME);
+        return String.join("&", params);
+    }
+
+    private boolean isIgnored(final String name) {
+        for (String ignored : ignoredParams) {
+            if (ignored.endsWith("*")) {
+                if (name.startsWith(ignored.substring(0, ignored.length() - 1))) return true;
+            } else if (ignored.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String paramName(final String param) {
+        final int eq = param.indexOf('=');
+        return (eq < 0) ? param : param.substring(0, eq);
+    }
+}
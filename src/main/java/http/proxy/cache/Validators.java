@@ -0,0 +1,109 @@
+package http.proxy.cache;
+
+import http.proxy.utils.Headers;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+import static http.proxy.constants.Constants.*;
+
+/**
+ * Условные запросы к закэшированному ответу (RFC 7232): If-None-Match и If-Modified-Since.
+ * <p>
+ * Если валидаторы клиента совпадают с ответом в кэше, клиенту уходит 304 Not Modified
+ * без тела, а сервер не получает запроса. Проверяются только ответы 200.
+ * If-Modified-Since учитывается только тогда, когда If-None-Match нет.
+ * <p>
+ * Промах GET идет к серверу без условий клиента (takeConditions): иначе сервер ответит
+ * 304 без тела, и кэшировать будет нечего. Условия проверяются по полному ответу здесь же.
+ */
+public final class Validators {
+
+    /**
+     * Заголовки, которые повторяются в ответе 304 (RFC 7232, 4.1)
+     */
+    private static final String[] NOT_MODIFIED_HEADERS = {
+            ETAG, LAST_MODIFIED, "Cache-Control", "Content-Location", "Date", "Expires", VARY
+    };
+
+    private static final String[] CONDITIONS = {IF_NONE_MATCH, IF_MODIFIED_SINCE};
+
+    private Validators() {
+    }
+
+    /**
+     * @param cached  ответ из кэша
+     * @param request заголовки запроса клиента
+     * @return true, если клиенту можно ответить 304
+     */
+    public static boolean isNotModified(final CachedResponse cached, final Headers request) {
+        if (cached.getCode() != 200) return false;
+        if (request.contains(IF_NONE_MATCH)) {
+            final String etag = cached.getHeaders().get(ETAG);
+            if (etag == null) return false;
+            for (String value : request.getAll(IF_NONE_MATCH)) {
+                for (String tag : value.split(",")) {
+                    final String trimmed = tag.trim();
+                    if (trimmed.equals("*") || weakEquals(trimmed, etag.trim())) return true;
+                }
+            }
+            return false;
+        }
+        final String since = request.get(IF_MODIFIED_SINCE);
+        final String lastModified = cached.getHeaders().get(LAST_MODIFIED);
+        if (since == null || lastModified == null) return false;
+        try {
+            return !parseDate(lastModified).isAfter(parseDate(since));
+        } catch (DateTimeParseException e) {
+            /** Дату в неизвестном формате просто игнорируем, как велит RFC*/
+            return false;
+        }
+    }
+
+    /**
+     * Снимает с запроса условные заголовки перед запросом к серверу за ответом для кэша
+     *
+     * @param request заголовки запроса, из них удаляются If-None-Match и If-Modified-Since
+     * @return снятые заголовки, по ним потом проверяется полученный ответ
+     */
+    public static Headers takeConditions(final Headers request) {
+        final Headers conditions = new Headers();
+        for (String name : CONDITIONS) {
+            if (!request.contains(name)) continue;
+            for (String value : request.getAll(name)) {
+                conditions.add(name, value);
+            }
+            request.remove(name);
+        }
+        return conditions;
+    }
+
+    /**
+     * @return заголовки для ответа 304 из закэшированного ответа
+     */
+    public static Headers notModifiedHeaders(final CachedResponse cached) {
+        final Headers headers = new Headers();
+        for (String name : NOT_MODIFIED_HEADERS) {
+            for (String value : cached.getHeaders().getAll(name)) {
+                headers.add(name, value);
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Слабое сравнение: W/"x" и "x" совпадают
+     */
+    private static boolean weakEquals(final String a, final String b) {
+        return stripWeak(a).equals(stripWeak(b));
+    }
+
+    private static String stripWeak(final String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    private static ZonedDateTime parseDate(final String date) {
+        return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+    }
+}
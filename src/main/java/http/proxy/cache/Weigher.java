@@ -0,0 +1,96 @@
+package http.proxy.cache;
+
+import http.proxy.utils.ObjectSizes;
+
+import static http.proxy.utils.ObjectSizes.REFERENCE;
+
+/**
+ * Вес записи кэша: сколько памяти она удерживает на самом деле.
+ * <p>
+ * Кроме тела это заголовки в двух видах (Headers и закодированные байты), url, буферы
+ * для gathering-записи, сам Variant со значениями Vary и тегами, а для нового ключа - строка
+ * ключа, узел ConcurrentHashMap, массив вариантов и узлы UrlIndex. Поэтому ответы без тела
+ * (редиректы, пустые 200) тоже занимают место, а cache_size - это память, а не сумма Content-Length.
+ * Тела считаются отдельно (body), потому что одинаковые тела хранятся в BodyStore один раз.
+ * Оценку можно сверить с кучей: CacheWeightCalibration в src/bench.
+ */
+final class Weigher {
+
+    /**
+     * Узел HashMap или ConcurrentHashMap (hash, key, value, next) и ячейка таблицы при заполнении 0.75
+     */
+    private static final long MAP_ENTRY = ObjectSizes.object(4 + 3 * REFERENCE) + 2 * REFERENCE;
+    /**
+     * Массив вариантов ключа на один элемент
+     */
+    private static final long VARIANT_LIST = ObjectSizes.references(1);
+    /**
+     * Узлы UrlIndex на ключ: лист и в среднем один узел от деления ребра с массивом детей.
+     * Узел: source, start, end, children, count, key
+     */
+    private static final long INDEX_ENTRY =
+            2 * ObjectSizes.object(3 * REFERENCE + 3 * 4) + ObjectSizes.references(2);
+    /**
+     * Variant: key, varyNames, varyValues, response, bodyHash, tags, weight, removed,
+     * плюс ячейка в очереди вставки
+     */
+    private static final long VARIANT = ObjectSizes.object(5 * REFERENCE + 8 + 8 + 1) + REFERENCE;
+    /**
+     * CachedResponse: url, code, headers, contentLength, createdTime, head, body, headBuffer, bodyBuffer
+     */
+    private static final long RESPONSE = ObjectSizes.object(6 * REFERENCE + 4 + 4 + 8);
+    /**
+     * HeapByteBuffer только для чтения: address, mark, position, limit, capacity, segment,
+     * hb, offset, isReadOnly, bigEndian, nativeByteOrder
+     */
+    private static final long BUFFER = ObjectSizes.object(8 + 4 * 4 + REFERENCE + REFERENCE + 4 + 3);
+    /**
+     * Запись BodyStore: Key (bytes, hash), Body (bytes, references) и узел HashMap
+     */
+    private static final long BODY_ENTRY =
+            ObjectSizes.object(REFERENCE + 8) + ObjectSizes.object(REFERENCE + 4) + MAP_ENTRY;
+
+    private Weigher() {
+    }
+
+    /**
+     * Вес варианта без тела и без ключа
+     */
+    static long variant(final String[] varyNames,
+                        final String[] varyValues,
+                        final String[] tags,
+                        final CachedResponse response
+    ) {
+        long weight = VARIANT
+                + ObjectSizes.references(varyNames.length)
+                + ObjectSizes.references(varyValues.length)
+                + RESPONSE
+                + ObjectSizes.string(response.getUrl())
+                + response.getHeaders().retainedSize()
+                + ObjectSizes.bytes(response.getHead().length)
+                + 2 * BUFFER;
+        for (int i = 0; i < varyNames.length; i++) {
+            weight += ObjectSizes.string(varyNames[i]) + ObjectSizes.string(varyValues[i]);
+        }
+        if (tags.length > 0) weight += ObjectSizes.references(tags.length);
+        for (String tag : tags) {
+            /** Строка тега и ключ в множестве ключей тега*/
+            weight += ObjectSizes.string(tag) + MAP_ENTRY;
+        }
+        return weight;
+    }
+
+    /**
+     * Вес ключа, который добавляется с первым вариантом и уходит с последним
+     */
+    static long key(final String key) {
+        return ObjectSizes.string(key) + MAP_ENTRY + VARIANT_LIST + INDEX_ENTRY;
+    }
+
+    /**
+     * Вес уникального тела в BodyStore, пустое тело общее и ничего не весит
+     */
+    static long body(final int length) {
+        return (length == 0) ? 0 : ObjectSizes.bytes(length) + BODY_ENTRY;
+    }
+}
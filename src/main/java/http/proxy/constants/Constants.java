@@ -8,11 +8,28 @@ public final class Constants {
     public static final String CACHE_OUTDATED = CACHE_REMOVED + " (OUTDATED)";
     public static final String CACHE_NO_SPACE = CACHE_REMOVED + " (NO SPACE)";
     public static final String CACHE_TOO_BIG = "Cache doesn't have enough space for this";
+    public static final String CACHE_PURGED = CACHE_REMOVED + " (PURGE)";
+    public static final String CACHE_NOT_CACHEABLE = "Cache skipped (Vary: *)";
+    public static final String CACHE_NEGATIVE_INSERTED = CACHE_INSERTED + " (NEGATIVE)";
+    public static final String CACHE_NEGATIVE_RETURNED = CACHE_RETURNED + " (NEGATIVE)";
+    public static final String CACHE_FAILURE_INSERTED = "Cache remembered unreachable host";
+    public static final String CACHE_FAILURE_RETURNED = "Cache returned unreachable host";
+    public static final String CACHE_NOT_MODIFIED = "Cache answered Not Modified";
+    public static final String CACHE_PARTIAL = "Cache skipped (partial or Not Modified response)";
+    public static final String CACHE_STALE_RETURNED = CACHE_RETURNED + " (STALE)";
+    public static final String PEER_RETURNED = "Peer returned";
+    public static final String PEER_FETCH_FAILED = "Peer fetch failed";
+    public static final String PEER_CONNECTION_FAILED = "Peer connection failed";
+    public static final String PEER_UNAVAILABLE = "Peer unavailable, going to origin";
+    public static final String PEER_REJECTED = "Peer connection rejected, address is not in peers";
+    public static final String MISS_LANE_FULL = "Miss lane is full, request rejected";
     public static final String VERY_BAD_CACHE_EXCEPTION = "Caught EXCEPTION when clearing the cache";
 
     public static final String VERY_BAD_EXCEPTION = "Caught an exception when trying to report another exception";
 
     public static final String DEFAULT_HTTP_VERSION = "HTTP/1.1";
+    public static final String HTTP2_PREFACE_LINE = "PRI * HTTP/2.0";
+    public static final String H2C = "h2c";
 
     public static final String GET_METHOD = "GET";
     public static final String POST_METHOD = "POST";
@@ -20,14 +37,35 @@ public final class Constants {
 
     public static final String REQUEST_TIMEOUT = "Request Timeout";
     public static final String GATEWAY_TIMEOUT = "Gateway Timeout";
+    public static final String BAD_GATEWAY = "Bad Gateway";
     public static final String BAD_REQUEST = "Bad Request";
     public static final String METHOD_NOT_ALLOWED = "Method Not Allowed";
+    public static final String SWITCHING_PROTOCOLS = "Switching Protocols";
+    public static final String TOO_MANY_REQUESTS = "Too Many Requests";
+    public static final String PAYLOAD_TOO_LARGE = "Payload Too Large";
+    public static final String SERVICE_UNAVAILABLE = "Service Unavailable";
+    public static final String NOT_MODIFIED = "Not Modified";
+    public static final String CONTINUE = "Continue";
 
     public static final String CONTENT_LENGTH = "Content-Length";
     public static final String TRANSFER_ENCODING = "Transfer-Encoding";
     public static final String CONNECTION = "Connection";
     public static final String ALLOW = "Allow";
+    public static final String HOST = "Host";
+    public static final String COOKIE = "Cookie";
+    public static final String UPGRADE = "Upgrade";
+    public static final String RETRY_AFTER = "Retry-After";
+    public static final String VARY = "Vary";
+    public static final String ETAG = "ETag";
+    public static final String SURROGATE_KEY = "Surrogate-Key";
+    public static final String CACHE_TAG = "Cache-Tag";
+    public static final String LAST_MODIFIED = "Last-Modified";
+    public static final String IF_NONE_MATCH = "If-None-Match";
+    public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+    public static final String HTTP2_SETTINGS = "HTTP2-Settings";
     public static final String CHUNKED = "Chunked";
+    public static final String EXPECT = "Expect";
+    public static final String EXPECT_CONTINUE = "100-continue";
 
     public static final String CLOSE = "Close";
 
@@ -36,9 +74,17 @@ public final class Constants {
     public static final String SPACE = " ";
     public static final String HEADER_DELIM = ":";
 
+    public static final int CONTINUE_CODE = 100;
+    public static final int SWITCHING_PROTOCOLS_CODE = 101;
+    public static final int PARTIAL_CONTENT_CODE = 206;
+    public static final int NOT_MODIFIED_CODE = 304;
     public static final int BAD_REQUEST_CODE = 400;
     public static final int METHOD_NOT_ALLOWED_CODE = 405;
     public static final int REQUEST_TIMEOUT_CODE = 408;
+    public static final int PAYLOAD_TOO_LARGE_CODE = 413;
+    public static final int TOO_MANY_REQUESTS_CODE = 429;
+    public static final int BAD_GATEWAY_CODE = 502;
+    public static final int SERVICE_UNAVAILABLE_CODE = 503;
     public static final int GATEWAY_TIMEOUT_CODE = 504;
 
 }
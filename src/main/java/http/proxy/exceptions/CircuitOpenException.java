@@ -0,0 +1,36 @@
+package http.proxy.exceptions;
+
+import java.io.IOException;
+
+/**
+ * Запрос не отправлен: автомат хоста разомкнут, потому что сервер недавно отвечал ошибками
+ * или слишком медленно. Клиенту сразу уходит 504 (если автомат разомкнули таймауты) или 502
+ */
+public class CircuitOpenException extends IOException {
+
+    private final boolean timeout;
+    private final long retryAfter;
+
+    /**
+     * @param host       хост сервера
+     * @param timeout    автомат разомкнут в основном из-за таймаутов и медленных ответов
+     * @param retryAfter через сколько миллисекунд автомат пропустит пробный запрос
+     */
+    public CircuitOpenException(final String host, final boolean timeout, final long retryAfter) {
+        super("Circuit open for " + host);
+        this.timeout = timeout;
+        this.retryAfter = retryAfter;
+    }
+
+    public boolean isTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return через сколько секунд стоит повторить запрос, не меньше 1
+     */
+    public long getRetryAfterSeconds() {
+        return Math.max(1, (retryAfter + 999) / 1000);
+    }
+
+}
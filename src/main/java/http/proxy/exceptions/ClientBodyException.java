@@ -0,0 +1,16 @@
+package http.proxy.exceptions;
+
+import java.io.IOException;
+
+/**
+ * Когда тело запроса не удалось дочитать у клиента: клиент оборвал загрузку, прислал
+ * меньше заявленного или испорченный chunked. Ошибка клиента, сервер тут ни при чем,
+ * поэтому автоматы хостов ее не учитывают
+ */
+public class ClientBodyException extends IOException {
+
+    public ClientBodyException(final IOException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+}
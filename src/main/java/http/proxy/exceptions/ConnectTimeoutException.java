@@ -0,0 +1,15 @@
+package http.proxy.exceptions;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * Когда ни один адрес сервера не принял подключение за отведенное время.
+ * В отличие от таймаута чтения, говорит о недоступности сервера, а не о медленном ответе
+ */
+public class ConnectTimeoutException extends SocketTimeoutException {
+
+    public ConnectTimeoutException(final String message) {
+        super(message);
+    }
+
+}
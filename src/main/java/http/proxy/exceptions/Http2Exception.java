@@ -0,0 +1,41 @@
+package http.proxy.exceptions;
+
+import java.io.IOException;
+
+/**
+ * Ошибка протокола HTTP/2. Хранит код ошибки, который отправляется
+ * клиенту в GOAWAY (ошибка соединения) или RST_STREAM (ошибка потока)
+ */
+public class Http2Exception extends IOException {
+
+    private final int errorCode;
+    private final int streamId;
+
+    /**
+     * Ошибка всего соединения
+     */
+    public Http2Exception(int errorCode, String message) {
+        this(errorCode, 0, message);
+    }
+
+    /**
+     * @param streamId номер потока, если ошибка касается только его, иначе 0
+     */
+    public Http2Exception(int errorCode, int streamId, String message) {
+        super(message);
+        this.errorCode = errorCode;
+        this.streamId = streamId;
+    }
+
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public boolean isStreamError() {
+        return streamId != 0;
+    }
+}
@@ -0,0 +1,549 @@
+package http.proxy.executor;
+
+import http.proxy.logger.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Пул потоков, размер которого подстраивается под нагрузку между minThreads и maxThreads.
+ * <p>
+ * Вместо одной общей очереди у пула несколько очередей (по две на ядро). Задача извне
+ * ставится в случайную очередь, задача из потока пула - в его собственную. Поток берет
+ * задачи из своей очереди, а когда она пуста, забирает их из чужих, поэтому потоки
+ * и отправители не толкаются на одной блокировке, как в LinkedBlockingQueue.
+ * Свободные потоки спят (LockSupport.park) и будятся по одному на новую задачу.
+ * <p>
+ * Для каждой задачи замеряется время в очереди, время выполнения и процессорное время
+ * потока. Раз в adjustInterval пул сравнивает их с прошлым замером:
+ * <ul>
+ * <li>задачи ждут в очереди дольше targetWait или все потоки заняты при непустой очереди -
+ * пул растет в полтора раза, но не больше ядра * (1 + ожидание / вычисление) по доле
+ * времени, которую задачи провели заблокированными (формула из Java Concurrency in Practice):
+ * пулу, задачи которого только считают, лишние потоки не помогут</li>
+ * <li>очереди нет - пул понемногу уменьшается до числа реально занятых потоков с запасом</li>
+ * </ul>
+ * Каждое изменение размера пишется в лог, а замеры доступны через геттеры (AdminServer /stats).
+ * Лишние потоки завершаются, когда простаивают, поэтому уменьшение не прерывает задачи.
+ */
+public final class AdaptiveExecutor extends AbstractExecutorService {
+
+    /**
+     * Как долго спит свободный поток, прежде чем проверить, не лишний ли он
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int CPUS = Runtime.getRuntime().availableProcessors();
+    /**
+     * Доля времени в блокировке, выше которой оценка потоков по формуле не растет (до 100 * ядра)
+     */
+    private static final double MAX_BLOCKED = 0.99;
+
+    private final String name;
+    private final Logger l;
+    private final Queue<Task>[] queues;
+    private final Queue<Worker> idle = new ConcurrentLinkedQueue<>();
+    private final Set<Worker> workers = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger live = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger workerIds = new AtomicInteger();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder steals = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder runNanos = new LongAdder();
+    private final LongAdder cpuNanos = new LongAdder();
+    private final LongAdder resizes = new LongAdder();
+    /**
+     * null, если JVM не умеет измерять процессорное время потока
+     */
+    private final ThreadMXBean cpu;
+    private final long targetWaitNanos;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private final ScheduledFuture<?> sizing;
+    private volatile int minThreads;
+    private volatile int maxThreads;
+    private volatile int targetThreads;
+    private volatile boolean shutdown;
+    /**
+     * Замеры последнего интервала, для статистики
+     */
+    private volatile long lastWaitMicros;
+    private volatile int lastBlockedPercent;
+
+    /**
+     * Состояние прошлого замера, меняется только в потоке Sizer
+     */
+    private long lastAdjust = System.nanoTime();
+    private long lastStarted;
+    private long lastWait;
+    private long lastCompleted;
+    private long lastRun;
+    private long lastCpu;
+
+    /**
+     * @param name           имя пула, из него составляются имена потоков
+     * @param threads        начальное количество потоков
+     * @param minThreads     меньше скольких потоков пул не становится
+     * @param maxThreads     больше скольких потоков пул не становится
+     * @param adjustInterval раз в сколько миллисекунд пересматривается размер
+     * @param targetWait     сколько миллисекунд задача может ждать в очереди, прежде чем пул вырастет
+     * @param logger         логгер для изменений размера и ошибок задач
+     */
+    public AdaptiveExecutor(final String name,
+                            final int threads,
+                            final int minThreads,
+                            final int maxThreads,
+                            final long adjustInterval,
+                            final long targetWait,
+                            final Logger logger
+    ) {
+        checkBounds(minThreads, maxThreads);
+        if (adjustInterval <= 0) throw new IllegalArgumentException("pool_adjust_interval must be positive");
+        if (targetWait < 0) throw new IllegalArgumentException("pool_target_wait must not be negative");
+        this.name = name;
+        this.l = logger;
+        this.targetWaitNanos = TimeUnit.MILLISECONDS.toNanos(targetWait);
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final Queue<Task>[] created = new Queue[Math.max(4, CPUS * 2)];
+        queues = created;
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ConcurrentLinkedQueue<>();
+        }
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean.isCurrentThreadCpuTimeSupported()) {
+            if (!bean.isThreadCpuTimeEnabled()) bean.setThreadCpuTimeEnabled(true);
+            cpu = bean;
+        } else {
+            cpu = null;
+        }
+        resizeTo(clamp(threads, minThreads, maxThreads));
+        sizing = Sizer.INSTANCE.scheduleWithFixedDelay(
+                this::adjustSafely, adjustInterval, adjustInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        if (command == null) throw new NullPointerException();
+        if (shutdown) throw new RejectedExecutionException(name + " pool is shut down");
+        final Task task = new Task(command, System.nanoTime());
+        final Thread current = Thread.currentThread();
+        final Queue<Task> queue = (current instanceof Worker && ((Worker) current).pool() == this)
+                ? queues[((Worker) current).home]
+                : queues[ThreadLocalRandom.current().nextInt(queues.length)];
+        queued.increment();
+        queue.add(task);
+        /** Пул мог завершиться, пока задача ставилась: тогда ее никто не возьмет*/
+        if (shutdown && live.get() == 0 && queue.remove(task)) {
+            queued.decrement();
+            throw new RejectedExecutionException(name + " pool is shut down");
+        }
+        signal();
+    }
+
+    /**
+     * Фиксирует размер пула: minThreads = maxThreads = threads
+     */
+    public void setPoolSize(final int threads) {
+        setBounds(threads, threads);
+    }
+
+    /**
+     * Меняет границы размера, текущий размер приводится к ним сразу
+     */
+    public void setBounds(final int minThreads, final int maxThreads) {
+        checkBounds(minThreads, maxThreads);
+        synchronized (this) {
+            this.minThreads = minThreads;
+            this.maxThreads = maxThreads;
+            final int threads = clamp(targetThreads, minThreads, maxThreads);
+            if (threads != targetThreads) resizeTo(threads);
+        }
+        l.log(Logger.Level.INFO, "Pool " + name + ": threads " + minThreads + ".." + maxThreads);
+    }
+
+    /**
+     * @return сколько потоков пул держит сейчас (потоки сверх этого завершаются, когда освободятся)
+     */
+    public int getPoolSize() {
+        return targetThreads;
+    }
+
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public long getQueueSize() {
+        return queued.sum();
+    }
+
+    public long getCompletedTaskCount() {
+        return completed.sum();
+    }
+
+    /**
+     * @return сколько задач потоки взяли из чужих очередей
+     */
+    public long getSteals() {
+        return steals.sum();
+    }
+
+    public long getResizes() {
+        return resizes.sum();
+    }
+
+    /**
+     * @return среднее время задачи в очереди за последний интервал, мкс
+     */
+    public long getLastWaitMicros() {
+        return lastWaitMicros;
+    }
+
+    /**
+     * @return доля времени выполнения задач, проведенная без процессора (ввод-вывод, блокировки),
+     * за последний интервал, в процентах
+     */
+    public int getLastBlockedPercent() {
+        return lastBlockedPercent;
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        sizing.cancel(false);
+        for (Worker worker : workers) {
+            worker.parked.set(false);
+            LockSupport.unpark(worker);
+        }
+        if (live.get() == 0) terminated.countDown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        final List<Runnable> pending = new ArrayList<>();
+        for (Queue<Task> queue : queues) {
+            Task task;
+            while ((task = queue.poll()) != null) {
+                queued.decrement();
+                pending.add(task.command);
+            }
+        }
+        for (Worker worker : workers) {
+            worker.interrupt();
+        }
+        return pending;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return terminated.getCount() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    /**
+     * Будит один свободный поток. Записи в idle, чей поток уже проснулся сам, пропускаются
+     */
+    private void signal() {
+        Worker worker;
+        while ((worker = idle.poll()) != null) {
+            if (worker.parked.compareAndSet(true, false)) {
+                LockSupport.unpark(worker);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Создает потоки до threads. Лишние потоки не останавливаются здесь,
+     * а завершаются сами, когда простаивают
+     */
+    private void resizeTo(final int threads) {
+        targetThreads = threads;
+        int current;
+        while (!shutdown && (current = live.get()) < targetThreads) {
+            if (live.compareAndSet(current, current + 1)) {
+                final Worker worker = new Worker(workerIds.getAndIncrement());
+                workers.add(worker);
+                worker.start();
+            }
+        }
+    }
+
+    /**
+     * Уменьшает счетчик живых потоков, если потоков больше нужного
+     *
+     * @return true, если вызвавший поток должен завершиться
+     */
+    private boolean retire() {
+        int current;
+        while ((current = live.get()) > targetThreads) {
+            if (live.compareAndSet(current, current - 1)) return true;
+        }
+        return false;
+    }
+
+    private void adjustSafely() {
+        try {
+            adjust();
+        } catch (RuntimeException e) {
+            l.log(Logger.Level.EXCEPTION, "Pool " + name + " sizing failed: " + e.getMessage());
+        }
+    }
+
+    private void adjust() {
+        if (shutdown) return;
+        final long now = System.nanoTime();
+        final long startedNow = started.sum();
+        final long waitNow = waitNanos.sum();
+        final long completedNow = completed.sum();
+        final long runNow = runNanos.sum();
+        final long cpuNow = cpuNanos.sum();
+        final long window = Math.max(1, now - lastAdjust);
+        final long dStarted = startedNow - lastStarted;
+        final long dWait = waitNow - lastWait;
+        final long dCompleted = completedNow - lastCompleted;
+        final long dRun = runNow - lastRun;
+        final long dCpu = cpuNow - lastCpu;
+        lastAdjust = now;
+        lastStarted = startedNow;
+        lastWait = waitNow;
+        lastCompleted = completedNow;
+        lastRun = runNow;
+        lastCpu = cpuNow;
+
+        final long avgWait = (dStarted > 0) ? dWait / dStarted : 0;
+        /** Без процессорного времени доля блокировки неизвестна, рост ограничен только maxThreads*/
+        final double blocked = (cpu != null && dRun > 0) ? Math.max(0, dRun - dCpu) / (double) dRun : -1;
+        lastWaitMicros = avgWait / 1000;
+        lastBlockedPercent = (blocked < 0) ? 0 : (int) Math.round(blocked * 100);
+
+        synchronized (this) {
+            final int min = minThreads;
+            final int max = maxThreads;
+            final int current = targetThreads;
+            if (min == max) return;
+            final int busyNow = active.get();
+            /** Потоки заняты задачами, которые не завершились за интервал (медленный сервер),
+             * поэтому замеров ожидания нет, а очередь стоит*/
+            final boolean starving = busyNow >= current && queued.sum() > 0;
+            int desired = current;
+            if (starving || avgWait > targetWaitNanos) {
+                final int ceiling = (blocked < 0 || dCompleted == 0)
+                        ? max
+                        : (int) Math.ceil(CPUS / (1 - Math.min(blocked, MAX_BLOCKED)));
+                desired = Math.max(current, Math.min(current + Math.max(1, current / 2), ceiling));
+            } else {
+                /** Среднее число занятых потоков за интервал, с запасом на всплеск*/
+                final double busy = Math.max((double) dRun / window, busyNow);
+                final int needed = (int) Math.ceil(busy * 1.25) + 1;
+                if (needed < current) desired = current - Math.max(1, (current - needed) / 4);
+            }
+            desired = clamp(desired, min, max);
+            if (desired == current) return;
+            resizeTo(desired);
+            resizes.increment();
+            l.log(Logger.Level.INFO, "Pool " + name + ": " + current + " -> " + desired + " threads (queue wait " +
+                    avgWait / 1000 + " us, blocked " + ((blocked < 0) ? "n/a" : lastBlockedPercent + "%") +
+                    ", active " + busyNow + ", queued " + queued.sum() + ", completed " + dCompleted + ")");
+        }
+    }
+
+    private static void checkBounds(final int minThreads, final int maxThreads) {
+        if (minThreads < 1 || maxThreads < minThreads) {
+            throw new IllegalArgumentException("Pool bounds must satisfy 1 <= min <= max: " +
+                    minThreads + ".." + maxThreads);
+        }
+    }
+
+    private static int clamp(final int value, final int min, final int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static final class Task {
+        private final Runnable command;
+        private final long enqueued;
+
+        Task(Runnable command, long enqueued) {
+            this.command = command;
+            this.enqueued = enqueued;
+        }
+    }
+
+    private final class Worker extends Thread {
+        private final int home;
+        /**
+         * true, пока поток записан в idle и ждет signal. Сбрасывает тот, кто будит,
+         * или сам поток, если нашел задачу раньше
+         */
+        private final AtomicBoolean parked = new AtomicBoolean();
+        /**
+         * Поток сам уменьшил live и завершается как лишний
+         */
+        private boolean retired;
+
+        Worker(final int id) {
+            super(name + "-" + id);
+            home = id % queues.length;
+        }
+
+        AdaptiveExecutor pool() {
+            return AdaptiveExecutor.this;
+        }
+
+        @Override
+        public void run() {
+            boolean finished = false;
+            try {
+                while (true) {
+                    Task task = poll();
+                    if (task == null) {
+                        if (shutdown) break;
+                        task = awaitTask();
+                        if (task == null) break;
+                    }
+                    runTask(task);
+                }
+                finished = true;
+            } finally {
+                workers.remove(this);
+                /** retire уже уменьшил счетчик; при shutdown и ошибке уменьшаем здесь*/
+                if (!retired) live.decrementAndGet();
+                if (shutdown) {
+                    if (live.get() == 0) terminated.countDown();
+                } else if (!finished) {
+                    /** Поток убила ошибка (Error), на его место нужен новый*/
+                    synchronized (AdaptiveExecutor.this) {
+                        resizeTo(targetThreads);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Своя очередь, потом чужие, начиная со случайной
+         */
+        private Task poll() {
+            Task task = queues[home].poll();
+            if (task == null) {
+                final int start = ThreadLocalRandom.current().nextInt(queues.length);
+                for (int i = 0; i < queues.length && task == null; i++) {
+                    final int index = (start + i) % queues.length;
+                    if (index == home) continue;
+                    task = queues[index].poll();
+                    if (task != null) steals.increment();
+                }
+            }
+            if (task != null) queued.decrement();
+            return task;
+        }
+
+        /**
+         * Поток записывается в idle и только потом еще раз проверяет очереди: задача,
+         * поставленная до записи, будет найдена здесь, а после записи - разбудит поток
+         *
+         * @return задача или null, если поток должен завершиться
+         */
+        private Task awaitTask() {
+            Task task = enterIdle();
+            while (task == null) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                if (parked.get()) {
+                    /** Никто не разбудил: поток простаивает, лишний завершается*/
+                    if ((shutdown || live.get() > targetThreads) && parked.compareAndSet(true, false)) {
+                        if (shutdown) return null;
+                        if (retire()) {
+                            retired = true;
+                            return null;
+                        }
+                        task = enterIdle();
+                    }
+                    continue;
+                }
+                task = poll();
+                if (task == null) {
+                    if (shutdown) return null;
+                    task = enterIdle();
+                }
+            }
+            return task;
+        }
+
+        private Task enterIdle() {
+            parked.set(true);
+            idle.add(this);
+            final Task task = poll();
+            /** Пока поток проверял очереди, его разбудили ради другой задачи: будим вместо себя следующего*/
+            if (task != null && !parked.compareAndSet(true, false)) signal();
+            return task;
+        }
+
+        private void runTask(final Task task) {
+            final long start = System.nanoTime();
+            started.increment();
+            waitNanos.add(start - task.enqueued);
+            final long cpuStart = (cpu != null) ? cpu.getCurrentThreadCpuTime() : 0;
+            active.incrementAndGet();
+            try {
+                task.command.run();
+            } catch (RuntimeException e) {
+                l.log(Logger.Level.EXCEPTION, "Task failed in " + getName() + ": " + e);
+            } finally {
+                active.decrementAndGet();
+                runNanos.add(System.nanoTime() - start);
+                if (cpu != null) cpuNanos.add(cpu.getCurrentThreadCpuTime() - cpuStart);
+                completed.increment();
+                /** Прерывание из shutdownNow или задачи не должно достаться следующей задаче*/
+                if (!shutdown) Thread.interrupted();
+            }
+        }
+    }
+
+    /**
+     * Один общий поток пересмотра размера для всех пулов
+     */
+    private static final class Sizer {
+        private static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "pool-sizer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,186 @@
+package http.proxy.executor;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Полоса обработки запросов после разбора: попадания в кэш и промахи обслуживаются
+ * разными путями, и у каждого пути свое ожидание и своя граница.
+ * <p>
+ * Полоса считает время, которое запрос прождал в очередях, прежде чем его начали
+ * обслуживать. Время хранится в гистограмме с точностью 1/8: по 8 ячеек на каждую
+ * степень двойки микросекунд, поэтому запись - один инкремент без блокировок.
+ * Процентили считаются по замерам со времени прошлого вызова waitSnapshot().
+ * <p>
+ * Если задан limit, в полосе одновременно не больше limit запросов (ждущих и
+ * обслуживаемых): tryAcquire() для лишнего запроса возвращает false, и запрос сразу
+ * получает отказ, а не встает в очередь за всеми остальными. Место освобождает release().
+ */
+public final class Lane {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Значения до Integer.MAX_VALUE микросекунд (больше получаса), остальные попадают в последнюю ячейку
+     */
+    private static final int BUCKETS = bucket(Integer.MAX_VALUE) + 1;
+
+    private final String name;
+    private volatile int limit;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder served = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    /**
+     * Замеры со времени прошлого waitSnapshot()
+     */
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+    private final LongAdder waitMicros = new LongAdder();
+    private final AtomicLong maxWaitMicros = new AtomicLong();
+
+    /**
+     * @param limit сколько запросов может быть в полосе одновременно, 0 - без ограничения
+     */
+    public Lane(final String name, final int limit) {
+        this.name = name;
+        setLimit(limit);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Занимает место в полосе
+     *
+     * @return false, если полоса заполнена: запрос нужно отклонить
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            final int current = pending.get();
+            final int max = limit;
+            if (max > 0 && current >= max) {
+                rejected.increment();
+                return false;
+            }
+            if (pending.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /**
+     * Освобождает место, занятое tryAcquire(). Вызывается один раз на запрос,
+     * когда полоса закончила его обслуживать
+     */
+    public void release() {
+        pending.decrementAndGet();
+    }
+
+    /**
+     * Запрос прождал nanos, прежде чем полоса начала его обслуживать
+     */
+    public void recordWait(final long nanos) {
+        final long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        served.increment();
+        histogram.incrementAndGet(bucket(Math.min(micros, Integer.MAX_VALUE)));
+        waitMicros.add(micros);
+        if (micros > maxWaitMicros.get()) maxWaitMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    /**
+     * Представление executor, которое записывает ожидание каждой задачи в этой полосе:
+     * от вызова execute до начала выполнения
+     */
+    public Executor timed(final Executor executor) {
+        return command -> {
+            final long queued = System.nanoTime();
+            executor.execute(() -> {
+                recordWait(System.nanoTime() - queued);
+                command.run();
+            });
+        };
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param limit новая граница, 0 - без ограничения. Запросы, которые уже в полосе, не отклоняются
+     */
+    public void setLimit(final int limit) {
+        if (limit < 0) throw new IllegalArgumentException(name + " lane limit must not be negative: " + limit);
+        this.limit = limit;
+    }
+
+    /**
+     * @return сколько запросов сейчас занимают место в полосе
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @return сколько раз полоса начала обслуживать запрос (или задачу) с запуска
+     */
+    public long getServed() {
+        return served.sum();
+    }
+
+    /**
+     * @return сколько запросов отклонено с запуска, потому что полоса была заполнена
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Ожидание со времени прошлого вызова, счетчики после этого начинаются заново
+     *
+     * @return {количество замеров, среднее, p50, p99, максимум}, время в микросекундах
+     */
+    public long[] waitSnapshot() {
+        final long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram.getAndSet(i, 0);
+            count += counts[i];
+        }
+        final long total = waitMicros.sumThenReset();
+        final long max = maxWaitMicros.getAndSet(0);
+        if (count == 0) return new long[5];
+        return new long[]{count, total / count, percentile(counts, count, 50), percentile(counts, count, 99), max};
+    }
+
+    /**
+     * @return верхняя граница ячейки, в которую попал percent-й процент замеров
+     */
+    private static long percentile(final long[] counts, final long count, final int percent) {
+        final long rank = Math.max(1, (count * percent + 99) / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(counts.length - 1);
+    }
+
+    /**
+     * Ячейка: значения меньше SUB_BUCKETS точно, дальше по SUB_BUCKETS ячеек на степень двойки
+     */
+    private static int bucket(final long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+        final int octave = 63 - Long.numberOfLeadingZeros(micros);
+        final int shift = octave - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long upperBound(final int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
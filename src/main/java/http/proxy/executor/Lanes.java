@@ -0,0 +1,34 @@
+package http.proxy.executor;
+
+/**
+ * Две полосы, по которым расходятся запросы после разбора.
+ * <ul>
+ * <li>hit - попадания в кэш. HTTP/1.1 отвечает на попадание сразу в рабочем потоке, который
+ * разобрал запрос: ответ уже закодирован, и лишняя очередь только добавила бы ожидание.
+ * HTTP/2 отвечает в потоке чтения соединения: ответ только ставится в очередь потока
+ * записи этого соединения, поэтому чтение не ждет ни окна, ни клиента.</li>
+ * <li>miss - промахи: узел группы, проверки хоста и запрос к серверу в пуле запросов к серверам.
+ * Полоса ограничена (miss_lane_limit), лишний промах сразу получает устаревший ответ
+ * или 503, а рабочие потоки не тратят время на промахи совсем.</li>
+ * </ul>
+ */
+public final class Lanes {
+
+    private final Lane hit = new Lane("hit", 0);
+    private final Lane miss;
+
+    /**
+     * @param missLimit сколько промахов может ждать и выполняться одновременно, 0 - без ограничения
+     */
+    public Lanes(final int missLimit) {
+        this.miss = new Lane("miss", missLimit);
+    }
+
+    public Lane hit() {
+        return hit;
+    }
+
+    public Lane miss() {
+        return miss;
+    }
+}
@@ -0,0 +1,228 @@
+package http.proxy.http2;
+
+import http.proxy.exceptions.Http2Exception;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Сжатие заголовков HPACK (RFC 7541).
+ * <p>
+ * Decoder хранит динамическую таблицу клиента и должен вызываться строго
+ * в порядке прихода блоков заголовков (из потока чтения соединения).
+ * Кодирование (encode) динамическую таблицу не использует: заголовки кодируются
+ * индексами статической таблицы или литералами без индексации. Поэтому оно не
+ * имеет состояния и может вызываться из любого потока.
+ */
+final class Hpack {
+
+    /**
+     * Статическая таблица (RFC 7541, приложение A), индексация с 1
+     */
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+            {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+            {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""},
+            {"accept", ""}, {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""},
+            {"authorization", ""}, {"cache-control", ""}, {"content-disposition", ""},
+            {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+            {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+            {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+            {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""},
+            {"max-forwards", ""}, {"proxy-authenticate", ""}, {"proxy-authorization", ""},
+            {"range", ""}, {"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""},
+            {"set-cookie", ""}, {"strict-transport-security", ""}, {"transfer-encoding", ""},
+            {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+    };
+
+    /**
+     * Накладные расходы на запись в динамической таблице (RFC 7541, 4.1)
+     */
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private Hpack() {
+    }
+
+    /**
+     * Декодер блоков заголовков
+     */
+    static final class Decoder {
+
+        /**
+         * Динамическая таблица, первый элемент - самый новый
+         */
+        private final ArrayDeque<String[]> dynamicTable = new ArrayDeque<>();
+        private final int maxAllowedTableSize;
+        private int maxTableSize;
+        private int tableSize;
+
+        /**
+         * @param maxAllowedTableSize значение SETTINGS_HEADER_TABLE_SIZE, которое мы объявили клиенту
+         */
+        Decoder(final int maxAllowedTableSize) {
+            this.maxAllowedTableSize = maxAllowedTableSize;
+            this.maxTableSize = maxAllowedTableSize;
+        }
+
+        /**
+         * @return список пар {имя, значение} в порядке следования
+         */
+        List<String[]> decode(final byte[] block, final int length) throws Http2Exception {
+            final List<String[]> result = new ArrayList<>();
+            final int[] pos = {0};
+            while (pos[0] < length) {
+                final int b = block[pos[0]] & 0xff;
+                if ((b & 0x80) != 0) {
+                    /** Индексированное поле*/
+                    final int index = readInt(block, length, pos, 7);
+                    if (index == 0) throw new Http2Exception(Http2.COMPRESSION_ERROR, "Zero index");
+                    final String[] field = get(index);
+                    result.add(new String[]{field[0], field[1]});
+                } else if ((b & 0x40) != 0) {
+                    /** Литерал с добавлением в динамическую таблицу*/
+                    final String[] field = readLiteral(block, length, pos, 6);
+                    add(field);
+                    result.add(field);
+                } else if ((b & 0x20) != 0) {
+                    /** Изменение размера динамической таблицы*/
+                    final int size = readInt(block, length, pos, 5);
+                    if (size > maxAllowedTableSize)
+                        throw new Http2Exception(Http2.COMPRESSION_ERROR, "Table size update too large");
+                    maxTableSize = size;
+                    evict();
+                } else {
+                    /** Литерал без индексации (0000) или никогда не индексируемый (0001)*/
+                    result.add(readLiteral(block, length, pos, 4));
+                }
+            }
+            return result;
+        }
+
+        private String[] readLiteral(byte[] block, int length, int[] pos, int prefix) throws Http2Exception {
+            final int index = readInt(block, length, pos, prefix);
+            final String name = (index == 0) ? readString(block, length, pos) : get(index)[0];
+            final String value = readString(block, length, pos);
+            return new String[]{name, value};
+        }
+
+        private String[] get(final int index) throws Http2Exception {
+            if (index <= STATIC_TABLE.length) return STATIC_TABLE[index - 1];
+            final int dynamicIndex = index - STATIC_TABLE.length - 1;
+            if (dynamicIndex >= dynamicTable.size())
+                throw new Http2Exception(Http2.COMPRESSION_ERROR, "Invalid index " + index);
+            final Iterator<String[]> iterator = dynamicTable.iterator();
+            for (int i = 0; i < dynamicIndex; i++) iterator.next();
+            return iterator.next();
+        }
+
+        private void add(final String[] field) {
+            final int size = field[0].length() + field[1].length() + ENTRY_OVERHEAD;
+            if (size > maxTableSize) {
+                /** Слишком большое поле просто очищает таблицу*/
+                dynamicTable.clear();
+                tableSize = 0;
+                return;
+            }
+            dynamicTable.addFirst(field);
+            tableSize += size;
+            evict();
+        }
+
+        private void evict() {
+            while (tableSize > maxTableSize) {
+                final String[] removed = dynamicTable.removeLast();
+                tableSize -= removed[0].length() + removed[1].length() + ENTRY_OVERHEAD;
+            }
+        }
+
+        private static String readString(byte[] block, int length, int[] pos) throws Http2Exception {
+            if (pos[0] >= length) throw new Http2Exception(Http2.COMPRESSION_ERROR, "Truncated string");
+            final boolean huffman = (block[pos[0]] & 0x80) != 0;
+            final int stringLength = readInt(block, length, pos, 7);
+            if (stringLength > length - pos[0])
+                throw new Http2Exception(Http2.COMPRESSION_ERROR, "Truncated string");
+            final String result = huffman
+                    ? Huffman.decode(block, pos[0], stringLength)
+                    : new String(block, pos[0], stringLength, StandardCharsets.ISO_8859_1);
+            pos[0] += stringLength;
+            return result;
+        }
+
+        /**
+         * Целое с префиксом из prefix бит (RFC 7541, 5.1)
+         */
+        private static int readInt(byte[] block, int length, int[] pos, int prefix) throws Http2Exception {
+            final int mask = (1 << prefix) - 1;
+            int value = block[pos[0]++] & mask;
+            if (value < mask) return value;
+            int shift = 0;
+            int b;
+            do {
+                if (pos[0] >= length || shift > 21)
+                    throw new Http2Exception(Http2.COMPRESSION_ERROR, "Invalid integer");
+                b = block[pos[0]++] & 0xff;
+                value += (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+
+    /**
+     * @param names  имена заголовков в нижнем регистре
+     * @param values значения
+     * @param count  количество заголовков
+     * @return закодированный блок
+     */
+    static byte[] encode(final String[] names, final String[] values, final int count) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * count);
+        for (int i = 0; i < count; i++) {
+            int nameIndex = 0;
+            int fullIndex = 0;
+            for (int j = 0; j < STATIC_TABLE.length && fullIndex == 0; j++) {
+                if (STATIC_TABLE[j][0].equals(names[i])) {
+                    if (nameIndex == 0) nameIndex = j + 1;
+                    if (STATIC_TABLE[j][1].equals(values[i])) fullIndex = j + 1;
+                }
+            }
+            if (fullIndex > 0) {
+                writeInt(out, 0x80, 7, fullIndex);
+            } else {
+                /** Литерал без индексации, имя по индексу или строкой*/
+                writeInt(out, 0x00, 4, nameIndex);
+                if (nameIndex == 0) writeString(out, names[i]);
+                writeString(out, values[i]);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        writeInt(out, 0x00, 7, s.length());
+        for (int i = 0; i < s.length(); i++) {
+            out.write((byte) s.charAt(i));
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int firstByte, int prefix, int value) {
+        final int mask = (1 << prefix) - 1;
+        if (value < mask) {
+            out.write(firstByte | value);
+            return;
+        }
+        out.write(firstByte | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
@@ -0,0 +1,1392 @@
+package http.proxy.http2;
+
+import http.proxy.cache.CacheManager;
+import http.proxy.limit.RateLimits;
+import http.proxy.peer.PeerGroup;
+import http.proxy.cache.CachedResponse;
+import http.proxy.cache.Validators;
+import http.proxy.exceptions.CircuitOpenException;
+import http.proxy.exceptions.Http2Exception;
+import http.proxy.executor.Lane;
+import http.proxy.executor.Lanes;
+import http.proxy.logger.BinaryAccessLog;
+import http.proxy.logger.Logger;
+import http.proxy.upstream.Upstream;
+import http.proxy.utils.BufferPool;
+import http.proxy.utils.Callback;
+import http.proxy.utils.Headers;
+import http.proxy.utils.Request;
+import http.proxy.utils.Response;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static http.proxy.constants.Constants.*;
+
+/**
+ * Соединение HTTP/2 без TLS (h2c) с клиентом.
+ * <p>
+ * Поддерживаются оба способа начать HTTP/2: сразу с предисловия (prior knowledge)
+ * и через HTTP/1.1 запрос с заголовком Upgrade: h2c.
+ * <p>
+ * Поток, который вызвал serve, читает фреймы и декодирует заголовки. Как только
+ * запрос в HTTP/2-потоке (stream) получен целиком, поток чтения проверяет CacheManager
+ * (без блокировки) и отдает запрос в свою полосу (Lanes): на попадание поток чтения
+ * отвечает сам, промах выполняется обычным Upstream.execute в пуле запросов к серверам.
+ * <p>
+ * В сокет пишет только поток записи соединения (h2-writer). Остальные потоки ставят
+ * фреймы и ответы в его очередь и не ждут ни окна, ни медленного клиента. Ответы разных
+ * потоков отправляются по кругу, по одному фрейму DATA, поэтому одно соединение может
+ * обслуживать сотни запросов сразу, а поток без окна не задерживает остальные.
+ * <p>
+ * Управление потоком данных: окна на отправку (соединения и каждого потока)
+ * уменьшаются при отправке DATA и увеличиваются по WINDOW_UPDATE от клиента,
+ * полученные от клиента данные сразу подтверждаются WINDOW_UPDATE соединения.
+ * Окно потока на прием клиент получает один раз в SETTINGS и больше не пополняется:
+ * тело запроса собирается в памяти, поэтому его размер ограничен этим окном.
+ * <p>
+ * Все сроки равны таймауту сокета (so_timeout). Поток, которому клиент столько не дает
+ * окна, сбрасывается RST_STREAM, соединение без окна закрывается с GOAWAY. Соединение
+ * закрывается и если запись в сокет висит дольше (клиент не читает), и если за это время
+ * не было ни одного фрейма ни от клиента, ни клиенту, даже когда ответы еще не готовы.
+ */
+public final class Http2Connection {
+
+    private static final int MAX_CONCURRENT_STREAMS = 256;
+    /**
+     * Ограничение на размер блока заголовков одного запроса
+     */
+    private static final int MAX_HEADER_BLOCK = 64 * 1024;
+    /**
+     * Ограничение на тело запроса: в отличие от HTTP/1.1 оно не передается серверу
+     * по мере получения, а собирается в памяти. Начальное окно потока на байт больше,
+     * чтобы клиент с длинным телом не ждал окна, а прислал лишний байт и получил 413
+     */
+    private static final int MAX_REQUEST_BODY = 1024 * 1024;
+    private static final int GOAWAY_DRAIN_MILLIS = 30000;
+    /**
+     * Сколько при закрытии ждать, пока поток записи отправит уже поставленные GOAWAY и RST_STREAM
+     */
+    private static final int CLOSE_FLUSH_MILLIS = 1000;
+    /**
+     * Сколько служебных фреймов может ждать записи. Больше бывает, только если клиент
+     * присылает фреймы (например, PING), а ответы на них не читает
+     */
+    private static final int MAX_QUEUED_FRAMES = 4096;
+
+    private final Socket socket;
+    private final Logger l;
+    private final CacheManager cm;
+    private final PeerGroup peers;
+    private final RateLimits limits;
+    private final Executor es;
+    private final Upstream upstream;
+    private final Lanes lanes;
+    private final BinaryAccessLog accessLog;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Http2.DEFAULT_HEADER_TABLE_SIZE);
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+
+    /**
+     * Блокировка окон на отправку и очереди записи, на ней поток записи ждет окно и новые фреймы
+     */
+    private final Object windowLock = new Object();
+    private final ArrayDeque<Write> writes = new ArrayDeque<>();
+    private int queuedFrames;
+    private final Thread writer = new Thread(this::writeLoop, "h2-writer");
+    /**
+     * Таймаут сокета в наносекундах, 0 - без сроков. Задается до запуска потока записи
+     */
+    private long timeout;
+    /**
+     * Когда началась текущая запись в сокет (0 - поток записи не пишет) и когда закончилась последняя
+     */
+    private volatile long writeStarted;
+    private volatile long lastWrite = System.nanoTime();
+    private int connectionSendWindow = Http2.DEFAULT_WINDOW_SIZE;
+    private int initialStreamSendWindow = Http2.DEFAULT_WINDOW_SIZE;
+    private volatile int maxFrameSize = Http2.DEFAULT_MAX_FRAME_SIZE;
+    private volatile boolean closed;
+
+    /**
+     * Состояние, которое меняет только поток чтения
+     */
+    private int lastStreamId;
+    private int continuationStreamId;
+    private boolean continuationEndStream;
+    private byte[] frame;
+
+    /**
+     * @param socket сокет клиента
+     * @param is     входной поток сокета, из которого Request уже прочитал первую строку
+     * @param os     выходной поток сокета
+     * @param peers  группа узлов с общим кэшем или null
+     * @param limits ограничения частоты, проверяются на каждый поток
+     * @param upstream подключение к серверам, автоматы хостов и хеджирование
+     * @param lanes  полосы попаданий и промахов
+     * @param accessLog двоичный журнал доступа или null
+     */
+    public Http2Connection(final Socket socket,
+                           final InputStream is,
+                           final OutputStream os,
+                           final Logger logger,
+                           final CacheManager cacheManager,
+                           final PeerGroup peers,
+                           final RateLimits limits,
+                           final Executor executorService,
+                           final Upstream upstream,
+                           final Lanes lanes,
+                           final BinaryAccessLog accessLog
+    ) {
+        this.socket = socket;
+        this.in = new BufferedInputStream(is, Http2.DEFAULT_MAX_FRAME_SIZE);
+        this.out = new BufferedOutputStream(os, Http2.DEFAULT_MAX_FRAME_SIZE + Http2.FRAME_HEADER_LENGTH);
+        this.l = logger;
+        this.cm = cacheManager;
+        this.peers = peers;
+        this.limits = limits;
+        this.es = executorService;
+        this.upstream = upstream;
+        this.lanes = lanes;
+        this.accessLog = accessLog;
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * @return true, если клиент просит перейти на h2c через Upgrade
+     */
+    public static boolean isUpgrade(final Request request) {
+        final String upgrade = request.getHeaders().get(UPGRADE);
+        if (upgrade == null || request.getHeaders().get(HTTP2_SETTINGS) == null) return false;
+        for (String token : upgrade.split(",")) {
+            if (H2C.equalsIgnoreCase(token.trim())) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Клиент начал сразу с предисловия HTTP/2 (prior knowledge).
+     * Первую строку предисловия уже прочитал Request
+     */
+    public void serve() {
+        try {
+            noDelay();
+            startWriter();
+            readPreface(Http2.PREFACE_LINE_LENGTH);
+            writeSettings();
+        } catch (IOException e) {
+            l.log(Logger.Level.EXCEPTION, socket, "HTTP/2 preface failed " + e.getMessage());
+            close();
+            return;
+        }
+        loop();
+    }
+
+    /**
+     * Переход на h2c по заголовку Upgrade. Исходный запрос становится потоком 1,
+     * ответ на него уже отправляется по HTTP/2
+     *
+     * @param request прочитанный HTTP/1.1 запрос
+     */
+    public void serveUpgrade(final Request request) {
+        try {
+            noDelay();
+            final String settings = request.getHeaders().get(HTTP2_SETTINGS);
+            final byte[] payload = Base64.getUrlDecoder().decode(settings.trim());
+            if (payload.length % 6 != 0) throw new Http2Exception(Http2.PROTOCOL_ERROR, "Bad HTTP2-Settings");
+
+            startWriter();
+            enqueue(new Write((DEFAULT_HTTP_VERSION + SPACE + SWITCHING_PROTOCOLS_CODE + SPACE + SWITCHING_PROTOCOLS + CRLF +
+                    CONNECTION + HEADER_DELIM + SPACE + UPGRADE + CRLF +
+                    UPGRADE + HEADER_DELIM + SPACE + H2C + CRLF + CRLF).getBytes(StandardCharsets.ISO_8859_1)));
+            writeSettings();
+            /** Настройки из HTTP2-Settings подтверждаются самим ответом 101, ACK не нужен*/
+            applySettings(payload, payload.length);
+
+            final Headers headers = request.getHeaders();
+            headers.remove(UPGRADE);
+            headers.remove(HTTP2_SETTINGS);
+            headers.remove(CONNECTION);
+            /** Если клиент обращался к нам как к серверу, url относительный - дополняем его из Host*/
+            final String url = (request.getUrl().startsWith("/") && headers.get(HOST) != null)
+                    ? "http://" + headers.get(HOST) + request.getUrl()
+                    : request.getUrl();
+            final Request upgraded = Request.create(request.getMethod(), url, headers,
+                    request.getBody(), request.getBodyLength());
+            final Stream stream = openStream(1);
+            stream.remoteClosed = true;
+            lastStreamId = 1;
+            route(stream, upgraded);
+
+            readPreface(0);
+        } catch (IOException | IllegalArgumentException e) {
+            l.log(Logger.Level.EXCEPTION, socket, "HTTP/2 upgrade failed " + e.getMessage());
+            close();
+            return;
+        }
+        loop();
+    }
+
+    private void readPreface(final int alreadyRead) throws IOException {
+        final byte[] preface = new byte[Http2.PREFACE.length - alreadyRead];
+        readFully(preface, preface.length);
+        for (int i = 0; i < preface.length; i++) {
+            if (preface[i] != Http2.PREFACE[alreadyRead + i])
+                throw new Http2Exception(Http2.PROTOCOL_ERROR, "Invalid connection preface");
+        }
+    }
+
+    /**
+     * Поток записи делает flush, как только в очереди нет готовых фреймов, поэтому ответ
+     * на одиночный запрос - это несколько маленьких записей: HEADERS, затем DATA. С алгоритмом Нейгла DATA ждал бы подтверждения
+     * HEADERS, а клиент откладывает подтверждение до 40 мс, и каждое попадание в кэш
+     * отвечало бы не быстрее этого
+     */
+    private void noDelay() throws IOException {
+        socket.setTcpNoDelay(true);
+    }
+
+    private void startWriter() throws IOException {
+        timeout = TimeUnit.MILLISECONDS.toNanos(socket.getSoTimeout());
+        writer.start();
+    }
+
+    /**
+     * Цикл чтения фреймов. Завершается при закрытии соединения клиентом,
+     * получении GOAWAY или ошибке соединения
+     */
+    private void loop() {
+        frame = BufferPool.lease(Http2.DEFAULT_MAX_FRAME_SIZE);
+        final byte[] header = new byte[Http2.FRAME_HEADER_LENGTH];
+        boolean drain = false;
+        try {
+            while (!closed) {
+                try {
+                    if (!readFrameHeader(header)) break;
+                } catch (SocketTimeoutException e) {
+                    /** Клиент молчит. Пока ответы еще отправляются, ждем, иначе закрываем соединение*/
+                    if (streams.isEmpty() || System.nanoTime() - lastWrite > timeout) {
+                        writeGoAway(Http2.NO_ERROR);
+                        break;
+                    }
+                    continue;
+                }
+                if (writeStalled()) {
+                    l.log(Logger.Level.WARNING, socket, "HTTP/2 client is not reading, closing");
+                    break;
+                }
+                final int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+                final int type = header[3] & 0xff;
+                final int flags = header[4] & 0xff;
+                final int streamId = readInt(header, 5) & 0x7fffffff;
+                if (length > Http2.DEFAULT_MAX_FRAME_SIZE)
+                    throw new Http2Exception(Http2.FRAME_SIZE_ERROR, "Frame too large " + length);
+                readFully(frame, length);
+
+                if (continuationStreamId != 0 && (type != Http2.TYPE_CONTINUATION || streamId != continuationStreamId))
+                    throw new Http2Exception(Http2.PROTOCOL_ERROR, "CONTINUATION expected");
+                if (type == Http2.TYPE_GOAWAY) {
+                    drain = true;
+                    break;
+                }
+                try {
+                    onFrame(type, flags, streamId, length);
+                } catch (Http2Exception e) {
+                    if (!e.isStreamError()) throw e;
+                    l.log(Logger.Level.WARNING, socket, "HTTP/2 stream " + e.getStreamId() + " reset " + e.getMessage());
+                    resetStream(e.getStreamId(), e.getErrorCode());
+                }
+            }
+        } catch (Http2Exception e) {
+            l.log(Logger.Level.EXCEPTION, socket, "HTTP/2 connection error " + e.getMessage());
+            try {
+                writeGoAway(e.getErrorCode());
+            } catch (IOException ignored) {
+            }
+        } catch (IOException e) {
+            l.log(Logger.Level.EXCEPTION, socket, e.getClass().getCanonicalName() + SPACE + e.getMessage());
+        } finally {
+            BufferPool.release(frame);
+            frame = null;
+        }
+        /** После GOAWAY клиент еще ждет ответы на уже открытые потоки*/
+        final long deadline = System.currentTimeMillis() + GOAWAY_DRAIN_MILLIS;
+        while (drain && !streams.isEmpty() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        close();
+    }
+
+    private void onFrame(final int type, final int flags, final int streamId, final int length) throws IOException {
+        switch (type) {
+            case Http2.TYPE_HEADERS:
+                onHeaders(flags, streamId, length);
+                break;
+            case Http2.TYPE_CONTINUATION:
+                if (continuationStreamId == 0) throw new Http2Exception(Http2.PROTOCOL_ERROR, "Unexpected CONTINUATION");
+                onHeaderBlockFragment(streams.get(streamId), 0, length,
+                        (flags & Http2.FLAG_END_HEADERS) != 0, continuationEndStream);
+                break;
+            case Http2.TYPE_DATA:
+                onData(flags, streamId, length);
+                break;
+            case Http2.TYPE_SETTINGS:
+                if (streamId != 0) throw new Http2Exception(Http2.PROTOCOL_ERROR, "SETTINGS on a stream");
+                if ((flags & Http2.FLAG_ACK) != 0) {
+                    if (length != 0) throw new Http2Exception(Http2.FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+                    break;
+                }
+                if (length % 6 != 0) throw new Http2Exception(Http2.FRAME_SIZE_ERROR, "Bad SETTINGS length");
+                applySettings(frame, length);
+                writeFrame(Http2.TYPE_SETTINGS, Http2.FLAG_ACK, 0, frame, 0, 0);
+                break;
+            case Http2.TYPE_PING:
+                if (streamId != 0) throw new Http2Exception(Http2.PROTOCOL_ERROR, "PING on a stream");
+                if (length != 8) throw new Http2Exception(Http2.FRAME_SIZE_ERROR, "Bad PING length");
+                if ((flags & Http2.FLAG_ACK) == 0) writeFrame(Http2.TYPE_PING, Http2.FLAG_ACK, 0, frame, 0, 8);
+                break;
+            case Http2.TYPE_WINDOW_UPDATE:
+                onWindowUpdate(streamId, length);
+                break;
+            case Http2.TYPE_RST_STREAM:
+                if (streamId == 0) throw new Http2Exception(Http2.PROTOCOL_ERROR, "RST_STREAM on connection");
+                if (length != 4) throw new Http2Exception(Http2.FRAME_SIZE_ERROR, "Bad RST_STREAM length");
+                final Stream reset = streams.remove(streamId);
+                if (reset != null) {
+                    reset.reset = true;
+                    reset.releaseBody();
+                    synchronized (windowLock) {
+                        windowLock.notifyAll();
+                    }
+                }
+                break;
+            case Http2.TYPE_PRIORITY:
+                if (length != 5) throw new Http2Exception(Http2.FRAME_SIZE_ERROR, streamId, "Bad PRIORITY length");
+                break;
+            case Http2.TYPE_PUSH_PROMISE:
+                throw new Http2Exception(Http2.PROTOCOL_ERROR, "PUSH_PROMISE from client");
+            default:
+                /** Неизвестные типы фреймов игнорируются*/
+                break;
+        }
+    }
+
+    private void onHeaders(final int flags, final int streamId, final int length) throws IOException {
+        if (streamId == 0) throw new Http2Exception(Http2.PROTOCOL_ERROR, "HEADERS on connection");
+        int from = 0;
+        int to = length;
+        if ((flags & Http2.FLAG_PADDED) != 0) {
+            if (length < 1) throw new Http2Exception(Http2.FRAME_SIZE_ERROR, "Bad padding");
+            to -= frame[0] & 0xff;
+            from++;
+        }
+        if ((flags & Http2.FLAG_PRIORITY) != 0) from += 5;
+        if (from > to) throw new Http2Exception(Http2.PROTOCOL_ERROR, "Bad padding");
+
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId % 2 == 0 || streamId <= lastStreamId)
+                throw new Http2Exception(Http2.PROTOCOL_ERROR, "Invalid stream id " + streamId);
+            lastStreamId = streamId;
+            stream = openStream(streamId);
+            /** Заголовки все равно нужно декодировать, чтобы не сломать таблицу HPACK*/
+            stream.refused = streams.size() > MAX_CONCURRENT_STREAMS;
+        } else if (stream.remoteClosed) {
+            throw new Http2Exception(Http2.STREAM_CLOSED, streamId, "HEADERS on closed stream");
+        }
+        onHeaderBlockFragment(stream, from, to - from,
+                (flags & Http2.FLAG_END_HEADERS) != 0, (flags & Http2.FLAG_END_STREAM) != 0);
+    }
+
+    private void onHeaderBlockFragment(final Stream stream,
+                                       final int offset,
+                                       final int length,
+                                       final boolean endHeaders,
+                                       final boolean endStream
+    ) throws IOException {
+        stream.headerBlock.write(frame, offset, length);
+        if (stream.headerBlock.size() > MAX_HEADER_BLOCK)
+            throw new Http2Exception(Http2.PROTOCOL_ERROR, "Header block too large");
+        if (!endHeaders) {
+            continuationStreamId = stream.id;
+            continuationEndStream = endStream;
+            return;
+        }
+        continuationStreamId = 0;
+        final byte[] block = stream.headerBlock.toByteArray();
+        stream.headerBlock.reset();
+        final List<String[]> fields = decoder.decode(block, block.length);
+        if (stream.requestHeaders == null) {
+            stream.requestHeaders = fields;
+        }
+        /** Повторный блок - это trailer-заголовки, они не передаются на сервер*/
+        if (stream.refused) {
+            streams.remove(stream.id);
+            throw new Http2Exception(Http2.REFUSED_STREAM, stream.id, "Too many streams");
+        }
+        if (!endStream && declaredLength(stream) > MAX_REQUEST_BODY) {
+            rejectTooLarge(stream);
+            return;
+        }
+        if (endStream) {
+            stream.remoteClosed = true;
+            dispatch(stream);
+        }
+    }
+
+    private void onData(final int flags, final int streamId, final int length) throws IOException {
+        if (streamId == 0) throw new Http2Exception(Http2.PROTOCOL_ERROR, "DATA on connection");
+        /** Окно соединения подтверждаем всегда, даже если поток уже закрыт*/
+        if (length > 0) writeWindowUpdate(0, length);
+        final Stream stream = streams.get(streamId);
+        if (stream == null || stream.remoteClosed || stream.requestHeaders == null)
+            throw new Http2Exception(Http2.STREAM_CLOSED, streamId, "DATA on closed stream");
+        int from = 0;
+        int to = length;
+        if ((flags & Http2.FLAG_PADDED) != 0) {
+            if (length < 1 || (frame[0] & 0xff) >= length)
+                throw new Http2Exception(Http2.PROTOCOL_ERROR, "Bad padding");
+            to -= frame[0] & 0xff;
+            from++;
+        }
+        /** Окно потока не пополняем: тело, которое в него не поместилось, слишком большое*/
+        stream.received += length;
+        if (stream.received > MAX_REQUEST_BODY) {
+            rejectTooLarge(stream);
+            return;
+        }
+        stream.appendBody(frame, from, to - from);
+        if ((flags & Http2.FLAG_END_STREAM) != 0) {
+            stream.remoteClosed = true;
+            dispatch(stream);
+        }
+    }
+
+    /**
+     * @return content-length из заголовков запроса, -1 - не указан или не число
+     */
+    private static long declaredLength(final Stream stream) {
+        for (String[] field : stream.requestHeaders) {
+            if (CONTENT_LENGTH.equalsIgnoreCase(field[0])) {
+                try {
+                    return Long.parseLong(field[1].trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Тело больше MAX_REQUEST_BODY: отвечаем 413 и RST_STREAM(NO_ERROR), чтобы клиент
+     * перестал отправлять остаток тела (RFC 9113, 8.1)
+     */
+    private void rejectTooLarge(final Stream stream) throws IOException {
+        for (String[] field : stream.requestHeaders) {
+            if (":method".equals(field[0])) stream.method = field[1];
+            if (":path".equals(field[0])) stream.url = field[1];
+        }
+        l.log(Logger.Level.WARNING, socket, PAYLOAD_TOO_LARGE + SPACE + stream.url);
+        stream.releaseBody();
+        /** Поток убираем сразу: остаток тела, который клиент успел отправить, получит RST_STREAM
+         * как DATA в закрытый поток, а уже поставленный ответ 413 не отменится*/
+        streams.remove(stream.id);
+        sendResponse(stream, PAYLOAD_TOO_LARGE_CODE, null, null, 0, true);
+        final byte[] payload = new byte[4];
+        putInt(payload, 0, Http2.NO_ERROR);
+        writeFrame(Http2.TYPE_RST_STREAM, 0, stream.id, payload, 0, 4);
+    }
+
+    private void onWindowUpdate(final int streamId, final int length) throws Http2Exception {
+        if (length != 4) throw new Http2Exception(Http2.FRAME_SIZE_ERROR, "Bad WINDOW_UPDATE length");
+        final int increment = readInt(frame, 0) & 0x7fffffff;
+        if (increment == 0) throw new Http2Exception(Http2.PROTOCOL_ERROR, streamId, "Zero window increment");
+        synchronized (windowLock) {
+            if (streamId == 0) {
+                if (connectionSendWindow > Http2.MAX_WINDOW_SIZE - increment)
+                    throw new Http2Exception(Http2.FLOW_CONTROL_ERROR, "Connection window overflow");
+                connectionSendWindow += increment;
+            } else {
+                final Stream stream = streams.get(streamId);
+                if (stream == null) return;
+                if (stream.sendWindow > Http2.MAX_WINDOW_SIZE - increment)
+                    throw new Http2Exception(Http2.FLOW_CONTROL_ERROR, streamId, "Stream window overflow");
+                stream.sendWindow += increment;
+            }
+            windowLock.notifyAll();
+        }
+    }
+
+    private void applySettings(final byte[] payload, final int length) throws Http2Exception {
+        for (int i = 0; i < length; i += 6) {
+            final int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+            final int value = readInt(payload, i + 2);
+            switch (id) {
+                case Http2.SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) throw new Http2Exception(Http2.FLOW_CONTROL_ERROR, "Initial window too large");
+                    synchronized (windowLock) {
+                        final int delta = value - initialStreamSendWindow;
+                        initialStreamSendWindow = value;
+                        for (Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                        }
+                        windowLock.notifyAll();
+                    }
+                    break;
+                case Http2.SETTINGS_MAX_FRAME_SIZE:
+                    if (value < Http2.DEFAULT_MAX_FRAME_SIZE || value > Http2.MAX_ALLOWED_FRAME_SIZE)
+                        throw new Http2Exception(Http2.PROTOCOL_ERROR, "Invalid max frame size");
+                    /** Больше нашего буфера записи фреймы все равно не делаем*/
+                    maxFrameSize = Http2.DEFAULT_MAX_FRAME_SIZE;
+                    break;
+                case Http2.SETTINGS_ENABLE_PUSH:
+                    if (value != 0 && value != 1) throw new Http2Exception(Http2.PROTOCOL_ERROR, "Invalid push setting");
+                    break;
+                default:
+                    /** HEADER_TABLE_SIZE нас не касается: динамическую таблицу при отправке не используем*/
+                    break;
+            }
+        }
+    }
+
+    private Stream openStream(final int id) {
+        synchronized (windowLock) {
+            final Stream stream = new Stream(id, initialStreamSendWindow);
+            streams.put(id, stream);
+            return stream;
+        }
+    }
+
+    /**
+     * Запрос в потоке получен целиком, отдаем его на обработку
+     */
+    private void dispatch(final Stream stream) throws Http2Exception {
+        route(stream, toRequest(stream));
+    }
+
+    /**
+     * Выбирает полосу. Вызывается в потоке чтения: попадание и отказ при полной полосе
+     * промахов только ставят ответ в очередь записи, поэтому выполняются здесь же
+     */
+    private void route(final Stream stream, final Request request) {
+        final long parsed = System.nanoTime();
+        final CachedResponse cached = (GET_METHOD.equalsIgnoreCase(request.getMethod())
+                || HEAD_METHOD.equalsIgnoreCase(request.getMethod()))
+                ? cm.getResponse(request)
+                : null;
+        if (cached != null) {
+            final Lane hit = lanes.hit();
+            hit.tryAcquire();
+            hit.recordWait(System.nanoTime() - parsed);
+            try {
+                handle(stream, request, cached);
+            } finally {
+                hit.release();
+            }
+        } else if (lanes.miss().tryAcquire()) {
+            lanes.miss().timed(es).execute(() -> handle(stream, request, null));
+        } else {
+            rejectMiss(stream, request);
+        }
+    }
+
+    /**
+     * Собирает Request для сервера из псевдозаголовков и заголовков HTTP/2
+     */
+    private Request toRequest(final Stream stream) throws Http2Exception {
+        String method = null;
+        String scheme = null;
+        String authority = null;
+        String path = null;
+        final Headers headers = new Headers();
+        StringBuilder cookie = null;
+        for (String[] field : stream.requestHeaders) {
+            switch (field[0]) {
+                case ":method":
+                    method = field[1];
+                    break;
+                case ":scheme":
+                    scheme = field[1];
+                    break;
+                case ":authority":
+                    authority = field[1];
+                    break;
+                case ":path":
+                    path = field[1];
+                    break;
+                case "cookie":
+                    /** В HTTP/2 cookie могут быть разбиты на несколько полей, для HTTP/1.1 склеиваем*/
+                    cookie = (cookie == null) ? new StringBuilder(field[1]) : cookie.append("; ").append(field[1]);
+                    break;
+                default:
+                    if (field[0].startsWith(":"))
+                        throw new Http2Exception(Http2.PROTOCOL_ERROR, stream.id, "Unknown pseudo header " + field[0]);
+                    headers.add(field[0], field[1]);
+            }
+        }
+        if (method == null || scheme == null || path == null)
+            throw new Http2Exception(Http2.PROTOCOL_ERROR, stream.id, "Missing pseudo headers");
+        if (authority == null) authority = headers.get(HOST);
+        if (authority == null) throw new Http2Exception(Http2.PROTOCOL_ERROR, stream.id, "Missing authority");
+        if (!headers.contains(HOST)) headers.add(HOST, authority);
+        if (cookie != null) headers.add(COOKIE, cookie.toString());
+        headers.remove(CONTENT_LENGTH);
+        if (stream.body != null) headers.add(CONTENT_LENGTH, String.valueOf(stream.bodyLength));
+
+        final Request request = Request.create(method, scheme + "://" + authority + path, headers,
+                stream.body, stream.bodyLength);
+        /** Тело теперь принадлежит Request*/
+        stream.body = null;
+        return request;
+    }
+
+    /**
+     * Обработка запроса из потока: ответ из кэша или запрос к серверу.
+     * Попадание выполняется в потоке чтения, промах - в ExecutorService, и тогда
+     * место в полосе промахов освобождает StreamCallback или выход без запроса к серверу
+     *
+     * @param cached ответ из кэша или null для промаха
+     */
+    private void handle(final Stream stream, final Request request, final CachedResponse cached) {
+        l.log(Logger.Level.INFO, socket, request.getMethod(), request.getUrl(), true, null);
+        stream.method = request.getMethod();
+        stream.url = request.getUrl();
+        stream.bytesIn = request.getBodyLength();
+        boolean dispatched = false;
+        try {
+            if (!Arrays.asList(GET_METHOD, HEAD_METHOD, POST_METHOD).contains(request.getMethod())) {
+                request.release();
+                final Headers headers = new Headers();
+                headers.add(ALLOW, String.join(", ", GET_METHOD, POST_METHOD, HEAD_METHOD));
+                sendResponse(stream, METHOD_NOT_ALLOWED_CODE, headers, null, 0, true);
+                return;
+            }
+            if (!limits.allowClient(socket.getInetAddress())) {
+                request.release();
+                sendTooManyRequests(stream, "client");
+                return;
+            }
+            final boolean head = HEAD_METHOD.equalsIgnoreCase(request.getMethod());
+            /** Ответ на промах GET пойдет в кэш, поэтому нужен полный ответ: условия клиента проверяем сами*/
+            final Headers conditions = (cached == null && GET_METHOD.equalsIgnoreCase(request.getMethod()))
+                    ? Validators.takeConditions(request.getHeaders())
+                    : request.getHeaders();
+            /** Ключ другого узла группы: берем ответ у владельца*/
+            final CachedResponse response = (cached == null && peers != null) ? peers.fetch(request) : cached;
+            if (response != null) {
+                request.release();
+                if (Validators.isNotModified(response, conditions)) {
+                    l.log(Logger.Level.INFO, socket, CACHE_NOT_MODIFIED + SPACE + request.getUrl());
+                    sendResponse(stream, NOT_MODIFIED_CODE, Validators.notModifiedHeaders(response), null, 0, true);
+                } else {
+                    stream.source = "cache";
+                    sendResponse(stream, response.getCode(), response.getHeaders(),
+                            response.getBody(), response.getBody().length, head);
+                }
+                return;
+            }
+            final Exception failure = cm.getFailure(request);
+            if (failure != null) {
+                request.release();
+                new StreamCallback(stream, null, null).onFailure(request, failure);
+                return;
+            }
+            if (!limits.allowHost(request)) {
+                request.release();
+                sendTooManyRequests(stream, "origin host");
+                return;
+            }
+            stream.upstreamStarted = System.nanoTime();
+            dispatched = true;
+            /** Промах уже выполняется в пуле запросов к серверам, и его ожидание в полосе учтено в route*/
+            upstream.executeInline(request, es, new StreamCallback(stream, lanes.miss(), conditions));
+        } catch (IOException e) {
+            onStreamWriteError(stream, e);
+        } finally {
+            if (cached == null && !dispatched) lanes.miss().release();
+        }
+    }
+
+    /**
+     * В полосе промахов нет места: устаревший ответ, если он есть, иначе 503.
+     * Выполняется в потоке чтения
+     */
+    private void rejectMiss(final Stream stream, final Request request) {
+        l.log(Logger.Level.WARNING, socket, MISS_LANE_FULL + SPACE + request.getUrl());
+        stream.method = request.getMethod();
+        stream.url = request.getUrl();
+        stream.bytesIn = request.getBodyLength();
+        request.release();
+        final boolean head = HEAD_METHOD.equalsIgnoreCase(request.getMethod());
+        final CachedResponse stale = (head || GET_METHOD.equalsIgnoreCase(request.getMethod()))
+                ? cm.getStale(request)
+                : null;
+        try {
+            if (stale != null) {
+                stream.source = "cache";
+                sendResponse(stream, stale.getCode(), stale.getHeaders(), stale.getBody(), stale.getBody().length, head);
+            } else {
+                final Headers headers = new Headers();
+                headers.add(RETRY_AFTER, "1");
+                sendResponse(stream, SERVICE_UNAVAILABLE_CODE, headers, null, 0, true);
+            }
+        } catch (IOException e) {
+            onStreamWriteError(stream, e);
+        }
+    }
+
+    private void sendTooManyRequests(final Stream stream, final String limit) throws IOException {
+        l.log(Logger.Level.WARNING, socket, TOO_MANY_REQUESTS + " (" + limit + ")");
+        final Headers headers = new Headers();
+        headers.add(RETRY_AFTER, "1");
+        sendResponse(stream, TOO_MANY_REQUESTS_CODE, headers, null, 0, true);
+    }
+
+    private void sendResponse(final Stream stream,
+                              final int code,
+                              final Headers headers,
+                              final byte[] body,
+                              final int bodyLength,
+                              final boolean headersOnly
+    ) throws IOException {
+        sendResponse(stream, code, headers, body, bodyLength, headersOnly, null);
+    }
+
+    /**
+     * Ставит ответ в очередь записи: HEADERS (+ CONTINUATION) и DATA с учетом окон.
+     * Не ждет ни окна, ни клиента
+     *
+     * @param written вызывается в потоке записи, когда тело больше не нужно (отправлено
+     *                или поток сброшен), или сразу, если соединение закрыто. Может быть null
+     * @throws IOException соединение уже закрыто
+     */
+    private void sendResponse(final Stream stream,
+                              final int code,
+                              final Headers headers,
+                              final byte[] body,
+                              final int bodyLength,
+                              final boolean headersOnly,
+                              final Runnable written
+    ) throws IOException {
+        final int size = (headers == null) ? 0 : headers.size();
+        final String[] names = new String[size + 1];
+        final String[] values = new String[size + 1];
+        names[0] = ":status";
+        values[0] = String.valueOf(code);
+        int count = 1;
+        for (int i = 0; i < size; i++) {
+            final String name = headers.name(i).toLowerCase(Locale.ROOT);
+            /** Заголовки соединения в HTTP/2 запрещены*/
+            switch (name) {
+                case "connection":
+                case "keep-alive":
+                case "proxy-connection":
+                case "transfer-encoding":
+                case "upgrade":
+                    continue;
+                default:
+                    names[count] = name;
+                    values[count] = headers.value(i);
+                    count++;
+            }
+        }
+        final boolean endStream = headersOnly || body == null || bodyLength == 0;
+        final byte[] block = Hpack.encode(names, values, count);
+        enqueue(new Write(stream, code, block, endStream ? null : body, endStream ? 0 : bodyLength, written));
+    }
+
+    private void writeSettings() throws IOException {
+        final byte[] payload = new byte[18];
+        putSetting(payload, 0, Http2.SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+        putSetting(payload, 6, Http2.SETTINGS_ENABLE_PUSH, 0);
+        putSetting(payload, 12, Http2.SETTINGS_INITIAL_WINDOW_SIZE, MAX_REQUEST_BODY + 1);
+        writeFrame(Http2.TYPE_SETTINGS, 0, 0, payload, 0, payload.length);
+    }
+
+    private void writeWindowUpdate(final int streamId, final int increment) throws IOException {
+        final byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        writeFrame(Http2.TYPE_WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    private void writeGoAway(final int errorCode) throws IOException {
+        final byte[] payload = new byte[8];
+        putInt(payload, 0, lastStreamId);
+        putInt(payload, 4, errorCode);
+        writeFrame(Http2.TYPE_GOAWAY, 0, 0, payload, 0, 8);
+    }
+
+    private void resetStream(final int streamId, final int errorCode) throws IOException {
+        final Stream stream = streams.remove(streamId);
+        if (stream != null) {
+            stream.reset = true;
+            stream.releaseBody();
+        }
+        final byte[] payload = new byte[4];
+        putInt(payload, 0, errorCode);
+        writeFrame(Http2.TYPE_RST_STREAM, 0, streamId, payload, 0, 4);
+    }
+
+    /**
+     * Ставит служебный фрейм в очередь записи. Данные копируются: буфер можно сразу переиспользовать
+     */
+    private void writeFrame(final int type,
+                            final int flags,
+                            final int streamId,
+                            final byte[] payload,
+                            final int offset,
+                            final int length
+    ) throws IOException {
+        final byte[] bytes = new byte[Http2.FRAME_HEADER_LENGTH + length];
+        putFrameHeader(bytes, type, flags, streamId, length);
+        System.arraycopy(payload, offset, bytes, Http2.FRAME_HEADER_LENGTH, length);
+        enqueue(new Write(bytes));
+    }
+
+    private void enqueue(final Write write) throws IOException {
+        synchronized (windowLock) {
+            if (closed) {
+                write.release();
+                throw new IOException("HTTP/2 connection closed");
+            }
+            if (write.bytes != null) {
+                if (queuedFrames >= MAX_QUEUED_FRAMES)
+                    throw new IOException("HTTP/2 client is not reading, too many queued frames");
+                queuedFrames++;
+            }
+            writes.add(write);
+            windowLock.notifyAll();
+        }
+    }
+
+    /**
+     * Поток записи. Служебные фреймы и начала ответов пишутся в порядке очереди,
+     * тела - по одному фрейму DATA по кругу, пока у потока и соединения есть окно
+     */
+    private void writeLoop() {
+        Write write = null;
+        try {
+            while (true) {
+                write = nextWrite(false);
+                if (write == null) {
+                    /** Готовых записей больше нет: отправляем накопленное одним flush*/
+                    flush();
+                    write = nextWrite(true);
+                    if (write == null) break;
+                }
+                send(write);
+            }
+        } catch (IOException e) {
+            if (!closed) l.log(Logger.Level.EXCEPTION, socket, "HTTP/2 write failed " + e.getMessage());
+            close();
+        } catch (InterruptedException e) {
+            close();
+        } finally {
+            /** Соединение закрыто: тела оставшихся ответов больше не нужны*/
+            if (write != null && write.bytes == null) write.release();
+            synchronized (windowLock) {
+                for (Write queued : writes) {
+                    queued.release();
+                }
+                writes.clear();
+            }
+        }
+    }
+
+    /**
+     * Следующая запись, для которой есть окно. Окна под фрейм DATA списываются здесь же.
+     * Запись, которая ждет окно дольше таймаута, возвращается с expired
+     *
+     * @param block ждать, пока запись появится или для нее освободится окно
+     * @return null, если ждать не нужно или соединение закрыто и служебных фреймов в очереди не осталось
+     */
+    private Write nextWrite(final boolean block) throws InterruptedException {
+        synchronized (windowLock) {
+            while (true) {
+                final long now = System.nanoTime();
+                long wait = 0;
+                for (Iterator<Write> iterator = writes.iterator(); iterator.hasNext(); ) {
+                    final Write write = iterator.next();
+                    if (write.bytes != null) {
+                        queuedFrames--;
+                    } else if (!closed && !write.stream.reset && write.headersSent) {
+                        final Stream stream = write.stream;
+                        if (connectionSendWindow <= 0 || stream.sendWindow <= 0) {
+                            if (timeout == 0) continue;
+                            if (write.blockedSince == 0) write.blockedSince = now;
+                            final long left = write.blockedSince + timeout - now;
+                            if (left > 0) {
+                                wait = (wait == 0) ? left : Math.min(wait, left);
+                                continue;
+                            }
+                            write.expired = true;
+                        } else {
+                            write.chunk = Math.min(Math.min(write.length - write.offset, maxFrameSize),
+                                    Math.min(connectionSendWindow, stream.sendWindow));
+                            connectionSendWindow -= write.chunk;
+                            stream.sendWindow -= write.chunk;
+                            write.blockedSince = 0;
+                        }
+                    }
+                    iterator.remove();
+                    return write;
+                }
+                if (closed || !block) return null;
+                windowLock.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+            }
+        }
+    }
+
+    private void send(final Write write) throws IOException {
+        if (write.bytes != null) {
+            writeBytes(write.bytes, 0, write.bytes.length);
+            return;
+        }
+        final Stream stream = write.stream;
+        if (closed || stream.reset) {
+            finish(write, false);
+        } else if (write.expired) {
+            expire(write);
+        } else if (!write.headersSent) {
+            writeHeaders(stream.id, write.block, write.length == 0);
+            write.headersSent = true;
+            if (write.length == 0) {
+                finish(write, true);
+            } else {
+                requeue(write);
+            }
+        } else {
+            write.offset += write.chunk;
+            final boolean last = write.offset == write.length;
+            writeData(stream.id, last, write.body, write.offset - write.chunk, write.chunk);
+            if (last) {
+                finish(write, true);
+            } else {
+                requeue(write);
+            }
+        }
+    }
+
+    /**
+     * Клиент таймаут не давал окна: без окна потока сбрасываем поток,
+     * без окна соединения закрываем соединение
+     */
+    private void expire(final Write write) throws IOException {
+        final Stream stream = write.stream;
+        final boolean streamBlocked;
+        synchronized (windowLock) {
+            streamBlocked = stream.sendWindow <= 0;
+        }
+        finish(write, false);
+        if (streamBlocked) {
+            l.log(Logger.Level.WARNING, socket, "HTTP/2 stream " + stream.id + " got no window in time, reset");
+            stream.reset = true;
+            final byte[] bytes = new byte[Http2.FRAME_HEADER_LENGTH + 4];
+            putFrameHeader(bytes, Http2.TYPE_RST_STREAM, 0, stream.id, 4);
+            putInt(bytes, Http2.FRAME_HEADER_LENGTH, Http2.CANCEL);
+            writeBytes(bytes, 0, bytes.length);
+            return;
+        }
+        l.log(Logger.Level.WARNING, socket, "HTTP/2 connection got no window in time, closing");
+        final byte[] bytes = new byte[Http2.FRAME_HEADER_LENGTH + 8];
+        putFrameHeader(bytes, Http2.TYPE_GOAWAY, 0, 0, 8);
+        putInt(bytes, Http2.FRAME_HEADER_LENGTH, lastStreamId);
+        putInt(bytes, Http2.FRAME_HEADER_LENGTH + 4, Http2.NO_ERROR);
+        writeBytes(bytes, 0, bytes.length);
+        flush();
+        close();
+    }
+
+    private void requeue(final Write write) {
+        synchronized (windowLock) {
+            writes.add(write);
+        }
+    }
+
+    /**
+     * Ответ отправлен целиком или больше не нужен: поток закрыт, тело можно освободить
+     */
+    private void finish(final Write write, final boolean sent) {
+        final Stream stream = write.stream;
+        streams.remove(stream.id);
+        if (sent && accessLog != null) {
+            accessLog.log(socket, stream.method, stream.url, write.code, stream.source, stream.bytesIn,
+                    write.block.length + write.length, System.nanoTime() - stream.started,
+                    stream.upstreamNanos);
+        }
+        write.release();
+    }
+
+    private void writeHeaders(final int streamId, final byte[] block, final boolean endStream) throws IOException {
+        final int frameSize = maxFrameSize;
+        final byte[] header = new byte[Http2.FRAME_HEADER_LENGTH];
+        int offset = 0;
+        boolean first = true;
+        do {
+            final int length = Math.min(frameSize, block.length - offset);
+            final boolean last = offset + length == block.length;
+            int flags = last ? Http2.FLAG_END_HEADERS : 0;
+            if (first && endStream) flags |= Http2.FLAG_END_STREAM;
+            putFrameHeader(header, first ? Http2.TYPE_HEADERS : Http2.TYPE_CONTINUATION, flags, streamId, length);
+            writeBytes(header, 0, header.length);
+            writeBytes(block, offset, length);
+            offset += length;
+            first = false;
+        } while (offset < block.length);
+    }
+
+    private void writeData(final int streamId,
+                           final boolean last,
+                           final byte[] body,
+                           final int offset,
+                           final int length
+    ) throws IOException {
+        final byte[] header = new byte[Http2.FRAME_HEADER_LENGTH];
+        putFrameHeader(header, Http2.TYPE_DATA, last ? Http2.FLAG_END_STREAM : 0, streamId, length);
+        writeBytes(header, 0, header.length);
+        writeBytes(body, offset, length);
+    }
+
+    /**
+     * Запись в сокет, только в потоке записи. writeStarted показывает потоку чтения,
+     * что запись висит: клиент не читает
+     */
+    private void writeBytes(final byte[] bytes, final int offset, final int length) throws IOException {
+        writeStarted = System.nanoTime();
+        out.write(bytes, offset, length);
+        lastWrite = System.nanoTime();
+        writeStarted = 0;
+    }
+
+    private void flush() throws IOException {
+        writeStarted = System.nanoTime();
+        out.flush();
+        lastWrite = System.nanoTime();
+        writeStarted = 0;
+    }
+
+    /**
+     * @return запись в сокет идет дольше таймаута
+     */
+    private boolean writeStalled() {
+        final long started = writeStarted;
+        return timeout > 0 && started != 0 && System.nanoTime() - started > timeout;
+    }
+
+    private void onStreamWriteError(final Stream stream, final IOException e) {
+        streams.remove(stream.id);
+        if (closed || stream.reset) return;
+        l.log(Logger.Level.EXCEPTION, socket, "HTTP/2 stream " + stream.id + SPACE + e.getMessage());
+        try {
+            resetStream(stream.id, Http2.INTERNAL_ERROR);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void close() {
+        synchronized (windowLock) {
+            closed = true;
+            windowLock.notifyAll();
+        }
+        /** Поток записи отправляет уже поставленные служебные фреймы, если клиент их читает*/
+        if (Thread.currentThread() != writer) {
+            try {
+                writer.join(CLOSE_FLUSH_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Stream stream : streams.values()) {
+            stream.releaseBody();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            l.log(Logger.Level.EXCEPTION, socket, VERY_BAD_EXCEPTION + SPACE + e.getMessage());
+        }
+    }
+
+    /**
+     * @return false, если клиент закрыл соединение между фреймами
+     */
+    private boolean readFrameHeader(final byte[] header) throws IOException {
+        final int first = in.read();
+        if (first < 0) return false;
+        header[0] = (byte) first;
+        int offset = 1;
+        while (offset < header.length) {
+            final int read = in.read(header, offset, header.length - offset);
+            if (read < 0) throw new EOFException();
+            offset += read;
+        }
+        return true;
+    }
+
+    private void readFully(final byte[] buffer, final int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            final int read = in.read(buffer, offset, length - offset);
+            if (read < 0) throw new EOFException();
+            offset += read;
+        }
+    }
+
+    private static int readInt(final byte[] buffer, final int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    private static void putInt(final byte[] buffer, final int offset, final int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static void putFrameHeader(final byte[] buffer,
+                                       final int type,
+                                       final int flags,
+                                       final int streamId,
+                                       final int length
+    ) {
+        buffer[0] = (byte) (length >>> 16);
+        buffer[1] = (byte) (length >>> 8);
+        buffer[2] = (byte) length;
+        buffer[3] = (byte) type;
+        buffer[4] = (byte) flags;
+        putInt(buffer, 5, streamId);
+    }
+
+    private static void putSetting(final byte[] buffer, final int offset, final int id, final int value) {
+        buffer[offset] = (byte) (id >>> 8);
+        buffer[offset + 1] = (byte) id;
+        putInt(buffer, offset + 2, value);
+    }
+
+    /**
+     * Калбэк для ответа сервера на запрос из потока HTTP/2.
+     * Аналогичен StandardCallback в SocketHandler
+     */
+    private final class StreamCallback implements Callback {
+
+        private final Stream stream;
+        /**
+         * Полоса промахов, место в которой освобождается после ответа
+         */
+        private final Lane lane;
+        /**
+         * Условные заголовки клиента, снятые с запроса GET к серверу, или null
+         */
+        private final Headers conditions;
+
+        StreamCallback(final Stream stream, final Lane lane, final Headers conditions) {
+            this.stream = stream;
+            this.lane = lane;
+            this.conditions = conditions;
+        }
+
+        @Override
+        public void onFailure(Request request, Exception e) {
+            l.log(Logger.Level.EXCEPTION, socket, e.getClass().getCanonicalName() + SPACE + e.getMessage());
+            cm.putFailure(request, e);
+            if (stream.upstreamStarted != 0) stream.upstreamNanos = System.nanoTime() - stream.upstreamStarted;
+            final boolean head = HEAD_METHOD.equalsIgnoreCase(request.getMethod());
+            final CachedResponse stale = (head || GET_METHOD.equalsIgnoreCase(request.getMethod()))
+                    ? cm.getStale(request)
+                    : null;
+            try {
+                if (stale != null) {
+                    stream.source = "cache";
+                    sendResponse(stream, stale.getCode(), stale.getHeaders(), stale.getBody(), stale.getBody().length, head);
+                } else if (e instanceof CircuitOpenException) {
+                    final CircuitOpenException open = (CircuitOpenException) e;
+                    final Headers headers = new Headers();
+                    headers.add(RETRY_AFTER, String.valueOf(open.getRetryAfterSeconds()));
+                    sendResponse(stream, open.isTimeout() ? GATEWAY_TIMEOUT_CODE : BAD_GATEWAY_CODE, headers, null, 0, true);
+                } else {
+                    sendResponse(stream, (e instanceof SocketTimeoutException) ? GATEWAY_TIMEOUT_CODE : BAD_REQUEST_CODE,
+                            null, null, 0, true);
+                }
+            } catch (IOException ex) {
+                onStreamWriteError(stream, ex);
+            } finally {
+                if (lane != null) lane.release();
+            }
+        }
+
+        @Override
+        public void onSuccess(Request request, Response response) {
+            final boolean head = HEAD_METHOD.equalsIgnoreCase(request.getMethod());
+            stream.upstreamNanos = System.nanoTime() - stream.upstreamStarted;
+            stream.source = "origin";
+            try {
+                if (GET_METHOD.equalsIgnoreCase(request.getMethod())) {
+                    final CachedResponse cachedResponse = new CachedResponse(response);
+                    response.release();
+                    try {
+                        if (conditions != null && Validators.isNotModified(cachedResponse, conditions)) {
+                            l.log(Logger.Level.INFO, socket, CACHE_NOT_MODIFIED + SPACE + request.getUrl());
+                            sendResponse(stream, NOT_MODIFIED_CODE, Validators.notModifiedHeaders(cachedResponse),
+                                    null, 0, true);
+                        } else {
+                            sendResponse(stream, cachedResponse.getCode(), cachedResponse.getHeaders(),
+                                    cachedResponse.getBody(), cachedResponse.getBody().length, false);
+                        }
+                    } finally {
+                        /** Кэшируем после отправки, как и HTTP/1.1: клиент не ждет учета в кэше
+                         * и разбора HTML для предзагрузки*/
+                        cm.put(request, cachedResponse);
+                    }
+                } else {
+                    /** Буферы ответа нужны, пока поток записи не отправит тело*/
+                    sendResponse(stream, response.getCode(), response.getHeaders(),
+                            response.getBody(), response.getBodyLength(), head, response::release);
+                }
+            } catch (IOException e) {
+                onStreamWriteError(stream, e);
+            } finally {
+                if (lane != null) lane.release();
+            }
+            l.log(Logger.Level.INFO, socket, request.getMethod(), request.getUrl(), false, null);
+        }
+    }
+
+    /**
+     * Запись в очереди потока записи: готовый служебный фрейм или ответ потока.
+     * Поля ответа после постановки в очередь меняет только поток записи
+     */
+    private static final class Write {
+
+        /**
+         * Фрейм целиком с заголовком, null - ответ потока
+         */
+        final byte[] bytes;
+        final Stream stream;
+        final int code;
+        final byte[] block;
+        final byte[] body;
+        final int length;
+        final Runnable written;
+        boolean headersSent;
+        boolean released;
+        int offset;
+        /**
+         * Размер следующего фрейма DATA, окна под него уже списаны
+         */
+        int chunk;
+        long blockedSince;
+        boolean expired;
+
+        Write(final byte[] bytes) {
+            this.bytes = bytes;
+            this.stream = null;
+            this.code = 0;
+            this.block = null;
+            this.body = null;
+            this.length = 0;
+            this.written = null;
+        }
+
+        Write(final Stream stream,
+              final int code,
+              final byte[] block,
+              final byte[] body,
+              final int length,
+              final Runnable written
+        ) {
+            this.bytes = null;
+            this.stream = stream;
+            this.code = code;
+            this.block = block;
+            this.body = body;
+            this.length = length;
+            this.written = written;
+        }
+
+        /**
+         * Тело больше не нужно: вызывает written один раз
+         */
+        void release() {
+            if (written == null || released) return;
+            released = true;
+            written.run();
+        }
+    }
+
+    /**
+     * Поток HTTP/2. Поля без volatile меняет только поток чтения до передачи
+     * запроса в полосу, sendWindow защищено windowLock
+     */
+    private static final class Stream {
+
+        final int id;
+        final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream(0);
+        List<String[]> requestHeaders;
+        byte[] body;
+        int bodyLength;
+        boolean remoteClosed;
+        boolean refused;
+        /**
+         * Сколько байт DATA (с выравниванием) клиент прислал в поток, для окна на прием
+         */
+        int received;
+        int sendWindow;
+        volatile boolean reset;
+        /**
+         * Для двоичного журнала доступа. Заполняются в потоке пула до execute
+         * и читаются в нем же или в калбэке запроса
+         */
+        final long started = System.nanoTime();
+        String method;
+        String url;
+        int bytesIn;
+        String source = "proxy";
+        long upstreamStarted;
+        long upstreamNanos = -1;
+
+        Stream(final int id, final int sendWindow) {
+            this.id = id;
+            this.sendWindow = sendWindow;
+        }
+
+        void appendBody(final byte[] data, final int offset, final int length) {
+            if (length == 0) return;
+            if (body == null) {
+                body = BufferPool.lease(length);
+            } else if (bodyLength + length > body.length) {
+                body = BufferPool.grow(body, bodyLength, bodyLength + length);
+            }
+            System.arraycopy(data, offset, body, bodyLength, length);
+            bodyLength += length;
+        }
+
+        void releaseBody() {
+            BufferPool.release(body);
+            body = null;
+        }
+    }
+}
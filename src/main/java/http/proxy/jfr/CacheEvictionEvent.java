@@ -0,0 +1,28 @@
+package http.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Одна пачка удалений из кэша: устаревшие элементы или нехватка места
+ */
+@Name("http.proxy.CacheEviction")
+@Label("Cache Eviction")
+@Category({"Proxy", "Cache"})
+@Description("A batch of entries removed from the cache under one lock acquisition")
+public final class CacheEvictionEvent extends jdk.jfr.Event {
+
+    @Label("Expired")
+    @Description("true if entries were removed by age, false if for space")
+    public boolean expired;
+
+    @Label("Removed")
+    public int removed;
+
+    @Label("Cache Size After")
+    @DataAmount
+    public long sizeAfter;
+}
@@ -0,0 +1,22 @@
+package http.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Ожидание блокировки кэша. Длительность - время от попытки захвата до входа в блок,
+ * поэтому короткие захваты без конкуренции отсекаются порогом
+ */
+@Name("http.proxy.CacheLock")
+@Label("Cache Lock Wait")
+@Category({"Proxy", "Cache"})
+@Description("Time spent waiting for the CacheManager lock")
+@Threshold("1 ms")
+public final class CacheLockEvent extends jdk.jfr.Event {
+
+    @Label("Operation")
+    public String operation;
+}
@@ -0,0 +1,22 @@
+package http.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Полный проход чистильщика кэша по устаревшим элементам
+ */
+@Name("http.proxy.CacheSweep")
+@Label("Cache Expiry Sweep")
+@Category({"Proxy", "Cache"})
+@Description("One run of the cache cleaner removing expired entries")
+public final class CacheSweepEvent extends jdk.jfr.Event {
+
+    @Label("Removed")
+    public int removed;
+
+    @Label("Batches")
+    public int batches;
+}
@@ -0,0 +1,25 @@
+package http.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Запись ответа в сокет клиента
+ */
+@Name("http.proxy.ClientWrite")
+@Label("Client Write")
+@Category({"Proxy", "Client"})
+@Description("Writing a response to the client socket")
+public final class ClientWriteEvent extends jdk.jfr.Event {
+
+    @Label("Source")
+    @Description("cache, origin or error")
+    public String source;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+}
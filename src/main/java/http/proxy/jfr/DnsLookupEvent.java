@@ -0,0 +1,22 @@
+package http.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Разрешение имени сервера во все его адреса
+ */
+@Name("http.proxy.DnsLookup")
+@Label("DNS Lookup")
+@Category({"Proxy", "Upstream"})
+@Description("Resolving an origin host name")
+public final class DnsLookupEvent extends jdk.jfr.Event {
+
+    @Label("Host")
+    public String host;
+
+    @Label("Addresses")
+    public int addresses;
+}
@@ -0,0 +1,40 @@
+package http.proxy.jfr;
+
+/**
+ * Все события JFR сервера.
+ * <p>
+ * Первое обращение к классу события регистрирует его в JFR (метаданные и обработчик
+ * генерируются на лету), даже если запись не идет, и первый запрос платил бы за это
+ * сотнями миллисекунд. В архив AppCDS классы событий не попадают, поэтому они
+ * загружаются заранее, в фоне при запуске
+ */
+public final class JfrEvents {
+
+    private static final Class<?>[] EVENTS = {
+            RequestParseEvent.class,
+            ClientWriteEvent.class,
+            CacheLockEvent.class,
+            CacheEvictionEvent.class,
+            CacheSweepEvent.class,
+            DnsLookupEvent.class,
+            UpstreamConnectEvent.class,
+            UpstreamFirstByteEvent.class,
+            UpstreamReadEvent.class
+    };
+
+    private JfrEvents() {
+    }
+
+    /**
+     * Загружает и регистрирует классы событий
+     */
+    public static void preload() {
+        for (Class<?> event : EVENTS) {
+            try {
+                Class.forName(event.getName(), true, event.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
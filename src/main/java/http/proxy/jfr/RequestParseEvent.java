@@ -0,0 +1,22 @@
+package http.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Чтение и разбор запроса клиента (Request.read), включая ожидание его байтов
+ */
+@Name("http.proxy.RequestParse")
+@Label("Request Parse")
+@Category({"Proxy", "Client"})
+@Description("Reading and parsing an HTTP/1 request from the client socket")
+public final class RequestParseEvent extends jdk.jfr.Event {
+
+    @Label("Method")
+    public String method;
+
+    @Label("URL")
+    public String url;
+}
@@ -0,0 +1,29 @@
+package http.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Подключение к серверу по всем его адресам (без DNS)
+ */
+@Name("http.proxy.UpstreamConnect")
+@Label("Upstream Connect")
+@Category({"Proxy", "Upstream"})
+@Description("Connecting to an origin, over all of its addresses")
+public final class UpstreamConnectEvent extends jdk.jfr.Event {
+
+    @Label("Host")
+    public String host;
+
+    @Label("Port")
+    public int port;
+
+    @Label("Address")
+    @Description("Address of the established connection, empty if it failed")
+    public String address;
+
+    @Label("Attempts")
+    public int attempts;
+}
@@ -0,0 +1,19 @@
+package http.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Время от отправки запроса серверу до первой строки его ответа
+ */
+@Name("http.proxy.UpstreamFirstByte")
+@Label("Upstream Time To First Byte")
+@Category({"Proxy", "Upstream"})
+@Description("Time from sending a request to receiving the status line of the response")
+public final class UpstreamFirstByteEvent extends jdk.jfr.Event {
+
+    @Label("URL")
+    public String url;
+}
@@ -0,0 +1,27 @@
+package http.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Чтение заголовков и тела ответа сервера после первой строки
+ */
+@Name("http.proxy.UpstreamRead")
+@Label("Upstream Response Read")
+@Category({"Proxy", "Upstream"})
+@Description("Reading response headers and body from the origin")
+public final class UpstreamReadEvent extends jdk.jfr.Event {
+
+    @Label("URL")
+    public String url;
+
+    @Label("Status")
+    public int status;
+
+    @Label("Body Bytes")
+    @DataAmount
+    public long bytes;
+}
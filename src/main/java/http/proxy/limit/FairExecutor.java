@@ -0,0 +1,84 @@
+package http.proxy.limit;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Справедливый планировщик поверх обычного пула потоков.
+ * <p>
+ * У каждого клиента своя очередь задач, а потоки пула берут задачи из очередей по кругу:
+ * по одной задаче от каждого клиента, у которого есть работа. Клиент, отправивший
+ * сто запросов, не задерживает клиента с одним запросом дольше, чем на одну задачу
+ * на поток, в отличие от общей FIFO очереди пула.
+ * <p>
+ * На каждую поставленную задачу в пул уходит ровно один вызов runNext, который
+ * выполняет ровно одну задачу, поэтому размер пула и его статистика (очередь,
+ * активные потоки) остаются прежними, а менять размер пула можно как раньше.
+ * <p>
+ * Клиент стоит в очереди ready тогда и только тогда, когда у него есть задачи.
+ * Очереди меняются под одной блокировкой: иначе runNext мог застать ready пустой, пока другой
+ * поток вынул клиента и еще не вернул его, и задача осталась бы без своего runNext.
+ * Под блокировкой только перестановка задачи, сама задача выполняется без нее.
+ */
+public final class FairExecutor {
+
+    private final Executor delegate;
+    private final Map<Object, ClientQueue> clients = new HashMap<>();
+    private final Queue<ClientQueue> ready = new ArrayDeque<>();
+
+    /**
+     * @param delegate пул, в потоках которого выполняются задачи
+     */
+    public FairExecutor(final Executor delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @param key  ключ клиента (например InetAddress), задачи одного ключа выполняются по очереди с другими
+     * @param task задача
+     */
+    public void execute(final Object key, final Runnable task) {
+        synchronized (this) {
+            final ClientQueue client = clients.computeIfAbsent(key, ClientQueue::new);
+            client.tasks.add(task);
+            if (client.tasks.size() == 1) ready.add(client);
+        }
+        delegate.execute(this::runNext);
+    }
+
+    /**
+     * @return Executor, который ставит задачи от имени клиента key
+     */
+    public Executor forKey(final Object key) {
+        return task -> execute(key, task);
+    }
+
+    private void runNext() {
+        final Runnable task;
+        synchronized (this) {
+            final ClientQueue client = ready.poll();
+            /** Не может случиться: runNext в пуле ровно столько, сколько задач*/
+            if (client == null) return;
+            task = client.tasks.poll();
+            if (!client.tasks.isEmpty()) {
+                ready.add(client);
+            } else {
+                /** Клиент без задач больше не занимает память*/
+                clients.remove(client.key);
+            }
+        }
+        task.run();
+    }
+
+    private static final class ClientQueue {
+        private final Object key;
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        ClientQueue(Object key) {
+            this.key = key;
+        }
+    }
+}
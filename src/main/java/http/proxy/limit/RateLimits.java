@@ -0,0 +1,55 @@
+package http.proxy.limit;
+
+import http.proxy.utils.Request;
+
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Locale;
+
+import static http.proxy.constants.Constants.HOST;
+
+/**
+ * Ограничения частоты запросов, которые проверяют обработчики:
+ * <ul>
+ * <li>по адресу клиента - на каждый запрос (в HTTP/2 - на каждый поток)</li>
+ * <li>по хосту сервера - только на запросы, которые действительно уходят на сервер
+ * (ответы из кэша сервер не нагружают)</li>
+ * </ul>
+ * Любое из ограничений может быть выключено (null).
+ */
+public final class RateLimits {
+
+    private final TokenBucketLimiter clients;
+    private final TokenBucketLimiter hosts;
+
+    public RateLimits(final TokenBucketLimiter clients, final TokenBucketLimiter hosts) {
+        this.clients = clients;
+        this.hosts = hosts;
+    }
+
+    /**
+     * @return true, если клиенту можно выполнить еще один запрос
+     */
+    public boolean allowClient(final InetAddress address) {
+        return clients == null || address == null || clients.tryAcquire(address.getAddress());
+    }
+
+    /**
+     * @return true, если запрос можно отправить на сервер
+     */
+    public boolean allowHost(final Request request) {
+        if (hosts == null) return true;
+        final String host = host(request);
+        return host == null || hosts.tryAcquire(host);
+    }
+
+    private static String host(final Request request) {
+        try {
+            return new URL(request.getUrl()).getHost().toLowerCase(Locale.ROOT);
+        } catch (MalformedURLException e) {
+            final String host = request.getHeaders().get(HOST);
+            return (host != null) ? host.toLowerCase(Locale.ROOT) : null;
+        }
+    }
+}
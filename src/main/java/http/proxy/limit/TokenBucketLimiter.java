@@ -0,0 +1,159 @@
+package http.proxy.limit;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ограничение частоты запросов по алгоритму token bucket, отдельная корзина на каждый ключ
+ * (адрес клиента, хост сервера).
+ * <p>
+ * Все корзины лежат в одном AtomicLongArray с открытой адресацией: на корзину два long,
+ * 64-битный хеш ключа и упакованное состояние (время последнего пополнения и количество
+ * токенов). Состояние меняется через CAS, блокировок нет. Объекты на ключ не создаются,
+ * поэтому 100 тысяч клиентов занимают несколько мегабайт и не нагружают сборщик мусора.
+ * <p>
+ * Если таблица заполнена, корзина с полным запасом токенов (клиент давно не приходил)
+ * отдается новому ключу: для клиента это то же самое, что новая корзина.
+ * Если и такой нет, запрос пропускается - ограничитель не должен сам отказывать в обслуживании.
+ */
+public final class TokenBucketLimiter {
+
+    /**
+     * Сколько ячеек просматривается при поиске корзины
+     */
+    private static final int MAX_PROBE = 16;
+    /**
+     * Токены хранятся с фиксированной точкой: 8 бит дробной части
+     */
+    private static final int TOKEN_SHIFT = 8;
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long ONE_TOKEN = 1L << TOKEN_SHIFT;
+    /**
+     * Наибольший burst, который помещается в TOKEN_BITS
+     */
+    public static final int MAX_BURST = (int) (TOKEN_MASK >> TOKEN_SHIFT);
+
+    private final AtomicLongArray table;
+    private final int mask;
+    private final long capacity;
+    /**
+     * Сколько долей токена (1/256) добавляется за миллисекунду, с 16 битами дробной части
+     */
+    private final long refillPerMilli;
+    private final long start = System.currentTimeMillis();
+
+    /**
+     * @param rate  токенов в секунду (постоянная частота запросов)
+     * @param burst размер корзины (сколько запросов можно сделать подряд)
+     * @param slots количество корзин, округляется вверх до степени двойки
+     */
+    public TokenBucketLimiter(final double rate, final int burst, final int slots) {
+        if (rate <= 0) throw new IllegalArgumentException("rate must be positive");
+        if (burst < 1 || burst > MAX_BURST) throw new IllegalArgumentException("burst must be in 1.." + MAX_BURST);
+        final int size = Integer.highestOneBit(Math.max(slots, MAX_PROBE) - 1) << 1;
+        this.table = new AtomicLongArray(size * 2);
+        this.mask = size - 1;
+        this.capacity = burst * ONE_TOKEN;
+        this.refillPerMilli = Math.max(1, (long) (rate * ONE_TOKEN * 65536 / 1000));
+    }
+
+    /**
+     * Забирает токен из корзины клиента
+     *
+     * @return true, если запрос можно выполнить
+     */
+    public boolean tryAcquire(final byte[] key) {
+        return tryAcquire(hash(key));
+    }
+
+    public boolean tryAcquire(final String key) {
+        return tryAcquire(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private boolean tryAcquire(final long key) {
+        final long now = System.currentTimeMillis() - start;
+        final int slot = findSlot(key, now);
+        if (slot < 0) return true;
+        final int stateIndex = slot * 2 + 1;
+        while (true) {
+            final long state = table.get(stateIndex);
+            final long last = state >>> TOKEN_BITS;
+            final long added = added(last, now);
+            long tokens = (state & TOKEN_MASK) + added;
+            /** Если пополнения еще не набралось даже на 1/256 токена, время не сдвигаем,
+             * иначе при частых запросах медленное пополнение терялось бы целиком*/
+            long updated = (added == 0) ? last : now;
+            if (tokens >= capacity) {
+                tokens = capacity;
+                updated = now;
+            }
+            if (tokens < ONE_TOKEN) {
+                /** Состояние не трогаем: пополнение посчитается от прошлого времени*/
+                return false;
+            }
+            if (table.compareAndSet(stateIndex, state, pack(updated, tokens - ONE_TOKEN))) return true;
+        }
+    }
+
+    /**
+     * @return индекс корзины для ключа или -1, если места нет
+     */
+    private int findSlot(final long key, final long now) {
+        int reusable = -1;
+        int index = (int) (key ^ (key >>> 32)) & mask;
+        for (int probe = 0; probe < MAX_PROBE; probe++, index = (index + 1) & mask) {
+            final long current = table.get(index * 2);
+            if (current == key) return index;
+            if (current == 0) {
+                if (table.compareAndSet(index * 2, 0, key)) {
+                    table.set(index * 2 + 1, pack(now, capacity));
+                    return index;
+                }
+                /** Ячейку занял другой поток, возможно тем же ключом*/
+                if (table.get(index * 2) == key) return index;
+            } else if (reusable < 0 && isFull(table.get(index * 2 + 1), now)) {
+                reusable = index;
+            }
+        }
+        if (reusable >= 0) {
+            final long old = table.get(reusable * 2);
+            if (table.compareAndSet(reusable * 2, old, key)) {
+                table.set(reusable * 2 + 1, pack(now, capacity));
+                return reusable;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return сколько долей токена набралось с момента last, не больше capacity
+     */
+    private long added(final long last, final long now) {
+        final long elapsed = now - last;
+        if (elapsed <= 0) return 0;
+        /** Защита от переполнения при очень долгом простое*/
+        if (elapsed > (capacity << 16) / refillPerMilli) return capacity;
+        return (elapsed * refillPerMilli) >>> 16;
+    }
+
+    private boolean isFull(final long state, final long now) {
+        return (state & TOKEN_MASK) + added(state >>> TOKEN_BITS, now) >= capacity;
+    }
+
+    private static long pack(final long now, final long tokens) {
+        return (now << TOKEN_BITS) | tokens;
+    }
+
+    /**
+     * FNV-1a, 64 бита. Ноль зарезервирован под пустую ячейку
+     */
+    private static long hash(final byte[] key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return (hash == 0) ? 1 : hash;
+    }
+}
@@ -0,0 +1,119 @@
+package http.proxy.logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import static http.proxy.logger.BinaryAccessLog.*;
+
+/**
+ * Переводит двоичный журнал доступа ({@link BinaryAccessLog}) в текст, по строке на запись:
+ * <pre>
+ * время адрес:порт метод код источник байт_запроса байт_ответа мс_всего мс_сервера адрес_запроса
+ * </pre>
+ * Время сервера "-", если к серверу не обращались.
+ * <p>
+ * java -cp proxy.jar http.proxy.logger.AccessLogDecoder log/access.bin.1 log/access.bin
+ */
+public final class AccessLogDecoder {
+
+    private AccessLogDecoder() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: AccessLogDecoder <segment>...");
+            System.exit(2);
+        }
+        final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        try {
+            for (String arg : args) {
+                decode(Paths.get(arg), out);
+            }
+        } finally {
+            out.flush();
+        }
+    }
+
+    /**
+     * Переводит в текст один сегмент
+     */
+    public static void decode(final Path segment, final Writer out) throws IOException {
+        final Map<Integer, String> urls = readUrls(BinaryAccessLog.urlsPath(segment));
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IOException(segment + " is not an access log");
+            }
+            if (buffer.getShort(4) != VERSION || buffer.getShort(6) != RECORD_SIZE) {
+                throw new IOException(segment + ": unsupported version " + buffer.getShort(4));
+            }
+            final byte[] ip = new byte[16];
+            final StringBuilder line = new StringBuilder(256);
+            for (int position = HEADER_SIZE; position + RECORD_SIZE <= buffer.limit(); position += RECORD_SIZE) {
+                final long epochNanos = buffer.getLong(position + EPOCH_NANOS);
+                /** Нулевой хвост сегмента, который не был закрыт*/
+                if (epochNanos == 0) break;
+                for (int i = 0; i < ip.length; i++) {
+                    ip[i] = buffer.get(position + ADDRESS + i);
+                }
+                final int upstream = buffer.getInt(position + UPSTREAM_MICROS);
+                final String url = urls.get(buffer.getInt(position + URL_ID));
+                line.setLength(0);
+                line.append(Instant.ofEpochSecond(0, epochNanos)).append(' ')
+                        .append(InetAddress.getByAddress(ip).getHostAddress()).append(':')
+                        .append((int) buffer.getChar(position + PORT)).append(' ')
+                        .append(name(METHODS, buffer.get(position + METHOD))).append(' ')
+                        .append(buffer.getShort(position + STATUS)).append(' ')
+                        .append(name(SOURCES, buffer.get(position + SOURCE))).append(' ')
+                        .append(buffer.getInt(position + BYTES_IN)).append(' ')
+                        .append(buffer.getLong(position + BYTES_OUT)).append(' ')
+                        .append(millis(buffer.getInt(position + TOTAL_MICROS))).append(' ')
+                        .append((upstream < 0) ? "-" : millis(upstream)).append(' ')
+                        .append((url != null) ? url : "-")
+                        .append('\n');
+                out.append(line);
+            }
+        }
+    }
+
+    private static Map<Integer, String> readUrls(final Path path) throws IOException {
+        final Map<Integer, String> urls = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int space = line.indexOf(' ');
+                if (space <= 0) continue;
+                try {
+                    urls.put(Integer.valueOf(line.substring(0, space)), line.substring(space + 1));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        } catch (NoSuchFileException e) {
+            /** Без словаря записи все равно читаются, вместо адресов будет "-"*/
+        }
+        return urls;
+    }
+
+    private static String name(final String[] names, final byte code) {
+        return (code >= 0 && code < names.length) ? names[code] : String.valueOf(code);
+    }
+
+    private static String millis(final int micros) {
+        return String.format("%d.%03d", micros / 1000, micros % 1000);
+    }
+}
@@ -0,0 +1,449 @@
+package http.proxy.logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static http.proxy.constants.Constants.GET_METHOD;
+import static http.proxy.constants.Constants.HEAD_METHOD;
+import static http.proxy.constants.Constants.POST_METHOD;
+
+/**
+ * Журнал доступа в двоичном виде: одна запись фиксированной длины на ответ клиенту.
+ * <p>
+ * Запись не создает строк: время хранится в наносекундах от эпохи, адрес клиента байтами,
+ * метод и источник ответа кодами, а адрес запроса номером из словаря. Словарь пишется рядом,
+ * в файл с суффиксом .urls (строка "номер адрес" на каждый новый адрес), и у каждого сегмента
+ * он свой, поэтому любой сегмент читается отдельно от остальных.
+ * <p>
+ * Новые строки словаря копируются в буфер, а в файл их раз в URLS_FLUSH_MILLIS пишет отдельный
+ * поток: запрос с новым адресом не ждет диска. Буфер меняется местами с запасным под блокировкой,
+ * а пишется уже без нее. Синхронно словарь пишется только при смене сегмента, при закрытии и если
+ * буфер переполнился. После падения процесса могут пропасть строки последней секунды, тогда
+ * у таких записей вместо адреса будет "-".
+ * <p>
+ * Записи пишутся в отображенный в память файл размером segmentSize. Когда он заполнен,
+ * файл обрезается до записанной длины и переименовывается в path.1 (path.1 в path.2 и т.д.),
+ * хранится не больше files сегментов. Если процесс упал, хвост текущего сегмента остается
+ * нулевым, и чтение останавливается на первой пустой записи.
+ * <p>
+ * Читает журнал {@link AccessLogDecoder}.
+ */
+public final class BinaryAccessLog implements Closeable {
+
+    static final int MAGIC = 0x50584C31;
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 56;
+    static final String URLS_SUFFIX = ".urls";
+
+    /**
+     * Смещения полей записи
+     */
+    static final int EPOCH_NANOS = 0;
+    static final int ADDRESS = 8;
+    static final int PORT = 24;
+    static final int METHOD = 26;
+    static final int SOURCE = 27;
+    static final int STATUS = 28;
+    static final int URL_ID = 32;
+    static final int BYTES_IN = 36;
+    static final int BYTES_OUT = 40;
+    static final int TOTAL_MICROS = 48;
+    static final int UPSTREAM_MICROS = 52;
+
+    static final String[] METHODS = {"-", GET_METHOD, HEAD_METHOD, POST_METHOD};
+    static final String[] SOURCES = {"proxy", "cache", "origin"};
+
+    /**
+     * Сколько адресов может быть в словаре одного сегмента, дальше сегмент меняется досрочно
+     */
+    private static final int MAX_URLS = 100_000;
+    /**
+     * Размер буфера строк словаря и как часто он пишется в файл
+     */
+    private static final int URLS_BUFFER_SIZE = 64 * 1024;
+    private static final long URLS_FLUSH_MILLIS = 1000;
+
+    private final Path path;
+    private final long segmentSize;
+    private final int files;
+    private final Logger l;
+    private final Lock lock = new ReentrantLock();
+    /**
+     * Запись словаря в файл. Берется после lock, если нужны обе
+     */
+    private final Lock urlsLock = new ReentrantLock();
+    private final Map<String, Integer> urls = new HashMap<>();
+    private final ScheduledThreadPoolExecutor flusher;
+    private FileChannel channel;
+    private FileChannel urlsChannel;
+    private MappedByteBuffer buffer;
+    /**
+     * Строки словаря, которые еще не записаны в urlsChannel. Под lock
+     */
+    private ByteBuffer pendingUrls = ByteBuffer.allocate(URLS_BUFFER_SIZE);
+    /**
+     * Строки, которые поток записи забрал из pendingUrls, и файл, в который они пишутся.
+     * Меняются местами под lock, пишутся под urlsLock
+     */
+    private ByteBuffer flushingUrls = ByteBuffer.allocate(URLS_BUFFER_SIZE);
+    private FileChannel flushingChannel;
+    /**
+     * Наносекунды от эпохи минус System.nanoTime(): время записи считается без обращения
+     * к часам системы и без объектов. Пересчитывается при смене сегмента, чтобы не уходить
+     * от системных часов
+     */
+    private long epochOffset;
+
+    /**
+     * @param path        путь к текущему сегменту
+     * @param segmentSize размер сегмента в байтах
+     * @param files       сколько сегментов хранить вместе с текущим
+     * @param logger      логгер для ошибок записи
+     * @throws IOException если не удалось создать файл
+     */
+    public BinaryAccessLog(final String path, final long segmentSize, final int files, final Logger logger)
+            throws IOException {
+        if (segmentSize < HEADER_SIZE + RECORD_SIZE || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("access_log_size must be in " +
+                    (HEADER_SIZE + RECORD_SIZE) + ".." + Integer.MAX_VALUE);
+        }
+        if (files < 1) throw new IllegalArgumentException("access_log_files must be positive");
+        this.path = new File(path).getAbsoluteFile().toPath();
+        this.segmentSize = segmentSize;
+        this.files = files;
+        this.l = logger;
+        Files.createDirectories(this.path.getParent());
+        /** Журнал прошлого запуска не перезаписываем, а сдвигаем, как заполненный сегмент*/
+        if (Files.exists(this.path)) shift();
+        open();
+        this.flusher = new ScheduledThreadPoolExecutor(1, r -> {
+            final Thread thread = new Thread(r, "access-log-urls");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flushUrls, URLS_FLUSH_MILLIS, URLS_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Записывает ответ клиенту
+     *
+     * @param socket        сокет клиента
+     * @param method        метод запроса или null, если запрос не разобран
+     * @param url           адрес запроса или null
+     * @param status        код ответа
+     * @param source        откуда ответ: proxy, cache или origin
+     * @param bytesIn       длина тела запроса
+     * @param bytesOut      сколько байт отправлено клиенту
+     * @param totalNanos    время от начала обработки до конца записи ответа
+     * @param upstreamNanos время ответа сервера или -1, если к серверу не обращались
+     */
+    public void log(final Socket socket,
+                    final String method,
+                    final String url,
+                    final int status,
+                    final String source,
+                    final long bytesIn,
+                    final long bytesOut,
+                    final long totalNanos,
+                    final long upstreamNanos
+    ) {
+        final InetAddress address = socket.getInetAddress();
+        final byte[] ip = (address != null) ? address.getAddress() : null;
+        lock.lock();
+        try {
+            if (buffer == null) return;
+            if (buffer.remaining() < RECORD_SIZE) rotate();
+            final int id = urlId(url);
+            final int position = buffer.position();
+            buffer.putLong(position + EPOCH_NANOS, epochOffset + System.nanoTime());
+            putAddress(position + ADDRESS, ip);
+            buffer.putChar(position + PORT, (char) socket.getPort());
+            buffer.put(position + METHOD, methodCode(method));
+            buffer.put(position + SOURCE, sourceCode(source));
+            buffer.putShort(position + STATUS, (short) status);
+            buffer.putInt(position + URL_ID, id);
+            buffer.putInt(position + BYTES_IN, (int) Math.min(bytesIn, Integer.MAX_VALUE));
+            buffer.putLong(position + BYTES_OUT, bytesOut);
+            buffer.putInt(position + TOTAL_MICROS, micros(totalNanos));
+            buffer.putInt(position + UPSTREAM_MICROS, (upstreamNanos < 0) ? -1 : micros(upstreamNanos));
+            buffer.position(position + RECORD_SIZE);
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        flusher.shutdown();
+        lock.lock();
+        try {
+            if (buffer != null) finishSegment();
+        } catch (IOException e) {
+            l.log(Logger.Level.EXCEPTION, "Can't close access log " + path + ": " + e.getMessage());
+        } finally {
+            buffer = null;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return номер адреса в словаре сегмента, -1 для null
+     */
+    private int urlId(final String url) throws IOException {
+        if (url == null) return -1;
+        final Integer known = urls.get(url);
+        if (known != null) return known;
+        if (urls.size() >= MAX_URLS) rotate();
+        final int id = urls.size();
+        if (!appendUrl(id, url)) {
+            /** Буфер переполнен: пишем его сами, не дожидаясь потока записи*/
+            writeUrls();
+            if (!appendUrl(id, url)) {
+                final ByteBuffer line = StandardCharsets.UTF_8.encode(id + " " + url + "\n");
+                urlsLock.lock();
+                try {
+                    writeFully(urlsChannel, line);
+                } finally {
+                    urlsLock.unlock();
+                }
+            }
+        }
+        urls.put(url, id);
+        return id;
+    }
+
+    /**
+     * Копирует строку "номер адрес" в pendingUrls. Адреса после разбора запроса обычно ASCII,
+     * для них строка не создается; остальные кодируются в UTF-8
+     *
+     * @return false, если строка не поместилась, pendingUrls тогда не меняется
+     */
+    private boolean appendUrl(final int id, final String url) {
+        final ByteBuffer out = pendingUrls;
+        final int start = out.position();
+        final String number = Integer.toString(id);
+        if (out.remaining() < number.length() + url.length() + 2) return false;
+        for (int i = 0; i < number.length(); i++) {
+            out.put((byte) number.charAt(i));
+        }
+        out.put((byte) ' ');
+        for (int i = 0; i < url.length(); i++) {
+            final char c = url.charAt(i);
+            if (c >= 0x80) {
+                out.position(start + number.length() + 1);
+                final byte[] bytes = url.getBytes(StandardCharsets.UTF_8);
+                if (out.remaining() < bytes.length + 1) {
+                    out.position(start);
+                    return false;
+                }
+                out.put(bytes);
+                break;
+            }
+            out.put((byte) c);
+        }
+        out.put((byte) '\n');
+        return true;
+    }
+
+    /**
+     * Работа потока записи: забирает накопленные строки под lock и пишет их без него
+     */
+    private void flushUrls() {
+        lock.lock();
+        try {
+            if (buffer == null || pendingUrls.position() == 0) return;
+            final ByteBuffer taken = pendingUrls;
+            pendingUrls = flushingUrls;
+            flushingUrls = taken;
+            flushingChannel = urlsChannel;
+        } finally {
+            lock.unlock();
+        }
+        urlsLock.lock();
+        try {
+            /** Если сегмент сменился раньше, строки уже записал writeUrls и буфер пуст*/
+            if (flushingUrls.position() > 0) {
+                flushingUrls.flip();
+                writeFully(flushingChannel, flushingUrls);
+                flushingUrls.clear();
+            }
+        } catch (IOException e) {
+            flushingUrls.clear();
+            lock.lock();
+            try {
+                if (buffer != null) fail(e);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            urlsLock.unlock();
+        }
+    }
+
+    /**
+     * Синхронно пишет в файл словаря строки, забранные потоком записи, и все накопленные. Под lock
+     */
+    private void writeUrls() throws IOException {
+        urlsLock.lock();
+        try {
+            if (flushingUrls.position() > 0) {
+                flushingUrls.flip();
+                writeFully(flushingChannel, flushingUrls);
+                flushingUrls.clear();
+            }
+            if (pendingUrls.position() > 0) {
+                pendingUrls.flip();
+                writeFully(urlsChannel, pendingUrls);
+                pendingUrls.clear();
+            }
+        } finally {
+            urlsLock.unlock();
+        }
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+     * IPv4 хранится как IPv4-mapped IPv6 (::ffff:a.b.c.d), чтобы поле было одной длины
+     */
+    private void putAddress(final int offset, final byte[] ip) {
+        for (int i = 0; i < 16; i++) {
+            buffer.put(offset + i, (byte) 0);
+        }
+        if (ip == null) return;
+        if (ip.length == 4) {
+            buffer.put(offset + 10, (byte) 0xff);
+            buffer.put(offset + 11, (byte) 0xff);
+            for (int i = 0; i < 4; i++) {
+                buffer.put(offset + 12 + i, ip[i]);
+            }
+        } else {
+            for (int i = 0; i < 16; i++) {
+                buffer.put(offset + i, ip[i]);
+            }
+        }
+    }
+
+    private void rotate() throws IOException {
+        finishSegment();
+        shift();
+        open();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        urlsChannel = FileChannel.open(urlsPath(path),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        urls.clear();
+        epochOffset = System.currentTimeMillis() * 1_000_000 - System.nanoTime();
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) RECORD_SIZE);
+        buffer.putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Сбрасывает записи на диск и обрезает файл до записанной длины
+     */
+    private void finishSegment() throws IOException {
+        final int length = buffer.position();
+        buffer.force();
+        buffer = null;
+        try {
+            writeUrls();
+            channel.truncate(length);
+        } finally {
+            channel.close();
+            urlsChannel.close();
+        }
+    }
+
+    /**
+     * path.(files-2) -> path.(files-1), ..., path -> path.1; последний сегмент удаляется
+     */
+    private void shift() throws IOException {
+        for (int i = files - 1; i >= 1; i--) {
+            final Path from = (i == 1) ? path : segment(i - 1);
+            move(from, segment(i));
+            move(urlsPath(from), urlsPath(segment(i)));
+        }
+        if (files == 1) {
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(urlsPath(path));
+        }
+    }
+
+    private static void move(final Path from, final Path to) throws IOException {
+        if (Files.exists(from)) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.deleteIfExists(to);
+        }
+    }
+
+    private Path segment(final int index) {
+        return path.resolveSibling(path.getFileName() + "." + index);
+    }
+
+    static Path urlsPath(final Path segment) {
+        return segment.resolveSibling(segment.getFileName() + URLS_SUFFIX);
+    }
+
+    private void fail(final IOException e) {
+        /** Журнал выключается: ошибка диска не должна мешать отвечать клиентам*/
+        l.log(Logger.Level.EXCEPTION, "Access log " + path + " disabled: " + e.getMessage());
+        buffer = null;
+        flusher.shutdown();
+        try {
+            if (channel != null) channel.close();
+            if (urlsChannel != null) urlsChannel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static byte methodCode(final String method) {
+        if (method == null) return 0;
+        for (byte i = 1; i < METHODS.length; i++) {
+            if (METHODS[i].equals(method)) return i;
+        }
+        return 0;
+    }
+
+    private static byte sourceCode(final String source) {
+        for (byte i = 0; i < SOURCES.length; i++) {
+            if (SOURCES[i].equals(source)) return i;
+        }
+        return 0;
+    }
+
+    private static int micros(final long nanos) {
+        return (int) Math.min(nanos / 1000, Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,64 @@
+package http.proxy.peer;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Кольцо консистентного хеширования.
+ * <p>
+ * Каждый узел занимает на кольце VIRTUAL_NODES точек, поэтому ключи делятся между
+ * узлами примерно поровну, а при добавлении или удалении узла переезжает только
+ * его доля ключей. Владелец ключа - первый узел по часовой стрелке от хеша ключа.
+ * <p>
+ * Кольцо строится один раз из статического списка и дальше только читается,
+ * поэтому синхронизация не нужна.
+ */
+final class HashRing {
+
+    private static final int VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, Peer> ring = new TreeMap<>();
+
+    HashRing(final List<Peer> peers) {
+        for (Peer peer : peers) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(peer + "#" + i), peer);
+            }
+        }
+    }
+
+    /**
+     * @param key ключ кэша (нормализованный url)
+     * @return узел, который хранит ответы с этим ключом, или null, если кольцо пустое
+     */
+    Peer ownerOf(final String key) {
+        if (ring.isEmpty()) return null;
+        final Map.Entry<Long, Peer> entry = ring.ceilingEntry(hash(key));
+        return (entry != null) ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Первые 8 байт MD5: одинаковы на всех узлах и хорошо перемешаны
+     */
+    private static long hash(final String key) {
+        final byte[] digest = md5().digest(key.getBytes(StandardCharsets.UTF_8));
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            /** MD5 обязан быть в любой реализации Java*/
+            throw new IllegalStateException(e);
+        }
+    }
+}
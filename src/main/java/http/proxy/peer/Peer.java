@@ -0,0 +1,70 @@
+package http.proxy.peer;
+
+import java.net.InetSocketAddress;
+import java.util.Locale;
+
+/**
+ * Узел группы прокси-серверов: адрес, на котором он принимает запросы
+ * от других узлов (peer-протокол, не HTTP).
+ * <p>
+ * После ошибки связи узел считается недоступным на время downTime,
+ * чтобы не ждать таймаут на каждом запросе.
+ */
+public final class Peer {
+
+    private final String host;
+    private final int port;
+    private volatile long downUntil;
+
+    public Peer(final String host, final int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * @param address строка вида host:port
+     */
+    public static Peer parse(final String address) {
+        final int colon = address.lastIndexOf(':');
+        if (colon <= 0) throw new IllegalArgumentException("Peer address must be host:port, got " + address);
+        return new Peer(address.substring(0, colon).trim(), Integer.parseInt(address.substring(colon + 1).trim()));
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    InetSocketAddress address() {
+        return new InetSocketAddress(host, port);
+    }
+
+    boolean isAvailable() {
+        return System.currentTimeMillis() >= downUntil;
+    }
+
+    void markFailed(final long downTime) {
+        downUntil = System.currentTimeMillis() + downTime;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Peer)) return false;
+        final Peer peer = (Peer) o;
+        return port == peer.port && host.equalsIgnoreCase(peer.host);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * host.toLowerCase(Locale.ROOT).hashCode() + port;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
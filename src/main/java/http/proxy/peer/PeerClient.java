@@ -0,0 +1,160 @@
+package http.proxy.peer;
+
+import http.proxy.cache.CachedResponse;
+import http.proxy.utils.Request;
+import http.proxy.utils.Response;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Клиентская сторона peer-протокола: отправляет запрос владельцу ключа
+ * и получает от него ответ.
+ * <p>
+ * Соединения с узлами переиспользуются: после обмена соединение возвращается
+ * в очередь свободных (не больше MAX_IDLE на узел).
+ * <p>
+ * Запросы уходят с адреса peer_self: другие узлы принимают соединения только с адресов группы.
+ */
+final class PeerClient {
+
+    private static final int MAX_IDLE = 8;
+    /**
+     * Узлы в одной сети: если подключение не удалось быстро, узел считаем недоступным
+     */
+    private static final int CONNECT_TIMEOUT = 1000;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final InetAddress local;
+    private final int timeout;
+    private final Map<Peer, Queue<Connection>> idle = new ConcurrentHashMap<>();
+
+    /**
+     * @param local   адрес этого узла, с него открываются соединения
+     * @param timeout таймаут ожидания ответа в миллисекундах. Должен покрывать
+     *                запрос владельца к серверу при промахе
+     */
+    PeerClient(final InetAddress local, final int timeout) {
+        this.local = local;
+        this.timeout = timeout;
+    }
+
+    /**
+     * @param peer    владелец ключа
+     * @param request запрос GET клиента
+     * @return ответ владельца, готовый к отправке клиенту
+     * @throws IOException узел недоступен или не смог получить ответ
+     */
+    CachedResponse fetch(final Peer peer, final Request request) throws IOException {
+        final byte[] head = request.headBytes();
+        final Connection pooled = queue(peer).poll();
+        if (pooled != null) {
+            try {
+                return exchange(peer, pooled, head, request);
+            } catch (PeerErrorException | SocketTimeoutException e) {
+                throw e;
+            } catch (IOException e) {
+                /** Свободное соединение могло быть закрыто узлом по таймауту, пробуем новое*/
+            }
+        }
+        return exchange(peer, new Connection(peer), head, request);
+    }
+
+    private CachedResponse exchange(final Peer peer,
+                                    final Connection connection,
+                                    final byte[] head,
+                                    final Request request
+    ) throws IOException {
+        final byte[] payload;
+        final int type;
+        try {
+            PeerProtocol.writeFrame(connection.out, PeerProtocol.FETCH, head, EMPTY);
+            type = PeerProtocol.readType(connection.in);
+            if (type < 0) throw new IOException("Peer " + peer + " closed connection");
+            payload = PeerProtocol.readPayload(connection.in);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        release(peer, connection);
+
+        if (type == PeerProtocol.ERROR)
+            throw new PeerErrorException(peer + ": " + new String(payload, StandardCharsets.UTF_8));
+        if (type != PeerProtocol.RESPONSE) throw new IOException("Unexpected peer frame " + type);
+
+        final Response response = new Response(request);
+        try {
+            response.read(new ByteArrayInputStream(payload));
+        } catch (Exception e) {
+            response.release();
+            throw new IOException("Bad response from peer " + peer, e);
+        }
+        final CachedResponse cachedResponse = new CachedResponse(response);
+        response.release();
+        return cachedResponse;
+    }
+
+    private void release(final Peer peer, final Connection connection) {
+        final Queue<Connection> queue = queue(peer);
+        if (queue.size() < MAX_IDLE) {
+            queue.offer(connection);
+        } else {
+            connection.close();
+        }
+    }
+
+    private Queue<Connection> queue(final Peer peer) {
+        return idle.computeIfAbsent(peer, p -> new ConcurrentLinkedQueue<>());
+    }
+
+    /**
+     * Владелец ответил ошибкой: соединение исправно, повторять запрос не нужно
+     */
+    static final class PeerErrorException extends IOException {
+        PeerErrorException(String message) {
+            super(message);
+        }
+    }
+
+    private final class Connection {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        Connection(final Peer peer) throws IOException {
+            socket = new Socket(Proxy.NO_PROXY);
+            try {
+                socket.bind(new InetSocketAddress(local, 0));
+                socket.connect(peer.address(), CONNECT_TIMEOUT);
+                socket.setSoTimeout(timeout);
+                socket.setTcpNoDelay(true);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
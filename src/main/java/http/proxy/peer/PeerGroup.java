@@ -0,0 +1,124 @@
+package http.proxy.peer;
+
+import http.proxy.cache.CacheManager;
+import http.proxy.cache.CachedResponse;
+import http.proxy.logger.Logger;
+import http.proxy.upstream.Upstream;
+import http.proxy.utils.Request;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import static http.proxy.constants.Constants.*;
+
+/**
+ * Группа прокси-серверов с общим кэшем.
+ * <p>
+ * Узлы (статический список из настроек) образуют кольцо консистентного хеширования,
+ * у каждого ключа кэша один владелец. Ответы на GET по чужим ключам этот узел не
+ * хранит, а берет у владельца по peer-протоколу. Владелец отвечает из своего кэша
+ * или сам идет на сервер. Так каждый объект хранится и запрашивается у сервера
+ * один раз на группу, а емкость кэшей узлов складывается.
+ * <p>
+ * Если владелец не отвечает, узел на время DOWN_TIME считается недоступным,
+ * а запрос идет на сервер напрямую (и ответ кэшируется локально, как без группы).
+ */
+public final class PeerGroup {
+
+    private static final long DOWN_TIME = 5000;
+    /**
+     * Клиент ждет чуть дольше владельца, чтобы получить от него ERROR, а не таймаут
+     */
+    private static final int CLIENT_TIMEOUT_MARGIN = 2000;
+
+    private final HashRing ring;
+    private final Peer self;
+    private final CacheManager cm;
+    private final PeerClient client;
+    private final PeerServer server;
+    private final Logger l;
+
+    /**
+     * @param peers   все узлы группы, включая этот
+     * @param self    адрес этого узла, на нем поднимается peer-протокол
+     *                и с него уходят запросы к другим узлам
+     * @param timeout сколько ждать ответа от владельца, в миллисекундах
+     * @param es      ExecutorService для запросов к серверам по своим ключам
+     * @param upstream подключение к серверам, автоматы хостов и хеджирование
+     * @throws java.net.UnknownHostException адрес одного из узлов не разрешается
+     */
+    public PeerGroup(final List<Peer> peers,
+                     final Peer self,
+                     final int timeout,
+                     final CacheManager cm,
+                     final ExecutorService es,
+                     final Upstream upstream,
+                     final Logger logger
+    ) throws IOException {
+        if (!peers.contains(self)) throw new IllegalArgumentException("peer_self " + self + " is not in peers");
+        this.ring = new HashRing(peers);
+        this.self = self;
+        this.cm = cm;
+        this.l = logger;
+        final InetAddress local = InetAddress.getByName(self.getHost());
+        this.client = new PeerClient(local, timeout + CLIENT_TIMEOUT_MARGIN);
+        this.server = new PeerServer(new InetSocketAddress(local, self.getPort()), addresses(peers), cm, es, upstream, timeout, logger);
+    }
+
+    /**
+     * Все адреса узлов группы: имя узла может разрешаться в несколько адресов
+     */
+    private static Set<InetAddress> addresses(final List<Peer> peers) throws IOException {
+        final Set<InetAddress> addresses = new HashSet<>();
+        for (Peer peer : peers) {
+            addresses.addAll(Arrays.asList(InetAddress.getAllByName(peer.getHost())));
+        }
+        return addresses;
+    }
+
+    /**
+     * Запускает прием запросов от других узлов в отдельном потоке
+     */
+    public void start() {
+        final Thread thread = new Thread(server, "peer-server");
+        thread.setDaemon(true);
+        thread.start();
+        l.log(Logger.Level.INFO, "Peer cache started on " + self);
+    }
+
+    /**
+     * Ответ от владельца ключа.
+     *
+     * @param request запрос клиента, которого нет в локальном кэше
+     * @return ответ владельца или null, если запрос нужно выполнить самому:
+     * ключ принадлежит этому узлу, метод не GET или владелец недоступен
+     */
+    public CachedResponse fetch(final Request request) {
+        if (!GET_METHOD.equalsIgnoreCase(request.getMethod())) return null;
+        final Peer owner = ring.ownerOf(cm.keyOf(request.getUrl()));
+        if (owner == null || owner.equals(self) || !owner.isAvailable()) return null;
+        try {
+            final CachedResponse response = client.fetch(owner, request);
+            l.log(Logger.Level.INFO, PEER_RETURNED + SPACE + owner + SPACE + request.getUrl());
+            return response;
+        } catch (PeerClient.PeerErrorException e) {
+            /** Владелец жив, но сам не смог получить ответ*/
+            l.log(Logger.Level.WARNING, PEER_FETCH_FAILED + SPACE + e.getMessage());
+            return null;
+        } catch (IOException e) {
+            owner.markFailed(DOWN_TIME);
+            l.log(Logger.Level.WARNING, PEER_UNAVAILABLE + SPACE + owner + SPACE + e.getMessage());
+            return null;
+        }
+    }
+
+    public void close() throws IOException {
+        server.close();
+    }
+}
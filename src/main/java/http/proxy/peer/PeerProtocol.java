@@ -0,0 +1,67 @@
+package http.proxy.peer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Протокол между узлами группы. Поверх одного TCP-соединения идут
+ * пары запрос-ответ, строго по очереди.
+ * <p>
+ * Фрейм: [1 байт тип][4 байта длина][данные].
+ * <ul>
+ * <li>FETCH - данные: первая строка и заголовки HTTP запроса GET</li>
+ * <li>RESPONSE - данные: ответ целиком (первая строка, заголовки, тело),
+ * в том виде, в каком он лежит в кэше владельца</li>
+ * <li>ERROR - данные: текст ошибки в UTF-8, владелец не смог получить ответ</li>
+ * </ul>
+ */
+final class PeerProtocol {
+
+    static final byte FETCH = 1;
+    static final byte RESPONSE = 2;
+    static final byte ERROR = 3;
+
+    /**
+     * Защита от мусора в потоке: больше этого не может быть ни запрос, ни ответ
+     */
+    static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    private PeerProtocol() {
+    }
+
+    /**
+     * Фрейм, данные которого состоят из двух частей (например, заголовки и тело)
+     */
+    static void writeFrame(final DataOutputStream out,
+                           final byte type,
+                           final byte[] first,
+                           final byte[] second
+    ) throws IOException {
+        out.writeByte(type);
+        out.writeInt(first.length + second.length);
+        out.write(first);
+        out.write(second);
+        out.flush();
+    }
+
+    /**
+     * @return тип фрейма или -1, если соединение закрыто до начала фрейма
+     */
+    static int readType(final DataInputStream in) throws IOException {
+        return in.read();
+    }
+
+    static byte[] readPayload(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH) throw new IOException("Bad peer frame length " + length);
+        final byte[] payload = new byte[length];
+        try {
+            in.readFully(payload);
+        } catch (EOFException e) {
+            throw new IOException("Peer closed connection in the middle of a frame");
+        }
+        return payload;
+    }
+}
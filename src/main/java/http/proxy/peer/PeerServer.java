@@ -0,0 +1,181 @@
+package http.proxy.peer;
+
+import http.proxy.cache.CacheManager;
+import http.proxy.cache.CachedResponse;
+import http.proxy.logger.Logger;
+import http.proxy.upstream.Upstream;
+import http.proxy.utils.Callback;
+import http.proxy.utils.Request;
+import http.proxy.utils.Response;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static http.proxy.constants.Constants.*;
+
+/**
+ * Серверная сторона peer-протокола. Узел отвечает на запросы других узлов
+ * по ключам, которыми он владеет: из своего кэша, а при промахе сам идет на сервер
+ * и кладет ответ в кэш. Так каждый объект запрашивается у сервера один раз на всю группу.
+ * <p>
+ * Запросы от узлов никогда не пересылаются дальше, даже если по кольцу владелец
+ * другой (например, у узлов разные списки): так исключаются циклы.
+ * <p>
+ * Соединения между узлами долгие, поэтому каждое обслуживает свой поток из
+ * CachedThreadPool. Свободное соединение закрывается через IDLE_TIMEOUT.
+ * <p>
+ * Протокол без аутентификации и отдает любой ответ из кэша, поэтому сервер слушает
+ * только адрес peer_self и сразу закрывает соединения с адресов не из peers.
+ */
+final class PeerServer implements Runnable {
+
+    private static final int IDLE_TIMEOUT = 30000;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final ServerSocket serverSocket;
+    private final Set<InetAddress> allowed;
+    private final CacheManager cm;
+    private final ExecutorService es;
+    private final Upstream upstream;
+    private final ExecutorService connections;
+    private final int timeout;
+    private final Logger l;
+
+    /**
+     * @param address адрес peer-протокола этого узла
+     * @param allowed адреса узлов группы, только с них принимаются соединения
+     * @param cm      кэш этого узла
+     * @param es      ExecutorService для запросов к серверам
+     * @param upstream подключение к серверам, автоматы хостов и хеджирование
+     * @param timeout сколько ждать ответа сервера при промахе, в миллисекундах
+     */
+    PeerServer(final InetSocketAddress address,
+               final Set<InetAddress> allowed,
+               final CacheManager cm,
+               final ExecutorService es,
+               final Upstream upstream,
+               final int timeout,
+               final Logger logger
+    ) throws IOException {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(address);
+        this.allowed = allowed;
+        this.cm = cm;
+        this.es = es;
+        this.upstream = upstream;
+        this.timeout = timeout;
+        this.l = logger;
+        this.connections = Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, "peer-connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                if (!allowed.contains(socket.getInetAddress())) {
+                    l.log(Logger.Level.WARNING, socket, PEER_REJECTED);
+                    socket.close();
+                    continue;
+                }
+                socket.setSoTimeout(IDLE_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                connections.submit(() -> serve(socket));
+            } catch (IOException e) {
+                l.log(Logger.Level.EXCEPTION, "Something went wrong when accepting a peer socket " + e.getMessage());
+            }
+        }
+    }
+
+    private void serve(final Socket socket) {
+        try (Socket s = socket) {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            int type;
+            while ((type = PeerProtocol.readType(in)) >= 0) {
+                final byte[] payload = PeerProtocol.readPayload(in);
+                if (type != PeerProtocol.FETCH) throw new IOException("Unexpected peer frame " + type);
+                try {
+                    final CachedResponse response = fetch(s, payload);
+                    PeerProtocol.writeFrame(out, PeerProtocol.RESPONSE, response.getHead(), response.getBody());
+                } catch (Exception e) {
+                    final String message = (e.getMessage() != null) ? e.getMessage() : e.getClass().getSimpleName();
+                    l.log(Logger.Level.WARNING, s, PEER_FETCH_FAILED + SPACE + message);
+                    PeerProtocol.writeFrame(out, PeerProtocol.ERROR, message.getBytes(StandardCharsets.UTF_8), EMPTY);
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            /** Узел долго ничего не присылал, закрываем соединение, при необходимости он откроет новое*/
+        } catch (IOException e) {
+            l.log(Logger.Level.WARNING, socket, PEER_CONNECTION_FAILED + SPACE + e.getMessage());
+        }
+    }
+
+    /**
+     * Ответ из кэша или с сервера (с сохранением в кэш)
+     */
+    private CachedResponse fetch(final Socket socket, final byte[] head) throws Exception {
+        final Request request = new Request();
+        request.read(new ByteArrayInputStream(head));
+        if (!GET_METHOD.equalsIgnoreCase(request.getMethod())) {
+            request.release();
+            throw new IOException("Only GET can be fetched from a peer");
+        }
+        l.log(Logger.Level.INFO, socket, request.getMethod(), request.getUrl(), true, "from peer");
+
+        final CachedResponse cached = cm.getResponse(request);
+        if (cached != null) {
+            request.release();
+            return cached;
+        }
+
+        final CompletableFuture<CachedResponse> future = new CompletableFuture<>();
+        upstream.execute(request, es, new Callback() {
+            @Override
+            public void onFailure(Request request, Exception exception) {
+                future.completeExceptionally(exception);
+            }
+
+            @Override
+            public void onSuccess(Request request, Response response) {
+                final CachedResponse cachedResponse = new CachedResponse(response);
+                response.release();
+                cm.put(request, cachedResponse);
+                future.complete(cachedResponse);
+            }
+        });
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException(GATEWAY_TIMEOUT);
+        }
+    }
+
+    void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+}
@@ -0,0 +1,97 @@
+package http.proxy.prefetch;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Поиск подресурсов в HTML: &lt;link href&gt; (stylesheet, preload, modulepreload, icon),
+ * &lt;script src&gt; и &lt;img src&gt;.
+ * <p>
+ * Это не полноценный разбор HTML, а поиск тегов регулярным выражением по первым
+ * MAX_SCAN байтам документа. Для предзагрузки этого достаточно: пропущенная ссылка
+ * будет просто загружена по запросу клиента.
+ */
+final class HtmlLinks {
+
+    private static final int MAX_SCAN = 256 * 1024;
+
+    private static final Pattern TAG = Pattern.compile("<(link|script|img)\\b([^>]*)>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ATTRIBUTE = Pattern.compile(
+            "([a-zA-Z-]+)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+))"
+    );
+    private static final Set<String> PREFETCHED_RELS = new LinkedHashSet<>();
+
+    static {
+        PREFETCHED_RELS.add("stylesheet");
+        PREFETCHED_RELS.add("preload");
+        PREFETCHED_RELS.add("modulepreload");
+        PREFETCHED_RELS.add("icon");
+    }
+
+    private HtmlLinks() {
+    }
+
+    /**
+     * @param baseUrl  адрес документа, относительно него разрешаются ссылки
+     * @param body     тело документа
+     * @param sameHost оставлять только ссылки на тот же хост
+     * @return абсолютные http адреса без фрагментов, без повторов
+     */
+    static Set<String> extract(final String baseUrl, final byte[] body, final boolean sameHost) {
+        final Set<String> result = new LinkedHashSet<>();
+        final URL base;
+        try {
+            base = new URL(baseUrl);
+        } catch (MalformedURLException e) {
+            return result;
+        }
+        /** ISO-8859-1 сохраняет байты как есть: ascii-разметка найдется в любой кодировке*/
+        final String html = new String(body, 0, Math.min(body.length, MAX_SCAN), StandardCharsets.ISO_8859_1);
+        final Matcher tag = TAG.matcher(html);
+        while (tag.find()) {
+            final String name = tag.group(1).toLowerCase(Locale.ROOT);
+            String rel = null;
+            String link = null;
+            final Matcher attribute = ATTRIBUTE.matcher(tag.group(2));
+            while (attribute.find()) {
+                final String attributeName = attribute.group(1).toLowerCase(Locale.ROOT);
+                final String value = (attribute.group(2) != null) ? attribute.group(2)
+                        : (attribute.group(3) != null) ? attribute.group(3) : attribute.group(4);
+                if (attributeName.equals("rel")) rel = value.toLowerCase(Locale.ROOT);
+                else if (attributeName.equals(name.equals("link") ? "href" : "src")) link = value.trim();
+            }
+            if (link == null || link.isEmpty() || (name.equals("link") && !isPrefetchedRel(rel))) continue;
+            final String resolved = resolve(base, link, sameHost);
+            if (resolved != null) result.add(resolved);
+        }
+        return result;
+    }
+
+    private static boolean isPrefetchedRel(final String rel) {
+        if (rel == null) return false;
+        for (String value : rel.split("\\s+")) {
+            if (PREFETCHED_RELS.contains(value)) return true;
+        }
+        return false;
+    }
+
+    private static String resolve(final URL base, final String link, final boolean sameHost) {
+        try {
+            final URL url = new URL(base, link);
+            if (!"http".equalsIgnoreCase(url.getProtocol())) return null;
+            if (sameHost && !url.getAuthority().equalsIgnoreCase(base.getAuthority())) return null;
+            final String external = url.toExternalForm();
+            final int fragment = external.indexOf('#');
+            return (fragment < 0) ? external : external.substring(0, fragment);
+        } catch (MalformedURLException e) {
+            /** data:, javascript: и прочие ссылки без обработчика протокола*/
+            return null;
+        }
+    }
+}
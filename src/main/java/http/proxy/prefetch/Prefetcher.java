@@ -0,0 +1,262 @@
+package http.proxy.prefetch;
+
+import http.proxy.cache.CacheListener;
+import http.proxy.cache.CacheManager;
+import http.proxy.cache.CachedResponse;
+import http.proxy.logger.Logger;
+import http.proxy.upstream.Upstream;
+import http.proxy.utils.Callback;
+import http.proxy.utils.Headers;
+import http.proxy.utils.Request;
+import http.proxy.utils.Response;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static http.proxy.constants.Constants.*;
+
+/**
+ * Фоновая загрузка ответов в кэш до того, как их попросит клиент.
+ * <ul>
+ * <li>Прогрев: перед приемом соединений загружается список адресов
+ * (из файла или самые частые из прошлого лога)</li>
+ * <li>Предзагрузка: когда в кэш попадает HTML, в очередь ставятся его
+ * подресурсы (стили, скрипты, картинки)</li>
+ * </ul>
+ * Вся работа, включая разбор HTML, идет в одном фоновом потоке с ограничением частоты:
+ * не больше rate запросов в секунду к серверам, следующий запрос - только после ответа
+ * на предыдущий.
+ * Очередь ограничена, ссылки, которые в нее не поместились, отбрасываются.
+ * Сами запросы выполняются тем же Upstream.execute, что и запросы клиентов,
+ * и кэшируются только ответы 200.
+ */
+public final class Prefetcher implements CacheListener {
+
+    /**
+     * Сколько ждать одного ответа сервера
+     */
+    private static final long FETCH_TIMEOUT = 35000;
+
+    /**
+     * Заголовки исходного запроса, которые переносятся в запросы подресурсов,
+     * чтобы предзагруженный вариант совпал по Vary с запросами того же клиента
+     */
+    private static final String[] COPIED_HEADERS = {"User-Agent", "Accept-Encoding", "Accept-Language"};
+
+    private final CacheManager cm;
+    private final ExecutorService es;
+    private final Upstream upstream;
+    private final ThreadPoolExecutor executor;
+    private final boolean subresources;
+    private final boolean sameHost;
+    private final long interval;
+    private final Logger l;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private long nextSlot;
+
+    /**
+     * @param es            ExecutorService для запросов к серверам
+     * @param upstream      подключение к серверам, автоматы хостов и хеджирование
+     * @param rate          запросов в секунду
+     * @param queueCapacity сколько адресов может ждать в очереди
+     * @param subresources  предзагружать подресурсы HTML
+     * @param sameHost      предзагружать только подресурсы с того же хоста
+     */
+    public Prefetcher(final CacheManager cm,
+                      final ExecutorService es,
+                      final Upstream upstream,
+                      final double rate,
+                      final int queueCapacity,
+                      final boolean subresources,
+                      final boolean sameHost,
+                      final Logger logger
+    ) {
+        if (rate <= 0) throw new IllegalArgumentException("prefetch_rate must be positive");
+        this.cm = cm;
+        this.es = es;
+        this.upstream = upstream;
+        this.subresources = subresources;
+        this.sameHost = sameHost;
+        this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        this.l = logger;
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    final Thread thread = new Thread(r, "prefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+    }
+
+    /**
+     * Загружает адреса в кэш и ждет окончания, но не дольше timeout.
+     * Вызывается до приема соединений
+     *
+     * @return сколько адресов попало в кэш
+     */
+    public int warmUp(final List<String> urls, final long timeout, final TimeUnit unit) {
+        if (urls.isEmpty()) return 0;
+        l.log(Logger.Level.INFO, "Cache warm-up: " + urls.size() + " urls");
+        final Future<Integer> result = executor.submit(() -> {
+            int loaded = 0;
+            for (String url : urls) {
+                if (Thread.currentThread().isInterrupted()) break;
+                if (fetch(url, null)) loaded++;
+            }
+            return loaded;
+        });
+        try {
+            final int loaded = result.get(timeout, unit);
+            l.log(Logger.Level.INFO, "Cache warm-up finished: " + loaded + " of " + urls.size() + " loaded");
+            return loaded;
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            l.log(Logger.Level.WARNING, "Cache warm-up did not finish in " + unit.toSeconds(timeout) + " seconds");
+        } catch (Exception e) {
+            l.log(Logger.Level.WARNING, "Cache warm-up failed " + e.getMessage());
+        }
+        return 0;
+    }
+
+    /**
+     * Новый HTML в кэше: ставим в очередь его разбор. Вызывается в потоке, который обслуживает
+     * запрос, поэтому здесь только дешевые проверки, а ссылки ищутся уже в потоке prefetch
+     */
+    @Override
+    public void onInserted(final Request request, final CachedResponse response) {
+        if (!subresources || response.getCode() != 200 || pending.contains(response.getUrl())) return;
+        if (!isPlainHtml(response.getHeaders())) return;
+        final Headers headers = new Headers();
+        for (String name : COPIED_HEADERS) {
+            final String value = request.getHeaders().get(name);
+            if (value != null) headers.add(name, value);
+        }
+        try {
+            /** CachedResponse неизменяем, его тело можно читать в другом потоке*/
+            executor.execute(() -> enqueueSubresources(response, headers));
+        } catch (RejectedExecutionException e) {
+            /** Очередь заполнена: документ не разбираем*/
+        }
+    }
+
+    /**
+     * Выполняется только в потоке prefetch: ищет подресурсы документа и ставит их загрузку в очередь
+     */
+    private void enqueueSubresources(final CachedResponse response, final Headers headers) {
+        for (String url : HtmlLinks.extract(response.getUrl(), response.getBody(), sameHost)) {
+            if (cm.contains(url) || !pending.add(url)) continue;
+            try {
+                executor.execute(() -> {
+                    try {
+                        fetch(url, headers);
+                    } finally {
+                        pending.remove(url);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                /** Очередь заполнена: остальные ссылки этого документа отбрасываем*/
+                pending.remove(url);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Сжатый HTML разобрать нельзя, его подресурсы не ищем
+     */
+    private static boolean isPlainHtml(final Headers headers) {
+        final String type = headers.get("Content-Type");
+        if (type == null || !type.toLowerCase(Locale.ROOT).startsWith("text/html")) return false;
+        final String encoding = headers.get("Content-Encoding");
+        return encoding == null || encoding.equalsIgnoreCase("identity");
+    }
+
+    /**
+     * Выполняется только в потоке prefetch
+     *
+     * @return true, если ответ попал в кэш
+     */
+    private boolean fetch(final String url, final Headers template) {
+        if (cm.contains(url)) return false;
+        final String host;
+        try {
+            host = new URL(url).getAuthority();
+        } catch (MalformedURLException e) {
+            l.log(Logger.Level.WARNING, "Prefetch skipped bad url " + url);
+            return false;
+        }
+        if (!acquire()) return false;
+
+        final Headers headers = new Headers();
+        headers.add(HOST, host);
+        if (template != null) template.forEach(headers::add);
+        final Request request = Request.create(GET_METHOD, url, headers, null, 0);
+        final CompletableFuture<Boolean> done = new CompletableFuture<>();
+        upstream.execute(request, es, new Callback() {
+            @Override
+            public void onFailure(Request request, Exception exception) {
+                l.log(Logger.Level.WARNING, "Prefetch failed " + url + SPACE + exception.getMessage());
+                done.complete(false);
+            }
+
+            @Override
+            public void onSuccess(Request request, Response response) {
+                if (response.getCode() != 200) {
+                    response.release();
+                    done.complete(false);
+                    return;
+                }
+                final CachedResponse cachedResponse = new CachedResponse(response);
+                response.release();
+                cm.put(request, cachedResponse);
+                l.log(Logger.Level.INFO, "Prefetched " + url);
+                done.complete(true);
+            }
+        });
+        try {
+            return done.get(FETCH_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Ограничение частоты: ждем, пока не наступит время следующего запроса.
+     * Вызывается только из потока prefetch, поэтому без синхронизации
+     *
+     * @return false, если поток прервали
+     */
+    private boolean acquire() {
+        final long now = System.nanoTime();
+        if (nextSlot > now) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nextSlot - now);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        nextSlot = Math.max(now, nextSlot) + interval;
+        return true;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,77 @@
+package http.proxy.prefetch;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Источники адресов для прогрева кэша
+ */
+public final class WarmUpList {
+
+    /**
+     * Так логгер отмечает запрос клиента: "GET >>>>>> url"
+     */
+    private static final String REQUEST_MARK = "GET >>>>>> ";
+
+    private WarmUpList() {
+    }
+
+    /**
+     * Файл со списком адресов: по одному на строку, пустые строки и строки с # пропускаются
+     */
+    public static List<String> readUrls(final String path) throws IOException {
+        final Set<String> urls = new LinkedHashSet<>();
+        try (BufferedReader reader = open(path)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) urls.add(line);
+            }
+        }
+        return new ArrayList<>(urls);
+    }
+
+    /**
+     * Самые частые адреса GET запросов из лога прошлого запуска.
+     * Учитываются только абсолютные http адреса (запросы к прокси),
+     * запросы к AdminServer и подобные пропускаются
+     *
+     * @param n сколько адресов вернуть
+     * @return адреса по убыванию количества запросов
+     */
+    public static List<String> topUrls(final String accessLog, final int n) throws IOException {
+        final Map<String, Integer> counts = new HashMap<>();
+        try (BufferedReader reader = open(accessLog)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int mark = line.indexOf(REQUEST_MARK);
+                if (mark < 0) continue;
+                final int start = mark + REQUEST_MARK.length();
+                int end = line.indexOf(' ', start);
+                if (end < 0) end = line.length();
+                final String url = line.substring(start, end);
+                if (url.startsWith("http://")) counts.merge(url, 1, Integer::sum);
+            }
+        }
+        final List<Map.Entry<String, Integer>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        final List<String> result = new ArrayList<>(Math.min(n, entries.size()));
+        for (int i = 0; i < entries.size() && i < n; i++) {
+            result.add(entries.get(i).getKey());
+        }
+        return result;
+    }
+
+    private static BufferedReader open(final String path) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8));
+    }
+}
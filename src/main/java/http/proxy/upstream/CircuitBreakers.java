@@ -0,0 +1,358 @@
+package http.proxy.upstream;
+
+import http.proxy.exceptions.CircuitOpenException;
+import http.proxy.exceptions.ClientBodyException;
+import http.proxy.logger.Logger;
+import http.proxy.utils.Callback;
+import http.proxy.utils.Request;
+import http.proxy.utils.Response;
+
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Автоматы (circuit breaker) для каждого хоста сервера.
+ * <p>
+ * Пока автомат замкнут, он помнит исходы последних window запросов к хосту. Ошибка - это
+ * исключение (нет подключения, таймаут, обрыв) или ответ 502, 503, 504, а медленный ответ
+ * (дольше slowCall) считается таймаутом. Если набралось minCalls запросов и доля ошибок
+ * и таймаутов не меньше errorPercent, автомат размыкается: запросы к хосту сразу получают
+ * CircuitOpenException и не занимают поток пула на время таймаута подключения.
+ * <p>
+ * Через openTime автомат становится полуоткрытым и пропускает probes пробных запросов.
+ * Если все они успешны, автомат замыкается, если хоть один нет - снова размыкается.
+ * Пробы, которые не ответили за openTime, тоже считаются неудачными. Исходы запросов,
+ * начатых до смены состояния, не учитываются. Обрыв тела запроса на стороне клиента
+ * (ClientBodyException) исходом не считается, а занятая им проба освобождается.
+ */
+public final class CircuitBreakers {
+
+    /**
+     * Сколько хостов может отслеживаться. Сверх этого забываются хосты, к которым дольше всех
+     * не обращались, даже если их автоматы разомкнуты: такие хосты давно никому не нужны
+     */
+    private static final int MAX_HOSTS = 4096;
+    /**
+     * Карта чистится, когда в ней на столько хостов больше MAX_HOSTS: один проход на TRIM_BATCH
+     * новых хостов, а не на каждый
+     */
+    private static final int TRIM_BATCH = MAX_HOSTS / 8;
+    /**
+     * Время обращения к автомату обновляется не чаще, чем раз в столько наносекунд,
+     * чтобы частые запросы к одному хосту не писали в одну строку кэша процессора
+     */
+    private static final long TOUCH_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final byte OK = 0;
+    private static final byte ERROR = 1;
+    private static final byte TIMEOUT = 2;
+
+    private enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private final int window;
+    private final int minCalls;
+    private final int errorPercent;
+    private final long slowCallNanos;
+    private final long openTime;
+    private final int probes;
+    private final Logger l;
+    private final Map<String, Breaker> breakers = new ConcurrentHashMap<>();
+    /**
+     * Карту чистит один поток, остальные в это время не ждут
+     */
+    private final AtomicBoolean trimming = new AtomicBoolean();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param window       по скольким последним запросам считается доля ошибок
+     * @param minCalls     сколько запросов нужно в окне, прежде чем автомат может разомкнуться
+     * @param errorPercent доля ошибок и таймаутов в процентах, при которой автомат размыкается
+     * @param slowCall     ответ дольше стольких миллисекунд считается таймаутом, 0 - не считается
+     * @param openTime     сколько миллисекунд автомат разомкнут до пробных запросов
+     * @param probes       сколько пробных запросов должно пройти, чтобы автомат замкнулся
+     */
+    public CircuitBreakers(final int window,
+                           final int minCalls,
+                           final int errorPercent,
+                           final long slowCall,
+                           final long openTime,
+                           final int probes,
+                           final Logger logger
+    ) {
+        if (window < 1) throw new IllegalArgumentException("breaker_window must be positive");
+        if (minCalls < 1 || minCalls > window)
+            throw new IllegalArgumentException("breaker_min_calls must be in 1..breaker_window");
+        if (errorPercent < 1 || errorPercent > 100)
+            throw new IllegalArgumentException("breaker_error_percent must be in 1..100");
+        if (openTime <= 0) throw new IllegalArgumentException("breaker_open_time must be positive");
+        if (probes < 1) throw new IllegalArgumentException("breaker_probes must be positive");
+        this.window = window;
+        this.minCalls = minCalls;
+        this.errorPercent = errorPercent;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, slowCall));
+        this.openTime = openTime;
+        this.probes = probes;
+        this.l = logger;
+    }
+
+    /**
+     * Проверяет автомат хоста запроса
+     *
+     * @param callback калбэк запроса
+     * @return калбэк, который перед вызовом callback записывает исход запроса в автомат
+     * @throws CircuitOpenException автомат разомкнут, запрос отправлять не нужно
+     */
+    public Callback guard(final Request request, final Callback callback) throws CircuitOpenException {
+        final long now = System.nanoTime();
+        final Breaker breaker = breaker(request, now);
+        if (breaker == null) return callback;
+        final Guard guard = new Guard(breaker, callback);
+        if (!breaker.tryAcquire(guard, now)) {
+            rejected.incrementAndGet();
+            throw breaker.openException();
+        }
+        return guard;
+    }
+
+    /**
+     * @return сколько раз автоматы размыкались
+     */
+    public long getOpened() {
+        return opened.get();
+    }
+
+    /**
+     * @return сколько запросов отклонено без обращения к серверу
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return хосты, автоматы которых разомкнуты или полуоткрыты
+     */
+    public List<String> getOpenHosts() {
+        final List<String> hosts = new ArrayList<>();
+        for (Breaker breaker : breakers.values()) {
+            if (breaker.state != State.CLOSED) hosts.add(breaker.host);
+        }
+        return hosts;
+    }
+
+    private Breaker breaker(final Request request, final long now) {
+        final String host;
+        try {
+            host = new URL(request.getUrl()).getAuthority().toLowerCase(Locale.ROOT);
+        } catch (MalformedURLException e) {
+            return null;
+        }
+        Breaker breaker = breakers.get(host);
+        if (breaker == null) {
+            breaker = breakers.computeIfAbsent(host, h -> new Breaker(h, now));
+            if (breakers.size() > MAX_HOSTS + TRIM_BATCH) trim();
+        } else if (now - breaker.lastUsed > TOUCH_NANOS) {
+            breaker.lastUsed = now;
+        }
+        return breaker;
+    }
+
+    /**
+     * Оставляет MAX_HOSTS автоматов, к которым обращались позже остальных.
+     * Пока идет проход, карта может немного вырасти: граница приблизительная
+     */
+    private void trim() {
+        if (!trimming.compareAndSet(false, true)) return;
+        try {
+            final long[] used = new long[breakers.size() + TRIM_BATCH];
+            int count = 0;
+            for (Breaker breaker : breakers.values()) {
+                if (count == used.length) break;
+                used[count++] = breaker.lastUsed;
+            }
+            if (count <= MAX_HOSTS) return;
+            Arrays.sort(used, 0, count);
+            final long threshold = used[count - MAX_HOSTS - 1];
+            breakers.values().removeIf(b -> b.lastUsed <= threshold);
+        } finally {
+            trimming.set(false);
+        }
+    }
+
+    private static byte outcome(final Exception e) {
+        return (e instanceof SocketTimeoutException) ? TIMEOUT : ERROR;
+    }
+
+    private byte outcome(final Response response, final long elapsed) {
+        final int code = response.getCode();
+        if (code == 504 || (slowCallNanos > 0 && elapsed > slowCallNanos)) return TIMEOUT;
+        if (code == 502 || code == 503) return ERROR;
+        return OK;
+    }
+
+    /**
+     * Автомат одного хоста, все переходы под его монитором
+     */
+    private final class Breaker {
+
+        private final String host;
+        private final byte[] outcomes = new byte[window];
+        /**
+         * Последнее обращение (System.nanoTime) с точностью TOUCH_NANOS, по нему чистится карта
+         */
+        private volatile long lastUsed;
+        private volatile State state = State.CLOSED;
+        private int next;
+        private int calls;
+        private int errors;
+        private int timeouts;
+        /**
+         * Меняется при каждой смене состояния, чтобы не учитывать запросы, начатые раньше
+         */
+        private int generation;
+        private long openUntil;
+        private long halfOpenSince;
+        private int probesStarted;
+        private int probesSucceeded;
+        /**
+         * Автомат разомкнули в основном таймауты: клиенту 504, а не 502
+         */
+        private boolean openedByTimeouts;
+
+        Breaker(String host, long now) {
+            this.host = host;
+            this.lastUsed = now;
+        }
+
+        synchronized boolean tryAcquire(final Guard guard, final long now) {
+            if (state == State.OPEN) {
+                if (now < openUntil) return false;
+                transition(State.HALF_OPEN, now);
+            }
+            if (state == State.HALF_OPEN) {
+                if (probesStarted >= probes) {
+                    /** Пробы заняты: если они висят дольше openTime, считаем их неудачными*/
+                    if (now - halfOpenSince > TimeUnit.MILLISECONDS.toNanos(openTime)) open(now);
+                    return false;
+                }
+                probesStarted++;
+                guard.probe = true;
+            }
+            guard.generation = generation;
+            return true;
+        }
+
+        synchronized void record(final Guard guard, final byte outcome, final long now) {
+            if (guard.generation != generation) return;
+            if (state == State.HALF_OPEN) {
+                if (!guard.probe) return;
+                if (outcome != OK) {
+                    openedByTimeouts = outcome == TIMEOUT;
+                    open(now);
+                } else if (++probesSucceeded >= probes) {
+                    transition(State.CLOSED, now);
+                }
+                return;
+            }
+            if (state != State.CLOSED) return;
+            if (calls == window) forget(outcomes[next]);
+            else calls++;
+            outcomes[next] = outcome;
+            next = (next + 1) % window;
+            if (outcome == ERROR) errors++;
+            if (outcome == TIMEOUT) timeouts++;
+            if (calls >= minCalls && (errors + timeouts) * 100 >= errorPercent * calls) {
+                openedByTimeouts = timeouts >= errors;
+                open(now);
+            }
+        }
+
+        synchronized CircuitOpenException openException() {
+            final long retryAfter = (state == State.OPEN)
+                    ? TimeUnit.NANOSECONDS.toMillis(openUntil - System.nanoTime())
+                    : openTime;
+            return new CircuitOpenException(host, openedByTimeouts, retryAfter);
+        }
+
+        /**
+         * Запрос закончился без исхода для сервера: место пробы освобождается для следующего запроса
+         */
+        synchronized void cancel(final Guard guard) {
+            if (guard.generation == generation && state == State.HALF_OPEN && guard.probe) probesStarted--;
+        }
+
+        private void forget(final byte outcome) {
+            if (outcome == ERROR) errors--;
+            if (outcome == TIMEOUT) timeouts--;
+        }
+
+        private void open(final long now) {
+            final int failed = errors + timeouts;
+            final int total = calls;
+            openUntil = now + TimeUnit.MILLISECONDS.toNanos(openTime);
+            transition(State.OPEN, now);
+            opened.incrementAndGet();
+            l.log(Logger.Level.WARNING, "Circuit breaker for " + host + " opened for " + openTime + " ms (" +
+                    ((total > 0) ? failed + "/" + total + " failed" : "probe failed") +
+                    (openedByTimeouts ? ", mostly timeouts" : "") + ")");
+        }
+
+        private void transition(final State to, final long now) {
+            final State from = state;
+            state = to;
+            generation++;
+            calls = 0;
+            next = 0;
+            errors = 0;
+            timeouts = 0;
+            probesStarted = 0;
+            probesSucceeded = 0;
+            if (to == State.HALF_OPEN) {
+                halfOpenSince = now;
+                l.log(Logger.Level.INFO, "Circuit breaker for " + host + " half-open, probing");
+            } else if (to == State.CLOSED && from != State.CLOSED) {
+                l.log(Logger.Level.INFO, "Circuit breaker for " + host + " closed");
+            }
+        }
+    }
+
+    /**
+     * Калбэк одного запроса: записывает исход в автомат и передает ответ дальше
+     */
+    private final class Guard implements Callback {
+
+        private final Breaker breaker;
+        private final Callback callback;
+        private int generation;
+        private boolean probe;
+
+        Guard(Breaker breaker, Callback callback) {
+            this.breaker = breaker;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onFailure(Request request, Exception exception) {
+            if (exception instanceof ClientBodyException) breaker.cancel(this);
+            else breaker.record(this, outcome(exception), System.nanoTime());
+            callback.onFailure(request, exception);
+        }
+
+        @Override
+        public void onSuccess(Request request, Response response) {
+            final long now = System.nanoTime();
+            breaker.record(this, outcome(response, now - request.getSendStarted()), now);
+            callback.onSuccess(request, response);
+        }
+    }
+}
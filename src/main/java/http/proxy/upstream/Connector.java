@@ -0,0 +1,244 @@
+package http.proxy.upstream;
+
+import http.proxy.exceptions.ConnectTimeoutException;
+import http.proxy.jfr.DnsLookupEvent;
+import http.proxy.jfr.UpstreamConnectEvent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Подключение к серверу по всем его адресам (Happy Eyeballs, RFC 8305).
+ * <p>
+ * Имя разрешается во все адреса A/AAAA, семейства чередуются (IPv6, IPv4, IPv6, ...).
+ * Подключения неблокирующие и стартуют с интервалом stagger: следующий адрес пробуется,
+ * если предыдущий не ответил за это время или сразу отказал. Побеждает первое
+ * установленное соединение, остальные закрываются. Все ожидание идет в одном Selector
+ * в вызывающем потоке, дополнительных потоков нет.
+ * <p>
+ * Адреса, к которым не удалось подключиться (отказ или общий таймаут), запоминаются
+ * на failureTtl и пробуются последними, поэтому следующие запросы не ждут мертвый адрес.
+ * Адрес, который просто проиграл более быстрому, ошибкой не считается. Если мертвы все адреса,
+ * они все равно пробуются: память об ошибках не должна сама сделать хост недоступным.
+ */
+public final class Connector {
+
+    /**
+     * Сколько адресов может помнить память об ошибках
+     */
+    private static final int MAX_FAILED = 4096;
+
+    private final long stagger;
+    private final int timeout;
+    private final long failureTtl;
+    private final Map<InetAddress, Long> failedUntil = new ConcurrentHashMap<>();
+
+    /**
+     * @param stagger    через сколько миллисекунд пробовать следующий адрес
+     * @param timeout    сколько миллисекунд ждать подключения по всем адресам вместе
+     * @param failureTtl сколько миллисекунд помнить, что адрес не отвечает
+     */
+    public Connector(final long stagger, final int timeout, final long failureTtl) {
+        if (stagger < 0) throw new IllegalArgumentException("connect_stagger must not be negative");
+        if (timeout <= 0) throw new IllegalArgumentException("connect_timeout must be positive");
+        this.stagger = stagger;
+        this.timeout = timeout;
+        this.failureTtl = failureTtl;
+    }
+
+    /**
+     * @param onPending получает Closeable, который прерывает подключение из другого потока
+     *                  (может быть null)
+     * @return подключенный блокирующий сокет
+     * @throws ConnectTimeoutException ни один адрес не ответил за timeout
+     * @throws ConnectException        все адреса отказали
+     */
+    public Socket connect(final String host, final int port, final Consumer<Closeable> onPending) throws IOException {
+        final DnsLookupEvent lookup = new DnsLookupEvent();
+        lookup.begin();
+        final InetAddress[] resolved = InetAddress.getAllByName(host);
+        lookup.end();
+        if (lookup.shouldCommit()) {
+            lookup.host = host;
+            lookup.addresses = resolved.length;
+            lookup.commit();
+        }
+        final List<InetAddress> addresses = order(resolved);
+        final UpstreamConnectEvent event = new UpstreamConnectEvent();
+        event.begin();
+        final long deadline = System.currentTimeMillis() + timeout;
+        final List<SocketChannel> pending = new ArrayList<>();
+        SocketChannel connected = null;
+        int attempts = 0;
+        try (Selector selector = Selector.open()) {
+            final AtomicBoolean cancelled = new AtomicBoolean();
+            if (onPending != null) {
+                onPending.accept(() -> {
+                    cancelled.set(true);
+                    selector.wakeup();
+                });
+            }
+            IOException error = null;
+            int next = 0;
+            long nextStart = 0;
+            while (connected == null) {
+                if (cancelled.get()) throw new SocketException("Connect cancelled");
+                long now = System.currentTimeMillis();
+                if (next < addresses.size() && now >= nextStart) {
+                    final InetAddress address = addresses.get(next++);
+                    attempts++;
+                    nextStart = now + stagger;
+                    final SocketChannel channel = SocketChannel.open();
+                    pending.add(channel);
+                    try {
+                        channel.configureBlocking(false);
+                        if (channel.connect(new InetSocketAddress(address, port))) {
+                            connected = channel;
+                            break;
+                        }
+                        channel.register(selector, SelectionKey.OP_CONNECT, address);
+                    } catch (IOException e) {
+                        error = failed(address, channel, pending, e);
+                        nextStart = now;
+                        continue;
+                    }
+                }
+                if (pending.isEmpty() && next >= addresses.size()) {
+                    throw (error != null) ? error : new ConnectException("No addresses for " + host);
+                }
+                now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    for (SocketChannel channel : pending) markFailed(addressOf(channel, selector));
+                    throw new ConnectTimeoutException("connect timed out");
+                }
+                final long wait = (next < addresses.size()) ? Math.min(deadline, nextStart) - now : deadline - now;
+                selector.select(Math.max(1, wait));
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    final SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (channel.finishConnect()) {
+                            connected = channel;
+                            break;
+                        }
+                    } catch (IOException e) {
+                        error = failed((InetAddress) key.attachment(), channel, pending, e);
+                        /** Отказ пришел сразу: следующий адрес пробуем, не дожидаясь stagger*/
+                        nextStart = 0;
+                    }
+                }
+            }
+        } finally {
+            /** Адреса, которые не успели подключиться раньше победителя, не мертвы, а только
+             * медленнее: они закрываются, но в память об ошибках не попадают*/
+            for (SocketChannel channel : pending) {
+                if (channel != connected) closeQuietly(channel);
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.host = host;
+                event.port = port;
+                event.address = (connected != null) ? addressOf(connected) : "";
+                event.attempts = attempts;
+                event.commit();
+            }
+        }
+        /** Selector закрыт, регистрация снята, канал можно вернуть в блокирующий режим*/
+        try {
+            connected.configureBlocking(true);
+        } catch (IOException e) {
+            closeQuietly(connected);
+            throw e;
+        }
+        failedUntil.remove(((InetSocketAddress) connected.getRemoteAddress()).getAddress());
+        return connected.socket();
+    }
+
+    /**
+     * Чередует семейства адресов, начиная с первого в ответе DNS,
+     * и переносит адреса, которые недавно не отвечали, в конец
+     */
+    private List<InetAddress> order(final InetAddress[] resolved) {
+        final List<InetAddress> v6 = new ArrayList<>();
+        final List<InetAddress> v4 = new ArrayList<>();
+        for (InetAddress address : resolved) {
+            (address instanceof Inet6Address ? v6 : v4).add(address);
+        }
+        final boolean v6First = resolved.length > 0 && resolved[0] instanceof Inet6Address;
+        final List<InetAddress> interleaved = new ArrayList<>(resolved.length);
+        for (int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+            if (v6First && i < v6.size()) interleaved.add(v6.get(i));
+            if (i < v4.size()) interleaved.add(v4.get(i));
+            if (!v6First && i < v6.size()) interleaved.add(v6.get(i));
+        }
+        final long now = System.currentTimeMillis();
+        final List<InetAddress> ordered = new ArrayList<>(interleaved.size());
+        final List<InetAddress> dead = new ArrayList<>();
+        for (InetAddress address : interleaved) {
+            final Long until = failedUntil.get(address);
+            if (until != null && until > now) {
+                dead.add(address);
+            } else {
+                if (until != null) failedUntil.remove(address, until);
+                ordered.add(address);
+            }
+        }
+        ordered.addAll(dead);
+        return ordered;
+    }
+
+    private IOException failed(final InetAddress address,
+                               final SocketChannel channel,
+                               final List<SocketChannel> pending,
+                               final IOException e
+    ) {
+        markFailed(address);
+        pending.remove(channel);
+        closeQuietly(channel);
+        return e;
+    }
+
+    private void markFailed(final InetAddress address) {
+        if (address == null || failureTtl <= 0) return;
+        if (failedUntil.size() >= MAX_FAILED) failedUntil.clear();
+        failedUntil.put(address, System.currentTimeMillis() + failureTtl);
+    }
+
+    private static InetAddress addressOf(final SocketChannel channel, final Selector selector) {
+        final SelectionKey key = channel.keyFor(selector);
+        return (key != null) ? (InetAddress) key.attachment() : null;
+    }
+
+    private static String addressOf(final SocketChannel channel) {
+        try {
+            return ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    private static void closeQuietly(final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
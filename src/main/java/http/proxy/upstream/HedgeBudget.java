@@ -0,0 +1,57 @@
+package http.proxy.upstream;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Бюджет дополнительных попыток: не больше percent процентов от числа запросов.
+ * <p>
+ * Каждый запрос добавляет percent сотых долей попытки в копилку, каждая дополнительная
+ * попытка забирает одну целую. Копилка ограничена burst попытками, поэтому после
+ * затишья нельзя разом продублировать все запросы. Если сервер тормозит на всех
+ * запросах сразу, дублируется не больше заданной доли и нагрузка на него ограничена.
+ */
+final class HedgeBudget {
+
+    /**
+     * Одна попытка в копилке, доли храним в сотых процента
+     */
+    private static final long ONE = 10000;
+
+    private final long earned;
+    private final long max;
+    private final AtomicLong balance = new AtomicLong();
+
+    /**
+     * @param percent доля запросов, которые можно продублировать, от 0 до 100
+     * @param burst   сколько попыток может накопиться
+     */
+    HedgeBudget(final double percent, final int burst) {
+        if (percent < 0 || percent > 100) throw new IllegalArgumentException("hedge_budget_percent must be in 0..100");
+        if (burst < 1) throw new IllegalArgumentException("hedge_burst must be positive");
+        this.earned = Math.round(percent * 100);
+        this.max = burst * ONE;
+        this.balance.set(max);
+    }
+
+    /**
+     * Вызывается на каждый запрос, который можно продублировать
+     */
+    void deposit() {
+        while (true) {
+            final long current = balance.get();
+            if (current >= max) return;
+            if (balance.compareAndSet(current, Math.min(max, current + earned))) return;
+        }
+    }
+
+    /**
+     * @return true, если на дополнительную попытку хватает бюджета
+     */
+    boolean tryWithdraw() {
+        while (true) {
+            final long current = balance.get();
+            if (current < ONE) return false;
+            if (balance.compareAndSet(current, current - ONE)) return true;
+        }
+    }
+}
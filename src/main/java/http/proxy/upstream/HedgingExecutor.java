@@ -0,0 +1,283 @@
+package http.proxy.upstream;
+
+import http.proxy.logger.Logger;
+import http.proxy.utils.Callback;
+import http.proxy.utils.Request;
+import http.proxy.utils.Response;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static http.proxy.constants.Constants.SPACE;
+
+/**
+ * Хеджирование идемпотентных запросов (GET, HEAD) к медленным серверам.
+ * <p>
+ * Для каждого хоста на лету считается перцентиль времени ответа. Если первая попытка
+ * не получила ответ за это время, запускается вторая такая же, и клиенту уходит тот ответ,
+ * который придет первым. Проигравшая попытка отменяется закрытием ее сокета.
+ * <p>
+ * Дополнительные попытки ограничены бюджетом (доля от числа запросов), поэтому даже
+ * если сервер отвечает медленно на все запросы, нагрузка на него вырастет не больше,
+ * чем на эту долю. Пока замеров по хосту мало, запросы не дублируются.
+ * <p>
+ * Ошибка первой попытки до запуска второй сразу уходит клиенту: хеджирование
+ * сокращает задержку, но не заменяет повтор запроса.
+ */
+public final class HedgingExecutor {
+
+    /**
+     * Сколько хостов может отслеживаться, для остальных запросы не дублируются
+     */
+    private static final int MAX_HOSTS = 4096;
+
+    private final double percentile;
+    private final long minDelay;
+    private final long minSamples;
+    private final HedgeBudget budget;
+    private final Logger l;
+    private final Map<String, LatencyHistogram> hosts = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor timer;
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /**
+     * @param percentile    перцентиль времени ответа, после которого запускается вторая попытка
+     * @param budgetPercent сколько процентов запросов можно продублировать
+     * @param burst         сколько дополнительных попыток может накопиться в бюджете
+     * @param minDelay      вторая попытка запускается не раньше, чем через столько миллисекунд
+     * @param minSamples    сколько замеров нужно по хосту, прежде чем дублировать запросы к нему
+     */
+    public HedgingExecutor(final double percentile,
+                           final double budgetPercent,
+                           final int burst,
+                           final long minDelay,
+                           final long minSamples,
+                           final Logger logger
+    ) {
+        if (percentile <= 0 || percentile >= 100) throw new IllegalArgumentException("hedge_percentile must be in 0..100");
+        this.percentile = percentile;
+        this.budget = new HedgeBudget(budgetPercent, burst);
+        this.minDelay = Math.max(1, minDelay);
+        this.minSamples = Math.max(1, minSamples);
+        this.l = logger;
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+            final Thread thread = new Thread(r, "hedge-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Выполняет идемпотентный запрос, возможно несколькими попытками параллельно
+     *
+     * @param first   где выполняется первая попытка. Может выполнять ее сразу в вызывающем потоке:
+     *                вторая попытка к этому времени уже запланирована
+     * @param service пул для второй попытки
+     */
+    public void execute(final Request request,
+                        final Connector connector,
+                        final Executor first,
+                        final Executor service,
+                        final Callback callback
+    ) {
+        final LatencyHistogram histogram = histogram(request);
+        budget.deposit();
+        final long delay = (histogram == null) ? -1 : histogram.percentile(percentile, minSamples);
+        new Exchange(request, connector, service, callback, histogram).start(first, delay);
+    }
+
+    /**
+     * @return сколько раз запускалась вторая попытка
+     */
+    public long getHedged() {
+        return hedged.get();
+    }
+
+    /**
+     * @return сколько раз вторая попытка ответила раньше первой
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    private LatencyHistogram histogram(final Request request) {
+        final String host;
+        try {
+            host = new URL(request.getUrl()).getAuthority().toLowerCase(Locale.ROOT);
+        } catch (MalformedURLException e) {
+            return null;
+        }
+        final LatencyHistogram histogram = hosts.get(host);
+        if (histogram != null || hosts.size() >= MAX_HOSTS) return histogram;
+        return hosts.computeIfAbsent(host, h -> new LatencyHistogram());
+    }
+
+    /**
+     * Один запрос клиента и все его попытки
+     */
+    private final class Exchange {
+
+        private final Request request;
+        private final Connector connector;
+        private final Executor service;
+        private final Callback callback;
+        private final LatencyHistogram histogram;
+        private final Attempt first = new Attempt(false);
+        private final Attempt second = new Attempt(true);
+        /**
+         * Ответ (или ошибка) уже отдан клиенту
+         */
+        private final AtomicBoolean done = new AtomicBoolean();
+        /**
+         * Сколько попыток еще не закончилось. Буферы запроса возвращаются в пул,
+         * когда закончились все, потому что любая из них может еще отправлять запрос
+         */
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile ScheduledFuture<?> hedge;
+        private volatile Exception error;
+
+        Exchange(Request request, Connector connector, Executor service, Callback callback, LatencyHistogram histogram) {
+            this.request = request;
+            this.connector = connector;
+            this.service = service;
+            this.callback = callback;
+            this.histogram = histogram;
+        }
+
+        void start(final Executor executor, final long delay) {
+            running.incrementAndGet();
+            if (delay >= 0) {
+                hedge = timer.schedule(this::hedge, Math.max(delay, minDelay), TimeUnit.MILLISECONDS);
+            }
+            try {
+                executor.execute(() -> run(first));
+            } catch (RejectedExecutionException e) {
+                cancelHedge();
+                running.decrementAndGet();
+                request.release();
+                throw e;
+            }
+        }
+
+        /**
+         * Выполняется в потоке таймера: первая попытка не ответила вовремя
+         */
+        private void hedge() {
+            /** Сначала занимаем попытку, потом проверяем done: иначе буферы запроса
+             * могли бы вернуться в пул, пока вторая попытка его отправляет*/
+            running.incrementAndGet();
+            if (done.get() || !budget.tryWithdraw()) {
+                finish();
+                return;
+            }
+            hedged.incrementAndGet();
+            l.log(Logger.Level.INFO, "Hedging request " + request.getUrl());
+            try {
+                service.execute(() -> run(second));
+            } catch (RejectedExecutionException e) {
+                finish();
+            }
+        }
+
+        private void run(final Attempt attempt) {
+            final long start = System.nanoTime();
+            try {
+                final Response response = request.send(connector, attempt::setSocket, false);
+                onResponse(attempt, response, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } catch (Exception e) {
+                if (!done.get() && attempt.isHedge) {
+                    l.log(Logger.Level.WARNING, "Hedged attempt failed " + request.getUrl() + SPACE + e.getMessage());
+                }
+                error = e;
+            } finally {
+                finish();
+            }
+        }
+
+        private void onResponse(final Attempt attempt, final Response response, final long elapsed) {
+            if (!done.compareAndSet(false, true)) {
+                /** Другая попытка уже ответила*/
+                response.release();
+                return;
+            }
+            cancelHedge();
+            (attempt == first ? second : first).cancel();
+            if (histogram != null) histogram.record(elapsed);
+            if (attempt.isHedge) hedgeWins.incrementAndGet();
+            callback.onSuccess(request, response);
+        }
+
+        /**
+         * Последняя закончившаяся попытка: если ответа так и не было, отдаем клиенту ее ошибку.
+         * Поток таймера тоже занимает попытку, пока решает, запускать ли вторую,
+         * поэтому ошибка первой попытки не потеряется и не уйдет клиенту дважды
+         */
+        private void finish() {
+            if (running.decrementAndGet() != 0) return;
+            final boolean failed = done.compareAndSet(false, true);
+            if (released.compareAndSet(false, true)) request.release();
+            if (failed) {
+                cancelHedge();
+                callback.onFailure(request, error);
+            }
+        }
+
+        private void cancelHedge() {
+            final ScheduledFuture<?> hedge = this.hedge;
+            if (hedge != null) hedge.cancel(false);
+        }
+    }
+
+    /**
+     * Подключение или сокет попытки, чтобы отменить ее из другого потока.
+     * Если попытку отменили раньше, они закроются сразу, как только появятся
+     */
+    private static final class Attempt {
+
+        private final boolean isHedge;
+        private volatile Closeable socket;
+        private volatile boolean cancelled;
+
+        Attempt(boolean isHedge) {
+            this.isHedge = isHedge;
+        }
+
+        void setSocket(final Closeable socket) {
+            this.socket = socket;
+            if (cancelled) close(socket);
+        }
+
+        void cancel() {
+            cancelled = true;
+            final Closeable socket = this.socket;
+            if (socket != null) close(socket);
+        }
+
+        private static void close(final Closeable socket) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
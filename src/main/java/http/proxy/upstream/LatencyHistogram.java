@@ -0,0 +1,80 @@
+package http.proxy.upstream;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Гистограмма времени ответа одного сервера для оценки перцентиля на лету.
+ * <p>
+ * Корзины растут геометрически (каждая следующая на 1/8 шире), от 1 мс до нескольких
+ * минут, поэтому погрешность оценки не больше 12.5% при любом масштабе задержек.
+ * Память постоянная, запись - одно атомарное увеличение счетчика.
+ * <p>
+ * Чтобы оценка следовала за изменениями сервера, после каждых DECAY_PERIOD замеров
+ * все счетчики делятся пополам: старые замеры постепенно теряют вес.
+ */
+final class LatencyHistogram {
+
+    private static final double GROWTH = 1.125;
+    private static final int BUCKETS = 128;
+    private static final int DECAY_PERIOD = 512;
+
+    /**
+     * Верхние границы корзин в миллисекундах
+     */
+    private static final long[] BOUNDS = new long[BUCKETS];
+
+    static {
+        double bound = 1;
+        for (int i = 0; i < BUCKETS; i++) {
+            BOUNDS[i] = (long) Math.ceil(bound);
+            bound *= GROWTH;
+        }
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicInteger samples = new AtomicInteger();
+
+    void record(final long millis) {
+        counts.incrementAndGet(bucket(millis));
+        if (samples.incrementAndGet() % DECAY_PERIOD == 0) decay();
+    }
+
+    /**
+     * @param percentile от 0 до 100
+     * @param minSamples сколько замеров (с учетом затухания) нужно для оценки
+     * @return верхняя граница корзины, в которую попадает перцентиль, или -1, если замеров мало
+     */
+    long percentile(final double percentile, final long minSamples) {
+        long total = 0;
+        final long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0 || total < minSamples) return -1;
+        final long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return BOUNDS[i];
+        }
+        return BOUNDS[BUCKETS - 1];
+    }
+
+    /**
+     * Деление пополам без блокировки: параллельная запись может потерять
+     * один замер, для оценки перцентиля это неважно
+     */
+    private void decay() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, counts.get(i) >> 1);
+        }
+    }
+
+    private static int bucket(final long millis) {
+        if (millis <= 1) return 0;
+        final int index = (int) Math.ceil(Math.log(millis) / Math.log(GROWTH));
+        return Math.min(index, BUCKETS - 1);
+    }
+}
@@ -0,0 +1,90 @@
+package http.proxy.upstream;
+
+import http.proxy.exceptions.CircuitOpenException;
+import http.proxy.utils.Callback;
+import http.proxy.utils.Request;
+import http.proxy.utils.Response;
+
+import java.util.concurrent.Executor;
+
+import static http.proxy.constants.Constants.GET_METHOD;
+import static http.proxy.constants.Constants.HEAD_METHOD;
+
+/**
+ * Выход к серверам: подключение, автоматы хостов и хеджирование.
+ * <p>
+ * Создается в ProxyServer и передается всем, кто отправляет запросы серверам
+ * (SocketHandler, Http2Connection, узел группы, Prefetcher)
+ */
+public final class Upstream {
+
+    private final Connector connector;
+    /**
+     * null, если автоматы хостов выключены
+     */
+    private final CircuitBreakers breakers;
+    /**
+     * null, если хеджирование выключено
+     */
+    private final HedgingExecutor hedging;
+
+    public Upstream(final Connector connector, final CircuitBreakers breakers, final HedgingExecutor hedging) {
+        this.connector = connector;
+        this.breakers = breakers;
+        this.hedging = hedging;
+    }
+
+    /**
+     * Выполняем запрос в Executor, который нам предоставят (пул потоков
+     * или его справедливое представление для конкретного клиента)
+     * CallBack аналогичен тому, что бы взят из OkHttp
+     * <p>
+     * Если включено хеджирование, идемпотентные запросы (GET, HEAD) выполняет HedgingExecutor
+     * <p>
+     * Если автомат хоста разомкнут, запрос не ставится в пул: callback.onFailure
+     * получает CircuitOpenException сразу, в вызывающем потоке
+     */
+    public void execute(final Request request, final Executor service, final Callback callback) {
+        execute(request, service, service, callback);
+    }
+
+    /**
+     * То же, что execute, но запрос выполняется в вызывающем потоке. Для задач, которые
+     * уже выполняются в пуле запросов к серверам: вторая очередь удвоила бы ожидание
+     * промаха и его учет в полосе. В service идет только вторая попытка хеджирования
+     */
+    public void executeInline(final Request request, final Executor service, final Callback callback) {
+        execute(request, Runnable::run, service, callback);
+    }
+
+    /**
+     * @param first   где выполняется запрос (первая попытка)
+     * @param service пул для второй попытки хеджирования
+     */
+    private void execute(final Request request, final Executor first, final Executor service, final Callback callback) {
+        final Callback guarded;
+        try {
+            guarded = (breakers != null) ? breakers.guard(request, callback) : callback;
+        } catch (CircuitOpenException e) {
+            request.release();
+            callback.onFailure(request, e);
+            return;
+        }
+        if (hedging != null
+                && (GET_METHOD.equals(request.getMethod()) || HEAD_METHOD.equals(request.getMethod()))) {
+            hedging.execute(request, connector, first, service, guarded);
+            return;
+        }
+        first.execute(
+                () -> {
+                    try {
+                        final Response response = request.send(connector, null, true);
+                        guarded.onSuccess(request, response);
+                    } catch (Exception e) {
+                        request.release();
+                        guarded.onFailure(request, e);
+                    }
+                }
+        );
+    }
+}
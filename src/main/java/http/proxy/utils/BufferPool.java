@@ -0,0 +1,209 @@
+package http.proxy.utils;
+
+import http.proxy.logger.Logger;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Пул байтовых буферов для чтения и записи запросов и ответов.
+ * <p>
+ * Буферы разбиты на классы по размеру (степени двойки от 4 КБ до 1 МБ),
+ * для каждого класса хранится не больше MAX_PER_CLASS свободных буферов.
+ * lease возвращает буфер не меньше запрошенного размера, release возвращает
+ * его обратно в пул. Буферы больше 1 МБ не переиспользуются.
+ * <p>
+ * В отладочном режиме (enableLeakDetection) для каждого выданного буфера
+ * запоминается место, где его взяли. Если буфер был собран сборщиком мусора,
+ * так и не вернувшись в пул, об этом пишется в лог.
+ */
+public final class BufferPool {
+
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 20;
+    private static final int MAX_PER_CLASS = 64;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final ConcurrentLinkedQueue<byte[]>[] FREE = new ConcurrentLinkedQueue[MAX_SHIFT - MIN_SHIFT + 1];
+    private static final AtomicInteger[] FREE_COUNT = new AtomicInteger[FREE.length];
+
+    static {
+        for (int i = 0; i < FREE.length; i++) {
+            FREE[i] = new ConcurrentLinkedQueue<>();
+            FREE_COUNT[i] = new AtomicInteger();
+        }
+    }
+
+    private static volatile LeakDetector leakDetector;
+
+    private BufferPool() {
+    }
+
+    /**
+     * Включает отслеживание утечек буферов
+     *
+     * @param logger логгер, в который пишутся найденные утечки
+     */
+    public static void enableLeakDetection(final Logger logger) {
+        leakDetector = new LeakDetector(logger);
+    }
+
+    /**
+     * @param minSize минимальный размер буфера
+     * @return буфер, длина которого не меньше minSize
+     */
+    public static byte[] lease(final int minSize) {
+        final int sizeClass = sizeClass(minSize);
+        byte[] buffer = null;
+        if (sizeClass >= 0) {
+            buffer = FREE[sizeClass].poll();
+            if (buffer != null) {
+                FREE_COUNT[sizeClass].decrementAndGet();
+            } else {
+                buffer = new byte[1 << (sizeClass + MIN_SHIFT)];
+            }
+        } else {
+            buffer = new byte[minSize];
+        }
+        final LeakDetector detector = leakDetector;
+        if (detector != null) detector.leased(buffer);
+        return buffer;
+    }
+
+    /**
+     * Возвращает буфер в пул. После этого буфер нельзя использовать
+     *
+     * @param buffer буфер, полученный через lease, или null
+     */
+    public static void release(final byte[] buffer) {
+        if (buffer == null) return;
+        final LeakDetector detector = leakDetector;
+        if (detector != null) detector.released(buffer);
+        final int sizeClass = sizeClass(buffer.length);
+        /** Буферы нестандартного размера или сверх лимита просто отдаем сборщику мусора*/
+        if (sizeClass < 0 || buffer.length != 1 << (sizeClass + MIN_SHIFT)) return;
+        if (FREE_COUNT[sizeClass].incrementAndGet() > MAX_PER_CLASS) {
+            FREE_COUNT[sizeClass].decrementAndGet();
+            return;
+        }
+        FREE[sizeClass].offer(buffer);
+    }
+
+    /**
+     * Увеличивает буфер: берет из пула новый, копирует в него length байт
+     * и возвращает старый в пул
+     */
+    public static byte[] grow(final byte[] buffer, final int length, final int minSize) {
+        final byte[] result = lease(minSize);
+        System.arraycopy(buffer, 0, result, 0, length);
+        release(buffer);
+        return result;
+    }
+
+    /**
+     * @return количество выданных и еще не возвращенных буферов (только в отладочном режиме)
+     */
+    public static int outstanding() {
+        final LeakDetector detector = leakDetector;
+        return (detector == null) ? 0 : detector.outstanding();
+    }
+
+    /**
+     * @return номер класса размера или -1, если буфер слишком большой для пула
+     */
+    private static int sizeClass(final int size) {
+        if (size <= 1 << MIN_SHIFT) return 0;
+        final int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return (shift > MAX_SHIFT) ? -1 : shift - MIN_SHIFT;
+    }
+
+    /**
+     * Следит за выданными буферами через слабые ссылки. Запись удаляется при release,
+     * а если буфер собран раньше, то ссылка попадает в очередь и считается утечкой
+     */
+    private static final class LeakDetector {
+
+        private final Logger logger;
+        private final ReferenceQueue<byte[]> queue = new ReferenceQueue<>();
+        private final Map<Integer, List<Lease>> leases = new HashMap<>();
+        private int count;
+
+        LeakDetector(final Logger logger) {
+            this.logger = logger;
+        }
+
+        synchronized void leased(final byte[] buffer) {
+            reportLeaks();
+            leases.computeIfAbsent(System.identityHashCode(buffer), k -> new ArrayList<>(1))
+                    .add(new Lease(buffer, queue));
+            count++;
+        }
+
+        synchronized void released(final byte[] buffer) {
+            final int key = System.identityHashCode(buffer);
+            final List<Lease> list = leases.get(key);
+            if (list == null) return;
+            for (Iterator<Lease> it = list.iterator(); it.hasNext(); ) {
+                if (it.next().get() == buffer) {
+                    it.remove();
+                    count--;
+                    break;
+                }
+            }
+            if (list.isEmpty()) leases.remove(key);
+        }
+
+        synchronized int outstanding() {
+            reportLeaks();
+            return count;
+        }
+
+        private void reportLeaks() {
+            Reference<? extends byte[]> ref;
+            while ((ref = queue.poll()) != null) {
+                final Lease lease = (Lease) ref;
+                final List<Lease> list = leases.get(lease.key);
+                if (list == null || !list.remove(lease)) continue;
+                if (list.isEmpty()) leases.remove(lease.key);
+                count--;
+                if (logger != null) {
+                    final StringBuilder builder = new StringBuilder("Buffer of ")
+                            .append(lease.length)
+                            .append(" bytes was never released, leased at:");
+                    for (StackTraceElement element : lease.trace) {
+                        builder.append(' ').append(element);
+                    }
+                    logger.log(Logger.Level.WARNING, builder.toString());
+                }
+            }
+        }
+    }
+
+    private static final class Lease extends WeakReference<byte[]> {
+
+        private final int key;
+        private final int length;
+        private final StackTraceElement[] trace;
+
+        Lease(final byte[] buffer, final ReferenceQueue<byte[]> queue) {
+            super(buffer, queue);
+            this.key = System.identityHashCode(buffer);
+            this.length = buffer.length;
+            final StackTraceElement[] stack = new Throwable().getStackTrace();
+            /** Пропускаем кадры самого пула*/
+            final int from = Math.min(3, stack.length);
+            final int to = Math.min(from + 4, stack.length);
+            final StackTraceElement[] trace = new StackTraceElement[to - from];
+            System.arraycopy(stack, from, trace, 0, trace.length);
+            this.trace = trace;
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package http.proxy.utils;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -10,75 +14,383 @@ import static http.proxy.constants.Constants.*;
 
 /**
  * Собственная реализация класса, аналогичного тому, что бы взят из OkHttp
+ * <p>
+ * Заголовки хранятся в двух параллельных массивах в порядке добавления.
+ * Поверх них построен небольшой хэш-индекс с открытой адресацией: по имени
+ * заголовка (без учета регистра) находим первый заголовок с таким именем, а
+ * остальные значения с тем же именем связаны в цепочку через массив next.
+ * Поэтому get и getAll работают за O(1) и не создают новых строк.
+ * <p>
+ * Часто встречающиеся имена заголовков интернируются: вместо строки,
+ * прочитанной из сокета, хранится общий экземпляр из WELL_KNOWN, а его
+ * байтовое представление заранее посчитано для сериализации.
+ * <p>
+ * readOnlyCopy() дает неизменяемую копию с массивами точно по размеру: такие заголовки
+ * хранятся в кэше и читаются многими потоками сразу без синхронизации.
  */
 public class Headers {
 
-    private List<String> names;
-    private List<String> values;
+    /**
+     * Общеизвестные заголовки. Индекс в этом массиве совпадает с индексом
+     * в WELL_KNOWN_BYTES
+     */
+    private static final String[] WELL_KNOWN = {
+            "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Accept-Ranges",
+            "Age", "Allow", "Authorization", "Cache-Control", "Connection", "Content-Disposition",
+            "Content-Encoding", "Content-Language", "Content-Length", "Content-Location",
+            "Content-Range", "Content-Type", "Cookie", "Date", "ETag", "Expect", "Expires",
+            "Host", "If-Match", "If-Modified-Since", "If-None-Match", "If-Range",
+            "If-Unmodified-Since", "Keep-Alive", "Last-Modified", "Link", "Location", "Origin",
+            "Pragma", "Proxy-Authenticate", "Proxy-Authorization", "Proxy-Connection", "Range",
+            "Referer", "Retry-After", "Server", "Set-Cookie", "Strict-Transport-Security",
+            "TE", "Trailer", "Transfer-Encoding", "Upgrade", "User-Agent", "Vary", "Via",
+            "WWW-Authenticate", "X-Forwarded-For", "X-Forwarded-Proto", "X-Requested-With"
+    };
+    private static final byte[][] WELL_KNOWN_BYTES = new byte[WELL_KNOWN.length][];
+    /**
+     * Индекс общеизвестных имен: ячейка хранит индекс в WELL_KNOWN + 1, 0 - пусто
+     */
+    private static final int[] WELL_KNOWN_SLOTS = new int[128];
+
+    static {
+        for (int i = 0; i < WELL_KNOWN.length; i++) {
+            WELL_KNOWN_BYTES[i] = ascii(WELL_KNOWN[i]);
+            int slot = hash(WELL_KNOWN[i]) & (WELL_KNOWN_SLOTS.length - 1);
+            while (WELL_KNOWN_SLOTS[slot] != 0) slot = (slot + 1) & (WELL_KNOWN_SLOTS.length - 1);
+            WELL_KNOWN_SLOTS[slot] = i + 1;
+        }
+    }
+
+    private static final byte[] DELIM_BYTES = ascii(HEADER_DELIM + SPACE);
+    private static final byte[] CRLF_BYTES = ascii(CRLF);
+    private static final int INITIAL_CAPACITY = 16;
+
+    private String[] names;
+    private String[] values;
+    /**
+     * Номер общеизвестного имени для каждого заголовка или -1
+     */
+    private int[] known;
+    /**
+     * Индекс следующего заголовка с тем же именем или -1
+     */
+    private int[] next;
+    /**
+     * Хэш имени каждого заголовка без учета регистра: индекс сравнивает сначала хэши,
+     * а equalsIgnoreCase вызывает только при совпадении
+     */
+    private int[] hashes;
+    /**
+     * Хэш-индекс: индекс первого заголовка с данным именем + 1, 0 - пусто
+     */
+    private int[] slots;
+    private int size;
+    private int distinct;
+    private boolean readOnly;
 
     public Headers() {
-        names = new ArrayList<>();
-        values = new ArrayList<>();
+        names = new String[INITIAL_CAPACITY];
+        values = new String[INITIAL_CAPACITY];
+        known = new int[INITIAL_CAPACITY];
+        next = new int[INITIAL_CAPACITY];
+        hashes = new int[INITIAL_CAPACITY];
+        slots = new int[INITIAL_CAPACITY * 2];
+    }
+
+    private Headers(int capacity) {
+        names = new String[capacity];
+        values = new String[capacity];
+        known = new int[capacity];
+        next = new int[capacity];
+        hashes = new int[capacity];
     }
 
     public Headers(Map<String, List<String>> map) {
+        this();
         Objects.requireNonNull(map);
-        names = new ArrayList<>();
-        values = new ArrayList<>();
         map.forEach((k, v) -> {
             if (k != null && v != null) {
-                names.add(k);
-                values.add(v.stream().reduce((acc, it) -> acc + ", " + it).orElse(""));
+                for (String value : v) add(k, value);
             }
         });
-        assert (names.size() == values.size());
     }
 
     public void add(String name, String value) {
+        checkWritable();
         Objects.requireNonNull(name);
         Objects.requireNonNull(value);
-        names.add(name);
-        values.add(value);
-        assert (names.size() == values.size());
+        if (size == names.length) grow();
+        final int hash = hash(name);
+        final int wellKnown = wellKnownIndex(name, hash);
+        names[size] = (wellKnown >= 0) ? WELL_KNOWN[wellKnown] : name;
+        values[size] = value;
+        known[size] = wellKnown;
+        hashes[size] = hash;
+        next[size] = -1;
+        link(size++);
+        if (distinct * 2 > slots.length) reindex(slots.length * 2);
     }
 
+    /**
+     * @return первое значение заголовка с данным именем или null
+     */
     public String get(String name) {
-        for (int i = 0; i < names.size(); i++) {
-            if (names.get(i).equalsIgnoreCase(name)) {
-                return values.get(i);
-            }
+        final int i = first(name);
+        return (i < 0) ? null : values[i];
+    }
+
+    /**
+     * @return все значения заголовка с данным именем в порядке добавления
+     */
+    public List<String> getAll(String name) {
+        int i = first(name);
+        if (i < 0) return Collections.emptyList();
+        final List<String> result = new ArrayList<>(2);
+        for (; i >= 0; i = next[i]) {
+            result.add(values[i]);
         }
-        return null;
+        return result;
+    }
+
+    public boolean contains(String name) {
+        return first(name) >= 0;
     }
 
+    /**
+     * Удаляет все значения заголовка с данным именем
+     */
     public void remove(String name) {
-        for (int i = 0; i < names.size(); i++) {
-            if (names.get(i).equalsIgnoreCase(name)) {
-                names.remove(i);
-                values.remove(i);
-                break;
+        checkWritable();
+        if (first(name) < 0) return;
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            if (!names[i].equalsIgnoreCase(name)) {
+                names[j] = names[i];
+                values[j] = values[i];
+                known[j] = known[i];
+                hashes[j] = hashes[i];
+                j++;
             }
         }
-        assert (names.size() == values.size());
+        Arrays.fill(names, j, size, null);
+        Arrays.fill(values, j, size, null);
+        size = j;
+        reindex(slots.length);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Неизменяемая копия: массивы по числу заголовков, add и remove бросают
+     * UnsupportedOperationException. Копия не меняется после создания, поэтому
+     * ее можно читать из нескольких потоков, если она опубликована безопасно
+     * (например через final поле)
+     */
+    public Headers readOnlyCopy() {
+        if (readOnly) return this;
+        final Headers copy = new Headers(size);
+        System.arraycopy(names, 0, copy.names, 0, size);
+        System.arraycopy(values, 0, copy.values, 0, size);
+        System.arraycopy(known, 0, copy.known, 0, size);
+        System.arraycopy(hashes, 0, copy.hashes, 0, size);
+        copy.size = size;
+        /** Заполнение индекса не больше половины, как и при добавлении*/
+        copy.reindex(Integer.highestOneBit(Math.max(size, 1)) * 4);
+        copy.readOnly = true;
+        return copy;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public String name(int i) {
+        return names[i];
+    }
+
+    public String value(int i) {
+        return values[i];
+    }
+
+    /**
+     * @return оценка памяти, которую занимают заголовки: объект, внутренние массивы и строки.
+     * Общеизвестные имена общие для всех экземпляров и не считаются
+     */
+    public long retainedSize() {
+        long result = ObjectSizes.object(6 * ObjectSizes.REFERENCE + 8 + 1)
+                + 2 * ObjectSizes.references(names.length)
+                + 3 * ObjectSizes.ints(known.length)
+                + ObjectSizes.ints(slots.length);
+        for (int i = 0; i < size; i++) {
+            if (known[i] < 0) result += ObjectSizes.string(names[i]);
+            result += ObjectSizes.string(values[i]);
+        }
+        return result;
     }
 
     public void forEach(BiConsumer<String, String> action) {
         Objects.requireNonNull(action);
-        for (int i = 0; i < names.size(); i++) {
-            action.accept(names.get(i), values.get(i));
+        for (int i = 0; i < size; i++) {
+            action.accept(names[i], values[i]);
+        }
+    }
+
+    /**
+     * @return количество байт, которое займут заголовки в виде "Name: value\r\n"
+     */
+    public int byteSize() {
+        int result = 0;
+        for (int i = 0; i < size; i++) {
+            result += names[i].length() + values[i].length() + DELIM_BYTES.length + CRLF_BYTES.length;
+        }
+        return result;
+    }
+
+    /**
+     * Записывает заголовки в буфер в том виде, в котором они передаются по сети.
+     * Символы кодируются в ISO-8859-1, как того требует HTTP/1.1
+     *
+     * @param buffer буфер, в котором должно быть не меньше byteSize() свободных байт
+     */
+    public void writeTo(ByteBuffer buffer) {
+        for (int i = 0; i < size; i++) {
+            if (known[i] >= 0) {
+                buffer.put(WELL_KNOWN_BYTES[known[i]]);
+            } else {
+                putLatin1(buffer, names[i]);
+            }
+            buffer.put(DELIM_BYTES);
+            putLatin1(buffer, values[i]);
+            buffer.put(CRLF_BYTES);
         }
     }
 
     @Override
     public String toString() {
-        assert (names.size() == values.size());
-        final StringBuilder builder = new StringBuilder();
-        for (int i = 0; i < names.size(); i++) {
-            builder.append(names.get(i))
+        final StringBuilder builder = new StringBuilder(byteSize());
+        for (int i = 0; i < size; i++) {
+            builder.append(names[i])
                     .append(HEADER_DELIM + SPACE)
-                    .append(values.get(i))
+                    .append(values[i])
                     .append(CRLF);
         }
         return builder.toString();
     }
+
+    /**
+     * Для буфера в куче строка копируется прямо в его массив: getBytes(int, int, byte[], int)
+     * берет младший байт каждого символа, для строк в Latin-1 это одно копирование массива.
+     * Побайтовый put был вдвое медленнее StringBuilder и getBytes, которые он заменял
+     */
+    @SuppressWarnings("deprecation")
+    static void putLatin1(ByteBuffer buffer, String s) {
+        final int length = s.length();
+        if (buffer.hasArray()) {
+            if (buffer.remaining() < length) throw new BufferOverflowException();
+            final int position = buffer.position();
+            s.getBytes(0, length, buffer.array(), buffer.arrayOffset() + position);
+            buffer.position(position + length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) s.charAt(i));
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        final byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Хэш строки без учета регистра (только для латиницы, чего достаточно для имен заголовков)
+     */
+    private static int hash(String s) {
+        int h = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            h = 31 * h + c;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Общеизвестные имена хранятся одним экземпляром, поэтому чаще всего хватает сравнения ссылок
+     */
+    private static boolean sameName(String a, String b) {
+        return a == b || a.equalsIgnoreCase(b);
+    }
+
+    private static int wellKnownIndex(String name, int hash) {
+        int slot = hash & (WELL_KNOWN_SLOTS.length - 1);
+        int i;
+        while ((i = WELL_KNOWN_SLOTS[slot]) != 0) {
+            if (WELL_KNOWN[i - 1].equalsIgnoreCase(name)) return i - 1;
+            slot = (slot + 1) & (WELL_KNOWN_SLOTS.length - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * @return индекс первого заголовка с таким именем или -1
+     */
+    private int first(String name) {
+        final int hash = hash(name);
+        int slot = hash & (slots.length - 1);
+        int i;
+        while ((i = slots[slot]) != 0) {
+            if (hashes[i - 1] == hash && sameName(names[i - 1], name)) return i - 1;
+            slot = (slot + 1) & (slots.length - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Добавляет заголовок с индексом index в хэш-индекс
+     */
+    private void link(int index) {
+        final int hash = hashes[index];
+        int slot = hash & (slots.length - 1);
+        int i;
+        while ((i = slots[slot]) != 0) {
+            if (hashes[i - 1] == hash && sameName(names[i - 1], names[index])) {
+                /** Такое имя уже есть, дописываем в конец цепочки*/
+                int last = i - 1;
+                while (next[last] >= 0) last = next[last];
+                next[last] = index;
+                return;
+            }
+            slot = (slot + 1) & (slots.length - 1);
+        }
+        slots[slot] = index + 1;
+        distinct++;
+    }
+
+    private void reindex(int slotsLength) {
+        slots = new int[slotsLength];
+        distinct = 0;
+        for (int i = 0; i < size; i++) {
+            next[i] = -1;
+            link(i);
+        }
+    }
+
+    private void checkWritable() {
+        if (readOnly) throw new UnsupportedOperationException("Headers are read-only");
+    }
+
+    private void grow() {
+        final int capacity = names.length * 2;
+        names = Arrays.copyOf(names, capacity);
+        values = Arrays.copyOf(values, capacity);
+        known = Arrays.copyOf(known, capacity);
+        next = Arrays.copyOf(next, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+    }
 }
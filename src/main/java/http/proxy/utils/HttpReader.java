@@ -2,70 +2,101 @@ package http.proxy.utils;
 
 import http.proxy.exceptions.BadSyntaxException;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.List;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import static http.proxy.constants.Constants.*;
 
 /**
  * Считывает данные из входного потока,
  * это может быть либо запрос, либо ответ
+ * <p>
+ * Все промежуточные буферы (строки, тело) берутся из BufferPool.
+ * Буфер строк возвращается в пул сразу после чтения заголовков,
+ * буфер тела - при вызове release(), когда тело больше не нужно.
  */
 public abstract class HttpReader {
 
+    private static final int LINE_BUFFER_SIZE = 4096;
+    private static final byte[] CRLF_BYTES = CRLF.getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] LAST_CHUNK = ("0" + CRLF + CRLF).getBytes(StandardCharsets.ISO_8859_1);
+
     protected String firstLine;
     protected Headers headers;
     private int contentLength = -1;
+    /**
+     * Буфер из пула, действительны только первые bodyLength байт
+     */
     protected byte[] body;
+    protected int bodyLength;
     //Нужно ли читать тело
     protected boolean readBody = true;
+    private byte[] lineBuffer;
 
 
     protected void readTopLine(InputStream is) throws IOException {
         if (is == null) return;
-        firstLine = new String(readLine(is));
+        lineBuffer = BufferPool.lease(LINE_BUFFER_SIZE);
+        try {
+            firstLine = string(readLine(is));
+        } finally {
+            releaseLineBuffer();
+        }
     }
 
     protected void readHeaders(InputStream is) throws IOException, BadSyntaxException {
         if (firstLine == null) throw new IllegalStateException();
-        final List<String> lines = new ArrayList<>();
-        /**Читаем строчки до пустой строки
-         * Пустая строка является разделителем между заголовка и телом запроса */
-        byte[] line;
-        while ((line = readLine(is)).length > 0) {
-            lines.add(new String(line));
-        }
-        final Iterator<String> iterator = lines.iterator();
+        lineBuffer = BufferPool.lease(LINE_BUFFER_SIZE);
         headers = new Headers();
-        while (iterator.hasNext()) {
-            String[] header = iterator.next().split(HEADER_DELIM, 2);
-            if (header.length < 2) {
-                System.out.println(Arrays.toString(header));
-                throw new BadSyntaxException();
+        try {
+            /**Читаем строчки до пустой строки
+             * Пустая строка является разделителем между заголовка и телом запроса */
+            int length;
+            while ((length = readLine(is)) > 0) {
+                int delim = 0;
+                while (delim < length && lineBuffer[delim] != ':') delim++;
+                if (delim == length) throw new BadSyntaxException();
+                headers.add(
+                        new String(lineBuffer, 0, delim, StandardCharsets.ISO_8859_1).trim(),
+                        new String(lineBuffer, delim + 1, length - delim - 1, StandardCharsets.ISO_8859_1).trim()
+                );
             }
-            headers.add(header[0].trim(), String.join(HEADER_DELIM, Arrays.copyOfRange(header, 1, header.length)).trim());
+        } finally {
+            releaseLineBuffer();
         }
 
         final String contentLengthString = headers.get(CONTENT_LENGTH);
-        contentLength = (contentLengthString == null) ? 0 : Integer.valueOf(contentLengthString);
+        try {
+            final long length = (contentLengthString == null) ? 0 : Long.parseLong(contentLengthString);
+            if (length < 0) throw new BadSyntaxException();
+            contentLength = (int) Math.min(length, Integer.MAX_VALUE);
+        } catch (NumberFormatException e) {
+            throw new BadSyntaxException();
+        }
+        if (readBody) readBody(is);
+    }
 
-        if (contentLength > 0 && readBody) {
-            int i = 0;
+    /**
+     * Читает тело в буфер из пула: contentLength байт или чанки.
+     * Вызывается из readHeaders, если readBody, или отдельно, когда заголовки уже прочитаны
+     */
+    protected void readBody(InputStream is) throws IOException {
+        if (contentLength > 0) {
             /** Считываем только contentLength символов */
-            body = new byte[contentLength];
-            while (i < contentLength) {
-                body[i++] = (byte) is.read();
-            }
-        } else if (CHUNKED.equalsIgnoreCase(headers.get(TRANSFER_ENCODING)) && readBody) {
+            body = BufferPool.lease(contentLength);
+            readFully(is, body, 0, contentLength);
+            bodyLength = contentLength;
+        } else if (isChunked()) {
             //Удялем информацию о чанках
             headers.remove(TRANSFER_ENCODING);
             readChuncked(is);
             //Записыаем информацию о размере
-            headers.add(CONTENT_LENGTH, String.valueOf(body.length));
+            contentLength = bodyLength;
+            headers.add(CONTENT_LENGTH, String.valueOf(bodyLength));
         }
     }
 
@@ -77,24 +108,85 @@ public abstract class HttpReader {
      * @throws IOException
      */
     private void readChuncked(InputStream is) throws IOException {
-        int chunkSize = -1;
-        int allSize = 0;
-        List<Byte> buff = new ArrayList<>();
-        do {
-            String stringSize = new String(readLine(is));
-            chunkSize = Integer.valueOf(stringSize, 16);
-            allSize += chunkSize;
-            for (int i = 0; i < chunkSize; i++) {
-                buff.add((byte) is.read());
+        int chunkSize;
+        bodyLength = 0;
+        body = BufferPool.lease(LINE_BUFFER_SIZE);
+        lineBuffer = BufferPool.lease(LINE_BUFFER_SIZE);
+        try {
+            do {
+                String stringSize = string(readLine(is));
+                /** После размера могут идти расширения чанка через ';'*/
+                final int extension = stringSize.indexOf(';');
+                if (extension >= 0) stringSize = stringSize.substring(0, extension);
+                chunkSize = Integer.valueOf(stringSize.trim(), 16);
+                if (bodyLength + chunkSize > body.length) {
+                    body = BufferPool.grow(body, bodyLength, bodyLength + chunkSize);
+                }
+                readFully(is, body, bodyLength, chunkSize);
+                bodyLength += chunkSize;
+                //Два символа /r/n (должны следовать после каждого блока)
+                char r = (char) is.read();
+                char n = (char) is.read();
+                if (r != '\r' || n != '\n') throw new IOException("Undefined format of chunked data");
+            } while (chunkSize != 0);
+        } finally {
+            releaseLineBuffer();
+        }
+    }
+
+    protected boolean isChunked() {
+        return CHUNKED.equalsIgnoreCase(headers.get(TRANSFER_ENCODING));
+    }
+
+    /**
+     * Передает length байт тела из is в os частями размером с buffer
+     *
+     * @return сколько байт передано
+     */
+    protected static long copyBody(InputStream is, OutputStream os, long length, byte[] buffer) throws IOException {
+        long copied = 0;
+        while (copied < length) {
+            final int read = readSome(is, buffer, 0, (int) Math.min(buffer.length, length - copied));
+            os.write(buffer, 0, read);
+            copied += read;
+        }
+        return copied;
+    }
+
+    /**
+     * Передает тело в формате chunked, не собирая его в памяти: каждый чанк уходит в os
+     * с тем же размером, но частями размером с buffer. Трейлеры отбрасываются
+     *
+     * @return сколько байт данных передано (без служебных строк)
+     */
+    protected long copyChunked(InputStream is, OutputStream os, byte[] buffer) throws IOException {
+        long copied = 0;
+        lineBuffer = BufferPool.lease(LINE_BUFFER_SIZE);
+        try {
+            while (true) {
+                String stringSize = string(readClientLine(is));
+                final int extension = stringSize.indexOf(';');
+                if (extension >= 0) stringSize = stringSize.substring(0, extension);
+                final long chunkSize;
+                try {
+                    chunkSize = Long.parseLong(stringSize.trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Undefined format of chunked data");
+                }
+                if (chunkSize < 0) throw new IOException("Undefined format of chunked data");
+                if (chunkSize == 0) {
+                    /** Трейлеры до пустой строки*/
+                    while (readClientLine(is) > 0) ;
+                    os.write(LAST_CHUNK);
+                    return copied;
+                }
+                os.write((Long.toHexString(chunkSize) + CRLF).getBytes(StandardCharsets.ISO_8859_1));
+                copied += copyBody(is, os, chunkSize, buffer);
+                if (readClientLine(is) != 0) throw new IOException("Undefined format of chunked data");
+                os.write(CRLF_BYTES);
             }
-            //Два символа /r/n (должны следовать после каждого блока)
-            char r = (char) is.read();
-            char n = (char) is.read();
-            if (r != '\r' || n != '\n') throw new IOException("Undefined format of chunked data");
-        } while (chunkSize != 0);
-        body = new byte[allSize];
-        for (int i = 0; i < buff.size(); i++) {
-            body[i] = buff.get(i);
+        } finally {
+            releaseLineBuffer();
         }
     }
 
@@ -117,6 +209,44 @@ public abstract class HttpReader {
                 CRLF;
     }
 
+    /**
+     * @return размер первой строки, заголовков и пустой строки в байтах
+     */
+    public int headLength() {
+        return firstLine.length() + getHeaders().byteSize() + 2 * CRLF.length();
+    }
+
+    /**
+     * То же, что и toString(), но сразу в буфер, без промежуточных строк.
+     * Заголовки сериализуются напрямую через Headers.writeTo
+     *
+     * @param buffer буфер, в котором свободно не меньше headLength() байт
+     */
+    public void writeHead(ByteBuffer buffer) {
+        Headers.putLatin1(buffer, firstLine);
+        Headers.putLatin1(buffer, CRLF);
+        getHeaders().writeTo(buffer);
+        Headers.putLatin1(buffer, CRLF);
+    }
+
+    /**
+     * @return первая строка + заголовки + пустая строка в кодировке ISO-8859-1
+     */
+    public byte[] headBytes() {
+        final byte[] bytes = new byte[headLength()];
+        writeHead(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * Возвращает буфер тела в пул. После вызова getBody() вернет null
+     */
+    public void release() {
+        BufferPool.release(body);
+        body = null;
+        bodyLength = 0;
+    }
+
     public abstract String getProtocol();
 
     public abstract void read(InputStream is) throws Exception;
@@ -129,28 +259,76 @@ public abstract class HttpReader {
         return contentLength;
     }
 
+    /**
+     * Массив может быть длиннее тела, действительны только первые getBodyLength() байт
+     */
     public byte[] getBody() {
         return body;
     }
 
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    private void releaseLineBuffer() {
+        BufferPool.release(lineBuffer);
+        lineBuffer = null;
+    }
+
+    private String string(int length) {
+        return new String(lineBuffer, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
     /**
-     * Читает строки до символа \n.
+     * Чтение тела, которое передается дальше по мере получения. Ошибка чтения (в том числе
+     * таймаут) - ошибка клиента, а не сервера, поэтому она не должна выглядеть как SocketTimeoutException
+     */
+    private static int readSome(InputStream is, byte[] buffer, int offset, int length) throws IOException {
+        final int read;
+        try {
+            read = is.read(buffer, offset, length);
+        } catch (IOException e) {
+            throw new IOException("Request body read failed: " + e.getMessage(), e);
+        }
+        if (read < 0) throw new EOFException("Request body is shorter than declared");
+        return read;
+    }
+
+    private int readClientLine(InputStream is) throws IOException {
+        try {
+            return readLine(is);
+        } catch (IOException e) {
+            throw new IOException("Request body read failed: " + e.getMessage(), e);
+        }
+    }
+
+    private static void readFully(InputStream is, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            final int read = is.read(buffer, offset, length);
+            if (read < 0) throw new EOFException();
+            offset += read;
+            length -= read;
+        }
+    }
+
+    /**
+     * Читает строки до символа \n в lineBuffer.
      * Удаляет \r, если он был перед \n.
      * @param is входяший поток
-     * @return прочитанные символы без \r\n
+     * @return количество прочитанных символов без \r\n
      * @throws IOException если что-то пошло не так
      */
-    private byte[] readLine(InputStream is) throws IOException {
-        final List<Byte> buff = new ArrayList<>();
-        byte b;
-        while ((b = (byte) is.read()) != '\n') {
-            buff.add(b);
-        }
-        if (buff.get(buff.size() - 1) == '\r') buff.remove(buff.size() - 1);
-        byte[] buffArray = new byte[buff.size()];
-        for (int i = 0; i < buff.size(); i++) {
-            buffArray[i] = buff.get(i);
+    private int readLine(InputStream is) throws IOException {
+        int length = 0;
+        int b;
+        while ((b = is.read()) != '\n') {
+            if (b < 0) throw new EOFException();
+            if (length == lineBuffer.length) {
+                lineBuffer = BufferPool.grow(lineBuffer, length, length * 2);
+            }
+            lineBuffer[length++] = (byte) b;
         }
-        return buffArray;
+        if (length > 0 && lineBuffer[length - 1] == '\r') length--;
+        return length;
     }
 }
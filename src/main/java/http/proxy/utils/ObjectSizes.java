@@ -0,0 +1,68 @@
+package http.proxy.utils;
+
+/**
+ * Оценка памяти, которую объекты занимают в куче HotSpot.
+ * <p>
+ * Размеры зависят от того, сжаты ли ссылки: при куче до 32 ГБ ссылка занимает 4 байта,
+ * при большей - 8. Это видно по свойству java.vm.compressedOopsMode, которое HotSpot
+ * задает только со сжатыми ссылками (MXBean для этого не нужен, и оценка не тянет за собой
+ * загрузку JMX). Заголовок объекта 12 байт со сжатыми указателями на класс, которые
+ * с Java 15 не зависят от сжатых ссылок; объекты выровнены по 8 байт.
+ */
+public final class ObjectSizes {
+
+    public static final boolean COMPRESSED_OOPS = System.getProperty("java.vm.compressedOopsMode") != null;
+    public static final int REFERENCE = COMPRESSED_OOPS ? 4 : 8;
+    public static final int OBJECT_HEADER =
+            (COMPRESSED_OOPS || Runtime.version().feature() >= 15) ? 12 : 16;
+    /**
+     * Заголовок объекта и длина массива
+     */
+    public static final int ARRAY_HEADER = OBJECT_HEADER + 4;
+    private static final int ALIGNMENT = 8;
+
+    private ObjectSizes() {
+    }
+
+    public static long align(final long size) {
+        return (size + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    /**
+     * @param fieldBytes сумма размеров полей
+     */
+    public static long object(final int fieldBytes) {
+        return align(OBJECT_HEADER + fieldBytes);
+    }
+
+    public static long bytes(final int length) {
+        return align(ARRAY_HEADER + (long) length);
+    }
+
+    public static long ints(final int length) {
+        return align(ARRAY_HEADER + 4L * length);
+    }
+
+    public static long references(final int length) {
+        return align(ARRAY_HEADER + (long) REFERENCE * length);
+    }
+
+    /**
+     * Строка вместе с массивом символов: Latin-1 по байту на символ, иначе по два
+     *
+     * @return 0 для null
+     */
+    public static long string(final String s) {
+        if (s == null) return 0;
+        final int length = s.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) > 0xff) {
+                bytes = length * 2;
+                break;
+            }
+        }
+        /** value, hash, coder, hashIsZero*/
+        return object(REFERENCE + 4 + 1 + 1) + bytes(bytes);
+    }
+}
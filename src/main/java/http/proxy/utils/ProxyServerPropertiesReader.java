@@ -3,6 +3,8 @@ package http.proxy.utils;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -14,8 +16,69 @@ public final class ProxyServerPropertiesReader {
 
     private int port;
     private int lifetime;
-    private int cacheSize;
+    private long cacheSize;
     private String logFile;
+    private boolean bufferLeakDetection;
+    private boolean cacheKeySortQuery;
+    private boolean cacheKeyStripQuery;
+    private List<String> cacheKeyIgnoredParams;
+    private List<String> peers;
+    private String peerSelf;
+    private int peerTimeout;
+    private int workerThreads;
+    private int upstreamThreads;
+    private int workerThreadsMin;
+    private int workerThreadsMax;
+    private int upstreamThreadsMin;
+    private int upstreamThreadsMax;
+    private int missLaneLimit;
+    private long poolAdjustInterval;
+    private long poolTargetWait;
+    private int soTimeout;
+    private String adminHost;
+    private int adminPort;
+    private String warmUpUrls;
+    private int warmUpTopN;
+    private String warmUpAccessLog;
+    private int warmUpTimeout;
+    private boolean lazyInit;
+    private boolean prefetchSubresources;
+    private boolean prefetchSameHost;
+    private double prefetchRate;
+    private int prefetchQueue;
+    private double clientRate;
+    private int clientBurst;
+    private double hostRate;
+    private int hostBurst;
+    private int limiterSlots;
+    private boolean fairScheduling;
+    private boolean hedgeEnabled;
+    private double hedgePercentile;
+    private double hedgeBudgetPercent;
+    private int hedgeBurst;
+    private long hedgeMinDelay;
+    private int hedgeMinSamples;
+    private int connectTimeout;
+    private long connectStagger;
+    private long connectFailureTtl;
+    private long negativeCacheSize;
+    private long negativeTtlNotFound;
+    private long negativeTtlServerError;
+    private long negativeTtlFailure;
+    private boolean breakerEnabled;
+    private int breakerWindow;
+    private int breakerMinCalls;
+    private int breakerErrorPercent;
+    private long breakerSlowCall;
+    private long breakerOpenTime;
+    private int breakerProbes;
+    private long staleCacheSize;
+    private long staleTtl;
+    private int acceptors;
+    private int acceptBacklog;
+    private String accessLogFile;
+    private long accessLogSize;
+    private int accessLogFiles;
     private final File file;
 
     public ProxyServerPropertiesReader(final String path) {
@@ -27,10 +90,72 @@ public final class ProxyServerPropertiesReader {
         try {
             final Properties properties = new Properties();
             properties.load(new FileReader(file));
-            cacheSize = Integer.valueOf(properties.getProperty("cache_size"));
+            cacheSize = Long.valueOf(properties.getProperty("cache_size").trim());
             lifetime = Integer.valueOf(properties.getProperty("lifetime"));
             port = Integer.valueOf(properties.getProperty("port"));
             logFile = properties.getProperty("log_file");
+            bufferLeakDetection = Boolean.parseBoolean(properties.getProperty("buffer_leak_detection", "false"));
+            cacheKeySortQuery = Boolean.parseBoolean(properties.getProperty("cache_key_sort_query", "false"));
+            cacheKeyStripQuery = Boolean.parseBoolean(properties.getProperty("cache_key_strip_query", "false"));
+            cacheKeyIgnoredParams = readList(properties.getProperty("cache_key_ignored_params", ""));
+            peers = readList(properties.getProperty("peers", ""));
+            peerSelf = properties.getProperty("peer_self");
+            peerTimeout = Integer.valueOf(properties.getProperty("peer_timeout", "35000").trim());
+            workerThreads = Integer.valueOf(properties.getProperty("worker_threads", "10").trim());
+            upstreamThreads = Integer.valueOf(properties.getProperty("upstream_threads", "10").trim());
+            /** Без границ пулы фиксированного размера, как раньше*/
+            workerThreadsMin = Integer.valueOf(properties.getProperty("worker_threads_min", String.valueOf(workerThreads)).trim());
+            workerThreadsMax = Integer.valueOf(properties.getProperty("worker_threads_max", String.valueOf(workerThreads)).trim());
+            upstreamThreadsMin = Integer.valueOf(properties.getProperty("upstream_threads_min", String.valueOf(upstreamThreads)).trim());
+            upstreamThreadsMax = Integer.valueOf(properties.getProperty("upstream_threads_max", String.valueOf(upstreamThreads)).trim());
+            missLaneLimit = Integer.valueOf(properties.getProperty("miss_lane_limit", "1024").trim());
+            poolAdjustInterval = Long.valueOf(properties.getProperty("pool_adjust_interval", "1000").trim());
+            poolTargetWait = Long.valueOf(properties.getProperty("pool_target_wait", "10").trim());
+            soTimeout = Integer.valueOf(properties.getProperty("so_timeout", "30000").trim());
+            adminHost = properties.getProperty("admin_host", "127.0.0.1").trim();
+            adminPort = Integer.valueOf(properties.getProperty("admin_port", "0").trim());
+            warmUpUrls = properties.getProperty("warmup_urls");
+            warmUpTopN = Integer.valueOf(properties.getProperty("warmup_top_n", "0").trim());
+            warmUpAccessLog = properties.getProperty("warmup_access_log", logFile);
+            warmUpTimeout = Integer.valueOf(properties.getProperty("warmup_timeout", "60").trim());
+            lazyInit = Boolean.parseBoolean(properties.getProperty("lazy_init", "true").trim());
+            prefetchSubresources = Boolean.parseBoolean(properties.getProperty("prefetch_subresources", "false"));
+            prefetchSameHost = Boolean.parseBoolean(properties.getProperty("prefetch_same_host", "true"));
+            prefetchRate = Double.valueOf(properties.getProperty("prefetch_rate", "5").trim());
+            prefetchQueue = Integer.valueOf(properties.getProperty("prefetch_queue", "256").trim());
+            clientRate = Double.valueOf(properties.getProperty("client_rate", "0").trim());
+            clientBurst = Integer.valueOf(properties.getProperty("client_burst", "20").trim());
+            hostRate = Double.valueOf(properties.getProperty("host_rate", "0").trim());
+            hostBurst = Integer.valueOf(properties.getProperty("host_burst", "50").trim());
+            limiterSlots = Integer.valueOf(properties.getProperty("limiter_slots", "262144").trim());
+            fairScheduling = Boolean.parseBoolean(properties.getProperty("fair_scheduling", "true"));
+            hedgeEnabled = Boolean.parseBoolean(properties.getProperty("hedge_enabled", "false"));
+            hedgePercentile = Double.valueOf(properties.getProperty("hedge_percentile", "95").trim());
+            hedgeBudgetPercent = Double.valueOf(properties.getProperty("hedge_budget_percent", "5").trim());
+            hedgeBurst = Integer.valueOf(properties.getProperty("hedge_burst", "10").trim());
+            hedgeMinDelay = Long.valueOf(properties.getProperty("hedge_min_delay", "20").trim());
+            hedgeMinSamples = Integer.valueOf(properties.getProperty("hedge_min_samples", "20").trim());
+            connectTimeout = Integer.valueOf(properties.getProperty("connect_timeout", "30000").trim());
+            connectStagger = Long.valueOf(properties.getProperty("connect_stagger", "250").trim());
+            connectFailureTtl = Long.valueOf(properties.getProperty("connect_failure_ttl", "30000").trim());
+            negativeCacheSize = Long.valueOf(properties.getProperty("negative_cache_size", "1048576").trim());
+            negativeTtlNotFound = Long.valueOf(properties.getProperty("negative_ttl_not_found", "10").trim());
+            negativeTtlServerError = Long.valueOf(properties.getProperty("negative_ttl_server_error", "5").trim());
+            negativeTtlFailure = Long.valueOf(properties.getProperty("negative_ttl_failure", "5").trim());
+            breakerEnabled = Boolean.parseBoolean(properties.getProperty("breaker_enabled", "true").trim());
+            breakerWindow = Integer.valueOf(properties.getProperty("breaker_window", "20").trim());
+            breakerMinCalls = Integer.valueOf(properties.getProperty("breaker_min_calls", "10").trim());
+            breakerErrorPercent = Integer.valueOf(properties.getProperty("breaker_error_percent", "50").trim());
+            breakerSlowCall = Long.valueOf(properties.getProperty("breaker_slow_call", "10000").trim());
+            breakerOpenTime = Long.valueOf(properties.getProperty("breaker_open_time", "10000").trim());
+            breakerProbes = Integer.valueOf(properties.getProperty("breaker_probes", "2").trim());
+            staleCacheSize = Long.valueOf(properties.getProperty("stale_cache_size", "4194304").trim());
+            staleTtl = Long.valueOf(properties.getProperty("stale_ttl", "3600").trim());
+            acceptors = Integer.valueOf(properties.getProperty("acceptors", "1").trim());
+            acceptBacklog = Integer.valueOf(properties.getProperty("accept_backlog", "0").trim());
+            accessLogFile = properties.getProperty("access_log_file");
+            accessLogSize = Long.valueOf(properties.getProperty("access_log_size", "67108864").trim());
+            accessLogFiles = Integer.valueOf(properties.getProperty("access_log_files", "5").trim());
 
         } catch (IOException | NumberFormatException e) {
             e.printStackTrace();
@@ -38,6 +163,17 @@ public final class ProxyServerPropertiesReader {
         }
     }
 
+    /**
+     * Список через запятую, пустые элементы пропускаются
+     */
+    private static List<String> readList(final String value) {
+        final List<String> result = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) result.add(item.trim());
+        }
+        return result;
+    }
+
     public int getPort() {
         return port;
     }
@@ -46,11 +182,379 @@ public final class ProxyServerPropertiesReader {
         return lifetime;
     }
 
-    public int getCacheSize() {
+    /**
+     * @return сколько памяти в байтах может занимать кэш: тела, заголовки, ключи и служебные объекты
+     */
+    public long getCacheSize() {
         return cacheSize;
     }
 
     public String getLogFile() {
         return logFile;
     }
+
+    public boolean isBufferLeakDetection() {
+        return bufferLeakDetection;
+    }
+
+    public boolean isCacheKeySortQuery() {
+        return cacheKeySortQuery;
+    }
+
+    public boolean isCacheKeyStripQuery() {
+        return cacheKeyStripQuery;
+    }
+
+    public List<String> getCacheKeyIgnoredParams() {
+        return cacheKeyIgnoredParams;
+    }
+
+    /**
+     * @return адреса peer-протокола всех узлов группы, пустой список - узел работает один
+     */
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    public String getPeerSelf() {
+        return peerSelf;
+    }
+
+    public int getPeerTimeout() {
+        return peerTimeout;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public int getUpstreamThreads() {
+        return upstreamThreads;
+    }
+
+    /**
+     * @return нижняя граница рабочих потоков во всех группах вместе
+     */
+    public int getWorkerThreadsMin() {
+        return workerThreadsMin;
+    }
+
+    /**
+     * @return верхняя граница рабочих потоков во всех группах вместе
+     */
+    public int getWorkerThreadsMax() {
+        return workerThreadsMax;
+    }
+
+    public int getUpstreamThreadsMin() {
+        return upstreamThreadsMin;
+    }
+
+    public int getUpstreamThreadsMax() {
+        return upstreamThreadsMax;
+    }
+
+    /**
+     * @return сколько промахов может ждать и выполняться одновременно, 0 - без ограничения
+     */
+    public int getMissLaneLimit() {
+        return missLaneLimit;
+    }
+
+    /**
+     * @return раз в сколько миллисекунд пулы пересматривают свой размер
+     */
+    public long getPoolAdjustInterval() {
+        return poolAdjustInterval;
+    }
+
+    /**
+     * @return сколько миллисекунд задача может ждать в очереди пула, прежде чем пул вырастет
+     */
+    public long getPoolTargetWait() {
+        return poolTargetWait;
+    }
+
+    public int getSoTimeout() {
+        return soTimeout;
+    }
+
+    public String getAdminHost() {
+        return adminHost;
+    }
+
+    /**
+     * @return порт AdminServer, 0 - выключен
+     */
+    public int getAdminPort() {
+        return adminPort;
+    }
+
+    /**
+     * @return файл со списком адресов для прогрева или null
+     */
+    public String getWarmUpUrls() {
+        return warmUpUrls;
+    }
+
+    /**
+     * @return сколько самых частых адресов из прошлого лога загрузить при старте, 0 - не загружать
+     */
+    public int getWarmUpTopN() {
+        return warmUpTopN;
+    }
+
+    /**
+     * @return лог прошлого запуска, по умолчанию log_file
+     */
+    public String getWarmUpAccessLog() {
+        return warmUpAccessLog;
+    }
+
+    /**
+     * @return сколько секунд может идти прогрев (без lazy_init соединения все это время ждут)
+     */
+    public int getWarmUpTimeout() {
+        return warmUpTimeout;
+    }
+
+    /**
+     * @return запускать ли узел группы, AdminServer и прогрев в фоне, после открытия слушающих сокетов
+     */
+    public boolean isLazyInit() {
+        return lazyInit;
+    }
+
+    public boolean isWarmUpEnabled() {
+        return warmUpUrls != null || warmUpTopN > 0;
+    }
+
+    public boolean isPrefetchSubresources() {
+        return prefetchSubresources;
+    }
+
+    public boolean isPrefetchSameHost() {
+        return prefetchSameHost;
+    }
+
+    public double getPrefetchRate() {
+        return prefetchRate;
+    }
+
+    public int getPrefetchQueue() {
+        return prefetchQueue;
+    }
+
+    /**
+     * @return запросов в секунду с одного адреса клиента, 0 - без ограничения
+     */
+    public double getClientRate() {
+        return clientRate;
+    }
+
+    public int getClientBurst() {
+        return clientBurst;
+    }
+
+    /**
+     * @return запросов в секунду к одному хосту сервера, 0 - без ограничения
+     */
+    public double getHostRate() {
+        return hostRate;
+    }
+
+    public int getHostBurst() {
+        return hostBurst;
+    }
+
+    /**
+     * @return количество корзин в каждом ограничителе
+     */
+    public int getLimiterSlots() {
+        return limiterSlots;
+    }
+
+    public boolean isFairScheduling() {
+        return fairScheduling;
+    }
+
+    /**
+     * @return дублировать медленные GET и HEAD запросы к серверам
+     */
+    public boolean isHedgeEnabled() {
+        return hedgeEnabled;
+    }
+
+    /**
+     * @return перцентиль времени ответа хоста, после которого запускается вторая попытка
+     */
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * @return сколько процентов запросов можно продублировать
+     */
+    public double getHedgeBudgetPercent() {
+        return hedgeBudgetPercent;
+    }
+
+    public int getHedgeBurst() {
+        return hedgeBurst;
+    }
+
+    /**
+     * @return наименьшая задержка второй попытки в миллисекундах
+     */
+    public long getHedgeMinDelay() {
+        return hedgeMinDelay;
+    }
+
+    public int getHedgeMinSamples() {
+        return hedgeMinSamples;
+    }
+
+    /**
+     * @return сколько миллисекунд ждать подключения к серверу по всем его адресам
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * @return через сколько миллисекунд пробовать следующий адрес сервера
+     */
+    public long getConnectStagger() {
+        return connectStagger;
+    }
+
+    /**
+     * @return сколько миллисекунд адрес, к которому не удалось подключиться, пробуется последним
+     */
+    public long getConnectFailureTtl() {
+        return connectFailureTtl;
+    }
+
+    /**
+     * @return размер кэша ошибок в байтах, 0 - ошибки кэшируются как обычные ответы
+     */
+    public long getNegativeCacheSize() {
+        return negativeCacheSize;
+    }
+
+    /**
+     * @return время жизни ответов 404 и 410 в секундах
+     */
+    public long getNegativeTtlNotFound() {
+        return negativeTtlNotFound;
+    }
+
+    /**
+     * @return время жизни ответов 5xx в секундах
+     */
+    public long getNegativeTtlServerError() {
+        return negativeTtlServerError;
+    }
+
+    /**
+     * @return сколько секунд хост с ошибкой DNS или подключения считается недоступным
+     */
+    public long getNegativeTtlFailure() {
+        return negativeTtlFailure;
+    }
+
+    public boolean isBreakerEnabled() {
+        return breakerEnabled;
+    }
+
+    /**
+     * @return по скольким последним запросам к хосту считается доля ошибок
+     */
+    public int getBreakerWindow() {
+        return breakerWindow;
+    }
+
+    /**
+     * @return сколько запросов нужно в окне, прежде чем автомат может разомкнуться
+     */
+    public int getBreakerMinCalls() {
+        return breakerMinCalls;
+    }
+
+    /**
+     * @return доля ошибок и медленных ответов в процентах, при которой автомат размыкается
+     */
+    public int getBreakerErrorPercent() {
+        return breakerErrorPercent;
+    }
+
+    /**
+     * @return ответ дольше стольких миллисекунд считается таймаутом, 0 - не считается
+     */
+    public long getBreakerSlowCall() {
+        return breakerSlowCall;
+    }
+
+    /**
+     * @return сколько миллисекунд автомат разомкнут до пробных запросов
+     */
+    public long getBreakerOpenTime() {
+        return breakerOpenTime;
+    }
+
+    /**
+     * @return сколько пробных запросов должно пройти, чтобы автомат замкнулся
+     */
+    public int getBreakerProbes() {
+        return breakerProbes;
+    }
+
+    /**
+     * @return размер хранилища устаревших ответов в байтах, 0 - выключено
+     */
+    public long getStaleCacheSize() {
+        return staleCacheSize;
+    }
+
+    /**
+     * @return сколько секунд устаревший ответ можно отдавать, если сервер недоступен
+     */
+    public long getStaleTtl() {
+        return staleTtl;
+    }
+
+    /**
+     * @return количество потоков, принимающих соединения, у каждого свой сокет и своя группа рабочих потоков
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * @return длина очереди accept каждого слушающего сокета, 0 - значение по умолчанию
+     */
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    /**
+     * @return путь к двоичному журналу доступа или null, если он выключен
+     */
+    public String getAccessLogFile() {
+        return accessLogFile;
+    }
+
+    /**
+     * @return размер сегмента двоичного журнала в байтах
+     */
+    public long getAccessLogSize() {
+        return accessLogSize;
+    }
+
+    /**
+     * @return сколько сегментов двоичного журнала хранить вместе с текущим
+     */
+    public int getAccessLogFiles() {
+        return accessLogFiles;
+    }
 }
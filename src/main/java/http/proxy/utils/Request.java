@@ -2,15 +2,21 @@ package http.proxy.utils;
 
 import http.proxy.exceptions.BadRequestException;
 import http.proxy.exceptions.BadSyntaxException;
+import http.proxy.exceptions.ClientBodyException;
 import http.proxy.exceptions.MethodNotAllowedException;
 import http.proxy.exceptions.RequestTimeoutException;
+import http.proxy.upstream.Connector;
 
+import java.io.Closeable;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
 
 import static http.proxy.constants.Constants.*;
 
@@ -22,9 +28,36 @@ import static http.proxy.constants.Constants.*;
  */
 public final class Request extends HttpReader {
 
+    /**
+     * Тело POST больше этого размера не читается в память, а передается серверу по мере получения
+     */
+    private static final int STREAM_THRESHOLD = 64 * 1024;
+    /**
+     * Буфер, через который передается такое тело: больше в памяти его не бывает
+     */
+    private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+
     private String url;
     private String method;
     private String protocol;
+    /**
+     * Входной поток клиента, из которого send передаст тело серверу, или null
+     */
+    private InputStream bodyStream;
+    /**
+     * Длина передаваемого тела, -1 - chunked
+     */
+    private long streamLength;
+    /**
+     * Выходной поток клиента, если клиент ждет 100 Continue перед отправкой тела
+     */
+    private OutputStream continueStream;
+    private boolean streaming;
+    private long streamed;
+    /**
+     * Когда началась первая попытка отправить запрос (System.nanoTime), 0 - еще не начиналась
+     */
+    private volatile long sendStarted;
 
     /**
      * @param is - входной поток
@@ -37,15 +70,32 @@ public final class Request extends HttpReader {
     @Override
     public void read(final InputStream is)
             throws RequestTimeoutException, MethodNotAllowedException, BadRequestException {
+        read(is, null);
+    }
+
+    /**
+     * То же, что read(is), но большое (больше STREAM_THRESHOLD) или chunked тело POST не читается
+     * в память: его передаст серверу send, по мере получения от клиента.
+     * На Expect: 100-continue прокси отвечает сам, как только подключится к серверу,
+     * серверу этот заголовок не передается
+     *
+     * @param os выходной поток клиента для ответа 100 Continue или null, тогда тело читается целиком
+     */
+    public void read(final InputStream is, final OutputStream os)
+            throws RequestTimeoutException, MethodNotAllowedException, BadRequestException {
         try {
             //Заставляем родительский класс читать входной поток
             super.readTopLine(is);
+            //Клиент начал соединение HTTP/2 без Upgrade, дальше идут фреймы, а не заголовки
+            if (HTTP2_PREFACE_LINE.equals(getFirstLine())) {
+                method = "PRI";
+                url = "*";
+                protocol = "HTTP/2.0";
+                return;
+            }
             //Первая строка содержит метод, запрос и версию протокола
             final String[] s = getFirstLine().split(SPACE);
-            if (s.length != 3) {
-                System.out.println(Arrays.toString(s));
-                throw new BadRequestException();
-            }
+            if (s.length != 3) throw new BadRequestException();
             method = s[0];
             url = s[1];
             protocol = s[2];
@@ -54,7 +104,19 @@ public final class Request extends HttpReader {
                 throw new MethodNotAllowedException(method);
             }
 
+            readBody = false;
             super.readHeaders(is);
+            if (os != null && isStreamable()) {
+                bodyStream = is;
+                streaming = true;
+                streamLength = isChunked() ? -1 : Long.parseLong(getHeaders().get(CONTENT_LENGTH));
+                if (EXPECT_CONTINUE.equalsIgnoreCase(getHeaders().get(EXPECT))) {
+                    getHeaders().remove(EXPECT);
+                    continueStream = os;
+                }
+            } else {
+                super.readBody(is);
+            }
         } catch (IOException e) {
             throw new RequestTimeoutException();
         } catch (BadSyntaxException e) {
@@ -62,6 +124,55 @@ public final class Request extends HttpReader {
         }
     }
 
+    /**
+     * Создает запрос из уже разобранных частей, например из потока HTTP/2
+     *
+     * @param body       тело из BufferPool или null, принадлежит запросу
+     * @param bodyLength длина тела
+     */
+    public static Request create(final String method,
+                                 final String url,
+                                 final Headers headers,
+                                 final byte[] body,
+                                 final int bodyLength
+    ) {
+        final Request request = new Request();
+        request.method = method;
+        request.url = url;
+        request.protocol = DEFAULT_HTTP_VERSION;
+        request.firstLine = method + SPACE + url + SPACE + DEFAULT_HTTP_VERSION;
+        request.headers = headers;
+        request.body = body;
+        request.bodyLength = bodyLength;
+        return request;
+    }
+
+    /**
+     * Тело передается потоком только в POST: GET и HEAD могут отправляться повторно
+     * (хеджирование), а тело из сокета клиента можно прочитать один раз.
+     * Запрос с Upgrade оставляем целиком: за ним в сокете идут фреймы HTTP/2
+     */
+    private boolean isStreamable() {
+        if (!POST_METHOD.equals(method) || getHeaders().get(UPGRADE) != null) return false;
+        return isChunked()
+                || getContentLength() > STREAM_THRESHOLD
+                || (getContentLength() > 0 && EXPECT_CONTINUE.equalsIgnoreCase(getHeaders().get(EXPECT)));
+    }
+
+    /**
+     * @return сколько байт тела передано серверу потоком (0, если тело было прочитано в память)
+     */
+    public long getStreamedLength() {
+        return streamed;
+    }
+
+    /**
+     * @return true, если вместо запроса пришло предисловие соединения HTTP/2
+     */
+    public boolean isHttp2Preface() {
+        return HTTP2_PREFACE_LINE.equals(getFirstLine());
+    }
+
     @Override
     public String getProtocol() {
         return protocol;
@@ -76,45 +187,136 @@ public final class Request extends HttpReader {
     }
 
     /**
-     * Выполняем execute в ExecutorService, который нам предоставят
-     * CallBack аналогичен тому, что бы взят из OkHttp
-     */
-    public void execute(ExecutorService service, Callback callback) {
-        service.submit(
-                () -> {
-                    try {
-                        final Socket socket = new Socket(Proxy.NO_PROXY);
-                        final URL urlObj = new URL(url);
-                        final String host = urlObj.getHost();
-                        //Смотрим какой пор в запросе. Если он не задан, то ставим 80
-                        int port = urlObj.getPort();
-                        if (port == -1) port = 80;
-
-                        final InetSocketAddress inetAddress = new InetSocketAddress(
-                                InetAddress.getByName(host),
-                                port
-                        );
-
-                        socket.connect(inetAddress, 30000);
-
-                        final InputStream is = socket.getInputStream();
-                        final OutputStream os = socket.getOutputStream();
-
-                        os.write(toString().getBytes());
-                        if (getBody() != null) os.write(getBody());
-                        os.flush();
-
-                        final Response response = new Response(this);
-                        response.read(is);
-                        socket.close();
-                        {
-                            callback.onSuccess(this, response);
-                        }
-                    } catch (Exception e) {
-                        callback.onFailure(this, e);
-                    }
+     * Одна попытка выполнить запрос: подключение, отправка, чтение ответа.
+     * Выполняется в вызывающем потоке
+     *
+     * @param connector        подключение к серверу по всем его адресам
+     * @param onSocket         получает Closeable подключения, а затем сокет, чтобы попытку можно
+     *                         было отменить из другого потока, закрыв его (может быть null)
+     * @param releaseAfterSend вернуть буферы запроса в пул сразу после отправки.
+     *                         Если запрос будет отправлен еще раз, release вызывает владелец
+     * @return ответ сервера
+     */
+    public Response send(final Connector connector, final Consumer<Closeable> onSocket, final boolean releaseAfterSend) throws Exception {
+        final URL urlObj = new URL(url);
+        final String host = urlObj.getHost();
+        //Смотрим какой пор в запросе. Если он не задан, то ставим 80
+        int port = urlObj.getPort();
+        if (port == -1) port = 80;
+
+        if (streaming && bodyStream == null) throw new IOException("Request body has already been sent");
+        if (sendStarted == 0) sendStarted = System.nanoTime();
+        try (Socket socket = connector.connect(host, port, onSocket)) {
+            if (onSocket != null) onSocket.accept(socket);
+
+            final InputStream is = socket.getInputStream();
+            final OutputStream os = socket.getOutputStream();
+            /** Сервер доступен: теперь клиент может отправлять тело*/
+            if (continueStream != null) {
+                continueStream.write((DEFAULT_HTTP_VERSION + SPACE + CONTINUE_CODE + SPACE + CONTINUE + CRLF + CRLF)
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                continueStream.flush();
+                continueStream = null;
+            }
+
+            /** Заголовки кодируем в буфер из пула, после отправки он больше не нужен*/
+            final int headLength = headLength();
+            final byte[] head = BufferPool.lease(headLength);
+            try {
+                writeHead(ByteBuffer.wrap(head));
+                os.write(head, 0, headLength);
+                if (bodyStream != null) {
+                    streamBody(os);
+                } else if (getBody() != null) {
+                    os.write(getBody(), 0, getBodyLength());
                 }
-        );
+                os.flush();
+            } finally {
+                BufferPool.release(head);
+                if (releaseAfterSend) release();
+            }
+
+            final Response response = new Response(this);
+            try {
+                response.read(is);
+            } catch (Exception e) {
+                response.release();
+                throw e;
+            }
+            return response;
+        }
+    }
+
+    /**
+     * @return когда началась первая попытка отправить запрос (System.nanoTime), 0 - еще не начиналась
+     */
+    public long getSendStarted() {
+        return sendStarted;
+    }
+
+    /**
+     * Передает тело из сокета клиента серверу через один буфер из пула
+     *
+     * @throws ClientBodyException тело не удалось прочитать у клиента, сервер ни при чем
+     * @throws IOException         не удалось записать тело серверу
+     */
+    private void streamBody(final OutputStream os) throws IOException {
+        final InputStream is = bodyStream;
+        bodyStream = null;
+        final byte[] buffer = BufferPool.lease(STREAM_BUFFER_SIZE);
+        final OriginOutput origin = new OriginOutput(os);
+        try {
+            streamed = (streamLength >= 0)
+                    ? copyBody(is, origin, streamLength, buffer)
+                    : copyChunked(is, origin, buffer);
+        } catch (IOException e) {
+            /** Кроме записи серверу здесь только чтение и разбор тела клиента*/
+            if (origin.failed) throw e;
+            throw new ClientBodyException(e);
+        } finally {
+            BufferPool.release(buffer);
+        }
     }
 
-}
\ No newline at end of file
+    /**
+     * Поток к серверу, который помнит, что запись в него не удалась
+     */
+    private static final class OriginOutput extends FilterOutputStream {
+
+        private boolean failed;
+
+        OriginOutput(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package http.proxy.utils;
 
 import http.proxy.exceptions.BadRequestException;
+import http.proxy.jfr.UpstreamFirstByteEvent;
+import http.proxy.jfr.UpstreamReadEvent;
 
 import java.io.InputStream;
 import java.util.Arrays;
@@ -22,7 +24,18 @@ public final class Response extends HttpReader {
 
     @Override
     public void read(InputStream is) throws Exception {
+        /** Response.read вызывается сразу после отправки запроса,
+         * поэтому чтение первой строки - это время до первого байта ответа*/
+        final UpstreamFirstByteEvent firstByte = new UpstreamFirstByteEvent();
+        firstByte.begin();
         super.readTopLine(is);
+        firstByte.end();
+        if (firstByte.shouldCommit()) {
+            firstByte.url = request.getUrl();
+            firstByte.commit();
+        }
+        final UpstreamReadEvent read = new UpstreamReadEvent();
+        read.begin();
         createdTime = System.currentTimeMillis();
         final String[] s = getFirstLine().split(SPACE);
         if (s.length < 3) throw new BadRequestException();
@@ -39,6 +52,13 @@ public final class Response extends HttpReader {
             readBody = false;
         }
         super.readHeaders(is);
+        read.end();
+        if (read.shouldCommit()) {
+            read.url = request.getUrl();
+            read.status = code;
+            read.bytes = getBodyLength();
+            read.commit();
+        }
     }
 
     @Override